@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.micode.notes.api.local.LocalCloudServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * {@link HttpClientProvider} 的连接复用：连续请求和派生客户端都走同一条 keep-alive 连接
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConnectionReuseTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private static final int REQUEST_COUNT = 10;
+
+    private LocalCloudServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalCloudServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() throws IOException {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            execute(HttpClientProvider.forCloudSync());
+        }
+        assertEquals(1, mServer.getAcceptedConnectionCount());
+    }
+
+    @Test
+    public void derivedClientsShareConnectionPool() throws IOException {
+        execute(HttpClientProvider.forAuth());
+        execute(HttpClientProvider.forCloudSync());
+        execute(HttpClientProvider.getBaseClient());
+        assertEquals(1, mServer.getAcceptedConnectionCount());
+    }
+
+    /**
+     * 发送一个未认证的请求；只关心连接，服务端返回 401 即可，响应体必须读完连接才会回到连接池
+     */
+    private void execute(OkHttpClient client) throws IOException {
+        Request request = new Request.Builder()
+                .url(mServer.getBaseUrl() + "/notes")
+                .post(RequestBody.create("{\"action\":\"download\"}", JSON))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals(401, response.code());
+            response.body().string();
+        }
+    }
+}
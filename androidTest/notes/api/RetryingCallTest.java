@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.micode.notes.api.local.LocalCloudServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * {@link RetryingCall} 在脚本化失败的本地服务器上的重试、熔断与 Retry-After 处理
+ * <p>
+ * 请求不带令牌，通过注入的失败后服务端返回 401（不可重试），据此判断请求最终到达。
+ * 熔断器按键全局共享，每个用例使用唯一的操作名。
+ * </p>
+ */
+@RunWith(AndroidJUnit4.class)
+public class RetryingCallTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * 短退避，测试不必等待默认的秒级延迟
+     */
+    private static final RetryPolicy FAST_POLICY = new RetryPolicy(3, 10, 50, new Random(1));
+
+    private LocalCloudServer mServer;
+    private String mActionPrefix;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalCloudServer();
+        mServer.start();
+        mActionPrefix = "test-" + System.nanoTime() + "-";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void idempotentRequestRetriesThroughScriptedFailures() throws Exception {
+        mServer.setFailureRate(0, 503, -1);
+        mServer.failNext(2);
+
+        Outcome outcome = execute(request("download", true));
+        assertEquals(401, outcome.code);
+        assertEquals(3, mServer.getLatencyStats().getCount());
+    }
+
+    @Test
+    public void nonIdempotentRequestIsNotRetried() throws Exception {
+        mServer.setFailureRate(0, 503, -1);
+        mServer.failNext(1);
+
+        Outcome outcome = execute(request("upload", false));
+        assertEquals(503, outcome.code);
+        assertEquals(1, mServer.getLatencyStats().getCount());
+    }
+
+    @Test
+    public void openBreakerOnlyAffectsItsOwnAction() throws Exception {
+        mServer.setFailureRate(0, 503, -1);
+        mServer.failNext(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            assertEquals(503, execute(request("upload", false)).code);
+        }
+
+        Outcome blocked = execute(request("upload", false));
+        assertTrue(String.valueOf(blocked.error),
+                blocked.error instanceof RetryingCall.CircuitOpenException);
+        assertEquals(401, execute(request("download", false)).code);
+    }
+
+    @Test
+    public void unauthorizedProbeLetsRefreshedRequestThrough() throws Exception {
+        String validToken = register();
+        Request request = request("download", false).newBuilder()
+                .header("Authorization", "Bearer expired-" + System.nanoTime())
+                .build();
+        CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.SYSTEM_CLOCK, 1, 1);
+        CircuitBreaker.install(RetryingCall.endpointOf(request), breaker);
+        breaker.onFailure(-1);
+        Thread.sleep(10);
+
+        RetryingCall.setTokenRefresher((rejectedToken, callback) -> callback.onRefreshed(validToken));
+        long sentBefore = mServer.getLatencyStats().getCount();
+        try {
+            Outcome outcome = execute(request);
+            assertNull(String.valueOf(outcome.error), outcome.error);
+            assertNotEquals(401, outcome.code);
+            assertEquals(sentBefore + 2, mServer.getLatencyStats().getCount());
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        } finally {
+            RetryingCall.setTokenRefresher(null);
+        }
+    }
+
+    @Test
+    public void actionBreakerIsSharedAcrossResourcePaths() {
+        Request first = RetryingCall.markAction(new Request.Builder(), "blob-download")
+                .url(mServer.getBaseUrl() + "/blobs/aaa").get().build();
+        Request second = RetryingCall.markAction(new Request.Builder(), "blob-download")
+                .url(mServer.getBaseUrl() + "/blobs/bbb").get().build();
+        assertEquals(RetryingCall.endpointOf(first), RetryingCall.endpointOf(second));
+    }
+
+    @Test
+    public void retryAfterBeyondCapIsLeftToScheduler() throws Exception {
+        long retryAfterSeconds = RetryPolicy.MAX_RETRY_AFTER_MS / 1000 + 1;
+        mServer.setFailureRate(0, 503, retryAfterSeconds);
+        mServer.failNext(1);
+
+        long start = System.currentTimeMillis();
+        Outcome outcome = execute(request("download", true));
+        assertEquals(503, outcome.code);
+        assertTrue(System.currentTimeMillis() - start < RetryPolicy.MAX_RETRY_AFTER_MS);
+    }
+
+    @Test
+    public void retryBudgetEndsBeforeCallerTimeout() {
+        assertTrue(RetryPolicy.MAX_RETRY_AFTER_MS < RetryPolicy.MAX_TOTAL_RETRY_MS);
+        assertTrue(RetryPolicy.MAX_TOTAL_RETRY_MS < 60 * 1000L);
+    }
+
+    /**
+     * 直接在服务器上注册一个账号，不经过 {@link RetryingCall}
+     *
+     * @return 有效的令牌
+     */
+    private String register() throws Exception {
+        JSONObject body = new JSONObject()
+                .put("action", "register")
+                .put("username", "retry-" + System.nanoTime())
+                .put("password", "test");
+        Request request = new Request.Builder()
+                .url(mServer.getBaseUrl() + "/auth")
+                .post(RequestBody.create(body.toString(), JSON))
+                .build();
+        try (Response response = new OkHttpClient().newCall(request).execute()) {
+            return new JSONObject(response.body().string()).getString("token");
+        }
+    }
+
+    private Request request(String action, boolean idempotent) {
+        Request.Builder builder = RetryingCall.markAction(new Request.Builder(), mActionPrefix + action)
+                .url(mServer.getBaseUrl() + "/notes")
+                .post(RequestBody.create("{\"action\":\"" + action + "\"}", JSON));
+        if (idempotent) {
+            RetryingCall.markIdempotent(builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 一次调用的最终结果：状态码或异常
+     */
+    private static class Outcome {
+        int code = -1;
+        IOException error;
+    }
+
+    private Outcome execute(Request request) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<Outcome> ref = new AtomicReference<>(new Outcome());
+        RetryingCall.enqueue(HttpClientProvider.forCloudSync(), request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                ref.get().error = e;
+                latch.countDown();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                ref.get().code = response.code();
+                response.close();
+                latch.countDown();
+            }
+        }, FAST_POLICY);
+        assertTrue("call did not complete", latch.await(RetryPolicy.MAX_TOTAL_RETRY_MS + 5000,
+                TimeUnit.MILLISECONDS));
+        return ref.get();
+    }
+}
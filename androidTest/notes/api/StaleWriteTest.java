@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.micode.notes.api.local.LocalCloudServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 带基础修订号的写入：基础修订号早于云端当前修订号的上传与元数据更新被拒绝（{@link CloudDatabaseHelper#STALE_VERSION}）
+ */
+@RunWith(AndroidJUnit4.class)
+public class StaleWriteTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private LocalCloudServer mServer;
+    private OkHttpClient mClient;
+    private String mToken;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalCloudServer();
+        mServer.start();
+        mClient = new OkHttpClient();
+        JSONObject auth = post("/auth", new JSONObject()
+                .put("action", "register")
+                .put("username", "stale-" + System.nanoTime())
+                .put("password", "test"));
+        mToken = auth.getString("token");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void uploadBasedOnLatestVersionIsAccepted() throws Exception {
+        JSONObject created = post("/notes", upload(null, 0, "first"));
+        assertEquals(1, created.getInt("version"));
+
+        JSONObject updated = post("/notes", upload(created.getString("cloudId"), 1, "second"));
+        assertTrue(updated.getBoolean("success"));
+        assertEquals(2, updated.getInt("version"));
+    }
+
+    @Test
+    public void uploadBasedOnOlderVersionIsRejected() throws Exception {
+        String cloudId = post("/notes", upload(null, 0, "first")).getString("cloudId");
+        post("/notes", upload(cloudId, 1, "other device"));
+
+        JSONObject rejected = post("/notes", upload(cloudId, 1, "this device"));
+        assertFalse(rejected.getBoolean("success"));
+        assertEquals(CloudDatabaseHelper.STALE_VERSION, rejected.getString("code"));
+    }
+
+    @Test
+    public void patchBasedOnOlderVersionIsRejected() throws Exception {
+        String cloudId = post("/notes", upload(null, 0, "first")).getString("cloudId");
+        post("/notes", upload(cloudId, 1, "other device"));
+
+        JSONObject rejected = post("/notes", patch(cloudId, 1));
+        assertEquals(CloudDatabaseHelper.STALE_VERSION, rejected.optString("code"));
+
+        JSONObject accepted = post("/notes", patch(cloudId, 2));
+        assertTrue(accepted.getBoolean("success"));
+        assertEquals(3, accepted.getInt("version"));
+    }
+
+    private static JSONObject upload(String cloudId, int baseVersion, String content) throws Exception {
+        JSONObject json = new JSONObject()
+                .put("action", "upload")
+                .put("noteId", "1")
+                .put("title", "")
+                .put("content", content)
+                .put("parentId", "0")
+                .put("type", 0)
+                .put("modifiedTime", System.currentTimeMillis());
+        if (cloudId != null) {
+            json.put("cloudNoteId", cloudId);
+        }
+        if (baseVersion > 0) {
+            json.put("baseVersion", baseVersion);
+        }
+        return json;
+    }
+
+    private static JSONObject patch(String cloudId, int baseVersion) throws Exception {
+        return new JSONObject()
+                .put("action", "patch")
+                .put("cloudNoteId", cloudId)
+                .put("parentId", "0")
+                .put("modifiedTime", System.currentTimeMillis())
+                .put("baseVersion", baseVersion);
+    }
+
+    private JSONObject post(String path, JSONObject body) throws Exception {
+        Request.Builder builder = new Request.Builder()
+                .url(mServer.getBaseUrl() + path)
+                .post(RequestBody.create(body.toString(), JSON));
+        if (mToken != null) {
+            builder.addHeader("Authorization", "Bearer " + mToken);
+        }
+        try (Response response = mClient.newCall(builder.build()).execute()) {
+            assertEquals(200, response.code());
+            return new JSONObject(response.body().string());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 延迟分布记录器
+ * <p>
+ * 保存每个样本（微秒），按需排序计算分位数。线程安全。
+ * </p>
+ */
+public class LatencyStats {
+
+    private long[] mSamples = new long[256];
+    private int mCount;
+
+    /**
+     * 记录一个样本
+     *
+     * @param micros 延迟（微秒）
+     */
+    public synchronized void record(long micros) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = micros;
+    }
+
+    /**
+     * 清空样本
+     */
+    public synchronized void reset() {
+        mCount = 0;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * 计算分位数
+     *
+     * @param percentile 0 到 100 之间的百分位
+     * @return 延迟（毫秒），没有样本时为 0
+     */
+    public synchronized double percentileMs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+        index = Math.max(0, Math.min(mCount - 1, index));
+        return sorted[index] / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d, p50=%.1fms, p95=%.1fms, p99=%.1fms, max=%.1fms",
+                getCount(), percentileMs(50), percentileMs(95), percentileMs(99), percentileMs(100));
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.api.AliyunConfig;
+import net.micode.notes.api.DebugEndpoints;
+import net.micode.notes.api.HttpClientProvider;
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.sync.LiveSyncChannel;
+import net.micode.notes.sync.SyncManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 实时同步传播延迟测试
+ * <p>
+ * 在 {@link LocalCloudServer} 上模拟同一账号的两台设备：
+ * <ul>
+ * <li>对端设备：直接以 HTTP 上传笔记，使用另一个设备ID</li>
+ * <li>本机：{@link SyncManager} 加 {@link LiveSyncChannel}，收到通知后定向下载</li>
+ * </ul>
+ * 每轮从对端开始上传计时，到笔记写入本地数据库为止，报告端到端传播延迟的分布；
+ * 最后断开所有实时连接再上传一次，测量重连后补偿同步的延迟。
+ * </p>
+ * <p>
+ * 要求没有用户登录（见 {@link TestAccounts#requireSignedOut}），结束时退出临时账号并删除其写入的笔记，
+ * 只应在 instrumentation 测试中调用（见 LivePropagationTest）；方法是阻塞的，不能在主线程调用。
+ * </p>
+ */
+public class LivePropagationHarness {
+
+    private static final String TAG = "LivePropagationHarness";
+
+    /**
+     * 默认测量轮数
+     */
+    public static final int DEFAULT_ROUNDS = 50;
+
+    private static final String PEER_DEVICE_ID = "live-peer";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final long CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final long PROPAGATION_TIMEOUT_MS = 10 * 1000;
+    private static final long CATCH_UP_TIMEOUT_MS = 90 * 1000;
+    private static final long POLL_INTERVAL_MS = 2;
+    private static final long ROUND_GAP_MS = 50;
+    private static final long SYNC_TIMEOUT_MINUTES = 2;
+
+    private LivePropagationHarness() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 测量结果
+     */
+    public static class Result {
+        public final boolean success;
+        public final String error;
+        public final int rounds;
+        public final int delivered;
+        public final double p50Ms;
+        public final double p95Ms;
+        public final double p99Ms;
+        /** 断线后对端上传到本机收到的延迟，未测量时为 -1 */
+        public final long catchUpMs;
+
+        Result(boolean success, String error, int rounds, LatencyStats latency, long catchUpMs) {
+            this.success = success;
+            this.error = error;
+            this.rounds = rounds;
+            this.delivered = latency.getCount();
+            this.p50Ms = latency.percentileMs(50);
+            this.p95Ms = latency.percentileMs(95);
+            this.p99Ms = latency.percentileMs(99);
+            this.catchUpMs = catchUpMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Live propagation: %s, delivered %d/%d, p50=%.1fms p95=%.1fms p99=%.1fms, "
+                            + "reconnect catch-up=%dms",
+                    success ? "OK" : "FAILED(" + error + ")", delivered, rounds, p50Ms, p95Ms, p99Ms,
+                    catchUpMs);
+        }
+    }
+
+    /**
+     * 使用默认轮数和无注入故障的服务器运行
+     */
+    public static Result run(Context context) throws Exception {
+        return run(context, new LocalCloudServer(), DEFAULT_ROUNDS);
+    }
+
+    /**
+     * 运行测试
+     *
+     * @param context 应用上下文
+     * @param server 未启动的服务器，调用方可预先设置延迟
+     * @param rounds 测量轮数
+     */
+    public static Result run(Context context, LocalCloudServer server, int rounds) throws Exception {
+        TestAccounts.requireSignedOut(context);
+        UserAuthManager authManager = UserAuthManager.getInstance(context);
+        SyncManager syncManager = SyncManager.getInstance();
+        LiveSyncChannel channel = LiveSyncChannel.getInstance();
+        channel.initialize(context);
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getReadableDatabase();
+        OkHttpClient client = HttpClientProvider.getBaseClient();
+        LatencyStats latency = new LatencyStats();
+
+        server.start();
+        DebugEndpoints.setBaseUrlOverride(server.getBaseUrl());
+        boolean acquired = false;
+        String userId = null;
+        try {
+            userId = TestAccounts.register(authManager, "live-" + System.nanoTime());
+            syncManager.resetSyncState();
+            String error = syncAll(syncManager);
+            if (error != null) {
+                return new Result(false, "initial sync: " + error, rounds, latency, -1);
+            }
+
+            channel.acquire();
+            acquired = true;
+            if (!awaitConnected(channel, server, userId)) {
+                return new Result(false, "live channel did not connect", rounds, latency, -1);
+            }
+
+            String token = authManager.getAuthToken();
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                String cloudId = peerUpload(client, token, "Live " + i);
+                if (awaitNote(db, cloudId, PROPAGATION_TIMEOUT_MS)) {
+                    latency.record((System.nanoTime() - start) / 1000);
+                } else {
+                    Log.w(TAG, "Note " + cloudId + " not delivered within timeout");
+                }
+                Thread.sleep(ROUND_GAP_MS);
+            }
+
+            server.dropLiveConnections();
+            long start = System.nanoTime();
+            String cloudId = peerUpload(client, token, "Catch-up");
+            long catchUpMs = awaitNote(db, cloudId, CATCH_UP_TIMEOUT_MS)
+                    ? (System.nanoTime() - start) / 1000000 : -1;
+
+            String failure = null;
+            if (latency.getCount() < rounds) {
+                failure = "lost notifications";
+            } else if (catchUpMs < 0) {
+                failure = "no catch-up after reconnect";
+            }
+            Result result = new Result(failure == null, failure, rounds, latency, catchUpMs);
+            Log.i(TAG, result.toString());
+            return result;
+        } finally {
+            if (acquired) {
+                channel.release();
+            }
+            authManager.logout();
+            channel.refresh();
+            syncManager.resetSyncState();
+            if (userId != null) {
+                TestAccounts.purge(context, userId);
+            }
+            DebugEndpoints.setBaseUrlOverride(null);
+            server.shutdown();
+        }
+    }
+
+    private static boolean awaitConnected(LiveSyncChannel channel, LocalCloudServer server,
+            String userId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (channel.isConnected() && server.getLiveConnectionCount(userId) > 0) {
+                return true;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    /**
+     * 以对端设备的身份上传一条新笔记
+     *
+     * @return 云端笔记ID
+     */
+    private static String peerUpload(OkHttpClient client, String token, String title)
+            throws IOException, JSONException {
+        long now = System.currentTimeMillis();
+        JSONObject json = new JSONObject();
+        json.put("action", "upload");
+        json.put("noteId", "");
+        json.put("title", title);
+        json.put("content", title + " from another device");
+        json.put("parentId", String.valueOf(Notes.ID_ROOT_FOLDER));
+        json.put("type", Notes.TYPE_NOTE);
+        json.put("createdTime", now);
+        json.put("modifiedTime", now);
+        json.put("deviceId", PEER_DEVICE_ID);
+
+        Request request = new Request.Builder()
+                .url(AliyunConfig.getBaseUrl() + "/notes")
+                .post(RequestBody.create(json.toString(), JSON))
+                .addHeader("Authorization", "Bearer " + token)
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            JSONObject body = new JSONObject(response.body().string());
+            if (!body.optBoolean("success")) {
+                throw new IOException("Peer upload failed: " + body.optString("message"));
+            }
+            return body.getString("cloudId");
+        }
+    }
+
+    /**
+     * 轮询本地数据库，直到云端笔记写入或超时
+     */
+    private static boolean awaitNote(SQLiteDatabase db, String cloudId, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (DatabaseUtils.queryNumEntries(db, TABLE.NOTE,
+                    Notes.NoteColumns.CLOUD_NOTE_ID + "=?", new String[] { cloudId }) > 0) {
+                return true;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    /**
+     * 执行一次全量同步并等待结束
+     *
+     * @return 错误信息，成功时为 null
+     */
+    private static String syncAll(SyncManager syncManager) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> errorRef = new AtomicReference<>();
+
+        syncManager.syncAllNotes(new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                errorRef.set(error != null ? error : "unknown");
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            return "timeout";
+        }
+        return errorRef.get();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import net.micode.notes.auth.UserAuthManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * 实时同步传播测试（{@link LivePropagationHarness}）：每条通知都送达，断线重连后补偿同步
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class LivePropagationTest {
+
+    private static final int CI_ROUNDS = 20;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        assumeFalse("a user is signed in", UserAuthManager.getInstance(mContext).isLoggedIn());
+    }
+
+    @Test
+    public void notificationsPropagateAndReconnectCatchesUp() throws Exception {
+        LivePropagationHarness.Result result =
+                LivePropagationHarness.run(mContext, new LocalCloudServer(), CI_ROUNDS);
+        assertTrue(result.toString(), result.success);
+    }
+}
@@ -0,0 +1,1300 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import android.util.Base64;
+import android.util.Log;
+
+import net.micode.notes.api.CloudDatabaseHelper;
+import net.micode.notes.api.NoteWireFormat;
+import net.micode.notes.data.NoteBodyStore;
+import net.micode.notes.data.Notes;
+import net.micode.notes.model.CloudNote;
+import net.micode.notes.sync.NoteContentHash;
+import net.micode.notes.sync.NoteHashTree;
+import net.micode.notes.sync.TextCrdt;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 本地云端替身服务器
+ * <p>
+ * 在 127.0.0.1 上用 {@link ServerSocket} 实现与 EMAS Serverless 相同的 JSON 接口，
+ * 不依赖真实后端即可驱动 {@link net.micode.notes.sync.SyncManager} 和
+ * {@link net.micode.notes.api.CloudDatabaseHelper}：
+ * <ul>
+ * <li>{@code POST /api/notes}：upload / patch / download / delete，以及哈希对账 reconcile / fetch</li>
+ * <li>{@code POST /api/auth}：register / login；{@code POST /api/auth/refresh}：refresh</li>
+ * <li>{@code POST /api/blobs}：check / begin；{@code PUT /api/blobs/<哈希>?offset=N}：上传分块；
+ * {@code GET /api/blobs/<哈希>}：下载附件。附件按哈希全局去重，收齐后校验 SHA-256</li>
+ * <li>{@code GET /api/live}：WebSocket 实时通道，笔记上传、更新元数据或删除后向同一账号的所有连接
+ * 推送变更通知（笔记ID、修订号与发起设备），见 {@link net.micode.notes.sync.LiveSyncChannel}</li>
+ * </ul>
+ * 下载请求带 {@code metadataOnly} 时普通笔记只返回元数据、预览与同步字段哈希，正文由 fetch 按需下载。
+ * text 按到达顺序合并各设备对正文的文本操作（{@link TextCrdt}），返回请求方尚未合并的其他设备操作；
+ * 谱系与请求不一致且无法接续时返回 {@link CloudDatabaseHelper#TEXT_BASE_MISMATCH}，整篇上传或删除后状态作废。
+ * 每次上传或更新元数据时笔记的修订号（version）加一并随响应返回，客户端据此判断云端版本的新旧。
+ * 删除的笔记保留删除记录（{@link #TOMBSTONE_RETENTION_MS}），随下载返回给其他设备。
+ * 支持可配置的延迟、按比例或按脚本注入的失败（可带 Retry-After）、gzip 请求与响应、
+ * 按 Accept / Content-Type 协商的 MessagePack 报文（{@link NoteWireFormat}），
+ * 以及为账号预置任意数量的笔记。每个请求的服务端耗时记录在 {@link #getLatencyStats()} 中。
+ * </p>
+ * <p>
+ * 通过 {@link net.micode.notes.api.DebugEndpoints#setBaseUrlOverride(String)} 指向 {@link #getBaseUrl()} 使用。
+ * 只用于测试与压测。
+ * </p>
+ */
+public class LocalCloudServer {
+
+    private static final String TAG = "LocalCloudServer";
+
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * 删除记录的保留时间，超过后回收
+     */
+    public static final long TOMBSTONE_RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * 用户账号
+     */
+    private static class Account {
+        final String userId;
+        final String password;
+
+        Account(String userId, String password) {
+            this.userId = userId;
+            this.password = password;
+        }
+    }
+
+    /**
+     * 一次响应
+     */
+    private static class Reply {
+        final int status;
+        final JSONObject body;
+        /** 非 JSON 的原始响应体（附件下载），不为 null 时忽略 body */
+        byte[] raw;
+        long retryAfterSeconds = -1;
+
+        Reply(int status, JSONObject body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * 实时通道的一个连接；服务端发出的帧不加掩码
+     */
+    private static class LiveSubscriber {
+        final Socket socket;
+        final OutputStream out;
+
+        LiveSubscriber(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        synchronized void send(int opcode, byte[] payload) throws IOException {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else if (payload.length <= 0xffff) {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length & 0xff);
+            } else {
+                out.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (((long) payload.length >>> shift) & 0xff));
+                }
+            }
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    /**
+     * 正在上传的附件
+     */
+    private static class PartialBlob {
+        final long size;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        PartialBlob(long size) {
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Account> mAccounts = new ConcurrentHashMap<>();
+    private final Map<String, String> mTokens = new ConcurrentHashMap<>();
+    private final Map<String, String> mRefreshTokens = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, JSONObject>> mNotesByUser = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> mTombstonesByUser = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, TextState>> mTextByUser = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> mBlobs = new ConcurrentHashMap<>();
+    private final Map<String, PartialBlob> mPartialBlobs = new ConcurrentHashMap<>();
+    private final Map<String, List<LiveSubscriber>> mLiveByUser = new ConcurrentHashMap<>();
+    private final AtomicLong mNextCloudId = new AtomicLong(1);
+    private final AtomicInteger mScriptedFailures = new AtomicInteger();
+    private final AtomicInteger mAcceptedConnections = new AtomicInteger();
+    private final LatencyStats mLatencyStats = new LatencyStats();
+
+    private volatile long mLatencyMs;
+    private volatile long mLatencyJitterMs;
+    private volatile double mFailureRate;
+    private volatile int mFailureStatus = 503;
+    private volatile long mRetryAfterSeconds = -1;
+    private volatile boolean mGzipResponses = true;
+    private volatile boolean mMessagePackEnabled = true;
+    private Random mRandom = new Random();
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mConnectionExecutor;
+
+    /**
+     * 在随机端口上启动
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mConnectionExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "local-cloud");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ServerSocket serverSocket = mServerSocket;
+        mConnectionExecutor.execute(() -> acceptLoop(serverSocket));
+        Log.i(TAG, "Local cloud server listening on " + getBaseUrl());
+    }
+
+    /**
+     * 停止服务器并关闭所有连接
+     */
+    public synchronized void shutdown() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+        mConnectionExecutor.shutdownNow();
+        mServerSocket = null;
+        mConnectionExecutor = null;
+    }
+
+    /**
+     * API 基础地址，形如 http://127.0.0.1:port/api
+     */
+    public synchronized String getBaseUrl() {
+        if (mServerSocket == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/api";
+    }
+
+    /**
+     * 设置每个请求的附加延迟
+     *
+     * @param latencyMs 固定延迟
+     * @param jitterMs 在固定延迟上附加的 [0, jitterMs] 随机延迟
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mLatencyJitterMs = jitterMs;
+    }
+
+    /**
+     * 按比例注入失败
+     *
+     * @param rate 失败比例，0 到 1
+     * @param status 失败时返回的状态码
+     * @param retryAfterSeconds 失败响应的 Retry-After，负数表示不带
+     */
+    public void setFailureRate(double rate, int status, long retryAfterSeconds) {
+        mFailureRate = rate;
+        mFailureStatus = status;
+        mRetryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * 脚本化失败：接下来的 count 个请求都以 {@link #setFailureRate} 设置的状态码失败
+     */
+    public void failNext(int count) {
+        mScriptedFailures.set(count);
+    }
+
+    /**
+     * 是否在客户端接受时以 gzip 压缩较大的响应
+     */
+    public void setGzipResponses(boolean gzip) {
+        mGzipResponses = gzip;
+    }
+
+    /**
+     * 是否支持 MessagePack 报文；关闭时以 415 拒绝 MessagePack 请求，模拟旧版服务端
+     */
+    public void setMessagePackEnabled(boolean enabled) {
+        mMessagePackEnabled = enabled;
+    }
+
+    /**
+     * 设置随机种子，使注入的延迟与失败可复现
+     */
+    public synchronized void setSeed(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * 为用户预置笔记
+     *
+     * @param userId 云端用户ID
+     * @param count 笔记数量
+     * @param contentBytes 每条笔记的正文长度
+     */
+    public void seedNotes(String userId, int count, int contentBytes) {
+        Map<String, JSONObject> notes = notesOf(userId);
+        StringBuilder content = new StringBuilder(contentBytes);
+        for (int i = 0; i < contentBytes; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        long base = System.currentTimeMillis() - count;
+        try {
+            for (int i = 0; i < count; i++) {
+                String cloudId = "seed-" + mNextCloudId.getAndIncrement();
+                JSONObject note = new JSONObject();
+                note.put("cloudNoteId", cloudId);
+                note.put("noteId", "");
+                note.put("title", "Note " + i);
+                note.put("content", content.toString());
+                note.put("parentId", "0");
+                note.put("type", 0);
+                note.put("createdTime", base + i);
+                note.put("modifiedTime", base + i);
+                note.put("version", 1);
+                note.put("deviceId", "local-seed");
+                note.put("userId", userId);
+                notes.put(cloudId, note);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 用户在服务器上的笔记数量
+     */
+    public int getNoteCount(String userId) {
+        return notesOf(userId).size();
+    }
+
+    /**
+     * 用户当前的实时通道连接数
+     */
+    public int getLiveConnectionCount(String userId) {
+        List<LiveSubscriber> subscribers = mLiveByUser.get(userId);
+        return subscribers != null ? subscribers.size() : 0;
+    }
+
+    /**
+     * 断开所有实时通道连接，模拟网络中断
+     */
+    public void dropLiveConnections() {
+        for (List<LiveSubscriber> subscribers : mLiveByUser.values()) {
+            for (LiveSubscriber subscriber : subscribers) {
+                try {
+                    subscriber.socket.close();
+                } catch (IOException ignored) {
+                    // 已关闭
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动以来接受的 TCP 连接数，用于验证客户端复用连接
+     */
+    public int getAcceptedConnectionCount() {
+        return mAcceptedConnections.get();
+    }
+
+    /**
+     * 每个请求在服务端的处理耗时（含注入的延迟）
+     */
+    public LatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * 一条笔记正文的服务端文本状态：谱系、合并结果与按接收顺序排列的操作批次
+     */
+    private static class TextState {
+        final String lineage;
+        final TextCrdt crdt;
+        final List<JSONArray> log = new ArrayList<>();
+
+        TextState(String lineage, TextCrdt crdt) {
+            this.lineage = lineage;
+            this.crdt = crdt;
+        }
+    }
+
+    /**
+     * 用户的文本状态：云端笔记ID到状态
+     */
+    private Map<String, TextState> textStatesOf(String userId) {
+        Map<String, TextState> states = mTextByUser.get(userId);
+        if (states == null) {
+            states = new ConcurrentHashMap<>();
+            Map<String, TextState> existing = mTextByUser.putIfAbsent(userId, states);
+            if (existing != null) {
+                states = existing;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * 用户的删除记录：云端笔记ID到删除时间
+     */
+    private Map<String, Long> tombstonesOf(String userId) {
+        Map<String, Long> tombstones = mTombstonesByUser.get(userId);
+        if (tombstones == null) {
+            tombstones = new ConcurrentHashMap<>();
+            Map<String, Long> existing = mTombstonesByUser.putIfAbsent(userId, tombstones);
+            if (existing != null) {
+                tombstones = existing;
+            }
+        }
+        return tombstones;
+    }
+
+    private Map<String, JSONObject> notesOf(String userId) {
+        Map<String, JSONObject> notes = mNotesByUser.get(userId);
+        if (notes == null) {
+            notes = new ConcurrentHashMap<>();
+            Map<String, JSONObject> existing = mNotesByUser.putIfAbsent(userId, notes);
+            if (existing != null) {
+                notes = existing;
+            }
+        }
+        return notes;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                mAcceptedConnections.incrementAndGet();
+                mConnectionExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.w(TAG, "Accept failed", e);
+                }
+            } catch (Exception e) {
+                // 关闭过程中执行器已拒绝新任务
+                break;
+            }
+        }
+    }
+
+    /**
+     * 处理一个连接上的请求（支持 keep-alive）
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+
+                long start = System.nanoTime();
+                byte[] body = readBody(in, headers);
+                String[] parts = requestLine.split(" ");
+                String method = parts[0];
+                String path = parts.length > 1 ? parts[1] : "/";
+
+                if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                    serveLive(socket, in, out, path, headers);
+                    break;
+                }
+
+                Reply reply = dispatch(method, path, headers, body);
+                injectLatency();
+                writeReply(out, reply, headers);
+                mLatencyStats.record((System.nanoTime() - start) / 1000);
+
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开连接
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 已关闭
+            }
+        }
+    }
+
+    /**
+     * 实时通道：完成 WebSocket 握手后登记连接，直到客户端关闭或连接断开
+     */
+    private void serveLive(Socket socket, InputStream in, OutputStream out, String path,
+            Map<String, String> headers) throws IOException {
+        String userId = authenticate(headers.get("authorization"));
+        String key = headers.get("sec-websocket-key");
+        if (!path.endsWith("/live")) {
+            writeReply(out, new Reply(404, error("not found: " + path)), headers);
+            return;
+        }
+        if (userId == null) {
+            writeReply(out, new Reply(401, error("invalid token")), headers);
+            return;
+        }
+        if (key == null) {
+            writeReply(out, new Reply(400, error("missing Sec-WebSocket-Key")), headers);
+            return;
+        }
+
+        String head = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + websocketAccept(key) + "\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        LiveSubscriber subscriber = new LiveSubscriber(socket, out);
+        List<LiveSubscriber> subscribers = mLiveByUser.computeIfAbsent(userId,
+                id -> new CopyOnWriteArrayList<>());
+        subscribers.add(subscriber);
+        try {
+            readLiveFrames(in, subscriber);
+        } finally {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    /**
+     * 读取客户端的帧：回应 ping 与 close，其余忽略
+     */
+    private static void readLiveFrames(InputStream in, LiveSubscriber subscriber) throws IOException {
+        while (true) {
+            int first = in.read();
+            int second = in.read();
+            if (first < 0 || second < 0) {
+                return;
+            }
+            int opcode = first & 0x0f;
+            long length = second & 0x7f;
+            if (length == 126) {
+                length = readUnsigned(in, 2);
+            } else if (length == 127) {
+                length = readUnsigned(in, 8);
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Frame too large");
+            }
+            byte[] mask = (second & 0x80) != 0 ? readFully(in, 4) : null;
+            byte[] payload = readFully(in, (int) length);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+            }
+
+            if (opcode == OPCODE_CLOSE) {
+                subscriber.send(OPCODE_CLOSE, payload);
+                return;
+            } else if (opcode == OPCODE_PING) {
+                subscriber.send(OPCODE_PONG, payload);
+            }
+        }
+    }
+
+    /**
+     * 向用户的所有实时通道连接推送变更通知
+     *
+     * @param deviceId 发起变更的设备，客户端据此忽略自己的变更
+     * @param notes 变化的笔记（云端ID与修订号），可为 null
+     * @param deleted 删除的云端笔记ID，可为 null
+     */
+    private void publish(String userId, String deviceId, JSONArray notes, JSONArray deleted)
+            throws JSONException {
+        List<LiveSubscriber> subscribers = mLiveByUser.get(userId);
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        JSONObject event = new JSONObject();
+        event.put("type", "changes");
+        event.put("deviceId", deviceId != null ? deviceId : "");
+        event.put("notes", notes != null ? notes : new JSONArray());
+        event.put("deleted", deleted != null ? deleted : new JSONArray());
+        byte[] payload = event.toString().getBytes(StandardCharsets.UTF_8);
+        for (LiveSubscriber subscriber : subscribers) {
+            try {
+                subscriber.send(OPCODE_TEXT, payload);
+            } catch (IOException e) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    private static JSONArray changeOf(String cloudId, int version) throws JSONException {
+        JSONObject change = new JSONObject();
+        change.put("cloudNoteId", cloudId);
+        change.put("version", version);
+        return new JSONArray().put(change);
+    }
+
+    private static String websocketAccept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key.trim() + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private Reply dispatch(String method, String path, Map<String, String> headers, byte[] body) {
+        if (shouldFail()) {
+            Reply reply = new Reply(mFailureStatus, error("injected failure"));
+            reply.retryAfterSeconds = mRetryAfterSeconds;
+            return reply;
+        }
+
+        int blobPath = path.indexOf("/blobs/");
+        if (blobPath >= 0) {
+            if (authenticate(headers.get("authorization")) == null) {
+                return new Reply(401, error("invalid token"));
+            }
+            return handleBlobTransfer(method, path.substring(blobPath + "/blobs/".length()), body);
+        }
+
+        String contentType = headers.get("content-type");
+        boolean binaryRequest = contentType != null
+                && contentType.startsWith(NoteWireFormat.MEDIA_TYPE_MSGPACK);
+        if (binaryRequest && !mMessagePackEnabled) {
+            return new Reply(415, error("unsupported media type: " + contentType));
+        }
+
+        try {
+            JSONObject request = binaryRequest
+                    ? NoteWireFormat.decodeJson(body)
+                    : new JSONObject(new String(body, StandardCharsets.UTF_8));
+            if (path.endsWith("/auth/refresh")) {
+                return handleRefresh(request);
+            } else if (path.endsWith("/auth")) {
+                return handleAuth(request);
+            } else if (path.endsWith("/blobs")) {
+                if (authenticate(headers.get("authorization")) == null) {
+                    return new Reply(401, error("invalid token"));
+                }
+                return handleBlobs(request);
+            } else if (path.endsWith("/notes")) {
+                String userId = authenticate(headers.get("authorization"));
+                if (userId == null) {
+                    return new Reply(401, error("invalid token"));
+                }
+                return handleNotes(userId, request);
+            }
+            return new Reply(404, error("not found: " + path));
+        } catch (JSONException e) {
+            return new Reply(400, error("bad json: " + e.getMessage()));
+        } catch (IOException e) {
+            return new Reply(400, error("bad msgpack: " + e.getMessage()));
+        }
+    }
+
+    private boolean shouldFail() {
+        if (mScriptedFailures.get() > 0 && mScriptedFailures.getAndDecrement() > 0) {
+            return true;
+        }
+        double rate = mFailureRate;
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            return mRandom.nextDouble() < rate;
+        }
+    }
+
+    private void injectLatency() {
+        long latency = mLatencyMs;
+        long jitter = mLatencyJitterMs;
+        if (jitter > 0) {
+            synchronized (this) {
+                latency += (long) (mRandom.nextDouble() * (jitter + 1));
+            }
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String authenticate(String authorization) {
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return null;
+        }
+        return mTokens.get(authorization.substring("Bearer ".length()));
+    }
+
+    private Reply handleAuth(JSONObject request) throws JSONException {
+        String action = request.optString("action");
+        String username = request.optString("username");
+        String password = request.optString("password");
+
+        Account account;
+        if ("register".equals(action)) {
+            account = new Account("user-" + UUID.randomUUID(), password);
+            if (mAccounts.putIfAbsent(username, account) != null) {
+                return new Reply(200, error("用户名已存在"));
+            }
+        } else if ("login".equals(action)) {
+            account = mAccounts.get(username);
+            if (account == null || !account.password.equals(password)) {
+                return new Reply(200, error("用户名或密码错误"));
+            }
+        } else {
+            return new Reply(400, error("unknown action: " + action));
+        }
+        return new Reply(200, issueTokens(account.userId));
+    }
+
+    private Reply handleRefresh(JSONObject request) throws JSONException {
+        String userId = mRefreshTokens.remove(request.optString("refreshToken"));
+        if (userId == null) {
+            return new Reply(200, error("刷新令牌无效"));
+        }
+        return new Reply(200, issueTokens(userId));
+    }
+
+    private JSONObject issueTokens(String userId) throws JSONException {
+        String token = UUID.randomUUID().toString();
+        String refreshToken = UUID.randomUUID().toString();
+        mTokens.put(token, userId);
+        mRefreshTokens.put(refreshToken, userId);
+
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("userId", userId);
+        response.put("token", token);
+        response.put("refreshToken", refreshToken);
+        return response;
+    }
+
+    private Reply handleNotes(String userId, JSONObject request) throws JSONException {
+        Map<String, JSONObject> notes = notesOf(userId);
+        Map<String, Long> tombstones = tombstonesOf(userId);
+        String action = request.optString("action");
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+
+        if ("upload".equals(action)) {
+            String cloudId = request.optString("cloudNoteId", "");
+            if (cloudId.isEmpty()) {
+                cloudId = "local-" + mNextCloudId.getAndIncrement();
+            }
+            JSONObject previous = notes.get(cloudId);
+            if (isStale(previous, request.optInt("baseVersion", 0))) {
+                return new Reply(200, staleVersion());
+            }
+            JSONObject note = new JSONObject(request.toString());
+            note.remove("action");
+            note.remove("baseVersion");
+            note.put("cloudNoteId", cloudId);
+            note.put("userId", userId);
+            int version = nextVersion(previous);
+            note.put("version", version);
+            notes.put(cloudId, note);
+            // 整篇覆盖后之前的文本操作不再适用
+            textStatesOf(userId).remove(cloudId);
+            // 按ID重新上传的笔记复活，撤销删除记录
+            tombstones.remove(cloudId);
+            response.put("cloudId", cloudId);
+            response.put("version", version);
+            publish(userId, note.optString("deviceId"), changeOf(cloudId, version), null);
+        } else if ("download".equals(action)) {
+            long since = request.optLong("lastSyncTime", 0);
+            boolean metadataOnly = request.optBoolean("metadataOnly", false);
+            JSONArray result = new JSONArray();
+            for (JSONObject note : notes.values()) {
+                if (note.optLong("modifiedTime", 0) > since) {
+                    result.put(metadataOnly ? withoutBody(note) : note);
+                }
+            }
+            response.put("notes", result);
+
+            long tombstonesSince = request.optLong("tombstonesSince", 0);
+            JSONArray deleted = new JSONArray();
+            for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+                if (entry.getValue() > tombstonesSince) {
+                    JSONObject tombstone = new JSONObject();
+                    tombstone.put("cloudNoteId", entry.getKey());
+                    tombstone.put("deletedTime", entry.getValue());
+                    deleted.put(tombstone);
+                }
+            }
+            response.put("tombstones", deleted);
+        } else if ("patch".equals(action)) {
+            JSONObject note = notes.get(request.optString("cloudNoteId"));
+            if (note == null) {
+                return new Reply(200, error("笔记不存在"));
+            }
+            synchronized (note) {
+                if (isStale(note, request.optInt("baseVersion", 0))) {
+                    return new Reply(200, staleVersion());
+                }
+                for (String key : new String[] { "parentId", "modifiedTime", "deviceId" }) {
+                    if (request.has(key)) {
+                        note.put(key, request.get(key));
+                    }
+                }
+                int version = nextVersion(note);
+                note.put("version", version);
+                response.put("version", version);
+            }
+            publish(userId, request.optString("deviceId"), changeOf(note.optString("cloudNoteId"),
+                    response.getInt("version")), null);
+        } else if ("delete".equals(action)) {
+            JSONArray ids = request.optJSONArray("cloudNoteIds");
+            if (ids == null) {
+                ids = new JSONArray().put(request.optString("cloudNoteId"));
+            }
+            long now = System.currentTimeMillis();
+            JSONArray deleted = new JSONArray();
+            for (int i = 0; i < ids.length(); i++) {
+                String cloudId = ids.optString(i);
+                if (!cloudId.isEmpty()) {
+                    notes.remove(cloudId);
+                    textStatesOf(userId).remove(cloudId);
+                    tombstones.put(cloudId, now);
+                    deleted.put(cloudId);
+                }
+            }
+            pruneTombstones(tombstones, now);
+            publish(userId, request.optString("deviceId"), null, deleted);
+        } else if ("text".equals(action)) {
+            return mergeText(userId, notes, request);
+        } else if ("reconcile".equals(action)) {
+            response.put("buckets", reconcile(notes, request.optJSONArray("prefixes")));
+        } else if ("fetch".equals(action)) {
+            JSONArray ids = request.optJSONArray("cloudNoteIds");
+            JSONArray result = new JSONArray();
+            for (int i = 0; ids != null && i < ids.length(); i++) {
+                JSONObject note = notes.get(ids.optString(i));
+                if (note != null) {
+                    result.put(note);
+                }
+            }
+            response.put("notes", result);
+        } else {
+            return new Reply(400, error("unknown action: " + action));
+        }
+        return new Reply(200, response);
+    }
+
+    /**
+     * 合并一批文本操作
+     * <p>
+     * 笔记还没有文本状态，或请求的谱系不同时，只有请求方从头开始（since 为 0）且谱系正是当前正文的摘要，
+     * 才以当前正文建立新状态（旧状态上其他设备未推送的操作之后会收到 BASE_MISMATCH）。
+     * 合并后正文、元数据与修订号一并更新，响应中返回请求方 since 之后、本批之前的操作批次，
+     * 以及不含正文的笔记（附同步字段哈希，请求方据此校验自己合并出的正文）。
+     * </p>
+     */
+    private Reply mergeText(String userId, Map<String, JSONObject> notes, JSONObject request)
+            throws JSONException {
+        String cloudId = request.optString("cloudNoteId");
+        JSONObject note = notes.get(cloudId);
+        if (note == null) {
+            return new Reply(200, error("笔记不存在"));
+        }
+        Map<String, TextState> states = textStatesOf(userId);
+        String lineage = request.optString("lineage");
+        long since = request.optLong("since", 0);
+        JSONArray ops = request.optJSONArray("ops");
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+
+        synchronized (note) {
+            TextState state = states.get(cloudId);
+            if (state == null || !state.lineage.equals(lineage)) {
+                String content = note.optString("content", "");
+                if (since != 0 || !NoteContentHash.textDigest(content).equals(lineage)) {
+                    return new Reply(200, baseMismatch());
+                }
+                state = new TextState(lineage, TextCrdt.fromBase(content, "server"));
+                states.put(cloudId, state);
+            }
+            if (since > state.log.size()) {
+                return new Reply(200, baseMismatch());
+            }
+            try {
+                state.crdt.applyBatch(ops != null ? ops : new JSONArray());
+            } catch (IllegalStateException e) {
+                // 操作引用了本状态中不存在的字符，状态已不可信
+                states.remove(cloudId);
+                return new Reply(200, baseMismatch());
+            }
+
+            JSONArray missed = new JSONArray();
+            for (int i = (int) since; i < state.log.size(); i++) {
+                missed.put(state.log.get(i));
+            }
+            state.log.add(ops != null ? ops : new JSONArray());
+
+            note.put("content", state.crdt.getText());
+            for (String key : new String[] { "title", "parentId", "type", "modifiedTime", "deviceId" }) {
+                if (request.has(key)) {
+                    note.put(key, request.get(key));
+                }
+            }
+            note.put("textLineage", lineage);
+            int version = nextVersion(note);
+            note.put("version", version);
+
+            response.put("version", version);
+            response.put("since", state.log.size());
+            response.put("operations", missed);
+            response.put("note", withoutBody(note));
+        }
+        publish(userId, request.optString("deviceId"), changeOf(cloudId, response.getInt("version")),
+                null);
+        return new Reply(200, response);
+    }
+
+    /**
+     * 写入请求的基础修订号早于笔记当前的修订号：请求方没有见过其他设备之后的写入，不能覆盖。
+     * 不带基础修订号的请求（新建笔记、旧版本客户端）不检查
+     */
+    private static boolean isStale(JSONObject current, int baseVersion) {
+        if (current == null || baseVersion <= 0) {
+            return false;
+        }
+        synchronized (current) {
+            return current.optInt("version", 0) > baseVersion;
+        }
+    }
+
+    private static JSONObject staleVersion() throws JSONException {
+        JSONObject json = error("云端已有更新的版本");
+        json.put("code", CloudDatabaseHelper.STALE_VERSION);
+        return json;
+    }
+
+    private static JSONObject baseMismatch() throws JSONException {
+        JSONObject json = error("文本谱系不一致");
+        json.put("code", CloudDatabaseHelper.TEXT_BASE_MISMATCH);
+        return json;
+    }
+
+    /**
+     * 附件元操作：check 返回服务端缺少的哈希；begin 返回已收到的字节数（续传起点）
+     */
+    private Reply handleBlobs(JSONObject request) throws JSONException {
+        String action = request.optString("action");
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+
+        if ("check".equals(action)) {
+            JSONArray hashes = request.optJSONArray("hashes");
+            JSONArray missing = new JSONArray();
+            for (int i = 0; hashes != null && i < hashes.length(); i++) {
+                String hash = hashes.optString(i);
+                if (!mBlobs.containsKey(hash)) {
+                    missing.put(hash);
+                }
+            }
+            response.put("missing", missing);
+        } else if ("begin".equals(action)) {
+            String hash = request.optString("hash");
+            if (mBlobs.containsKey(hash)) {
+                response.put("complete", true);
+                response.put("received", mBlobs.get(hash).length);
+            } else {
+                PartialBlob partial = mPartialBlobs.computeIfAbsent(hash,
+                        key -> new PartialBlob(request.optLong("size", 0)));
+                synchronized (partial) {
+                    response.put("complete", false);
+                    response.put("received", partial.data.size());
+                }
+            }
+        } else {
+            return new Reply(400, error("unknown action: " + action));
+        }
+        return new Reply(200, response);
+    }
+
+    /**
+     * 附件分块上传（PUT，偏移在查询参数中）与下载（GET）
+     */
+    private Reply handleBlobTransfer(String method, String target, byte[] body) {
+        int query = target.indexOf('?');
+        String hash = query >= 0 ? target.substring(0, query) : target;
+        try {
+            if ("GET".equals(method)) {
+                byte[] blob = mBlobs.get(hash);
+                if (blob == null) {
+                    return new Reply(404, error("blob not found: " + hash));
+                }
+                Reply reply = new Reply(200, null);
+                reply.raw = blob;
+                return reply;
+            }
+            if (!"PUT".equals(method)) {
+                return new Reply(400, error("unsupported method: " + method));
+            }
+
+            long offset = 0;
+            if (query >= 0 && target.startsWith("offset=", query + 1)) {
+                offset = Long.parseLong(target.substring(query + 1 + "offset=".length()));
+            }
+            PartialBlob partial = mPartialBlobs.get(hash);
+            if (partial == null) {
+                return new Reply(400, error("upload not started: " + hash));
+            }
+
+            JSONObject response = new JSONObject();
+            response.put("success", true);
+            synchronized (partial) {
+                long received = partial.data.size();
+                if (offset > received) {
+                    response.put("complete", false);
+                    response.put("received", received);
+                    return new Reply(409, response);
+                }
+                // 重发的块可能与已收到的部分重叠，只追加新的字节
+                int skip = (int) (received - offset);
+                if (skip < body.length) {
+                    partial.data.write(body, skip, body.length - skip);
+                }
+                if (partial.data.size() < partial.size) {
+                    response.put("complete", false);
+                    response.put("received", partial.data.size());
+                    return new Reply(200, response);
+                }
+
+                mPartialBlobs.remove(hash);
+                byte[] blob = partial.data.toByteArray();
+                if (!hash.equals(sha256Hex(blob))) {
+                    return new Reply(400, error("hash mismatch: " + hash));
+                }
+                mBlobs.put(hash, blob);
+                response.put("complete", true);
+                response.put("received", blob.length);
+                return new Reply(200, response);
+            }
+        } catch (JSONException | NumberFormatException e) {
+            return new Reply(400, error("bad request: " + e.getMessage()));
+        }
+    }
+
+    private static String sha256Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 回收超过保留时间的删除记录
+     */
+    private static void pruneTombstones(Map<String, Long> tombstones, long now) {
+        Iterator<Map.Entry<String, Long>> iterator = tombstones.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > TOMBSTONE_RETENTION_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 描述请求的桶：小桶返回笔记列表，其余返回全部子桶的数量与摘要
+     */
+    private static JSONArray reconcile(Map<String, JSONObject> notes, JSONArray prefixes)
+            throws JSONException {
+        NoteHashTree tree = new NoteHashTree();
+        for (JSONObject json : notes.values()) {
+            if (json.optInt("type", 0) == Notes.TYPE_NOTE) {
+                CloudNote note = new CloudNote(json);
+                tree.put(note.getCloudNoteId(), NoteHashTree.contentHash(note));
+            }
+        }
+
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; prefixes != null && i < prefixes.length(); i++) {
+            String prefix = prefixes.getString(i);
+            JSONObject bucket = new JSONObject();
+            bucket.put("prefix", prefix);
+            bucket.put("count", tree.count(prefix));
+            bucket.put("digest", Long.toHexString(tree.digest(prefix)));
+            if (tree.isLeafBucket(prefix)) {
+                JSONArray leaves = new JSONArray();
+                for (Map.Entry<String, Long> entry : tree.notesIn(prefix).entrySet()) {
+                    JSONObject leaf = new JSONObject();
+                    leaf.put("id", entry.getKey());
+                    leaf.put("hash", Long.toHexString(entry.getValue()));
+                    leaves.put(leaf);
+                }
+                bucket.put("notes", leaves);
+            } else {
+                JSONArray children = new JSONArray();
+                for (int c = 0; c < NoteHashTree.FANOUT; c++) {
+                    String child = NoteHashTree.childPrefix(prefix, c);
+                    JSONObject summary = new JSONObject();
+                    summary.put("count", tree.count(child));
+                    summary.put("digest", Long.toHexString(tree.digest(child)));
+                    children.put(summary);
+                }
+                bucket.put("children", children);
+            }
+            buckets.put(bucket);
+        }
+        return buckets;
+    }
+
+    /**
+     * 笔记的下一个修订号：每次写入加一，与客户端时钟无关
+     */
+    private static int nextVersion(JSONObject previous) {
+        if (previous == null) {
+            return 1;
+        }
+        synchronized (previous) {
+            return previous.optInt("version", 0) + 1;
+        }
+    }
+
+    /**
+     * 只含元数据的笔记副本：去掉正文，附带预览与同步字段哈希；文件夹原样返回
+     */
+    private static JSONObject withoutBody(JSONObject note) throws JSONException {
+        CloudNote cloudNote = new CloudNote(note);
+        if (cloudNote.getType() != Notes.TYPE_NOTE) {
+            return note;
+        }
+        String hash = NoteContentHash.of(cloudNote);
+        cloudNote.setBodyOmitted(NoteBodyStore.preview(cloudNote.getContent()), hash);
+        return cloudNote.toJson();
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("success", false);
+            json.put("message", message);
+        } catch (JSONException ignored) {
+            // 常量键值不会失败
+        }
+        return json;
+    }
+
+    private void writeReply(OutputStream out, Reply reply, Map<String, String> requestHeaders)
+            throws IOException {
+        String accept = requestHeaders.get("accept");
+        boolean binary = reply.raw == null && mMessagePackEnabled && accept != null
+                && accept.contains(NoteWireFormat.MEDIA_TYPE_MSGPACK);
+        byte[] payload;
+        if (reply.raw != null) {
+            payload = reply.raw;
+        } else if (binary) {
+            payload = NoteWireFormat.encodeJson(reply.body);
+        } else {
+            payload = reply.body.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        String acceptEncoding = requestHeaders.get("accept-encoding");
+        boolean gzip = reply.raw == null && mGzipResponses && payload.length >= GZIP_MIN_BYTES
+                && acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 4);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(payload);
+            gzipOut.close();
+            payload = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(reply.status).append(' ').append(reason(reply.status)).append("\r\n");
+        if (reply.raw != null) {
+            head.append("Content-Type: application/octet-stream\r\n");
+        } else {
+            head.append(binary ? "Content-Type: " + NoteWireFormat.MEDIA_TYPE_MSGPACK + "\r\n"
+                    : "Content-Type: application/json; charset=utf-8\r\n");
+        }
+        head.append("Content-Length: ").append(payload.length).append("\r\n");
+        head.append("X-Accept-Content-Encoding: gzip\r\n");
+        if (mMessagePackEnabled) {
+            head.append(NoteWireFormat.HEADER_ACCEPT_CONTENT_TYPE).append(": ")
+                    .append(NoteWireFormat.MEDIA_TYPE_MSGPACK).append("\r\n");
+        }
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        if (reply.retryAfterSeconds >= 0) {
+            head.append("Retry-After: ").append(reply.retryAfterSeconds).append("\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(payload);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 415: return "Unsupported Media Type";
+            case 429: return "Too Many Requests";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        String lengthHeader = headers.get("content-length");
+        int length = lengthHeader != null ? Integer.parseInt(lengthHeader) : 0;
+        byte[] body = readFully(in, length);
+
+        if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+            GZIPInputStream gzipIn = new GZIPInputStream(new ByteArrayInputStream(body));
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(length * 4);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = gzipIn.read(buffer)) > 0) {
+                plain.write(buffer, 0, n);
+            }
+            body = plain.toByteArray();
+        }
+        return body;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated data");
+            }
+            read += n;
+        }
+        return data;
+    }
+
+    /**
+     * 读取大端无符号整数（WebSocket 扩展长度）
+     */
+    private static long readUnsigned(InputStream in, int bytes) throws IOException {
+        long value = 0;
+        for (byte b : readFully(in, bytes)) {
+            value = (value << 8) | (b & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * 读取一行（以 CRLF 结尾），连接关闭时返回 null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r'
+                        ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+}
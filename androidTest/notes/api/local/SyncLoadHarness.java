@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.micode.notes.api.DebugEndpoints;
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.sync.SyncManager;
+import net.micode.notes.sync.SyncMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 同步压测工具
+ * <p>
+ * 启动 {@link LocalCloudServer}，为每个规模注册一个新账号并预置笔记，
+ * 然后执行一次全量同步，报告耗时、吞吐量、服务端请求延迟分布与 {@link SyncMetrics}；
+ * 最后对同一账号执行一次哈希对账，报告一致性检查的请求次数与流量。
+ * </p>
+ * <p>
+ * 要求没有用户登录（见 {@link TestAccounts#requireSignedOut}），结束时退出临时账号并删除其写入的笔记，
+ * 只应在 instrumentation 测试中调用（见 SyncLoadTest）；方法是阻塞的，不能在主线程调用。
+ * </p>
+ */
+public class SyncLoadHarness {
+
+    private static final String TAG = "SyncLoadHarness";
+
+    /**
+     * 默认压测规模
+     */
+    public static final int[] DEFAULT_SIZES = { 1000, 10000, 50000 };
+
+    private static final int CONTENT_BYTES = 200;
+    private static final long SYNC_TIMEOUT_MINUTES = 10;
+
+    private SyncLoadHarness() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 一个规模的压测结果
+     */
+    public static class Result {
+        public final int noteCount;
+        public final boolean success;
+        public final String error;
+        public final long wallMs;
+        public final double p50Ms;
+        public final double p95Ms;
+        public final double p99Ms;
+        public final int requests;
+        public final SyncMetrics metrics;
+        /** 同步后对同一账号的哈希对账结果，同步或对账失败时为 null */
+        public SyncManager.ReconcileReport reconcile;
+
+        Result(int noteCount, boolean success, String error, long wallMs, LatencyStats latency,
+                SyncMetrics metrics) {
+            this.noteCount = noteCount;
+            this.success = success;
+            this.error = error;
+            this.wallMs = wallMs;
+            this.p50Ms = latency.percentileMs(50);
+            this.p95Ms = latency.percentileMs(95);
+            this.p99Ms = latency.percentileMs(99);
+            this.requests = latency.getCount();
+            this.metrics = metrics;
+        }
+
+        /**
+         * 每秒同步的笔记数
+         */
+        public double notesPerSecond() {
+            return wallMs == 0 ? 0 : noteCount * 1000.0 / wallMs;
+        }
+
+        @Override
+        public String toString() {
+            String line = String.format(Locale.US,
+                    "%6d notes: %s in %dms (%.0f notes/s), server requests=%d p50=%.1fms p95=%.1fms p99=%.1fms",
+                    noteCount, success ? "OK" : "FAILED(" + error + ")", wallMs, notesPerSecond(),
+                    requests, p50Ms, p95Ms, p99Ms);
+            if (metrics != null) {
+                line += "\n        " + metrics.toSummary().replace("\n", "; ");
+            }
+            if (reconcile != null) {
+                line += "\n        reconcile: " + reconcile;
+            }
+            return line;
+        }
+    }
+
+    /**
+     * 使用默认规模和无注入故障的服务器运行
+     */
+    public static List<Result> run(Context context) throws Exception {
+        return run(context, new LocalCloudServer(), DEFAULT_SIZES);
+    }
+
+    /**
+     * 运行压测
+     *
+     * @param context 应用上下文
+     * @param server 未启动的服务器，调用方可预先设置延迟与故障注入
+     * @param sizes 每个账号的笔记数量
+     * @return 每个规模的结果
+     */
+    public static List<Result> run(Context context, LocalCloudServer server, int... sizes)
+            throws Exception {
+        TestAccounts.requireSignedOut(context);
+        UserAuthManager authManager = UserAuthManager.getInstance(context);
+        SyncManager syncManager = SyncManager.getInstance();
+        List<Result> results = new ArrayList<>();
+        List<String> userIds = new ArrayList<>();
+
+        server.start();
+        DebugEndpoints.setBaseUrlOverride(server.getBaseUrl());
+        try {
+            for (int size : sizes) {
+                String userId = TestAccounts.register(authManager, "load-" + size + "-" + System.nanoTime());
+                userIds.add(userId);
+                server.seedNotes(userId, size, CONTENT_BYTES);
+                syncManager.resetSyncState();
+                server.getLatencyStats().reset();
+
+                long start = System.currentTimeMillis();
+                String error = syncAll(syncManager);
+                long wallMs = System.currentTimeMillis() - start;
+
+                Result result = new Result(size, error == null, error, wallMs,
+                        server.getLatencyStats(), syncManager.getLastSyncMetrics());
+                if (error == null) {
+                    String reconcileError = reconcile(syncManager);
+                    if (reconcileError == null) {
+                        result.reconcile = syncManager.getLastReconcileReport();
+                    } else {
+                        Log.w(TAG, "Reconciliation failed: " + reconcileError);
+                    }
+                }
+                Log.i(TAG, result.toString());
+                results.add(result);
+            }
+        } finally {
+            authManager.logout();
+            syncManager.resetSyncState();
+            for (String userId : userIds) {
+                TestAccounts.purge(context, userId);
+            }
+            DebugEndpoints.setBaseUrlOverride(null);
+            server.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * 把结果格式化为多行报告
+     */
+    public static String formatReport(List<Result> results) {
+        StringBuilder sb = new StringBuilder("Sync load test\n");
+        for (Result result : results) {
+            sb.append(result).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 执行一次哈希对账并等待结束
+     *
+     * @return 错误信息，成功时为 null
+     */
+    private static String reconcile(SyncManager syncManager) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> errorRef = new AtomicReference<>();
+
+        syncManager.reconcileNotes(new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                errorRef.set(error != null ? error : "unknown");
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            return "timeout";
+        }
+        return errorRef.get();
+    }
+
+    /**
+     * 执行一次全量同步并等待结束
+     *
+     * @return 错误信息，成功时为 null
+     */
+    private static String syncAll(SyncManager syncManager) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> errorRef = new AtomicReference<>();
+
+        syncManager.syncAllNotes(new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                errorRef.set(error != null ? error : "unknown");
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            return "timeout";
+        }
+        return errorRef.get();
+    }
+}
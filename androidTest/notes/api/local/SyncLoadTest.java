@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import net.micode.notes.auth.UserAuthManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * 同步压测（{@link SyncLoadHarness}）
+ * <p>
+ * CI 中以一千条笔记的账号运行，确认全量同步成功、随后的哈希对账没有发现不一致；
+ * 更大的规模用 {@link SyncLoadHarness#DEFAULT_SIZES} 手动运行。
+ * </p>
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SyncLoadTest {
+
+    private static final String TAG = "SyncLoadTest";
+
+    private static final int CI_NOTE_COUNT = 1000;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        assumeFalse("a user is signed in", UserAuthManager.getInstance(mContext).isLoggedIn());
+    }
+
+    @Test
+    public void fullSyncThenReconcileFindsNoDrift() throws Exception {
+        List<SyncLoadHarness.Result> results =
+                SyncLoadHarness.run(mContext, new LocalCloudServer(), CI_NOTE_COUNT);
+        Log.i(TAG, SyncLoadHarness.formatReport(results));
+
+        SyncLoadHarness.Result result = results.get(0);
+        assertTrue(result.error, result.success);
+        assertNotNull("reconciliation did not run", result.reconcile);
+        assertEquals(0, result.reconcile.repaired);
+    }
+}
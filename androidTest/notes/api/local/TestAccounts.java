@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 测试账号
+ * <p>
+ * 压测与传播测试在 {@link LocalCloudServer} 上注册临时账号并同步到本机数据库。为了不破坏设备上
+ * 真实用户的数据，测试开始前要求没有用户登录，结束后删除临时账号写入的笔记及其发件箱记录。
+ * </p>
+ */
+public class TestAccounts {
+
+    private static final String TAG = "TestAccounts";
+
+    private static final long AUTH_TIMEOUT_SECONDS = 30;
+
+    private TestAccounts() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 确认没有用户登录；否则测试会切换并退出该用户的会话
+     *
+     * @throws IllegalStateException 有用户登录时
+     */
+    public static void requireSignedOut(Context context) {
+        if (UserAuthManager.getInstance(context).isLoggedIn()) {
+            throw new IllegalStateException("A user is signed in; run sync tests on a clean test install");
+        }
+    }
+
+    /**
+     * 在当前指向的服务器上注册并登录一个临时账号
+     *
+     * @return 云端用户ID
+     */
+    public static String register(UserAuthManager authManager, String username) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> userIdRef = new AtomicReference<>();
+        AtomicReference<String> errorRef = new AtomicReference<>();
+
+        authManager.register(username, "load-test", new UserAuthManager.AuthCallback() {
+            @Override
+            public void onSuccess(String userId, String name) {
+                userIdRef.set(userId);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                errorRef.set(error);
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(AUTH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new RuntimeException("注册测试账号超时");
+        }
+        if (errorRef.get() != null) {
+            throw new RuntimeException("注册测试账号失败: " + errorRef.get());
+        }
+        return userIdRef.get();
+    }
+
+    /**
+     * 删除临时账号在本机写入的笔记，以及删除触发器为它们产生的发件箱记录
+     *
+     * @return 删除的笔记数量
+     */
+    public static int purge(Context context, String userId) {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        int deleted;
+        db.beginTransaction();
+        try {
+            long lastOutboxId = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(" + OutboxColumns.ID + "), 0) FROM " + TABLE.OUTBOX, null);
+            deleted = db.delete(TABLE.NOTE, NoteColumns.CLOUD_USER_ID + "=? AND "
+                    + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM, new String[] { userId });
+            db.delete(TABLE.OUTBOX, OutboxColumns.ID + ">?",
+                    new String[] { String.valueOf(lastOutboxId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        context.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+        Log.d(TAG, "Purged " + deleted + " notes of test account " + userId);
+        return deleted;
+    }
+}
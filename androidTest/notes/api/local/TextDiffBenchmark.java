@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import android.util.Log;
+
+import net.micode.notes.tool.TextDiff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 冲突差异比较基准测试
+ * <p>
+ * 在约 100 KB 的中英文混排文档上测量 {@link TextDiff#diff} 的耗时分布。典型编辑（零星改词、
+ * 插入与删除段落、上百处分散的行修改）的 p95 应在一帧（16 ms）以内；整篇改写是最坏情况，
+ * 只确认比较在时间预算处截止，不计入帧预算判断。
+ * </p>
+ * <p>
+ * 每个场景先用差异块还原双方文本，确认结果正确后再计时。方法是阻塞的，
+ * 只应在测试设备或 CI 模拟器上调用，不能在主线程调用。
+ * </p>
+ */
+public class TextDiffBenchmark {
+
+    private static final String TAG = "TextDiffBenchmark";
+
+    /**
+     * 默认文档大小与测量轮数
+     */
+    public static final int DEFAULT_DOCUMENT_BYTES = 100 * 1024;
+    public static final int DEFAULT_ITERATIONS = 30;
+
+    /**
+     * 典型编辑的耗时上限：一帧
+     */
+    public static final double FRAME_BUDGET_MS = 16;
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final long SEED = 20101;
+
+    private static final String[] ASCII_WORDS = {
+            "meeting", "todo", "buy", "milk", "call", "project", "deadline", "review",
+            "\"draft\"", "notes", "idea", "http://example.com/a?b=c", "tab\there", "C:\\path"
+    };
+    private static final String[] CHINESE_WORDS = {
+            "会议", "待办", "购物清单", "明天", "记得", "项目进度", "周报", "电话", "复习", "读书笔记"
+    };
+
+    private TextDiffBenchmark() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 一个场景的测量结果
+     */
+    public static class Result {
+        public final String scenario;
+        public final int documentBytes;
+        public final int hunkCount;
+        /** 比较是否在时间预算内完成 */
+        public final boolean complete;
+        public final double p50Ms;
+        public final double p95Ms;
+        /** 是否计入帧预算判断（最坏情况场景不计入） */
+        public final boolean typical;
+
+        Result(String scenario, int documentBytes, int hunkCount, boolean complete, double p50Ms,
+                double p95Ms, boolean typical) {
+            this.scenario = scenario;
+            this.documentBytes = documentBytes;
+            this.hunkCount = hunkCount;
+            this.complete = complete;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.typical = typical;
+        }
+
+        /**
+         * 典型编辑是否在帧预算内完成；最坏情况场景总是返回 true
+         */
+        public boolean isWithinFrameBudget() {
+            return !typical || (complete && p95Ms <= FRAME_BUDGET_MS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-10s %6dB: hunks=%d complete=%b p50=%.2fms p95=%.2fms %s",
+                    scenario, documentBytes, hunkCount, complete, p50Ms, p95Ms,
+                    !typical ? "(worst case)" : isWithinFrameBudget() ? "OK" : "OVER FRAME BUDGET");
+        }
+    }
+
+    /**
+     * 使用默认规模运行
+     */
+    public static List<Result> run() {
+        return run(DEFAULT_DOCUMENT_BYTES, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * 运行基准测试
+     *
+     * @param documentBytes 文档的 UTF-8 字节数
+     * @param iterations 每个场景的测量轮数（另有预热轮）
+     * @return 各场景的结果
+     */
+    public static List<Result> run(int documentBytes, int iterations) {
+        Random random = new Random(SEED);
+        List<String> lines = document(random, documentBytes);
+        String base = String.join("\n", lines);
+        int bytes = base.getBytes(StandardCharsets.UTF_8).length;
+
+        List<Result> results = new ArrayList<>(4);
+        results.add(measure("typo", base, String.join("\n", typos(random, lines, 10)),
+                bytes, iterations, true));
+        results.add(measure("paragraph", base, String.join("\n", paragraphs(random, lines)),
+                bytes, iterations, true));
+        results.add(measure("scattered", base, String.join("\n", scattered(random, lines, 100)),
+                bytes, iterations, true));
+        results.add(measure("rewrite", base, String.join("\n", document(random, documentBytes)),
+                bytes, iterations, false));
+        for (Result result : results) {
+            Log.i(TAG, result.toString());
+        }
+        return results;
+    }
+
+    /**
+     * 把结果格式化为多行报告
+     */
+    public static String formatReport(List<Result> results) {
+        StringBuilder sb = new StringBuilder("Text diff benchmark (frame budget ")
+                .append(FRAME_BUDGET_MS).append("ms)\n");
+        for (Result result : results) {
+            sb.append(result).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static Result measure(String scenario, String local, String cloud, int bytes,
+            int iterations, boolean typical) {
+        TextDiff.Result result = TextDiff.diff(local, cloud, TextDiff.DEFAULT_BUDGET_MS);
+        verify(scenario, local, cloud, result);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            TextDiff.diff(local, cloud, TextDiff.DEFAULT_BUDGET_MS);
+        }
+
+        LatencyStats stats = new LatencyStats();
+        boolean complete = true;
+        for (int i = 0; i < iterations; i++) {
+            result = TextDiff.diff(local, cloud, TextDiff.DEFAULT_BUDGET_MS);
+            stats.record(result.elapsedNanos / 1000);
+            complete &= result.complete;
+        }
+        return new Result(scenario, bytes, result.hunks.size(), complete,
+                stats.percentileMs(50), stats.percentileMs(95), typical);
+    }
+
+    /**
+     * 用差异块和块之间未改动的行还原双方文本，确认与输入一致
+     */
+    private static void verify(String scenario, String local, String cloud, TextDiff.Result result) {
+        String[] localLines = local.split("\n", -1);
+        String[] cloudLines = cloud.split("\n", -1);
+        List<String> localRebuilt = new ArrayList<>(localLines.length);
+        List<String> cloudRebuilt = new ArrayList<>(cloudLines.length);
+        for (TextDiff.Hunk hunk : result.hunks) {
+            while (localRebuilt.size() < hunk.localStart) {
+                localRebuilt.add(localLines[localRebuilt.size()]);
+            }
+            while (cloudRebuilt.size() < hunk.cloudStart) {
+                cloudRebuilt.add(cloudLines[cloudRebuilt.size()]);
+            }
+            for (TextDiff.Line line : hunk.lines) {
+                if (line.type != TextDiff.Line.ADDED) {
+                    localRebuilt.add(line.text);
+                }
+                if (line.type != TextDiff.Line.REMOVED) {
+                    cloudRebuilt.add(line.text);
+                }
+            }
+        }
+        while (localRebuilt.size() < localLines.length) {
+            localRebuilt.add(localLines[localRebuilt.size()]);
+        }
+        while (cloudRebuilt.size() < cloudLines.length) {
+            cloudRebuilt.add(cloudLines[cloudRebuilt.size()]);
+        }
+        if (!String.join("\n", localRebuilt).equals(local)
+                || !String.join("\n", cloudRebuilt).equals(cloud)) {
+            throw new IllegalStateException(scenario + ": hunks do not rebuild both versions");
+        }
+    }
+
+    /**
+     * 在若干行中各替换一个词
+     */
+    private static List<String> typos(Random random, List<String> lines, int count) {
+        List<String> edited = new ArrayList<>(lines);
+        for (int i = 0; i < count; i++) {
+            int index = random.nextInt(edited.size());
+            String line = edited.get(index);
+            int at = line.isEmpty() ? 0 : random.nextInt(line.length());
+            int end = Math.min(line.length(), at + 1 + random.nextInt(6));
+            edited.set(index, line.substring(0, at) + word(random) + line.substring(end));
+        }
+        return edited;
+    }
+
+    /**
+     * 在中间插入一段约 2 KB 的新段落，并删除另一处约 1 KB 的段落
+     */
+    private static List<String> paragraphs(Random random, List<String> lines) {
+        List<String> edited = new ArrayList<>(lines);
+        int removeAt = edited.size() / 4;
+        for (int i = 0; i < 12 && removeAt < edited.size(); i++) {
+            edited.remove(removeAt);
+        }
+        edited.addAll(edited.size() / 2, document(random, 2 * 1024));
+        return edited;
+    }
+
+    /**
+     * 分散的整行插入、删除与替换
+     */
+    private static List<String> scattered(Random random, List<String> lines, int count) {
+        List<String> edited = new ArrayList<>(lines);
+        for (int i = 0; i < count; i++) {
+            int index = random.nextInt(edited.size());
+            switch (random.nextInt(3)) {
+                case 0:
+                    edited.add(index, line(random));
+                    break;
+                case 1:
+                    edited.remove(index);
+                    break;
+                default:
+                    edited.set(index, line(random));
+                    break;
+            }
+        }
+        return edited;
+    }
+
+    private static List<String> document(Random random, int bytes) {
+        List<String> lines = new ArrayList<>();
+        int size = 0;
+        while (size < bytes) {
+            String line = line(random);
+            lines.add(line);
+            size += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return lines;
+    }
+
+    private static String line(Random random) {
+        int words = 3 + random.nextInt(20);
+        StringBuilder sb = new StringBuilder(words * 6);
+        for (int w = 0; w < words; w++) {
+            sb.append(word(random));
+        }
+        return sb.toString();
+    }
+
+    private static String word(Random random) {
+        return random.nextBoolean()
+                ? CHINESE_WORDS[random.nextInt(CHINESE_WORDS.length)]
+                : ASCII_WORDS[random.nextInt(ASCII_WORDS.length)] + ' ';
+    }
+}
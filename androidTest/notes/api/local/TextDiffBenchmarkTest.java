@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * 冲突差异比较基准（{@link TextDiffBenchmark}）：典型编辑在设备上的 p95 不超过一帧
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TextDiffBenchmarkTest {
+
+    private static final String TAG = "TextDiffBenchmarkTest";
+
+    @Test
+    public void typicalEditsFitInFrameBudget() {
+        List<TextDiffBenchmark.Result> results = TextDiffBenchmark.run();
+        Log.i(TAG, TextDiffBenchmark.formatReport(results));
+        for (TextDiffBenchmark.Result result : results) {
+            assertTrue(result.toString(), result.isWithinFrameBudget());
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.api.local;
+
+import android.os.Debug;
+import android.util.Log;
+
+import net.micode.notes.api.MessagePack;
+import net.micode.notes.api.NoteWireFormat;
+import net.micode.notes.model.CloudNote;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 线上格式基准测试
+ * <p>
+ * 以下载响应为对象，比较 JSON 与 MessagePack（{@link NoteWireFormat}）的编码耗时、解码耗时、
+ * 每次编解码的内存分配量以及报文大小（原始与 gzip 后）。语料是固定种子生成的混合笔记：
+ * 中英文混排、含引号与换行的正文，长度从一行便签到数千字的长文。
+ * </p>
+ * <p>
+ * 分配量取自 ART 的 {@code art.gc.bytes-allocated} 统计，不可用时报告为 -1。
+ * 方法是阻塞的，只应在测试设备或 CI 模拟器上调用，不能在主线程调用。
+ * </p>
+ */
+public class WireFormatBenchmark {
+
+    private static final String TAG = "WireFormatBenchmark";
+
+    /**
+     * 默认语料规模
+     */
+    public static final int DEFAULT_NOTE_COUNT = 2000;
+    public static final int DEFAULT_ITERATIONS = 20;
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final long SEED = 20101;
+
+    private static final String[] ASCII_WORDS = {
+            "meeting", "todo", "buy", "milk", "call", "project", "deadline", "review",
+            "\"draft\"", "notes", "idea", "http://example.com/a?b=c", "tab\there", "C:\\path"
+    };
+    private static final String[] CHINESE_WORDS = {
+            "会议", "待办", "购物清单", "明天", "记得", "项目进度", "周报", "电话", "复习", "读书笔记"
+    };
+
+    private WireFormatBenchmark() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 一种格式的测量结果
+     */
+    public static class Result {
+        public final String format;
+        public final int noteCount;
+        public final int payloadBytes;
+        public final int gzipBytes;
+        public final double encodeMs;
+        public final double decodeMs;
+        public final long encodeAllocBytes;
+        public final long decodeAllocBytes;
+
+        Result(String format, int noteCount, int payloadBytes, int gzipBytes, double encodeMs,
+                double decodeMs, long encodeAllocBytes, long decodeAllocBytes) {
+            this.format = format;
+            this.noteCount = noteCount;
+            this.payloadBytes = payloadBytes;
+            this.gzipBytes = gzipBytes;
+            this.encodeMs = encodeMs;
+            this.decodeMs = decodeMs;
+            this.encodeAllocBytes = encodeAllocBytes;
+            this.decodeAllocBytes = decodeAllocBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-8s %6d notes: payload=%dB gzip=%dB encode=%.2fms decode=%.2fms"
+                            + " alloc(encode)=%dB alloc(decode)=%dB",
+                    format, noteCount, payloadBytes, gzipBytes, encodeMs, decodeMs,
+                    encodeAllocBytes, decodeAllocBytes);
+        }
+    }
+
+    /**
+     * 使用默认规模运行
+     */
+    public static List<Result> run() throws Exception {
+        return run(DEFAULT_NOTE_COUNT, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * 运行基准测试
+     *
+     * @param noteCount 语料中的笔记数量
+     * @param iterations 每种格式的测量轮数（另有预热轮）
+     * @return JSON 与 MessagePack 两条结果
+     */
+    public static List<Result> run(int noteCount, int iterations) throws Exception {
+        List<CloudNote> corpus = buildCorpus(noteCount, new Random(SEED));
+        List<Result> results = new ArrayList<>(2);
+        results.add(measure("json", corpus, iterations, new JsonCodec()));
+        results.add(measure("msgpack", corpus, iterations, new MessagePackCodec()));
+        for (Result result : results) {
+            Log.i(TAG, result.toString());
+        }
+        return results;
+    }
+
+    /**
+     * 把结果格式化为多行报告
+     */
+    public static String formatReport(List<Result> results) {
+        StringBuilder sb = new StringBuilder("Wire format benchmark\n");
+        for (Result result : results) {
+            sb.append(result).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一种格式的下载响应编解码
+     */
+    private interface Codec {
+        byte[] encode(List<CloudNote> notes) throws Exception;
+
+        NoteWireFormat.DownloadResponse decode(byte[] payload) throws Exception;
+    }
+
+    /**
+     * 与服务端和 {@link net.micode.notes.api.CloudDatabaseHelper} 相同的 JSON 路径
+     */
+    private static class JsonCodec implements Codec {
+        @Override
+        public byte[] encode(List<CloudNote> notes) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (CloudNote note : notes) {
+                array.put(note.toJson());
+            }
+            JSONObject response = new JSONObject();
+            response.put("success", true);
+            response.put("notes", array);
+            response.put("tombstones", new JSONArray());
+            return response.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public NoteWireFormat.DownloadResponse decode(byte[] payload) throws JSONException {
+            // OkHttp 的 ResponseBody.string() 同样先把字节解码为字符串
+            return NoteWireFormat.decodeDownload(new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 直接在字节与 CloudNote 之间转换的 MessagePack 路径
+     */
+    private static class MessagePackCodec implements Codec {
+        @Override
+        public byte[] encode(List<CloudNote> notes) {
+            MessagePack.Writer writer = new MessagePack.Writer(notes.size() * 256);
+            writer.writeMapHeader(3);
+            writer.writeString("success").writeBoolean(true);
+            writer.writeString("notes").writeArrayHeader(notes.size());
+            for (CloudNote note : notes) {
+                NoteWireFormat.writeNote(writer, note);
+            }
+            writer.writeString("tombstones").writeArrayHeader(0);
+            return writer.toByteArray();
+        }
+
+        @Override
+        public NoteWireFormat.DownloadResponse decode(byte[] payload) throws IOException {
+            return NoteWireFormat.decodeDownload(payload);
+        }
+    }
+
+    private static Result measure(String format, List<CloudNote> corpus, int iterations, Codec codec)
+            throws Exception {
+        byte[] payload = codec.encode(corpus);
+        verify(format, corpus, codec.decode(payload));
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            codec.decode(codec.encode(corpus));
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long encodeAlloc = 0;
+        long decodeAlloc = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            payload = codec.encode(corpus);
+            encodeNanos += System.nanoTime() - start;
+            long allocMiddle = allocatedBytes();
+            start = System.nanoTime();
+            codec.decode(payload);
+            decodeNanos += System.nanoTime() - start;
+            long allocAfter = allocatedBytes();
+            encodeAlloc += allocMiddle - allocBefore;
+            decodeAlloc += allocAfter - allocMiddle;
+        }
+
+        boolean allocKnown = allocatedBytes() >= 0;
+        return new Result(format, corpus.size(), payload.length, gzipSize(payload),
+                encodeNanos / 1e6 / iterations, decodeNanos / 1e6 / iterations,
+                allocKnown ? encodeAlloc / iterations : -1,
+                allocKnown ? decodeAlloc / iterations : -1);
+    }
+
+    /**
+     * 确认两种格式解码出的笔记与语料一致，避免比较的是不等价的工作量
+     */
+    private static void verify(String format, List<CloudNote> corpus,
+            NoteWireFormat.DownloadResponse decoded) {
+        if (!decoded.success || decoded.notes.size() != corpus.size()) {
+            throw new IllegalStateException(format + ": decoded " + decoded.notes.size()
+                    + " of " + corpus.size() + " notes");
+        }
+        for (int i = 0; i < corpus.size(); i++) {
+            CloudNote expected = corpus.get(i);
+            CloudNote actual = decoded.notes.get(i);
+            if (!expected.getContent().equals(actual.getContent())
+                    || !expected.getTitle().equals(actual.getTitle())
+                    || !expected.getCloudNoteId().equals(actual.getCloudNoteId())
+                    || expected.getModifiedTime() != actual.getModifiedTime()) {
+                throw new IllegalStateException(format + ": note " + i + " does not round-trip");
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        try {
+            String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static int gzipSize(byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(payload);
+        gzip.close();
+        return out.size();
+    }
+
+    /**
+     * 生成语料：多数笔记较短，少数是长文，与真实账号的长度分布相近
+     */
+    private static List<CloudNote> buildCorpus(int count, Random random) {
+        List<CloudNote> notes = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            int roll = random.nextInt(100);
+            int words = roll < 60 ? 5 + random.nextInt(30)
+                    : roll < 95 ? 50 + random.nextInt(300)
+                    : 1000 + random.nextInt(3000);
+            String content = text(random, words);
+            String title = text(random, 1 + random.nextInt(6));
+            notes.add(new CloudNote("cloud-" + (100000 + i), String.valueOf(i + 1), title, content,
+                    String.valueOf(random.nextInt(5) == 0 ? 1000 + random.nextInt(20) : 0), 0,
+                    now - random.nextInt(Integer.MAX_VALUE), now - random.nextInt(86400000),
+                    1 + random.nextInt(10), "device_" + Long.toHexString(random.nextLong())));
+        }
+        return notes;
+    }
+
+    private static String text(Random random, int words) {
+        StringBuilder sb = new StringBuilder(words * 6);
+        for (int w = 0; w < words; w++) {
+            if (random.nextBoolean()) {
+                sb.append(CHINESE_WORDS[random.nextInt(CHINESE_WORDS.length)]);
+            } else {
+                sb.append(ASCII_WORDS[random.nextInt(ASCII_WORDS.length)]).append(' ');
+            }
+            if (random.nextInt(12) == 0) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * 线上格式基准（{@link WireFormatBenchmark}）：两种格式都能往返语料，MessagePack 报文更小
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class WireFormatBenchmarkTest {
+
+    private static final String TAG = "WireFormatBenchmarkTest";
+
+    @Test
+    public void messagePackRoundTripsAndIsSmaller() throws Exception {
+        List<WireFormatBenchmark.Result> results = WireFormatBenchmark.run(500, 5);
+        Log.i(TAG, WireFormatBenchmark.formatReport(results));
+
+        assertEquals(2, results.size());
+        WireFormatBenchmark.Result json = results.get(0);
+        WireFormatBenchmark.Result msgpack = results.get(1);
+        assertTrue(msgpack + " vs " + json, msgpack.payloadBytes < json.payloadBytes);
+    }
+}
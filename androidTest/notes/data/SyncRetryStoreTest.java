@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.RetryColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * {@link SyncRetryStore} 的退避、到期查询，以及笔记删除时清理上传隔离记录的触发器
+ */
+@RunWith(AndroidJUnit4.class)
+public class SyncRetryStoreTest {
+
+    private static final String CLOUD_ID = "retry-store-test";
+
+    private SQLiteDatabase mDb;
+    private SyncRetryStore mStore;
+    private long mNoteId;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        mDb = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        mStore = new SyncRetryStore(context);
+
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        mNoteId = mDb.insert(TABLE.NOTE, null, values);
+    }
+
+    @After
+    public void tearDown() {
+        String[] args = { String.valueOf(mNoteId) };
+        mDb.delete(TABLE.NOTE, NoteColumns.ID + "=?", args);
+        mDb.delete(TABLE.RETRY, RetryColumns.NOTE_ID + "=?", args);
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyAndIsCapped() {
+        assertEquals(SyncRetryStore.BACKOFF_BASE_MS, SyncRetryStore.backoffMs(1));
+        assertEquals(2 * SyncRetryStore.BACKOFF_BASE_MS, SyncRetryStore.backoffMs(2));
+        assertEquals(SyncRetryStore.BACKOFF_MAX_MS, SyncRetryStore.backoffMs(100));
+    }
+
+    @Test
+    public void repeatedFailuresCountAttemptsAndPostponeRetry() {
+        long before = System.currentTimeMillis();
+        assertEquals(1, mStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, mNoteId, "", null, "e1"));
+        assertEquals(2, mStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, mNoteId, "", null, "e2"));
+
+        SyncRetryStore.Entry entry = mStore.getByNoteId(RetryColumns.DIRECTION_UPLOAD).get(mNoteId);
+        assertEquals(2, entry.attempts);
+        assertTrue(entry.nextRetryAt >= before + SyncRetryStore.backoffMs(2));
+    }
+
+    @Test
+    public void onlyExpiredEntriesAreDue() {
+        mStore.recordFailure(RetryColumns.DIRECTION_DOWNLOAD, mNoteId, CLOUD_ID, "{}", "e");
+        long now = System.currentTimeMillis();
+
+        assertFalse(containsNote(mStore.getDue(RetryColumns.DIRECTION_DOWNLOAD, now)));
+        assertTrue(containsNote(mStore.getDue(RetryColumns.DIRECTION_DOWNLOAD,
+                now + SyncRetryStore.BACKOFF_MAX_MS)));
+    }
+
+    @Test
+    public void removeDropsTheEntry() {
+        mStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, mNoteId, "", null, "e");
+        mStore.remove(RetryColumns.DIRECTION_UPLOAD, mNoteId, "");
+        assertFalse(mStore.getByNoteId(RetryColumns.DIRECTION_UPLOAD).containsKey(mNoteId));
+    }
+
+    @Test
+    public void deletingNoteDropsUploadQuarantineOnly() {
+        mStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, mNoteId, "", null, "e");
+        mStore.recordFailure(RetryColumns.DIRECTION_DOWNLOAD, mNoteId, CLOUD_ID, "{}", "e");
+
+        mDb.delete(TABLE.NOTE, NoteColumns.ID + "=?", new String[] { String.valueOf(mNoteId) });
+
+        assertFalse(mStore.getByNoteId(RetryColumns.DIRECTION_UPLOAD).containsKey(mNoteId));
+        assertTrue(mStore.getByNoteId(RetryColumns.DIRECTION_DOWNLOAD).containsKey(mNoteId));
+    }
+
+    private boolean containsNote(List<SyncRetryStore.Entry> entries) {
+        for (SyncRetryStore.Entry entry : entries) {
+            if (entry.noteId == mNoteId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+/**
+ * 调试构建的服务端点切换
+ * <p>
+ * 只存在于 debug 源码集，供 instrumentation 测试把云同步指向本地替身服务器；
+ * release 构建中没有本类，{@link AliyunConfig#getBaseUrl()} 也会忽略覆盖值。
+ * </p>
+ */
+public class DebugEndpoints {
+
+    private DebugEndpoints() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 覆盖API基础路径，传 null 恢复默认
+     * <p>
+     * 只影响之后创建的请求，已发出的请求不受影响。
+     * </p>
+     */
+    public static void setBaseUrlOverride(String baseUrl) {
+        AliyunConfig.sBaseUrlOverride = baseUrl;
+    }
+}
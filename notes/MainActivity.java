@@ -140,6 +140,9 @@ public class MainActivity extends BaseActivity implements SidebarFragment.OnSide
                         backupUtils.getExportedTextFileName(),
                         backupUtils.getExportedTextFileDir()), Toast.LENGTH_SHORT).show();
                 break;
+            case BackupUtils.STATE_BODIES_MISSING:
+                Toast.makeText(this, R.string.export_bodies_missing, Toast.LENGTH_LONG).show();
+                break;
             case BackupUtils.STATE_SD_CARD_UNMOUONTED:
                 Toast.makeText(this, R.string.error_sdcard_unmounted, Toast.LENGTH_SHORT).show();
                 break;
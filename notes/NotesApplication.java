@@ -5,6 +5,8 @@ import android.util.Log;
 
 import net.micode.notes.auth.UserAuthManager;
 import net.micode.notes.data.ThemeRepository;
+import net.micode.notes.sync.LiveSyncChannel;
+import net.micode.notes.sync.NoteBodyFetcher;
 import net.micode.notes.sync.SyncWorker;
 import net.micode.notes.capsule.CapsuleService;
 import android.content.Intent;
@@ -42,6 +44,8 @@ public class NotesApplication extends Application {
         Log.d(TAG, "EMAS Serverless initialized");
 
         SyncWorker.initialize(this);
+        NoteBodyFetcher.install();
+        LiveSyncChannel.install(this);
 
         // Start CapsuleService if enabled
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
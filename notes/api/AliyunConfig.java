@@ -52,7 +52,21 @@ public class AliyunConfig {
      */
     public static final String BASE_URL = ENDPOINT + "/api";
 
+    /**
+     * 覆盖的API基础路径，用于连接本地替身服务器，为 null 时使用 {@link #BASE_URL}。
+     * 只能由 debug 构建中的 DebugEndpoints 设置，release 构建忽略
+     */
+    static volatile String sBaseUrlOverride;
+
     private AliyunConfig() {
         // Utility class, prevent instantiation
     }
+
+    /**
+     * 获取当前生效的API基础路径
+     */
+    public static String getBaseUrl() {
+        String override = sBaseUrlOverride;
+        return BuildConfig.DEBUG && override != null ? override : BASE_URL;
+    }
 }
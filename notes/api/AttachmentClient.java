@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.api;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+/**
+ * 云端附件接口
+ * <p>
+ * 附件按内容哈希（SHA-256）寻址，服务端全局去重：
+ * <ul>
+ * <li>{@link #checkMissing}：询问服务端缺少哪些哈希，已有的附件无需上传</li>
+ * <li>{@link #uploadBlob}：先以 begin 查询服务端已收到的字节数，再从该偏移按 {@link #CHUNK_SIZE}
+ * 分块 PUT，中断后重新调用即从断点继续；服务端收齐后校验哈希</li>
+ * <li>{@link #downloadBlob}：流式写入目标文件</li>
+ * </ul>
+ * 请求体和响应体都以流的方式读写文件，内存占用与附件大小无关。
+ * </p>
+ */
+public class AttachmentClient {
+
+    private static final String TAG = "AttachmentClient";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    /**
+     * 每次 PUT 的字节数
+     */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    private final String mAuthToken;
+    private final OkHttpClient mHttpClient;
+    private final String mBlobsUrl;
+
+    public AttachmentClient(String authToken) {
+        mAuthToken = authToken;
+        mHttpClient = HttpClientProvider.forCloudSync();
+        mBlobsUrl = AliyunConfig.getBaseUrl() + "/blobs";
+    }
+
+    /**
+     * 询问服务端缺少哪些附件
+     *
+     * @param hashes 附件哈希
+     * @param callback 回调服务端没有的哈希
+     */
+    public void checkMissing(List<String> hashes, CloudCallback<List<String>> callback) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "check");
+            json.put("hashes", new JSONArray(hashes));
+        } catch (JSONException e) {
+            callback.onError("数据格式错误");
+            return;
+        }
+
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "blob-check"))
+                .url(mBlobsUrl)
+                .post(RequestBody.create(json.toString(), JSON))
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .build();
+        RetryingCall.enqueue(mHttpClient, request, new JsonCallback(callback, "查询附件失败") {
+            @Override
+            void onJson(JSONObject response) throws JSONException {
+                JSONArray missing = response.getJSONArray("missing");
+                List<String> result = new ArrayList<>(missing.length());
+                for (int i = 0; i < missing.length(); i++) {
+                    result.add(missing.getString(i));
+                }
+                callback.onSuccess(result);
+            }
+        });
+    }
+
+    /**
+     * 上传附件，从服务端已收到的位置续传
+     *
+     * @param hash 附件哈希
+     * @param file 附件文件
+     */
+    public void uploadBlob(String hash, File file, CloudCallback<Void> callback) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "begin");
+            json.put("hash", hash);
+            json.put("size", file.length());
+        } catch (JSONException e) {
+            callback.onError("数据格式错误");
+            return;
+        }
+
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "blob-begin"))
+                .url(mBlobsUrl)
+                .post(RequestBody.create(json.toString(), JSON))
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .build();
+        RetryingCall.enqueue(mHttpClient, request, new JsonCallback(callback, "开始上传附件失败") {
+            @Override
+            void onJson(JSONObject response) {
+                continueUpload(hash, file, response, callback);
+            }
+        });
+    }
+
+    /**
+     * 根据服务端的进度决定完成或发送下一块
+     */
+    private void continueUpload(String hash, File file, JSONObject progress, CloudCallback<Void> callback) {
+        if (progress.optBoolean("complete", false)) {
+            callback.onSuccess(null);
+            return;
+        }
+        long received = progress.optLong("received", 0);
+        long size = file.length();
+        if (received >= size) {
+            callback.onError("服务端未确认附件完整: " + hash);
+            return;
+        }
+        if (received > 0) {
+            Log.d(TAG, "Uploading " + hash + " from offset " + received + "/" + size);
+        }
+
+        long length = Math.min(CHUNK_SIZE, size - received);
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "blob-chunk"))
+                .url(mBlobsUrl + "/" + hash + "?offset=" + received)
+                .put(new FileRangeBody(file, received, length))
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                // 图片本身已压缩，跳过 CompressionInterceptor 对分块的再压缩
+                .addHeader("Content-Encoding", "identity")
+                .build();
+        RetryingCall.enqueue(mHttpClient, request, new JsonCallback(callback, "上传附件失败") {
+            @Override
+            void onJson(JSONObject response) {
+                continueUpload(hash, file, response, callback);
+            }
+
+            @Override
+            boolean acceptStatus(int code) {
+                // 409：偏移与服务端进度不一致（例如重发了已收到的块），响应中带有正确的进度
+                return code == 409;
+            }
+        });
+    }
+
+    /**
+     * 下载附件到目标文件（调用方负责校验哈希与移动到正式位置）
+     */
+    public void downloadBlob(String hash, File target, CloudCallback<Void> callback) {
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "blob-download"))
+                .url(mBlobsUrl + "/" + hash)
+                .get()
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .build();
+
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Blob download failed: " + hash, e);
+                callback.onError("网络错误: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    if (!response.isSuccessful()) {
+                        callback.onError("下载附件失败: " + response.code());
+                        return;
+                    }
+                    Sink sink = Okio.sink(target);
+                    try {
+                        response.body().source().readAll(sink);
+                    } finally {
+                        sink.close();
+                    }
+                    callback.onSuccess(null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write blob " + hash, e);
+                    callback.onError("保存附件失败: " + e.getMessage());
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 文件中一段字节的请求体，每次写出时重新打开文件，可被重试重复使用
+     */
+    private static final class FileRangeBody extends RequestBody {
+        private final File mFile;
+        private final long mOffset;
+        private final long mLength;
+
+        FileRangeBody(File file, long offset, long length) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return mLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            Source source = Okio.source(mFile);
+            try {
+                BufferedSource buffered = Okio.buffer(source);
+                buffered.skip(mOffset);
+                sink.write(buffered, mLength);
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * 解析 JSON 响应的回调
+     */
+    private abstract static class JsonCallback implements Callback {
+        private final CloudCallback<?> mCallback;
+        private final String mDefaultError;
+
+        JsonCallback(CloudCallback<?> callback, String defaultError) {
+            mCallback = callback;
+            mDefaultError = defaultError;
+        }
+
+        abstract void onJson(JSONObject response) throws JSONException;
+
+        /**
+         * 除 2xx 外仍按正常响应解析的状态码
+         */
+        boolean acceptStatus(int code) {
+            return false;
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            Log.e(TAG, mDefaultError, e);
+            mCallback.onError("网络错误: " + e.getMessage());
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            try {
+                if (!response.isSuccessful() && !acceptStatus(response.code())) {
+                    mCallback.onError(mDefaultError + ": " + response.code());
+                    return;
+                }
+                JSONObject json = new JSONObject(response.body().string());
+                if (!json.optBoolean("success", false)) {
+                    mCallback.onError(json.optString("message", mDefaultError));
+                    return;
+                }
+                onJson(json);
+            } catch (JSONException | IOException e) {
+                Log.e(TAG, "Failed to parse response", e);
+                mCallback.onError("解析响应失败");
+            } finally {
+                response.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 熔断器
+ * <p>
+ * 每个接口（主机 + 路径）一个实例：
+ * <ul>
+ * <li>CLOSED：正常放行，连续失败达到 {@link #DEFAULT_FAILURE_THRESHOLD} 次后打开</li>
+ * <li>OPEN：直接拒绝请求，快速失败；打开时间结束后进入半开</li>
+ * <li>HALF_OPEN：只放行一个探测请求，成功则关闭，失败则重新打开且打开时间加倍</li>
+ * </ul>
+ * 服务器通过 Retry-After 要求的等待时间更长时，按服务器要求保持打开。
+ * </p>
+ * <p>
+ * 时间通过 {@link Clock} 注入，线程安全。
+ * </p>
+ */
+public class CircuitBreaker {
+
+    /**
+     * 时钟接口
+     */
+    public interface Clock {
+        long now();
+    }
+
+    public static final Clock SYSTEM_CLOCK = System::currentTimeMillis;
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MS = 30 * 1000L;
+    public static final long MAX_OPEN_MS = 10 * 60 * 1000L;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final ConcurrentMap<String, CircuitBreaker> sBreakers = new ConcurrentHashMap<>();
+
+    private final Clock mClock;
+    private final int mFailureThreshold;
+    private final long mBaseOpenMs;
+
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenMs;
+    private long mOpenUntil;
+    private boolean mProbeInFlight;
+
+    public CircuitBreaker(Clock clock, int failureThreshold, long baseOpenMs) {
+        mClock = clock;
+        mFailureThreshold = failureThreshold;
+        mBaseOpenMs = baseOpenMs;
+        mOpenMs = baseOpenMs;
+    }
+
+    /**
+     * 获取某个接口的共享熔断器
+     *
+     * @param endpoint 接口标识，通常是主机加路径
+     */
+    public static CircuitBreaker forEndpoint(String endpoint) {
+        CircuitBreaker breaker = sBreakers.get(endpoint);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(SYSTEM_CLOCK, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MS);
+            CircuitBreaker existing = sBreakers.putIfAbsent(endpoint, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * 替换某个接口的共享熔断器，测试用于注入打开时间很短的实例
+     */
+    static void install(String endpoint, CircuitBreaker breaker) {
+        sBreakers.put(endpoint, breaker);
+    }
+
+    /**
+     * 是否放行一次请求；半开状态下放行的请求即为探测请求
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (mClock.now() < mOpenUntil) {
+                    return false;
+                }
+                mState = State.HALF_OPEN;
+                mProbeInFlight = true;
+                return true;
+            case HALF_OPEN:
+            default:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * 记录一次成功
+     */
+    public synchronized void onSuccess() {
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenMs = mBaseOpenMs;
+        mProbeInFlight = false;
+    }
+
+    /**
+     * 记录一次失败
+     *
+     * @param retryAfterMs 服务器要求的等待时间，没有时为 -1
+     */
+    public synchronized void onFailure(long retryAfterMs) {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN) {
+            mOpenMs = Math.min(MAX_OPEN_MS, mOpenMs * 2);
+            open(retryAfterMs);
+        } else if (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold) {
+            open(retryAfterMs);
+        } else if (mState == State.OPEN && retryAfterMs > 0) {
+            mOpenUntil = Math.max(mOpenUntil, mClock.now() + retryAfterMs);
+        }
+    }
+
+    /**
+     * 请求被取消、没有结果时调用，释放半开状态下的探测名额
+     */
+    public synchronized void onCancelled() {
+        if (mState == State.HALF_OPEN) {
+            mProbeInFlight = false;
+        }
+    }
+
+    private void open(long retryAfterMs) {
+        mState = State.OPEN;
+        mProbeInFlight = false;
+        mOpenUntil = mClock.now() + Math.max(mOpenMs, retryAfterMs);
+    }
+
+    /**
+     * 当前状态
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * 打开状态剩余时间（毫秒），非打开状态返回 0
+     */
+    public synchronized long getRemainingOpenMs() {
+        return mState == State.OPEN ? Math.max(0, mOpenUntil - mClock.now()) : 0;
+    }
+}
@@ -30,7 +30,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -50,37 +49,142 @@ public class CloudDatabaseHelper {
 
     private static final String TAG = "CloudDatabaseHelper";
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
-    private static final String API_NOTES = AliyunConfig.BASE_URL + "/notes";
+
+    /**
+     * 文本操作的谱系与服务端不一致时的错误码
+     */
+    public static final String TEXT_BASE_MISMATCH = "BASE_MISMATCH";
+
+    /**
+     * 写入请求的基础修订号（baseVersion）早于云端当前修订号时的错误码：
+     * 云端在本地上次同步后已被其他设备修改，服务端拒绝覆盖
+     */
+    public static final String STALE_VERSION = "STALE_VERSION";
 
     private String mUserId;
     private String mDeviceId;
     private String mAuthToken;
     private OkHttpClient mHttpClient;
+    private final String mNotesUrl;
 
     public CloudDatabaseHelper(String userId, String deviceId, String authToken) {
         mUserId = userId;
         mDeviceId = deviceId;
         mAuthToken = authToken;
-        mHttpClient = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS)
-                .writeTimeout(30, TimeUnit.SECONDS)
-                .addInterceptor(new RetryInterceptor())
-                .build();
+        mHttpClient = HttpClientProvider.forCloudSync();
+        mNotesUrl = AliyunConfig.getBaseUrl() + "/notes";
     }
 
     /**
      * 上传笔记到云端
+     * <p>
+     * 服务端声明支持时以 MessagePack 发送（见 {@link NoteWireFormat}），否则使用 JSON。
+     * 请求带上本地上次同步的云端修订号（{@link WorkingNote#getCloudVersion()}）作为基础修订号，
+     * 云端已有更新的版本时服务端拒绝覆盖，回调 {@link UploadResult#stale} 为 true 的结果。
+     * 成功时返回云端ID与服务端为这次写入分配的修订号。
+     * </p>
      */
-    public void uploadNote(WorkingNote note, CloudCallback<String> callback) {
+    public void uploadNote(WorkingNote note, CloudCallback<UploadResult> callback) {
         Log.d(TAG, "Uploading note: " + note.getNoteId());
+        uploadNote(new CloudNote(note, mDeviceId), note.getCloudVersion(), NoteWireFormat.useBinaryRequests(),
+                callback);
+    }
+
+    private void uploadNote(CloudNote cloudNote, int baseVersion, boolean binary,
+            CloudCallback<UploadResult> callback) {
+        RequestBody body;
+        if (binary) {
+            body = RequestBody.create(NoteWireFormat.encodeUpload(cloudNote, mUserId, baseVersion),
+                    NoteWireFormat.MSGPACK);
+        } else {
+            try {
+                JSONObject json = cloudNote.toJson();
+                json.put("action", "upload");
+                json.put("userId", mUserId);
+                if (baseVersion > 0) {
+                    json.put("baseVersion", baseVersion);
+                }
+                body = RequestBody.create(json.toString(), JSON);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to create JSON", e);
+                callback.onError("数据格式错误");
+                return;
+            }
+        }
+
+        Request.Builder builder = RetryingCall.markAction(new Request.Builder(), "upload")
+                .url(mNotesUrl)
+                .post(body)
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .addHeader("Content-Type", binary ? NoteWireFormat.MEDIA_TYPE_MSGPACK : "application/json");
+        // 已有云端ID的上传是覆盖更新，可以安全重试；新建笔记重试可能在云端产生重复
+        if (!cloudNote.getCloudNoteId().isEmpty()) {
+            RetryingCall.markIdempotent(builder);
+        }
+        Request request = builder.build();
+
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Upload failed", e);
+                callback.onError("网络错误: " + e.getMessage());
+            }
 
-        CloudNote cloudNote = new CloudNote(note, mDeviceId);
-        JSONObject json;
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                NoteWireFormat.learnServerCapabilities(response);
+                // 服务端不再接受 MessagePack（例如回滚到旧版本）：415 时服务端未处理请求，以 JSON 重发
+                if (binary && response.code() == 415) {
+                    response.close();
+                    NoteWireFormat.onUnsupportedMediaType();
+                    uploadNote(cloudNote, baseVersion, false, callback);
+                    return;
+                }
+                try {
+                    String responseBody = response.body().string();
+                    JSONObject jsonResponse = parseResponse(responseBody);
+
+                    if (jsonResponse.getBoolean("success")) {
+                        String cloudId = jsonResponse.getString("cloudId");
+                        callback.onSuccess(new UploadResult(cloudId, jsonResponse.optInt("version", 0)));
+                    } else if (STALE_VERSION.equals(jsonResponse.optString("code"))) {
+                        callback.onSuccess(UploadResult.stale());
+                    } else {
+                        String message = jsonResponse.optString("message", "上传失败");
+                        callback.onError(message);
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to parse response", e);
+                    callback.onError("解析响应失败");
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 只更新云端笔记的元数据（所在文件夹与修改时间），不传输正文
+     * <p>
+     * 用于正文未变、只移动了文件夹的笔记。云端不存在该笔记时回调错误，调用方应改为完整上传。
+     * 与上传一样带上基础修订号；云端已有更新的版本（{@link #STALE_VERSION}）时同样回调错误，
+     * 随后的完整上传会被拒绝并作为冲突处理。
+     * 成功时返回服务端分配的新修订号，服务端不分配修订号时为 0。
+     * </p>
+     */
+    public void patchNoteMetadata(WorkingNote note, CloudCallback<Integer> callback) {
+        Log.d(TAG, "Patching note metadata: " + note.getNoteId());
+
+        JSONObject json = new JSONObject();
         try {
-            json = cloudNote.toJson();
-            json.put("action", "upload");
-            json.put("userId", mUserId);
+            json.put("action", "patch");
+            json.put("cloudNoteId", note.getCloudNoteId());
+            json.put("parentId", String.valueOf(note.getFolderId()));
+            json.put("modifiedTime", note.getModifiedDate());
+            json.put("deviceId", mDeviceId);
+            if (note.getCloudVersion() > 0) {
+                json.put("baseVersion", note.getCloudVersion());
+            }
         } catch (JSONException e) {
             Log.e(TAG, "Failed to create JSON", e);
             callback.onError("数据格式错误");
@@ -88,17 +192,17 @@ public class CloudDatabaseHelper {
         }
 
         RequestBody body = RequestBody.create(json.toString(), JSON);
-        Request request = new Request.Builder()
-                .url(API_NOTES)
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "patch"))
+                .url(mNotesUrl)
                 .post(body)
                 .addHeader("Authorization", "Bearer " + mAuthToken)
                 .addHeader("Content-Type", "application/json")
                 .build();
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
-                Log.e(TAG, "Upload failed", e);
+                Log.e(TAG, "Patch failed", e);
                 callback.onError("网络错误: " + e.getMessage());
             }
 
@@ -106,13 +210,12 @@ public class CloudDatabaseHelper {
             public void onResponse(Call call, Response response) throws IOException {
                 try {
                     String responseBody = response.body().string();
-                    JSONObject jsonResponse = new JSONObject(responseBody);
+                    JSONObject jsonResponse = parseResponse(responseBody);
 
                     if (jsonResponse.getBoolean("success")) {
-                        String cloudId = jsonResponse.getString("cloudId");
-                        callback.onSuccess(cloudId);
+                        callback.onSuccess(jsonResponse.optInt("version", 0));
                     } else {
-                        String message = jsonResponse.optString("message", "上传失败");
+                        String message = jsonResponse.optString("message", "更新失败");
                         callback.onError(message);
                     }
                 } catch (JSONException e) {
@@ -126,15 +229,33 @@ public class CloudDatabaseHelper {
     }
 
     /**
-     * 从云端下载用户的所有笔记
+     * 推送一条笔记正文的文本操作（见 {@link net.micode.notes.sync.TextCrdt}），不传输正文
+     * <p>
+     * 服务端按到达顺序合并各设备的操作，返回本设备尚未合并的其他设备操作与合并后的笔记。
+     * 服务端的谱系与 lineage 不同且无法接续（BASE_MISMATCH），或服务端不支持文本操作（400/404）时，
+     * 回调一个未被接受的结果，调用方应改为完整上传。
+     * </p>
+     *
+     * @param lineage 操作所基于的基础文本摘要
+     * @param since 本设备已合并的服务端操作批次数
+     * @param ops 待确认的本地操作批次
      */
-    public void downloadNotes(long lastSyncTime, CloudCallback<JSONArray> callback) {
-        Log.d(TAG, "Downloading notes for user: " + mUserId);
+    public void pushTextOperations(WorkingNote note, String lineage, long since, JSONArray ops,
+            CloudCallback<TextMergeResult> callback) {
+        Log.d(TAG, "Pushing text operations: " + note.getNoteId());
 
         JSONObject json = new JSONObject();
         try {
-            json.put("action", "download");
-            json.put("lastSyncTime", lastSyncTime);
+            json.put("action", "text");
+            json.put("cloudNoteId", note.getCloudNoteId());
+            json.put("lineage", lineage);
+            json.put("since", since);
+            json.put("ops", ops);
+            json.put("title", note.getTitle());
+            json.put("parentId", String.valueOf(note.getFolderId()));
+            json.put("type", note.getType());
+            json.put("modifiedTime", note.getModifiedDate());
+            json.put("deviceId", mDeviceId);
         } catch (JSONException e) {
             Log.e(TAG, "Failed to create JSON", e);
             callback.onError("数据格式错误");
@@ -142,31 +263,40 @@ public class CloudDatabaseHelper {
         }
 
         RequestBody body = RequestBody.create(json.toString(), JSON);
-        Request request = new Request.Builder()
-                .url(API_NOTES)
+        // 重复应用同一批操作不改变结果，可以安全重试
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "text"))
+                .url(mNotesUrl)
                 .post(body)
                 .addHeader("Authorization", "Bearer " + mAuthToken)
                 .addHeader("Content-Type", "application/json")
                 .build();
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
-                Log.e(TAG, "Download failed", e);
+                Log.e(TAG, "Text push failed", e);
                 callback.onError("网络错误: " + e.getMessage());
             }
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
                 try {
+                    if (response.code() == 400 || response.code() == 404) {
+                        Log.w(TAG, "Server rejected text operations: HTTP " + response.code());
+                        callback.onSuccess(TextMergeResult.rejected());
+                        return;
+                    }
                     String responseBody = response.body().string();
-                    JSONObject jsonResponse = new JSONObject(responseBody);
+                    JSONObject jsonResponse = parseResponse(responseBody);
 
                     if (jsonResponse.getBoolean("success")) {
-                        JSONArray notesArray = jsonResponse.getJSONArray("notes");
-                        callback.onSuccess(notesArray);
+                        callback.onSuccess(new TextMergeResult(true, jsonResponse.optInt("version", 0),
+                                jsonResponse.getLong("since"), jsonResponse.getJSONArray("operations"),
+                                new CloudNote(jsonResponse.getJSONObject("note"))));
+                    } else if (TEXT_BASE_MISMATCH.equals(jsonResponse.optString("code"))) {
+                        callback.onSuccess(TextMergeResult.rejected());
                     } else {
-                        String message = jsonResponse.optString("message", "下载失败");
+                        String message = jsonResponse.optString("message", "合并失败");
                         callback.onError(message);
                     }
                 } catch (JSONException e) {
@@ -179,6 +309,148 @@ public class CloudDatabaseHelper {
         });
     }
 
+    /**
+     * 一次文本操作推送的结果
+     */
+    public static class TextMergeResult {
+        /** 服务端是否合并了这批操作；为 false 时其余字段无意义 */
+        public final boolean accepted;
+        /** 服务端为这次写入分配的修订号 */
+        public final int version;
+        /** 合并后服务端的操作批次数，下次推送时作为 since */
+        public final long since;
+        /** 本设备尚未合并的其他设备操作批次，按服务端接收顺序 */
+        public final JSONArray operations;
+        /** 合并后的云端笔记，不含正文（{@link CloudNote#isBodyOmitted()}），附同步字段哈希 */
+        public final CloudNote note;
+
+        TextMergeResult(boolean accepted, int version, long since, JSONArray operations, CloudNote note) {
+            this.accepted = accepted;
+            this.version = version;
+            this.since = since;
+            this.operations = operations;
+            this.note = note;
+        }
+
+        static TextMergeResult rejected() {
+            return new TextMergeResult(false, 0, 0, new JSONArray(), null);
+        }
+    }
+
+    /**
+     * 一次上传的结果
+     */
+    public static class UploadResult {
+        /** 服务端是否因基础修订号过旧拒绝了这次写入（{@link #STALE_VERSION}）；为 true 时其余字段无意义 */
+        public final boolean stale;
+        /** 云端笔记ID */
+        public final String cloudId;
+        /** 服务端为这次写入分配的修订号，服务端不分配修订号时为 0 */
+        public final int version;
+
+        UploadResult(String cloudId, int version) {
+            this(false, cloudId, version);
+        }
+
+        private UploadResult(boolean stale, String cloudId, int version) {
+            this.stale = stale;
+            this.cloudId = cloudId;
+            this.version = version;
+        }
+
+        static UploadResult stale() {
+            return new UploadResult(true, "", 0);
+        }
+    }
+
+    /**
+     * 一次下载的结果
+     */
+    public static class Changes {
+        /** 修改时间晚于 lastSyncTime 的笔记（已解码，无法解析的笔记已跳过） */
+        public final List<CloudNote> notes;
+        /** 删除时间晚于 tombstonesSince 的删除记录：cloudNoteId 与 deletedTime（云端时间） */
+        public final JSONArray tombstones;
+
+        Changes(List<CloudNote> notes, JSONArray tombstones) {
+            this.notes = notes;
+            this.tombstones = tombstones;
+        }
+    }
+
+    /**
+     * 从云端下载用户的笔记变更
+     *
+     * @param lastSyncTime 只下载修改时间晚于该时间的笔记，0 表示全部
+     * @param tombstonesSince 只返回删除时间（云端时钟）晚于该时间的删除记录
+     * @param metadataOnly 为 true 时服务端只返回元数据、预览与正文哈希，正文由 {@link #fetchNotes} 按需下载
+     */
+    public void downloadNotes(long lastSyncTime, long tombstonesSince, boolean metadataOnly,
+            CloudCallback<Changes> callback) {
+        Log.d(TAG, "Downloading notes for user: " + mUserId);
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "download");
+            json.put("lastSyncTime", lastSyncTime);
+            json.put("tombstonesSince", tombstonesSince);
+            if (metadataOnly) {
+                json.put("metadataOnly", true);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to create JSON", e);
+            callback.onError("数据格式错误");
+            return;
+        }
+
+        RequestBody body = RequestBody.create(json.toString(), JSON);
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "download"))
+                .url(mNotesUrl)
+                .post(body)
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .addHeader("Content-Type", "application/json")
+                .addHeader("Accept", NoteWireFormat.ACCEPT_DOWNLOAD)
+                .build();
+
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Download failed", e);
+                callback.onError("网络错误: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                NoteWireFormat.learnServerCapabilities(response);
+                try {
+                    NoteWireFormat.DownloadResponse result;
+                    if (NoteWireFormat.isBinary(response)) {
+                        byte[] responseBody = response.body().bytes();
+                        long start = System.currentTimeMillis();
+                        result = NoteWireFormat.decodeDownload(responseBody);
+                        TrafficMeter.recordParseTime(System.currentTimeMillis() - start);
+                    } else {
+                        String responseBody = response.body().string();
+                        long start = System.currentTimeMillis();
+                        result = NoteWireFormat.decodeDownload(responseBody);
+                        TrafficMeter.recordParseTime(System.currentTimeMillis() - start);
+                    }
+
+                    if (result.success) {
+                        callback.onSuccess(new Changes(result.notes, result.tombstones));
+                    } else {
+                        callback.onError(result.message != null ? result.message : "下载失败");
+                    }
+                } catch (JSONException | IOException e) {
+                    Log.e(TAG, "Failed to parse response", e);
+                    callback.onError("解析响应失败");
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
     /**
      * 删除云端笔记
      */
@@ -191,6 +463,7 @@ public class CloudDatabaseHelper {
             json.put("action", "delete");
             json.put("cloudNoteId", cloudNoteId);
             json.put("userId", mUserId);
+            json.put("deviceId", mDeviceId);
         } catch (JSONException e) {
             Log.e(TAG, "Failed to create JSON", e);
             callback.onError("数据格式错误");
@@ -198,14 +471,14 @@ public class CloudDatabaseHelper {
         }
 
         RequestBody body = RequestBody.create(json.toString(), JSON);
-        Request request = new Request.Builder()
-                .url(API_NOTES)
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "delete"))
+                .url(mNotesUrl)
                 .post(body)
                 .addHeader("Authorization", "Bearer " + mAuthToken)
                 .addHeader("Content-Type", "application/json")
                 .build();
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 Log.e(TAG, "Delete failed", e);
@@ -216,7 +489,7 @@ public class CloudDatabaseHelper {
             public void onResponse(Call call, Response response) throws IOException {
                 try {
                     String responseBody = response.body().string();
-                    JSONObject jsonResponse = new JSONObject(responseBody);
+                    JSONObject jsonResponse = parseResponse(responseBody);
 
                     if (jsonResponse.getBoolean("success")) {
                         callback.onSuccess(null);
@@ -234,6 +507,162 @@ public class CloudDatabaseHelper {
         });
     }
 
+    /**
+     * 批量删除云端笔记
+     * <p>
+     * 云端为每条删除的笔记保留删除记录，其他设备下载时据此删除本地副本。
+     * 删除不存在的笔记视为成功，可以安全重试。
+     * </p>
+     */
+    public void deleteNotes(List<String> cloudNoteIds, CloudCallback<Void> callback) {
+        Log.d(TAG, "Deleting " + cloudNoteIds.size() + " notes from cloud");
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "delete");
+            json.put("cloudNoteIds", new JSONArray(cloudNoteIds));
+            json.put("userId", mUserId);
+            json.put("deviceId", mDeviceId);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to create JSON", e);
+            callback.onError("数据格式错误");
+            return;
+        }
+
+        RequestBody body = RequestBody.create(json.toString(), JSON);
+        Request request = RetryingCall.markIdempotent(RetryingCall.markAction(new Request.Builder(), "delete"))
+                .url(mNotesUrl)
+                .post(body)
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .addHeader("Content-Type", "application/json")
+                .build();
+
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Batch delete failed", e);
+                callback.onError("网络错误: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                try {
+                    String responseBody = response.body().string();
+                    JSONObject jsonResponse = parseResponse(responseBody);
+
+                    if (jsonResponse.getBoolean("success")) {
+                        callback.onSuccess(null);
+                    } else {
+                        String message = jsonResponse.optString("message", "删除失败");
+                        callback.onError(message);
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to parse response", e);
+                    callback.onError("解析响应失败");
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 对账：查询云端哈希树中若干桶的摘要
+     * <p>
+     * 每个桶返回笔记数量与摘要，以及全部 {@link net.micode.notes.sync.NoteHashTree#FANOUT} 个子桶的
+     * 数量与摘要（"children"）；桶足够小时改为返回桶内每条笔记的云端ID与内容哈希（"notes"）。
+     * </p>
+     *
+     * @param prefixes 桶前缀，"" 表示根
+     */
+    public void reconcile(List<String> prefixes, CloudCallback<JSONArray> callback) {
+        Log.d(TAG, "Reconciling " + prefixes.size() + " buckets");
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "reconcile");
+            json.put("prefixes", new JSONArray(prefixes));
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to create JSON", e);
+            callback.onError("数据格式错误");
+            return;
+        }
+        postForArray(json, "buckets", "对账失败", callback);
+    }
+
+    /**
+     * 按云端ID下载指定的笔记
+     */
+    public void fetchNotes(List<String> cloudNoteIds, CloudCallback<JSONArray> callback) {
+        Log.d(TAG, "Fetching " + cloudNoteIds.size() + " notes by id");
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("action", "fetch");
+            json.put("cloudNoteIds", new JSONArray(cloudNoteIds));
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to create JSON", e);
+            callback.onError("数据格式错误");
+            return;
+        }
+        postForArray(json, "notes", "下载失败", callback);
+    }
+
+    /**
+     * 发送只读请求，成功时回调响应中的数组字段
+     */
+    private void postForArray(JSONObject json, String arrayKey, String defaultError,
+            CloudCallback<JSONArray> callback) {
+        RequestBody body = RequestBody.create(json.toString(), JSON);
+        Request request = RetryingCall.markIdempotent(
+                RetryingCall.markAction(new Request.Builder(), json.optString("action")))
+                .url(mNotesUrl)
+                .post(body)
+                .addHeader("Authorization", "Bearer " + mAuthToken)
+                .addHeader("Content-Type", "application/json")
+                .build();
+
+        RetryingCall.enqueue(mHttpClient, request, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, json.optString("action") + " failed", e);
+                callback.onError("网络错误: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                try {
+                    String responseBody = response.body().string();
+                    JSONObject jsonResponse = parseResponse(responseBody);
+
+                    if (jsonResponse.getBoolean("success")) {
+                        callback.onSuccess(jsonResponse.getJSONArray(arrayKey));
+                    } else {
+                        String message = jsonResponse.optString("message", defaultError);
+                        callback.onError(message);
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to parse response", e);
+                    callback.onError("解析响应失败");
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 解析响应 JSON，并把解析耗时计入 {@link TrafficMeter}
+     */
+    private static JSONObject parseResponse(String responseBody) throws JSONException {
+        long start = System.currentTimeMillis();
+        try {
+            return new JSONObject(responseBody);
+        } finally {
+            TrafficMeter.recordParseTime(System.currentTimeMillis() - start);
+        }
+    }
+
     /**
      * 将笔记转换为云端数据格式（已弃用，建议使用 CloudNote 模型）
      */
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.DeflaterSink;
+import okio.ForwardingSource;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * OkHttp 压缩拦截器
+ *
+ * <p>
+ * 负责请求体压缩与响应体解压，并把原始/线上字节数记录到 {@link TrafficMeter}：
+ * <ul>
+ * <li>请求体不小于 {@link #GZIP_THRESHOLD_BYTES} 时使用 gzip 压缩</li>
+ * <li>小报文使用预共享字典 {@link NotesDictionary} 做 raw deflate（编码名 {@link #ENCODING_DICT}）</li>
+ * <li>所有请求都声明 Accept-Encoding，由本拦截器自行解码响应</li>
+ * </ul>
+ * </p>
+ * <p>
+ * 请求压缩需要服务端支持，因此只在服务端通过响应头
+ * {@link #HEADER_ACCEPT_CONTENT_ENCODING} 声明过能力之后才启用，首个请求总是以明文发送。
+ * </p>
+ */
+public class CompressionInterceptor implements Interceptor {
+
+    private static final String TAG = "CompressionInterceptor";
+
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DICT = "x-notes-dict";
+
+    /**
+     * 请求/响应中携带的字典版本头
+     */
+    public static final String HEADER_DICT_ID = "X-Notes-Dict";
+
+    /**
+     * 服务端声明可接受的请求体编码
+     */
+    public static final String HEADER_ACCEPT_CONTENT_ENCODING = "X-Accept-Content-Encoding";
+
+    private static final long GZIP_THRESHOLD_BYTES = 1024;
+    private static final long DICT_MIN_BYTES = 64;
+
+    private static volatile boolean sServerAcceptsGzip;
+    private static volatile boolean sServerAcceptsDict;
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request original = chain.request();
+        Request.Builder builder = original.newBuilder()
+                .header("Accept-Encoding", ENCODING_DICT + ", " + ENCODING_GZIP)
+                .header(HEADER_DICT_ID, NotesDictionary.ID);
+
+        RequestBody body = original.body();
+        if (body != null && original.header("Content-Encoding") == null) {
+            Buffer raw = new Buffer();
+            body.writeTo(raw);
+            long rawBytes = raw.size();
+            long wireBytes = rawBytes;
+
+            String encoding = chooseEncoding(rawBytes);
+            if (encoding != null) {
+                Buffer compressed = compress(raw.clone(), encoding);
+                if (compressed.size() < rawBytes) {
+                    wireBytes = compressed.size();
+                    builder.header("Content-Encoding", encoding)
+                            .method(original.method(),
+                                    RequestBody.create(compressed.readByteString(), body.contentType()));
+                }
+            }
+            TrafficMeter.recordRequest(rawBytes, wireBytes);
+        } else {
+            TrafficMeter.recordRequest(0, 0);
+        }
+
+        Response response = chain.proceed(builder.build());
+        learnServerCapabilities(response);
+        return decode(response);
+    }
+
+    /**
+     * 根据报文大小和服务端能力选择请求编码，返回 null 表示不压缩
+     */
+    private String chooseEncoding(long rawBytes) {
+        if (rawBytes >= GZIP_THRESHOLD_BYTES) {
+            if (sServerAcceptsGzip) {
+                return ENCODING_GZIP;
+            }
+            return sServerAcceptsDict ? ENCODING_DICT : null;
+        }
+        if (rawBytes >= DICT_MIN_BYTES && sServerAcceptsDict) {
+            return ENCODING_DICT;
+        }
+        return null;
+    }
+
+    private Buffer compress(Buffer raw, String encoding) throws IOException {
+        Buffer out = new Buffer();
+        BufferedSink sink;
+        if (ENCODING_GZIP.equals(encoding)) {
+            sink = Okio.buffer(new GzipSink(out));
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setDictionary(NotesDictionary.bytes());
+            sink = Okio.buffer(new DeflaterSink(out, deflater));
+        }
+        sink.writeAll(raw);
+        sink.close();
+        return out;
+    }
+
+    private void learnServerCapabilities(Response response) {
+        String accepted = response.header(HEADER_ACCEPT_CONTENT_ENCODING);
+        if (accepted == null) {
+            return;
+        }
+        boolean gzip = accepted.contains(ENCODING_GZIP);
+        boolean dict = accepted.contains(ENCODING_DICT)
+                && NotesDictionary.ID.equals(response.header(HEADER_DICT_ID));
+        if (gzip != sServerAcceptsGzip || dict != sServerAcceptsDict) {
+            Log.d(TAG, "Server request encodings: gzip=" + gzip + ", dict=" + dict);
+        }
+        sServerAcceptsGzip = gzip;
+        sServerAcceptsDict = dict;
+    }
+
+    /**
+     * 按 Content-Encoding 解码响应体，同时统计线上与原始字节
+     */
+    private Response decode(Response response) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) {
+            return response;
+        }
+
+        String encoding = response.header("Content-Encoding");
+        Source wire = new CountingSource(body.source(), false);
+        Source decoded;
+        if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            decoded = new GzipSource(wire);
+        } else if (ENCODING_DICT.equalsIgnoreCase(encoding)) {
+            Inflater inflater = new Inflater(true);
+            inflater.setDictionary(NotesDictionary.bytes());
+            decoded = new InflaterSource(wire, inflater);
+        } else {
+            // 未压缩：线上字节即原始字节
+            BufferedSource plain = Okio.buffer(new CountingSource(wire, true));
+            return response.newBuilder()
+                    .body(ResponseBody.create(plain, body.contentType(), body.contentLength()))
+                    .build();
+        }
+
+        BufferedSource source = Okio.buffer(new CountingSource(decoded, true));
+        return response.newBuilder()
+                .removeHeader("Content-Encoding")
+                .removeHeader("Content-Length")
+                .body(ResponseBody.create(source, body.contentType(), -1L))
+                .build();
+    }
+
+    /**
+     * 统计读取字节数的 Source 包装
+     */
+    private static final class CountingSource extends ForwardingSource {
+        private final boolean mRaw;
+
+        CountingSource(Source delegate, boolean raw) {
+            super(delegate);
+            mRaw = raw;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                if (mRaw) {
+                    TrafficMeter.recordResponseRaw(read);
+                } else {
+                    TrafficMeter.recordResponseWire(read);
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * 应用级共享 HTTP 客户端工厂
+ * <p>
+ * 所有云端组件共用一个根 {@link OkHttpClient}，从而共享连接池、调度线程池和 TLS 会话缓存，
+ * 连续的同步请求可以复用已建立的连接，避免每次同步重新握手。
+ * </p>
+ * <p>
+ * 各组件需要的超时和拦截器通过 {@link OkHttpClient#newBuilder()} 派生，
+ * 派生出的客户端仍与根客户端共享连接池和调度器。
+ * 重试与熔断不放在拦截器中，由 {@link RetryingCall} 在调度线程之外处理。
+ * </p>
+ */
+public final class HttpClientProvider {
+
+    /**
+     * 空闲连接保留数量与时长：同步间隔通常在几分钟以内，保留足够覆盖一次编辑后的防抖同步
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * 调度器并发限制：后端只有一个主机，限制单主机并发避免突发请求压垮服务
+     */
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+
+    /**
+     * 实时通道的 ping 间隔：超过一个间隔未收到 pong 即判定连接断开
+     */
+    private static final long LIVE_PING_SECONDS = 30;
+
+    private static volatile OkHttpClient sBaseClient;
+
+    private HttpClientProvider() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 获取根客户端（懒加载，线程安全）
+     *
+     * @return 共享的 OkHttpClient
+     */
+    public static OkHttpClient getBaseClient() {
+        OkHttpClient client = sBaseClient;
+        if (client == null) {
+            synchronized (HttpClientProvider.class) {
+                client = sBaseClient;
+                if (client == null) {
+                    Dispatcher dispatcher = new Dispatcher();
+                    dispatcher.setMaxRequests(MAX_REQUESTS);
+                    dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+                    client = new OkHttpClient.Builder()
+                            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                                    KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                            .dispatcher(dispatcher)
+                            .connectTimeout(10, TimeUnit.SECONDS)
+                            .readTimeout(30, TimeUnit.SECONDS)
+                            .writeTimeout(30, TimeUnit.SECONDS)
+                            .build();
+                    sBaseClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * 云数据库同步使用的客户端：下载全部笔记时响应较大，读取超时放宽
+     */
+    public static OkHttpClient forCloudSync() {
+        return Holder.CLOUD_SYNC;
+    }
+
+    /**
+     * 认证接口使用的客户端：报文小，超时更短以便快速失败
+     */
+    public static OkHttpClient forAuth() {
+        return Holder.AUTH;
+    }
+
+    /**
+     * 实时同步通道使用的客户端：长连接不设读取超时，靠定期 ping 发现断开的连接
+     */
+    public static OkHttpClient forLiveSync() {
+        return Holder.LIVE_SYNC;
+    }
+
+    /**
+     * 派生客户端的延迟初始化持有者
+     */
+    private static final class Holder {
+        static final OkHttpClient CLOUD_SYNC = getBaseClient().newBuilder()
+                .readTimeout(60, TimeUnit.SECONDS)
+                .addInterceptor(new CompressionInterceptor())
+                .build();
+
+        static final OkHttpClient AUTH = getBaseClient().newBuilder()
+                .readTimeout(15, TimeUnit.SECONDS)
+                .writeTimeout(15, TimeUnit.SECONDS)
+                .addInterceptor(new CompressionInterceptor())
+                .build();
+
+        static final OkHttpClient LIVE_SYNC = getBaseClient().newBuilder()
+                .readTimeout(0, TimeUnit.SECONDS)
+                .pingInterval(LIVE_PING_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+}
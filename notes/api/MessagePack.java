@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * MessagePack 编解码
+ * <p>
+ * 只实现同步协议用到的子集：nil、布尔、整数、浮点、字符串、数组与映射（bin/ext 解码时跳过）。
+ * 字段都带长度前缀，字符串直接按 UTF-8 字节拷贝，不需要像 JSON 那样逐字符转义与扫描。
+ * </p>
+ * <p>
+ * 热路径（笔记列表）由 {@link NoteWireFormat} 直接读写字段；其余报文通过
+ * {@link #writeJson(Writer, Object)} / {@link Reader#readJson()} 与 org.json 对象互转。
+ * </p>
+ */
+public final class MessagePack {
+
+    private MessagePack() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 写入器，输出到可增长的字节数组
+     */
+    public static final class Writer {
+        private byte[] mBuffer;
+        private int mSize;
+
+        public Writer() {
+            this(256);
+        }
+
+        public Writer(int initialCapacity) {
+            mBuffer = new byte[Math.max(16, initialCapacity)];
+        }
+
+        public Writer writeNil() {
+            ensure(1);
+            mBuffer[mSize++] = (byte) 0xc0;
+            return this;
+        }
+
+        public Writer writeBoolean(boolean value) {
+            ensure(1);
+            mBuffer[mSize++] = (byte) (value ? 0xc3 : 0xc2);
+            return this;
+        }
+
+        public Writer writeLong(long value) {
+            if (value >= 0 && value < 128) {
+                ensure(1);
+                mBuffer[mSize++] = (byte) value;
+            } else if (value < 0 && value >= -32) {
+                ensure(1);
+                mBuffer[mSize++] = (byte) value;
+            } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                ensure(5);
+                mBuffer[mSize++] = (byte) 0xd2;
+                putInt((int) value);
+            } else {
+                ensure(9);
+                mBuffer[mSize++] = (byte) 0xd3;
+                putInt((int) (value >>> 32));
+                putInt((int) value);
+            }
+            return this;
+        }
+
+        public Writer writeDouble(double value) {
+            ensure(9);
+            mBuffer[mSize++] = (byte) 0xcb;
+            long bits = Double.doubleToLongBits(value);
+            putInt((int) (bits >>> 32));
+            putInt((int) bits);
+            return this;
+        }
+
+        public Writer writeString(String value) {
+            if (value == null) {
+                return writeNil();
+            }
+            // UTF-8 最多 3 字节/char（代理对 4 字节/2 char），先按上限预留再回填长度
+            int maxBytes = value.length() * 3;
+            ensure(5 + maxBytes);
+            int headerSize = maxBytes < 32 ? 1 : maxBytes < 256 ? 2 : maxBytes < 65536 ? 3 : 5;
+            int start = mSize + headerSize;
+            int length = encodeUtf8(value, mBuffer, start);
+            writeHeaderInPlace(length, headerSize);
+            mSize = start + length;
+            return this;
+        }
+
+        public Writer writeArrayHeader(int size) {
+            return writeContainerHeader(size, 0x90, 0xdc, 0xdd);
+        }
+
+        public Writer writeMapHeader(int size) {
+            return writeContainerHeader(size, 0x80, 0xde, 0xdf);
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+
+        private Writer writeContainerHeader(int size, int fix, int code16, int code32) {
+            ensure(5);
+            if (size < 16) {
+                mBuffer[mSize++] = (byte) (fix | size);
+            } else if (size < 65536) {
+                mBuffer[mSize++] = (byte) code16;
+                mBuffer[mSize++] = (byte) (size >>> 8);
+                mBuffer[mSize++] = (byte) size;
+            } else {
+                mBuffer[mSize++] = (byte) code32;
+                putInt(size);
+            }
+            return this;
+        }
+
+        /**
+         * 在预留的 headerSize 字节中写入字符串头（fixstr/str8/str16/str32）
+         */
+        private void writeHeaderInPlace(int length, int headerSize) {
+            int p = mSize;
+            switch (headerSize) {
+                case 1:
+                    mBuffer[p] = (byte) (0xa0 | length);
+                    break;
+                case 2:
+                    mBuffer[p] = (byte) 0xd9;
+                    mBuffer[p + 1] = (byte) length;
+                    break;
+                case 3:
+                    mBuffer[p] = (byte) 0xda;
+                    mBuffer[p + 1] = (byte) (length >>> 8);
+                    mBuffer[p + 2] = (byte) length;
+                    break;
+                default:
+                    mBuffer[p] = (byte) 0xdb;
+                    mBuffer[p + 1] = (byte) (length >>> 24);
+                    mBuffer[p + 2] = (byte) (length >>> 16);
+                    mBuffer[p + 3] = (byte) (length >>> 8);
+                    mBuffer[p + 4] = (byte) length;
+                    break;
+            }
+        }
+
+        private void putInt(int value) {
+            mBuffer[mSize++] = (byte) (value >>> 24);
+            mBuffer[mSize++] = (byte) (value >>> 16);
+            mBuffer[mSize++] = (byte) (value >>> 8);
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+            }
+        }
+
+        private static int encodeUtf8(String value, byte[] out, int offset) {
+            int p = offset;
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    out[p++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[p++] = (byte) (0xc0 | (c >> 6));
+                    out[p++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    out[p++] = (byte) (0xf0 | (cp >> 18));
+                    out[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[p++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // 孤立代理项按 String.getBytes 的方式替换为 '?'
+                    out[p++] = (byte) '?';
+                } else {
+                    out[p++] = (byte) (0xe0 | (c >> 12));
+                    out[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[p++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return p - offset;
+        }
+    }
+
+    /**
+     * 读取器，从字节数组顺序读取
+     */
+    public static final class Reader {
+        private final byte[] mData;
+        private int mPos;
+        private final int mEnd;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int length) {
+            mData = data;
+            mPos = offset;
+            mEnd = offset + length;
+        }
+
+        public boolean hasNext() {
+            return mPos < mEnd;
+        }
+
+        /**
+         * 下一个值是否为 nil；是则消费掉
+         */
+        public boolean tryReadNil() throws IOException {
+            if (peek() == 0xc0) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        public boolean readBoolean() throws IOException {
+            int b = next();
+            if (b == 0xc3) {
+                return true;
+            }
+            if (b == 0xc2) {
+                return false;
+            }
+            throw unexpected(b, "boolean");
+        }
+
+        public long readLong() throws IOException {
+            int b = next();
+            if (b <= 0x7f) {
+                return b;
+            }
+            if (b >= 0xe0) {
+                return (byte) b;
+            }
+            switch (b) {
+                case 0xcc: return next();
+                case 0xcd: return readUnsigned(2);
+                case 0xce: return readUnsigned(4);
+                case 0xcf: return readUnsigned(8);
+                case 0xd0: return (byte) next();
+                case 0xd1: return (short) readUnsigned(2);
+                case 0xd2: return (int) readUnsigned(4);
+                case 0xd3: return readUnsigned(8);
+                case 0xca: return (long) Float.intBitsToFloat((int) readUnsigned(4));
+                case 0xcb: return (long) Double.longBitsToDouble(readUnsigned(8));
+                default: throw unexpected(b, "integer");
+            }
+        }
+
+        public int readInt() throws IOException {
+            return (int) readLong();
+        }
+
+        public String readString() throws IOException {
+            int b = next();
+            int length;
+            if ((b & 0xe0) == 0xa0) {
+                length = b & 0x1f;
+            } else if (b == 0xd9) {
+                length = next();
+            } else if (b == 0xda) {
+                length = (int) readUnsigned(2);
+            } else if (b == 0xdb) {
+                length = (int) readUnsigned(4);
+            } else if (b == 0xc0) {
+                return null;
+            } else {
+                throw unexpected(b, "string");
+            }
+            require(length);
+            String value = new String(mData, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        public int readArrayHeader() throws IOException {
+            int b = next();
+            if ((b & 0xf0) == 0x90) {
+                return b & 0x0f;
+            }
+            if (b == 0xdc) {
+                return (int) readUnsigned(2);
+            }
+            if (b == 0xdd) {
+                return (int) readUnsigned(4);
+            }
+            throw unexpected(b, "array");
+        }
+
+        public int readMapHeader() throws IOException {
+            int b = next();
+            if ((b & 0xf0) == 0x80) {
+                return b & 0x0f;
+            }
+            if (b == 0xde) {
+                return (int) readUnsigned(2);
+            }
+            if (b == 0xdf) {
+                return (int) readUnsigned(4);
+            }
+            throw unexpected(b, "map");
+        }
+
+        /**
+         * 跳过下一个值（含嵌套的数组与映射）
+         */
+        public void skipValue() throws IOException {
+            int b = peek();
+            if ((b & 0xf0) == 0x90 || b == 0xdc || b == 0xdd) {
+                int size = readArrayHeader();
+                for (int i = 0; i < size; i++) {
+                    skipValue();
+                }
+            } else if ((b & 0xf0) == 0x80 || b == 0xde || b == 0xdf) {
+                int size = readMapHeader();
+                for (int i = 0; i < size * 2; i++) {
+                    skipValue();
+                }
+            } else if ((b & 0xe0) == 0xa0 || b == 0xd9 || b == 0xda || b == 0xdb) {
+                readString();
+            } else if (b == 0xc4 || b == 0xc5 || b == 0xc6) {
+                mPos++;
+                int length = (int) readUnsigned(b == 0xc4 ? 1 : b == 0xc5 ? 2 : 4);
+                skip(length);
+            } else if (b == 0xc0 || b == 0xc2 || b == 0xc3) {
+                mPos++;
+            } else if (b == 0xd4 || b == 0xd5 || b == 0xd6 || b == 0xd7 || b == 0xd8) {
+                // fixext：1 字节类型 + 1/2/4/8/16 字节数据
+                mPos++;
+                skip(1 + (1 << (b - 0xd4)));
+            } else if (b == 0xc7 || b == 0xc8 || b == 0xc9) {
+                mPos++;
+                int length = (int) readUnsigned(b == 0xc7 ? 1 : b == 0xc8 ? 2 : 4);
+                skip(1 + length);
+            } else {
+                readNumber();
+            }
+        }
+
+        /**
+         * 读取下一个值并转换为 org.json 对象（JSONObject、JSONArray、String、Long、Double、Boolean 或
+         * {@link JSONObject#NULL}）
+         */
+        public Object readJson() throws IOException {
+            int b = peek();
+            try {
+                if ((b & 0xf0) == 0x80 || b == 0xde || b == 0xdf) {
+                    int size = readMapHeader();
+                    JSONObject object = new JSONObject();
+                    for (int i = 0; i < size; i++) {
+                        String key = readString();
+                        object.put(key, readJson());
+                    }
+                    return object;
+                }
+                if ((b & 0xf0) == 0x90 || b == 0xdc || b == 0xdd) {
+                    int size = readArrayHeader();
+                    JSONArray array = new JSONArray();
+                    for (int i = 0; i < size; i++) {
+                        array.put(readJson());
+                    }
+                    return array;
+                }
+            } catch (JSONException e) {
+                throw new IOException("Invalid value: " + e.getMessage(), e);
+            }
+            if ((b & 0xe0) == 0xa0 || b == 0xd9 || b == 0xda || b == 0xdb) {
+                return readString();
+            }
+            if (b == 0xc0) {
+                mPos++;
+                return JSONObject.NULL;
+            }
+            if (b == 0xc2 || b == 0xc3) {
+                return readBoolean();
+            }
+            return readNumber();
+        }
+
+        private Object readNumber() throws IOException {
+            int b = peek();
+            if (b == 0xca) {
+                mPos++;
+                return (double) Float.intBitsToFloat((int) readUnsigned(4));
+            }
+            if (b == 0xcb) {
+                mPos++;
+                return Double.longBitsToDouble(readUnsigned(8));
+            }
+            return readLong();
+        }
+
+        private long readUnsigned(int bytes) throws IOException {
+            require(bytes);
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (mData[mPos++] & 0xff);
+            }
+            return value;
+        }
+
+        private int peek() throws IOException {
+            require(1);
+            return mData[mPos] & 0xff;
+        }
+
+        private int next() throws IOException {
+            require(1);
+            return mData[mPos++] & 0xff;
+        }
+
+        private void skip(int length) throws IOException {
+            require(length);
+            mPos += length;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || mPos + length > mEnd) {
+                throw new IOException("Truncated MessagePack data at " + mPos);
+            }
+        }
+
+        private IOException unexpected(int b, String expected) {
+            return new IOException("Expected " + expected + " but got 0x" + Integer.toHexString(b)
+                    + " at " + (mPos - 1));
+        }
+    }
+
+    /**
+     * 把 org.json 对象写为 MessagePack
+     */
+    public static void writeJson(Writer writer, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            writer.writeNil();
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.writeMapHeader(object.length());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.writeString(key);
+                writeJson(writer, object.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.writeArrayHeader(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeJson(writer, array.opt(i));
+            }
+        } else if (value instanceof Boolean) {
+            writer.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writer.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writer.writeDouble(((Number) value).doubleValue());
+        } else {
+            writer.writeString(value.toString());
+        }
+    }
+}
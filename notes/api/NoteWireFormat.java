@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.api;
+
+import android.util.Log;
+
+import net.micode.notes.model.CloudNote;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.Response;
+
+/**
+ * 笔记同步报文的线上格式
+ * <p>
+ * 默认使用 JSON；服务端通过响应头 {@link #HEADER_ACCEPT_CONTENT_TYPE} 声明支持
+ * {@link #MEDIA_TYPE_MSGPACK} 后改用 MessagePack：
+ * <ul>
+ * <li>下载请求总是在 Accept 中声明两种格式，由服务端选择响应格式</li>
+ * <li>上传请求只在服务端声明过能力之后才以 MessagePack 发送；
+ * 服务端以 415 拒绝时回退到 JSON（见 {@link #onUnsupportedMediaType()}）</li>
+ * </ul>
+ * 笔记列表直接在字节与 {@link CloudNote} 之间转换，不构造中间的 JSON 对象树。
+ * </p>
+ */
+public final class NoteWireFormat {
+
+    private static final String TAG = "NoteWireFormat";
+
+    public static final String MEDIA_TYPE_MSGPACK = "application/x-msgpack";
+    public static final String MEDIA_TYPE_JSON = "application/json";
+
+    public static final MediaType MSGPACK = MediaType.get(MEDIA_TYPE_MSGPACK);
+
+    /**
+     * 服务端声明可接受的请求体格式
+     */
+    public static final String HEADER_ACCEPT_CONTENT_TYPE = "X-Accept-Content-Type";
+
+    /**
+     * 下载请求的 Accept 头，MessagePack 优先
+     */
+    public static final String ACCEPT_DOWNLOAD = MEDIA_TYPE_MSGPACK + ", " + MEDIA_TYPE_JSON + ";q=0.5";
+
+    private static volatile boolean sServerAcceptsMsgpack;
+
+    private NoteWireFormat() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 一次下载的解码结果
+     */
+    public static class DownloadResponse {
+        public boolean success;
+        public String message;
+        public List<CloudNote> notes = new ArrayList<>();
+        public JSONArray tombstones = new JSONArray();
+    }
+
+    /**
+     * 是否以 MessagePack 发送上传请求
+     */
+    public static boolean useBinaryRequests() {
+        return sServerAcceptsMsgpack;
+    }
+
+    /**
+     * 从响应头学习服务端能力
+     */
+    public static void learnServerCapabilities(Response response) {
+        String accepted = response.header(HEADER_ACCEPT_CONTENT_TYPE);
+        boolean acceptsMsgpack = accepted != null && accepted.contains(MEDIA_TYPE_MSGPACK);
+        if (acceptsMsgpack != sServerAcceptsMsgpack) {
+            Log.i(TAG, "Server " + (acceptsMsgpack ? "accepts" : "does not accept") + " MessagePack");
+            sServerAcceptsMsgpack = acceptsMsgpack;
+        }
+    }
+
+    /**
+     * 服务端以 415 拒绝了 MessagePack 请求，此后回退到 JSON
+     */
+    public static void onUnsupportedMediaType() {
+        Log.w(TAG, "Server rejected MessagePack, falling back to JSON");
+        sServerAcceptsMsgpack = false;
+    }
+
+    /**
+     * 响应是否为 MessagePack
+     */
+    public static boolean isBinary(Response response) {
+        String contentType = response.header("Content-Type");
+        return contentType != null && contentType.startsWith(MEDIA_TYPE_MSGPACK);
+    }
+
+    /**
+     * 编码上传请求：笔记字段加上 action、userId，以及大于 0 时的 baseVersion
+     *
+     * @param baseVersion 本地上次同步的云端修订号，见 {@link CloudDatabaseHelper#STALE_VERSION}
+     */
+    public static byte[] encodeUpload(CloudNote note, String userId, int baseVersion) {
+        MessagePack.Writer writer = new MessagePack.Writer(estimateSize(note));
+        writer.writeMapHeader(noteFieldCount(note) + (baseVersion > 0 ? 3 : 2));
+        writer.writeString("action").writeString("upload");
+        writer.writeString("userId").writeString(userId);
+        if (baseVersion > 0) {
+            writer.writeString("baseVersion").writeLong(baseVersion);
+        }
+        writeNoteFields(writer, note, hasCloudId(note));
+        return writer.toByteArray();
+    }
+
+    /**
+     * 把笔记写为一个 MessagePack 映射，字段与 {@link CloudNote#toJson()} 一致
+     */
+    public static void writeNote(MessagePack.Writer writer, CloudNote note) {
+        writer.writeMapHeader(noteFieldCount(note));
+        writeNoteFields(writer, note, hasCloudId(note));
+    }
+
+    private static int noteFieldCount(CloudNote note) {
+        return (hasCloudId(note) ? 10 : 9) + (note.isBodyOmitted() ? 3 : 0);
+    }
+
+    private static boolean hasCloudId(CloudNote note) {
+        return note.getCloudNoteId() != null && !note.getCloudNoteId().isEmpty();
+    }
+
+    private static void writeNoteFields(MessagePack.Writer writer, CloudNote note, boolean hasCloudId) {
+        if (hasCloudId) {
+            writer.writeString("cloudNoteId").writeString(note.getCloudNoteId());
+        }
+        writer.writeString("noteId").writeString(note.getNoteId());
+        writer.writeString("title").writeString(note.getTitle());
+        writer.writeString("content").writeString(note.getContent());
+        writer.writeString("parentId").writeString(note.getParentId());
+        writer.writeString("type").writeLong(note.getType());
+        writer.writeString("createdTime").writeLong(note.getCreatedTime());
+        writer.writeString("modifiedTime").writeLong(note.getModifiedTime());
+        writer.writeString("version").writeLong(note.getVersion());
+        writer.writeString("deviceId").writeString(note.getDeviceId());
+        if (note.isBodyOmitted()) {
+            writer.writeString("bodyOmitted").writeBoolean(true);
+            writer.writeString("preview").writeString(note.getPreview());
+            writer.writeString("hash").writeString(note.getContentHash());
+        }
+    }
+
+    /**
+     * 读取一条笔记映射；缺失字段的默认值与 {@link CloudNote#CloudNote(JSONObject)} 一致
+     */
+    public static CloudNote readNote(MessagePack.Reader reader) throws IOException {
+        String cloudNoteId = "";
+        String noteId = "";
+        String title = "";
+        String content = "";
+        String parentId = "0";
+        int type = 0;
+        long now = System.currentTimeMillis();
+        long createdTime = now;
+        long modifiedTime = now;
+        int version = 1;
+        String deviceId = "";
+        boolean bodyOmitted = false;
+        String preview = "";
+        String hash = "";
+
+        int fields = reader.readMapHeader();
+        for (int i = 0; i < fields; i++) {
+            String key = reader.readString();
+            if (key == null) {
+                reader.skipValue();
+                continue;
+            }
+            if (reader.tryReadNil()) {
+                continue;
+            }
+            switch (key) {
+                case "cloudNoteId": cloudNoteId = reader.readString(); break;
+                case "noteId": noteId = readStringOrNumber(reader); break;
+                case "title": title = reader.readString(); break;
+                case "content": content = reader.readString(); break;
+                case "parentId": parentId = readStringOrNumber(reader); break;
+                case "type": type = reader.readInt(); break;
+                case "createdTime": createdTime = reader.readLong(); break;
+                case "modifiedTime": modifiedTime = reader.readLong(); break;
+                case "version": version = reader.readInt(); break;
+                case "deviceId": deviceId = reader.readString(); break;
+                case "bodyOmitted": bodyOmitted = reader.readBoolean(); break;
+                case "preview": preview = reader.readString(); break;
+                case "hash": hash = reader.readString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        CloudNote note = new CloudNote(cloudNoteId, noteId, title, content, parentId, type,
+                createdTime, modifiedTime, version, deviceId);
+        if (bodyOmitted) {
+            note.setBodyOmitted(preview, hash);
+        }
+        return note;
+    }
+
+    /**
+     * ID 字段在 JSON 中可能是字符串也可能是数字
+     */
+    private static String readStringOrNumber(MessagePack.Reader reader) throws IOException {
+        Object value = reader.readJson();
+        return String.valueOf(value);
+    }
+
+    /**
+     * 解码 MessagePack 格式的下载响应
+     */
+    public static DownloadResponse decodeDownload(byte[] body) throws IOException {
+        DownloadResponse result = new DownloadResponse();
+        MessagePack.Reader reader = new MessagePack.Reader(body);
+        int fields = reader.readMapHeader();
+        for (int i = 0; i < fields; i++) {
+            String key = reader.readString();
+            if ("success".equals(key)) {
+                result.success = reader.readBoolean();
+            } else if ("message".equals(key)) {
+                result.message = String.valueOf(reader.readJson());
+            } else if ("notes".equals(key)) {
+                int count = reader.readArrayHeader();
+                result.notes = new ArrayList<>(count);
+                for (int n = 0; n < count; n++) {
+                    result.notes.add(readNote(reader));
+                }
+            } else if ("tombstones".equals(key)) {
+                Object tombstones = reader.readJson();
+                if (tombstones instanceof JSONArray) {
+                    result.tombstones = (JSONArray) tombstones;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 解码 JSON 格式的下载响应；无法解析的单条笔记被跳过
+     */
+    public static DownloadResponse decodeDownload(String body) throws JSONException {
+        DownloadResponse result = new DownloadResponse();
+        JSONObject json = new JSONObject(body);
+        result.success = json.optBoolean("success", false);
+        result.message = json.optString("message", null);
+        JSONArray notes = json.optJSONArray("notes");
+        if (notes != null) {
+            result.notes = new ArrayList<>(notes.length());
+            for (int i = 0; i < notes.length(); i++) {
+                try {
+                    result.notes.add(new CloudNote(notes.getJSONObject(i)));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Skipping malformed cloud note at index " + i, e);
+                }
+            }
+        }
+        // 不支持删除记录的旧版服务端不返回该字段
+        JSONArray tombstones = json.optJSONArray("tombstones");
+        if (tombstones != null) {
+            result.tombstones = tombstones;
+        }
+        return result;
+    }
+
+    /**
+     * 把任意 JSON 响应编码为 MessagePack（供服务端使用）
+     */
+    public static byte[] encodeJson(JSONObject json) {
+        MessagePack.Writer writer = new MessagePack.Writer(1024);
+        MessagePack.writeJson(writer, json);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 把 MessagePack 请求或响应解码为 JSON 对象（供服务端与非热路径使用）
+     */
+    public static JSONObject decodeJson(byte[] body) throws IOException {
+        Object value = new MessagePack.Reader(body).readJson();
+        if (!(value instanceof JSONObject)) {
+            throw new IOException("MessagePack body is not a map");
+        }
+        return (JSONObject) value;
+    }
+
+    private static int estimateSize(CloudNote note) {
+        int text = (note.getTitle() != null ? note.getTitle().length() : 0)
+                + (note.getContent() != null ? note.getContent().length() : 0);
+        // 中文每字 3 字节；多数笔记混合中英文，按 2 倍估计，不足时 Writer 自动扩容
+        return 160 + text * 2;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 笔记JSON预共享压缩字典
+ * <p>
+ * 由典型的上传/下载/认证报文提取出的高频片段组成，用作 raw deflate 的预设字典。
+ * 小报文（单条笔记上传、认证请求）自身重复度低，gzip 几乎无收益，
+ * 借助字典可以让字段名、固定取值和常见富文本标签直接以回溯引用编码。
+ * </p>
+ * <p>
+ * deflate 对距离越近的字典内容编码越短，因此出现频率最高的片段放在末尾。
+ * 字典内容一旦变更必须同时修改 {@link #ID}，服务端按 ID 选择对应字典解码。
+ * </p>
+ */
+public final class NotesDictionary {
+
+    /**
+     * 字典版本标识，通过请求头协商
+     */
+    public static final String ID = "notes-v1";
+
+    private static final String CONTENT =
+            "<div><br></div><p></p><b></b><i></i><u></u><ul><li></li></ul><ol></ol>"
+            + "<img src=\"file:///data/user/0/net.micode.notes/files/images/\"/>"
+            + "&nbsp;&amp;&lt;&gt;&quot;"
+            + "{\"success\":false,\"message\":\"\"}"
+            + "{\"action\":\"refresh\",\"refreshToken\":\"\",\"deviceId\":\"device_\"}"
+            + "{\"action\":\"login\",\"username\":\"\",\"password\":\"\",\"appKey\":\"\"}"
+            + "{\"success\":true,\"userId\":\"\",\"token\":\"\",\"refreshToken\":\"\"}"
+            + "{\"action\":\"delete\",\"cloudNoteId\":\"\",\"userId\":\"\"}"
+            + "{\"action\":\"download\",\"lastSyncTime\":0}"
+            + "{\"success\":true,\"cloudId\":\"\"}"
+            + "{\"success\":true,\"notes\":[{\"cloudNoteId\":\"\",\"noteId\":\"\",\"title\":\"\","
+            + "\"content\":\"\",\"parentId\":\"0\",\"type\":0,\"createdTime\":17,\"modifiedTime\":17,"
+            + "\"version\":1,\"deviceId\":\"device_\"}]}"
+            + "{\"cloudNoteId\":\"\",\"noteId\":\"\",\"title\":\"\",\"content\":\"\",\"parentId\":\"0\","
+            + "\"type\":0,\"createdTime\":17,\"modifiedTime\":17,\"version\":1,\"deviceId\":\"device_\","
+            + "\"action\":\"upload\",\"userId\":\"\"}";
+
+    private static final byte[] BYTES = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+    private NotesDictionary() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 获取字典字节（返回副本，避免被调用方修改）
+     */
+    public static byte[] bytes() {
+        return BYTES.clone();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * 云端请求重试策略
+ * <p>
+ * 纯 Java 决策逻辑，随机数可注入，便于在模拟服务器上复现：
+ * <ul>
+ * <li>退避使用 full jitter：第 n 次重试的等待时间在 [0, min(上限, 基数 × 2^n)] 内均匀分布，
+ * 后端故障时各设备的重试不会同步涌入</li>
+ * <li>429 / 503 响应带 Retry-After 时按服务器要求等待；要求的时间超过上限时不再重试</li>
+ * <li>一次请求的全部重试不超过 {@link #MAX_TOTAL_RETRY_MS}</li>
+ * <li>只有 408、429 和 5xx 中的临时错误可重试，其余客户端错误直接返回</li>
+ * </ul>
+ * 是否允许重试还取决于请求是否幂等，由 {@link RetryingCall} 判断。
+ * </p>
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 8 * 1000L;
+
+    /**
+     * 愿意遵守的 Retry-After 上限，超过时交给上层的同步调度退避
+     */
+    public static final long MAX_RETRY_AFTER_MS = 20 * 1000L;
+
+    /**
+     * 一次请求从首次发出到最后一次重试的时间上限，小于同步等待单个请求的 60 秒，
+     * 保证重试的结果送达时调用方仍在等待
+     */
+    public static final long MAX_TOTAL_RETRY_MS = 40 * 1000L;
+
+    /**
+     * 表示不重试
+     */
+    public static final long NO_RETRY = -1;
+
+    private final int mMaxRetries;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    public RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs, Random random) {
+        mMaxRetries = maxRetries;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * 状态码是否表示临时错误
+     */
+    public static boolean isRetryableStatus(int code) {
+        return code == 408 || code == 429 || code == 500 || code == 502 || code == 503
+                || code == 504;
+    }
+
+    /**
+     * 计算网络异常后的重试等待时间
+     *
+     * @param retryIndex 即将进行的是第几次重试（从 0 开始）
+     * @return 等待时间（毫秒），{@link #NO_RETRY} 表示不再重试
+     */
+    public long delayAfterFailure(int retryIndex) {
+        if (retryIndex >= mMaxRetries) {
+            return NO_RETRY;
+        }
+        return jitter(retryIndex);
+    }
+
+    /**
+     * 计算错误响应后的重试等待时间
+     *
+     * @param retryIndex 即将进行的是第几次重试（从 0 开始）
+     * @param code HTTP 状态码
+     * @param retryAfterMs 解析出的 Retry-After（毫秒），没有时为 -1
+     * @return 等待时间（毫秒），{@link #NO_RETRY} 表示不再重试
+     */
+    public long delayAfterResponse(int retryIndex, int code, long retryAfterMs) {
+        if (retryIndex >= mMaxRetries || !isRetryableStatus(code)) {
+            return NO_RETRY;
+        }
+        if (retryAfterMs >= 0 && (code == 429 || code == 503)) {
+            return retryAfterMs <= MAX_RETRY_AFTER_MS ? retryAfterMs : NO_RETRY;
+        }
+        return jitter(retryIndex);
+    }
+
+    private long jitter(int retryIndex) {
+        int shift = Math.min(retryIndex, 20);
+        long cap = Math.min(mMaxDelayMs, mBaseDelayMs << shift);
+        return (long) (mRandom.nextDouble() * (cap + 1));
+    }
+
+    /**
+     * 解析 Retry-After 头，支持秒数与 HTTP 日期两种格式
+     *
+     * @param value 头的值，可为 null
+     * @param nowMs 当前时间
+     * @return 等待时间（毫秒），无法解析时为 -1
+     */
+    public static long parseRetryAfter(String value, long nowMs) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        if (value.isEmpty()) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? seconds * 1000L : -1;
+        } catch (NumberFormatException ignored) {
+            // 尝试按 HTTP 日期解析
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - nowMs);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 带重试与熔断的异步请求
+ * <p>
+ * 代替原来在 OkHttp 调度线程里 {@code Thread.sleep} 的重试拦截器：
+ * 失败后由一个共享的定时线程在退避时间到达后重新 enqueue，等待期间不占用调度线程。
+ * <ul>
+ * <li>只有通过 {@link #markIdempotent(Request.Builder)} 标记的请求才会重试；
+ * 非幂等请求（如新建笔记、登录）失败后直接回调，避免在服务器已处理时重复提交</li>
+ * <li>退避与 Retry-After 的处理见 {@link RetryPolicy}</li>
+ * <li>每个接口一个 {@link CircuitBreaker}，后端故障期间直接失败，不再发出请求；
+ * 同一路径承载多种操作时（笔记接口都 POST 到 /notes），由 {@link #markAction} 标记的操作名区分</li>
+ * <li>所有重试（含 Retry-After 等待）都在 {@link RetryPolicy#MAX_TOTAL_RETRY_MS} 内完成，
+ * 最终结果先于调用方的等待超时送达</li>
+ * <li>带 Bearer 令牌的请求收到 401 时，通过 {@link #setTokenRefresher} 注册的刷新器换取新令牌后
+ * 重发一次；服务器拒绝认证时尚未处理请求，因此不要求幂等</li>
+ * </ul>
+ * </p>
+ */
+public class RetryingCall {
+
+    private static final String TAG = "RetryingCall";
+
+    /**
+     * 幂等请求的标记，作为 OkHttp 请求的 tag 保存
+     */
+    public static final class Idempotent {
+        static final Idempotent MARK = new Idempotent();
+
+        private Idempotent() {
+        }
+    }
+
+    /**
+     * 请求所属操作的标记，作为 OkHttp 请求的 tag 保存
+     */
+    public static final class Action {
+        final String name;
+
+        private Action(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * 熔断器打开时回调的异常
+     */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String endpoint, long remainingMs) {
+            super("服务暂时不可用，" + (remainingMs / 1000 + 1) + "秒后重试: " + endpoint);
+        }
+    }
+
+    /**
+     * 收到 401 且无法刷新令牌时回调的异常
+     */
+    public static class UnauthorizedException extends IOException {
+        public UnauthorizedException(String message) {
+            super("登录已过期，请重新登录: " + message);
+        }
+    }
+
+    /**
+     * 令牌刷新器：请求因令牌失效被拒绝时调用，由认证模块实现
+     */
+    public interface TokenRefresher {
+        /**
+         * @param rejectedToken 被服务器拒绝的令牌
+         * @param callback 刷新结果回调
+         */
+        void refreshAfterUnauthorized(String rejectedToken, RefreshCallback callback);
+    }
+
+    /**
+     * 令牌刷新结果回调
+     */
+    public interface RefreshCallback {
+        void onRefreshed(String newToken);
+        void onFailed(String error);
+    }
+
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private static volatile TokenRefresher sTokenRefresher;
+
+    private static final ScheduledExecutorService sScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cloud-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final OkHttpClient mClient;
+    private Request mRequest;
+    private final Callback mCallback;
+    private final RetryPolicy mPolicy;
+    private final CircuitBreaker mBreaker;
+    private final String mEndpoint;
+    private final boolean mIdempotent;
+    private final long mStartedAt;
+    private int mRetryIndex;
+    private boolean mAuthRetried;
+
+    private RetryingCall(OkHttpClient client, Request request, Callback callback, RetryPolicy policy) {
+        mClient = client;
+        mRequest = request;
+        mCallback = callback;
+        mPolicy = policy;
+        mEndpoint = endpointOf(request);
+        mBreaker = CircuitBreaker.forEndpoint(mEndpoint);
+        mIdempotent = request.tag(Idempotent.class) != null;
+        mStartedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 熔断器的键：标记了操作时为主机加操作名，路径中带资源ID（如附件哈希）的请求也共用一个熔断器；
+     * 未标记时为主机加路径
+     */
+    static String endpointOf(Request request) {
+        Action action = request.tag(Action.class);
+        if (action != null) {
+            return request.url().host() + "#" + action.name;
+        }
+        return request.url().host() + request.url().encodedPath();
+    }
+
+    /**
+     * 注册令牌刷新器
+     *
+     * @param refresher 刷新器，为 null 时 401 直接回调给调用方
+     */
+    public static void setTokenRefresher(TokenRefresher refresher) {
+        sTokenRefresher = refresher;
+    }
+
+    /**
+     * 把请求标记为幂等，允许失败后重试
+     *
+     * @param builder 请求构建器
+     * @return 同一个构建器
+     */
+    public static Request.Builder markIdempotent(Request.Builder builder) {
+        return builder.tag(Idempotent.class, Idempotent.MARK);
+    }
+
+    /**
+     * 标记请求所属的操作，熔断器按操作而不是路径区分；同一主机上的操作名应唯一
+     *
+     * @param builder 请求构建器
+     * @param action 操作名
+     * @return 同一个构建器
+     */
+    public static Request.Builder markAction(Request.Builder builder, String action) {
+        return builder.tag(Action.class, new Action(action));
+    }
+
+    /**
+     * 异步执行请求，使用默认重试策略
+     */
+    public static void enqueue(OkHttpClient client, Request request, Callback callback) {
+        enqueue(client, request, callback, new RetryPolicy());
+    }
+
+    /**
+     * 异步执行请求
+     *
+     * @param client OkHttp 客户端
+     * @param request 请求
+     * @param callback 最终结果回调，只会被调用一次
+     * @param policy 重试策略
+     */
+    public static void enqueue(OkHttpClient client, Request request, Callback callback,
+            RetryPolicy policy) {
+        new RetryingCall(client, request, callback, policy).attempt();
+    }
+
+    private void attempt() {
+        Call call = mClient.newCall(mRequest);
+        if (!mBreaker.allowRequest()) {
+            Log.w(TAG, "Circuit open, failing fast: " + mEndpoint);
+            mCallback.onFailure(call, new CircuitOpenException(mEndpoint,
+                    mBreaker.getRemainingOpenMs()));
+            return;
+        }
+
+        final long sentAt = System.currentTimeMillis();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                TrafficMeter.recordNetworkTime(System.currentTimeMillis() - sentAt);
+                if (call.isCanceled()) {
+                    mBreaker.onCancelled();
+                    mCallback.onFailure(call, e);
+                    return;
+                }
+
+                mBreaker.onFailure(-1);
+                long delay = mIdempotent ? mPolicy.delayAfterFailure(mRetryIndex) : RetryPolicy.NO_RETRY;
+                if (delay == RetryPolicy.NO_RETRY || exceedsBudget(delay)) {
+                    mCallback.onFailure(call, e);
+                    return;
+                }
+                scheduleRetry(delay, e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                TrafficMeter.recordNetworkTime(System.currentTimeMillis() - sentAt);
+                int code = response.code();
+                if (code == 401 && canRefreshToken()) {
+                    // 401 说明服务器可达：先记为成功，释放半开状态下的探测名额，刷新令牌后的重发才会被放行
+                    mBreaker.onSuccess();
+                    response.close();
+                    refreshTokenAndRetry(call);
+                    return;
+                }
+                if (!RetryPolicy.isRetryableStatus(code)) {
+                    mBreaker.onSuccess();
+                    mCallback.onResponse(call, response);
+                    return;
+                }
+
+                long retryAfter = RetryPolicy.parseRetryAfter(response.header("Retry-After"),
+                        System.currentTimeMillis());
+                mBreaker.onFailure(retryAfter);
+                long delay = mIdempotent
+                        ? mPolicy.delayAfterResponse(mRetryIndex, code, retryAfter)
+                        : RetryPolicy.NO_RETRY;
+                if (delay == RetryPolicy.NO_RETRY || exceedsBudget(delay)) {
+                    mCallback.onResponse(call, response);
+                    return;
+                }
+                response.close();
+                scheduleRetry(delay, "HTTP " + code);
+            }
+        });
+    }
+
+    /**
+     * 等待 delayMs 后重试是否会超出总的重试时间
+     */
+    private boolean exceedsBudget(long delayMs) {
+        long elapsed = System.currentTimeMillis() - mStartedAt;
+        if (elapsed + delayMs <= RetryPolicy.MAX_TOTAL_RETRY_MS) {
+            return false;
+        }
+        Log.w(TAG, mEndpoint + " retry in " + delayMs + "ms would exceed retry budget, giving up");
+        return true;
+    }
+
+    /**
+     * 401 只在请求带令牌、已注册刷新器且本次请求尚未因认证重发过时处理，避免刷新后仍被拒绝时循环
+     */
+    private boolean canRefreshToken() {
+        return !mAuthRetried && sTokenRefresher != null && bearerToken(mRequest) != null;
+    }
+
+    private void refreshTokenAndRetry(Call call) {
+        mAuthRetried = true;
+        String rejectedToken = bearerToken(mRequest);
+        Log.w(TAG, mEndpoint + " unauthorized, refreshing token");
+        sTokenRefresher.refreshAfterUnauthorized(rejectedToken, new RefreshCallback() {
+            @Override
+            public void onRefreshed(String newToken) {
+                mRequest = mRequest.newBuilder()
+                        .header(HEADER_AUTHORIZATION, BEARER_PREFIX + newToken)
+                        .build();
+                attempt();
+            }
+
+            @Override
+            public void onFailed(String error) {
+                mCallback.onFailure(call, new UnauthorizedException(error));
+            }
+        });
+    }
+
+    private static String bearerToken(Request request) {
+        String header = request.header(HEADER_AUTHORIZATION);
+        if (header == null || !header.startsWith(BEARER_PREFIX)) {
+            return null;
+        }
+        return header.substring(BEARER_PREFIX.length());
+    }
+
+    private void scheduleRetry(long delayMs, String reason) {
+        mRetryIndex++;
+        TrafficMeter.recordRetry();
+        Log.w(TAG, mEndpoint + " failed (" + reason + "), retry " + mRetryIndex
+                + " in " + delayMs + "ms");
+        sScheduler.schedule(this::attempt, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
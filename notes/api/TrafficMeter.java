@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 云端流量计量器
+ * <p>
+ * 进程级累计计数器，记录请求/响应的原始字节数与实际线上（压缩后）字节数。
+ * 同步流程在开始和结束时各取一次快照，两者之差即为本次同步的流量。
+ * 同时累计重试次数、等待响应的网络耗时与解析响应 JSON 的耗时，用于区分慢同步的原因。
+ * </p>
+ */
+public final class TrafficMeter {
+
+    private static final AtomicLong sRequestRawBytes = new AtomicLong();
+    private static final AtomicLong sRequestWireBytes = new AtomicLong();
+    private static final AtomicLong sResponseRawBytes = new AtomicLong();
+    private static final AtomicLong sResponseWireBytes = new AtomicLong();
+    private static final AtomicLong sRequestCount = new AtomicLong();
+    private static final AtomicLong sRetryCount = new AtomicLong();
+    private static final AtomicLong sNetworkTimeMs = new AtomicLong();
+    private static final AtomicLong sParseTimeMs = new AtomicLong();
+
+    private TrafficMeter() {
+        // Utility class, prevent instantiation
+    }
+
+    static void recordRequest(long rawBytes, long wireBytes) {
+        sRequestCount.incrementAndGet();
+        sRequestRawBytes.addAndGet(rawBytes);
+        sRequestWireBytes.addAndGet(wireBytes);
+    }
+
+    static void recordResponseRaw(long bytes) {
+        sResponseRawBytes.addAndGet(bytes);
+    }
+
+    static void recordResponseWire(long bytes) {
+        sResponseWireBytes.addAndGet(bytes);
+    }
+
+    static void recordRetry() {
+        sRetryCount.incrementAndGet();
+    }
+
+    /**
+     * 记录一次请求从发出到收到响应的耗时
+     */
+    static void recordNetworkTime(long millis) {
+        sNetworkTimeMs.addAndGet(millis);
+    }
+
+    /**
+     * 记录一次解析响应 JSON 的耗时
+     */
+    static void recordParseTime(long millis) {
+        sParseTimeMs.addAndGet(millis);
+    }
+
+    /**
+     * 获取当前累计值快照
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot(sRequestCount.get(), sRequestRawBytes.get(), sRequestWireBytes.get(),
+                sResponseRawBytes.get(), sResponseWireBytes.get(), sRetryCount.get(),
+                sNetworkTimeMs.get(), sParseTimeMs.get());
+    }
+
+    /**
+     * 流量快照
+     */
+    public static final class Snapshot {
+        public final long requestCount;
+        public final long requestRawBytes;
+        public final long requestWireBytes;
+        public final long responseRawBytes;
+        public final long responseWireBytes;
+        public final long retryCount;
+        public final long networkTimeMs;
+        public final long parseTimeMs;
+
+        Snapshot(long requestCount, long requestRawBytes, long requestWireBytes,
+                long responseRawBytes, long responseWireBytes, long retryCount,
+                long networkTimeMs, long parseTimeMs) {
+            this.requestCount = requestCount;
+            this.requestRawBytes = requestRawBytes;
+            this.requestWireBytes = requestWireBytes;
+            this.responseRawBytes = responseRawBytes;
+            this.responseWireBytes = responseWireBytes;
+            this.retryCount = retryCount;
+            this.networkTimeMs = networkTimeMs;
+            this.parseTimeMs = parseTimeMs;
+        }
+
+        /**
+         * 计算从 since 到当前快照之间的增量
+         */
+        public Snapshot minus(Snapshot since) {
+            return new Snapshot(requestCount - since.requestCount,
+                    requestRawBytes - since.requestRawBytes,
+                    requestWireBytes - since.requestWireBytes,
+                    responseRawBytes - since.responseRawBytes,
+                    responseWireBytes - since.responseWireBytes,
+                    retryCount - since.retryCount,
+                    networkTimeMs - since.networkTimeMs,
+                    parseTimeMs - since.parseTimeMs);
+        }
+
+        /**
+         * 压缩率（线上字节 / 原始字节），无流量时返回 1
+         */
+        public double compressionRatio() {
+            long raw = requestRawBytes + responseRawBytes;
+            long wire = requestWireBytes + responseWireBytes;
+            return raw == 0 ? 1.0 : (double) wire / raw;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requestCount
+                    + ", up=" + requestWireBytes + "B (raw " + requestRawBytes + "B)"
+                    + ", down=" + responseWireBytes + "B (raw " + responseRawBytes + "B)"
+                    + ", ratio=" + String.format(java.util.Locale.US, "%.2f", compressionRatio())
+                    + ", retries=" + retryCount
+                    + ", network=" + networkTimeMs + "ms, parse=" + parseTimeMs + "ms";
+        }
+    }
+}
@@ -23,6 +23,8 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import net.micode.notes.api.AliyunConfig;
+import net.micode.notes.api.HttpClientProvider;
+import net.micode.notes.api.RetryingCall;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -30,8 +32,13 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -47,6 +54,11 @@ import okhttp3.Response;
  * 使用阿里云EMAS Serverless的HTTP API进行用户认证。
  * 需要先登录阿里云控制台创建EMAS应用并开通Serverless服务。
  * </p>
+ * <p>
+ * 令牌刷新是单飞的：同时发起的多个刷新（同步、批量上传、请求收到 401）共享同一个进行中的请求。
+ * 登录期间在令牌过期前 {@link #RENEW_BEFORE_EXPIRY_MS} 后台主动续期，
+ * 并向 {@link RetryingCall} 注册刷新器，使云端请求收到 401 时换取新令牌后自动重发一次。
+ * </p>
  */
 public class UserAuthManager {
 
@@ -63,37 +75,50 @@ public class UserAuthManager {
     // Token过期时间：7天
     private static final long TOKEN_EXPIRE_DURATION = 7 * 24 * 60 * 60 * 1000;
 
-    // EMAS Serverless API地址
-    private static final String BASE_URL = AliyunConfig.BASE_URL;
-    private static final String API_AUTH = BASE_URL + "/auth";
-    private static final String API_REFRESH_TOKEN = BASE_URL + "/auth/refresh";
+    // 提前续期：过期前24小时（与 isTokenExpiringSoon 一致）
+    private static final long RENEW_BEFORE_EXPIRY_MS = 24 * 60 * 60 * 1000;
+
+    // 主动续期失败后的重试间隔
+    private static final long RENEW_RETRY_DELAY_MS = 15 * 60 * 1000;
+
+    // EMAS Serverless API路径（基础地址见 AliyunConfig.getBaseUrl()，可被本地替身服务器覆盖）
+    private static final String PATH_AUTH = "/auth";
+    private static final String PATH_REFRESH_TOKEN = "/auth/refresh";
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
     private static UserAuthManager sInstance;
     private final ExecutorService mExecutor;
     private final OkHttpClient mHttpClient;
+    private final ScheduledExecutorService mRenewScheduler;
+    private ScheduledFuture<?> mRenewTask;
+
+    // 进行中的刷新的等待者，为 null 表示没有进行中的刷新；由 mRefreshLock 保护
+    private final Object mRefreshLock = new Object();
+    private List<TokenRefreshCallback> mRefreshWaiters;
     private SharedPreferences mPrefs;
     private Context mContext;
 
     private String mUserId;
     private String mUsername;
-    private String mAuthToken;
-    private String mRefreshToken;
+    private volatile String mAuthToken;
+    private volatile String mRefreshToken;
     private String mDeviceId;
-    private boolean mIsLoggedIn;
-    private long mTokenExpireTime;
+    private volatile boolean mIsLoggedIn;
+    private volatile long mTokenExpireTime;
 
     private UserAuthManager(Context context) {
         mContext = context.getApplicationContext();
         mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         mExecutor = Executors.newSingleThreadExecutor();
-        mHttpClient = new OkHttpClient.Builder()
-                .connectTimeout(10, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .addInterceptor(new net.micode.notes.api.RetryInterceptor())
-                .build();
+        mHttpClient = HttpClientProvider.forAuth();
+        mRenewScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-renew");
+            thread.setDaemon(true);
+            return thread;
+        });
         loadUserInfo();
+        RetryingCall.setTokenRefresher(this::refreshAfterUnauthorized);
+        scheduleRenewal(0);
     }
 
     public static synchronized UserAuthManager getInstance(Context context) {
@@ -163,11 +188,11 @@ public class UserAuthManager {
 
                 RequestBody body = RequestBody.create(json.toString(), JSON);
                 Request request = new Request.Builder()
-                        .url(API_AUTH)
+                        .url(AliyunConfig.getBaseUrl() + PATH_AUTH)
                         .post(body)
                         .build();
 
-                mHttpClient.newCall(request).enqueue(new Callback() {
+                RetryingCall.enqueue(mHttpClient, request, new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
                         Log.e(TAG, "Register failed", e);
@@ -209,11 +234,11 @@ public class UserAuthManager {
 
                 RequestBody body = RequestBody.create(json.toString(), JSON);
                 Request request = new Request.Builder()
-                        .url(API_AUTH)
+                        .url(AliyunConfig.getBaseUrl() + PATH_AUTH)
                         .post(body)
                         .build();
 
-                mHttpClient.newCall(request).enqueue(new Callback() {
+                RetryingCall.enqueue(mHttpClient, request, new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
                         Log.e(TAG, "Login failed", e);
@@ -263,6 +288,7 @@ public class UserAuthManager {
                 mIsLoggedIn = true;
 
                 saveUserInfo();
+                scheduleRenewal(0);
 
                 callback.onSuccess(mUserId, mUsername);
             } else {
@@ -295,6 +321,7 @@ public class UserAuthManager {
      * 登出
      */
     public void logout() {
+        cancelRenewal();
         mIsLoggedIn = false;
         mUserId = null;
         mUsername = null;
@@ -396,69 +423,189 @@ public class UserAuthManager {
 
     /**
      * 刷新Token
+     * <p>
+     * 已有刷新在进行时不会发出新请求，回调在该次刷新结束时与其他等待者一起通知。
+     * </p>
      *
      * @param callback 刷新回调
      */
     public void refreshToken(TokenRefreshCallback callback) {
-        if (mRefreshToken == null) {
+        final String refreshToken;
+        synchronized (mRefreshLock) {
+            if (mRefreshWaiters != null) {
+                mRefreshWaiters.add(callback);
+                return;
+            }
+            refreshToken = mRefreshToken;
+            if (refreshToken != null) {
+                mRefreshWaiters = new ArrayList<>();
+                mRefreshWaiters.add(callback);
+            }
+        }
+        if (refreshToken == null) {
             callback.onError("没有可用的刷新令牌");
             return;
         }
 
-        mExecutor.execute(() -> {
-            try {
-                JSONObject json = new JSONObject();
-                json.put("action", "refresh");
-                json.put("refreshToken", mRefreshToken);
-                json.put("deviceId", mDeviceId);
+        mExecutor.execute(() -> performRefresh(refreshToken));
+    }
 
-                RequestBody body = RequestBody.create(json.toString(), JSON);
-                Request request = new Request.Builder()
-                        .url(API_REFRESH_TOKEN)
-                        .post(body)
-                        .build();
+    /**
+     * 发出刷新请求，结果通过 {@link #finishRefresh} 通知所有等待者
+     */
+    private void performRefresh(String refreshToken) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("action", "refresh");
+            json.put("refreshToken", refreshToken);
+            json.put("deviceId", mDeviceId);
+
+            RequestBody body = RequestBody.create(json.toString(), JSON);
+            Request request = new Request.Builder()
+                    .url(AliyunConfig.getBaseUrl() + PATH_REFRESH_TOKEN)
+                    .post(body)
+                    .build();
+
+            RetryingCall.enqueue(mHttpClient, request, new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    Log.e(TAG, "Token refresh failed", e);
+                    finishRefresh(null, "网络错误: " + e.getMessage());
+                }
 
-                mHttpClient.newCall(request).enqueue(new Callback() {
-                    @Override
-                    public void onFailure(Call call, IOException e) {
-                        Log.e(TAG, "Token refresh failed", e);
-                        callback.onError("网络错误: " + e.getMessage());
-                    }
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    try {
+                        if (!response.isSuccessful()) {
+                            finishRefresh(null, "服务器错误: " + response.code());
+                            return;
+                        }
 
-                    @Override
-                    public void onResponse(Call call, Response response) throws IOException {
-                        String responseBody = null;
-                        try {
-                            if (!response.isSuccessful()) {
-                                callback.onError("服务器错误: " + response.code());
-                                return;
-                            }
-
-                            responseBody = response.body().string();
-                            JSONObject json = new JSONObject(responseBody);
-
-                            if (json.getBoolean("success")) {
-                                mAuthToken = json.getString("token");
-                                if (json.has("refreshToken")) {
-                                    mRefreshToken = json.getString("refreshToken");
-                                }
-                                mTokenExpireTime = System.currentTimeMillis() + TOKEN_EXPIRE_DURATION;
-                                saveUserInfo();
-                                callback.onSuccess(mAuthToken);
-                            } else {
-                                callback.onError(json.getString("message"));
-                            }
-                        } catch (JSONException e) {
-                            Log.e(TAG, "Parse refresh response error", e);
-                            callback.onError("解析响应失败");
-                        } finally {
-                            response.close();
+                        JSONObject json = new JSONObject(response.body().string());
+                        if (!json.getBoolean("success")) {
+                            finishRefresh(null, json.getString("message"));
+                            return;
+                        }
+                        // 刷新期间已登出（或换了账号）时丢弃结果
+                        if (!mIsLoggedIn || !refreshToken.equals(mRefreshToken)) {
+                            finishRefresh(null, "登录状态已变化");
+                            return;
                         }
+                        mAuthToken = json.getString("token");
+                        if (json.has("refreshToken")) {
+                            mRefreshToken = json.getString("refreshToken");
+                        }
+                        mTokenExpireTime = System.currentTimeMillis() + TOKEN_EXPIRE_DURATION;
+                        saveUserInfo();
+                        scheduleRenewal(0);
+                        finishRefresh(mAuthToken, null);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Parse refresh response error", e);
+                        finishRefresh(null, "解析响应失败");
+                    } finally {
+                        response.close();
                     }
-                });
-            } catch (Exception e) {
-                Log.e(TAG, "Refresh token error", e);
-                callback.onError("刷新失败: " + e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Refresh token error", e);
+            finishRefresh(null, "刷新失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 结束进行中的刷新并通知所有等待者
+     *
+     * @param newToken 新令牌，失败时为 null
+     * @param error 失败原因
+     */
+    private void finishRefresh(String newToken, String error) {
+        List<TokenRefreshCallback> waiters;
+        synchronized (mRefreshLock) {
+            waiters = mRefreshWaiters;
+            mRefreshWaiters = null;
+        }
+        if (waiters == null) {
+            return;
+        }
+        Log.d(TAG, "Token refresh finished for " + waiters.size() + " waiter(s), success: "
+                + (newToken != null));
+        for (TokenRefreshCallback waiter : waiters) {
+            if (newToken != null) {
+                waiter.onSuccess(newToken);
+            } else {
+                waiter.onError(error);
+            }
+        }
+    }
+
+    /**
+     * 云端请求收到 401 时由 {@link RetryingCall} 调用
+     * <p>
+     * 被拒绝的令牌已不是当前令牌时（其他请求已经刷新过），直接用当前令牌重发，不再请求刷新。
+     * </p>
+     */
+    private void refreshAfterUnauthorized(String rejectedToken, RetryingCall.RefreshCallback callback) {
+        String current = mAuthToken;
+        if (current != null && !current.equals(rejectedToken)) {
+            callback.onRefreshed(current);
+            return;
+        }
+        refreshToken(new TokenRefreshCallback() {
+            @Override
+            public void onSuccess(String newToken) {
+                callback.onRefreshed(newToken);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onFailed(error);
+            }
+        });
+    }
+
+    /**
+     * 安排在令牌过期前主动续期
+     *
+     * @param minDelayMs 最短延迟，续期失败后用于退避
+     */
+    private synchronized void scheduleRenewal(long minDelayMs) {
+        if (mRenewTask != null) {
+            mRenewTask.cancel(false);
+            mRenewTask = null;
+        }
+        if (!mIsLoggedIn || mRefreshToken == null || mTokenExpireTime == 0) {
+            return;
+        }
+        long delay = Math.max(minDelayMs,
+                mTokenExpireTime - RENEW_BEFORE_EXPIRY_MS - System.currentTimeMillis());
+        mRenewTask = mRenewScheduler.schedule(this::renewToken, Math.max(0, delay),
+                TimeUnit.MILLISECONDS);
+        Log.d(TAG, "Token renewal scheduled in " + Math.max(0, delay) / 1000 + "s");
+    }
+
+    private synchronized void cancelRenewal() {
+        if (mRenewTask != null) {
+            mRenewTask.cancel(false);
+            mRenewTask = null;
+        }
+    }
+
+    private void renewToken() {
+        if (!mIsLoggedIn) {
+            return;
+        }
+        Log.d(TAG, "Renewing token before expiry");
+        refreshToken(new TokenRefreshCallback() {
+            @Override
+            public void onSuccess(String newToken) {
+                // 刷新成功时已安排下一次续期
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Token renewal failed: " + error);
+                scheduleRenewal(RENEW_RETRY_DELAY_MS);
             }
         });
     }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.micode.notes.tool.AttachmentRefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * 本地附件存储
+ * <p>
+ * 附件按内容的 SHA-256 命名保存在 {@code files/blobs} 下，相同内容只存一份。
+ * 写入时先流式写入临时文件并同时计算哈希，完成后重命名，读写都只占用固定大小的缓冲区，
+ * 中途失败不会留下不完整的附件。所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class AttachmentStore {
+
+    private static final String TAG = "AttachmentStore";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private final File mDir;
+
+    public AttachmentStore(Context context) {
+        mDir = new File(context.getApplicationContext().getFilesDir(), AttachmentRefs.BLOB_DIR);
+    }
+
+    /**
+     * 附件目录的绝对路径
+     */
+    public String getDirPath() {
+        return mDir.getAbsolutePath();
+    }
+
+    /**
+     * 附件文件（不保证存在）
+     */
+    public File fileFor(String hash) {
+        return new File(mDir, hash);
+    }
+
+    /**
+     * 本地是否已有该附件
+     */
+    public boolean has(String hash) {
+        return AttachmentRefs.isValidHash(hash) && fileFor(hash).isFile();
+    }
+
+    /**
+     * 附件在笔记 HTML 中的本地引用
+     */
+    public String localUrl(String hash) {
+        return "file://" + fileFor(hash).getAbsolutePath();
+    }
+
+    /**
+     * 把云端形式的引用改写为本地路径
+     */
+    public String toLocalForm(String content) {
+        return AttachmentRefs.toLocalForm(content, getDirPath());
+    }
+
+    /**
+     * 流式导入附件
+     *
+     * @param in 附件内容，调用方负责关闭
+     * @return 附件哈希
+     */
+    public String importStream(InputStream in) throws IOException {
+        File temp = newTempFile();
+        MessageDigest digest = newDigest();
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            String hash = toHex(digest.digest());
+            moveIntoPlace(temp, hash);
+            return hash;
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Failed to delete temp file " + temp);
+            }
+        }
+    }
+
+    /**
+     * 新建附件目录下的临时文件，用于下载
+     */
+    public File newTempFile() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("无法创建附件目录: " + mDir);
+        }
+        return new File(mDir, TEMP_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * 校验临时文件的哈希并重命名为正式附件；已存在相同附件时丢弃临时文件
+     *
+     * @throws IOException 哈希不一致或重命名失败
+     */
+    public void commit(File temp, String expectedHash) throws IOException {
+        String actual = sha256(temp);
+        if (!actual.equals(expectedHash)) {
+            throw new IOException("附件校验失败: 期望 " + expectedHash + "，实际 " + actual);
+        }
+        moveIntoPlace(temp, expectedHash);
+    }
+
+    private void moveIntoPlace(File temp, String hash) throws IOException {
+        File target = fileFor(hash);
+        if (target.isFile()) {
+            return;
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("无法保存附件: " + target);
+        }
+    }
+
+    /**
+     * 流式计算文件的 SHA-256
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
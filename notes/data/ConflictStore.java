@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.ConflictColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.model.CloudNote;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 同步冲突表访问类
+ * <p>
+ * 下载时发现本地与云端都修改过的笔记记录到冲突表，保存云端版本，
+ * 进程退出后冲突不会丢失，解决时也无需重新下载。冲突解决前同步不上传该笔记，
+ * 解决后把云端确认的哈希改为云端版本的哈希，需要上传的结果照常经发件箱推送。
+ * </p>
+ * <p>
+ * 每条笔记最多一行；同一笔记再次冲突时更新云端版本，保留首次发现的时间。
+ * </p>
+ */
+public class ConflictStore {
+
+    private static final String TAG = "ConflictStore";
+
+    private static final String[] PROJECTION = new String[] {
+            ConflictColumns.NOTE_ID, ConflictColumns.CLOUD_NOTE_ID, ConflictColumns.LOCAL_HASH,
+            ConflictColumns.CLOUD_HASH, ConflictColumns.CLOUD_PAYLOAD, ConflictColumns.DETECTED_AT
+    };
+
+    private static final String ORDER = ConflictColumns.DETECTED_AT + "," + ConflictColumns.ID;
+
+    private final NotesDatabaseHelper mHelper;
+
+    public ConflictStore(Context context) {
+        mHelper = NotesDatabaseHelper.getInstance(context.getApplicationContext());
+    }
+
+    /**
+     * 冲突表中的一行
+     */
+    public static class Entry {
+        public final long noteId;
+        public final String cloudNoteId;
+        public final String localHash;
+        public final String cloudHash;
+        public final String cloudPayload;
+        public final long detectedAt;
+
+        Entry(long noteId, String cloudNoteId, String localHash, String cloudHash,
+                String cloudPayload, long detectedAt) {
+            this.noteId = noteId;
+            this.cloudNoteId = cloudNoteId;
+            this.localHash = localHash;
+            this.cloudHash = cloudHash;
+            this.cloudPayload = cloudPayload;
+            this.detectedAt = detectedAt;
+        }
+
+        /**
+         * 解析保存的云端版本
+         */
+        public CloudNote getCloudNote() throws JSONException {
+            return new CloudNote(new JSONObject(cloudPayload));
+        }
+    }
+
+    /**
+     * 记录一个冲突，已有冲突时更新云端版本
+     *
+     * @param noteId 本地笔记ID
+     * @param cloudNote 完整的云端版本（含正文）
+     * @param localHash 本地版本的同步字段哈希
+     * @param cloudHash 云端版本的同步字段哈希
+     */
+    public void record(long noteId, CloudNote cloudNote, String localHash, String cloudHash)
+            throws JSONException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ConflictColumns.CLOUD_NOTE_ID, cloudNote.getCloudNoteId());
+        values.put(ConflictColumns.LOCAL_HASH, localHash);
+        values.put(ConflictColumns.CLOUD_HASH, cloudHash);
+        values.put(ConflictColumns.CLOUD_PAYLOAD, cloudNote.toJson().toString());
+
+        String[] args = new String[] { String.valueOf(noteId) };
+        if (db.update(TABLE.CONFLICT, values, ConflictColumns.NOTE_ID + "=?", args) == 0) {
+            values.put(ConflictColumns.NOTE_ID, noteId);
+            values.put(ConflictColumns.DETECTED_AT, System.currentTimeMillis());
+            db.insert(TABLE.CONFLICT, null, values);
+        }
+        Log.d(TAG, "Recorded conflict of note " + noteId + "/" + cloudNote.getCloudNoteId());
+    }
+
+    /**
+     * 待解决的冲突数量
+     */
+    public int count() {
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE.CONFLICT, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 按发现时间分页读取冲突
+     *
+     * @param offset 跳过的行数
+     * @param limit 最多返回的行数
+     */
+    public List<Entry> getPage(int offset, int limit) {
+        return query(null, null, offset + "," + limit);
+    }
+
+    /**
+     * 查询一条笔记的冲突
+     *
+     * @return 冲突，不存在时返回 null
+     */
+    public Entry get(long noteId) {
+        List<Entry> entries = query(ConflictColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) }, "1");
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * 有待解决冲突的本地笔记ID
+     */
+    public Set<Long> getNoteIds() {
+        Set<Long> result = new HashSet<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.CONFLICT,
+                new String[] { ConflictColumns.NOTE_ID }, null, null, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 标记冲突已解决
+     * <p>
+     * 在一个事务中删除冲突，并把笔记的云端确认哈希与修订号改为云端版本的：
+     * 之后的上传与云端版本比较，内容与云端一致时不再上传；同一云端版本也不会再次引起冲突。
+     * </p>
+     *
+     * @param noteId 本地笔记ID
+     * @param cloudHash 云端版本的同步字段哈希
+     * @param cloudVersion 云端版本的修订号
+     * @param keptCloud 是否采用了云端版本；是则笔记没有需要推送的修改，清除它的发件箱记录
+     */
+    public void resolve(long noteId, String cloudHash, int cloudVersion, boolean keptCloud) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        String[] args = new String[] { String.valueOf(noteId) };
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.SYNCED_HASH, cloudHash);
+            values.put(NoteColumns.CLOUD_VERSION, cloudVersion);
+            if (keptCloud) {
+                values.put(NoteColumns.LOCAL_MODIFIED, 0);
+                db.delete(TABLE.OUTBOX, OutboxColumns.NOTE_ID + "=?", args);
+            }
+            db.update(TABLE.NOTE, values, NoteColumns.ID + "=?", args);
+            db.delete(TABLE.CONFLICT, ConflictColumns.NOTE_ID + "=?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "Resolved conflict of note " + noteId + (keptCloud ? " with cloud version" : ""));
+    }
+
+    /**
+     * 移除一条笔记的冲突（不修改笔记）
+     */
+    public void remove(long noteId) {
+        mHelper.getWritableDatabase().delete(TABLE.CONFLICT, ConflictColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * 清空冲突表（切换账号时调用）
+     */
+    public void clear() {
+        mHelper.getWritableDatabase().delete(TABLE.CONFLICT, null, null);
+    }
+
+    private List<Entry> query(String selection, String[] selectionArgs, String limit) {
+        List<Entry> result = new ArrayList<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.CONFLICT, PROJECTION,
+                selection, selectionArgs, null, null, ORDER, limit);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(new Entry(cursor.getLong(0), cursor.getString(1),
+                            cursor.getString(2), cursor.getString(3), cursor.getString(4),
+                            cursor.getLong(5)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 笔记正文缓存
+ * <p>
+ * 只同步元数据时，笔记正文按需下载（BODY_LOADED = 0 的笔记只有预览）。本类负责：
+ * <ul>
+ * <li>挑选需要预取正文的笔记（最近修改的在前）</li>
+ * <li>记录正文的访问时间，超出存储预算时按最近最少使用淘汰冷笔记的正文，只保留预览</li>
+ * </ul>
+ * 只淘汰已与云端同步、没有本地修改的笔记，淘汰的正文随时可以重新下载。
+ * 所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class NoteBodyStore {
+
+    private static final String TAG = "NoteBodyStore";
+
+    /**
+     * 预览的最大字符数
+     */
+    public static final int PREVIEW_LENGTH = 200;
+
+    /**
+     * 最近这段时间内打开过的正文不淘汰（编辑界面可能仍持有它）
+     */
+    private static final long RECENT_ACCESS_MS = 60 * 60 * 1000L;
+
+    private static final String BODY_BYTES_SQL =
+        "SELECT IFNULL(SUM(LENGTH(CAST(d." + DataColumns.CONTENT + " AS BLOB))), 0)"
+        + " FROM " + TABLE.DATA + " d JOIN " + TABLE.NOTE + " n"
+            + " ON n." + NoteColumns.ID + " = d." + DataColumns.NOTE_ID
+        + " WHERE d." + DataColumns.MIME_TYPE + " = '" + DataConstants.NOTE + "'"
+            + " AND n." + NoteColumns.CLOUD_USER_ID + " = ?"
+            + " AND n." + NoteColumns.BODY_LOADED + " = 1";
+
+    private static final String EVICTION_CANDIDATES_SQL =
+        "SELECT n." + NoteColumns.ID + ", d." + DataColumns.CONTENT
+        + " FROM " + TABLE.NOTE + " n JOIN " + TABLE.DATA + " d"
+            + " ON d." + DataColumns.NOTE_ID + " = n." + NoteColumns.ID
+            + " AND d." + DataColumns.MIME_TYPE + " = '" + DataConstants.NOTE + "'"
+        + " WHERE n." + NoteColumns.CLOUD_USER_ID + " = ?"
+            + " AND n." + NoteColumns.TYPE + " = " + Notes.TYPE_NOTE
+            + " AND n." + NoteColumns.BODY_LOADED + " = 1"
+            + " AND n." + NoteColumns.LOCAL_MODIFIED + " = 0"
+            + " AND n." + NoteColumns.CLOUD_NOTE_ID + " <> ''"
+            + " AND n." + NoteColumns.SYNCED_HASH + " <> ''"
+            + " AND n." + NoteColumns.WIDGET_ID + " = 0"
+            + " AND n." + NoteColumns.BODY_ACCESSED + " < ?"
+        + " ORDER BY n." + NoteColumns.BODY_ACCESSED + ", n." + NoteColumns.MODIFIED_DATE;
+
+    private final Context mContext;
+    private final NotesDatabaseHelper mHelper;
+
+    public NoteBodyStore(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+    }
+
+    /**
+     * 由正文生成预览：截取开头，不在 HTML 标签中间截断
+     */
+    public static String preview(String content) {
+        if (content == null || content.length() <= PREVIEW_LENGTH) {
+            return content != null ? content : "";
+        }
+        String head = content.substring(0, PREVIEW_LENGTH);
+        int open = head.lastIndexOf('<');
+        if (open > head.lastIndexOf('>')) {
+            head = head.substring(0, open);
+        }
+        return head;
+    }
+
+    /**
+     * 记录笔记正文被打开
+     */
+    public void markAccessed(long noteId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.BODY_ACCESSED, System.currentTimeMillis());
+        mHelper.getWritableDatabase().update(TABLE.NOTE, values, NoteColumns.ID + "=?",
+                new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * 正文尚未下载的笔记，最近修改的在前
+     *
+     * @param userId 当前用户的云端ID
+     * @param limit 最多返回的数量
+     * @return 云端笔记ID
+     */
+    public List<String> findMissingBodies(String userId, int limit) {
+        List<String> result = new ArrayList<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.NOTE,
+                new String[] { NoteColumns.CLOUD_NOTE_ID },
+                NoteColumns.CLOUD_USER_ID + "=? AND " + NoteColumns.BODY_LOADED + "=0 AND "
+                        + NoteColumns.CLOUD_NOTE_ID + "<>''",
+                new String[] { userId }, null, null, NoteColumns.MODIFIED_DATE + " DESC",
+                String.valueOf(limit));
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 笔记正文尚未下载时返回它的云端ID
+     *
+     * @param noteId 本地笔记ID
+     * @param userId 当前用户的云端ID，不属于该用户的笔记返回 null
+     * @return 云端笔记ID，正文已在本地或笔记不存在时返回 null
+     */
+    public String findMissingBody(long noteId, String userId) {
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.NOTE,
+                new String[] { NoteColumns.CLOUD_NOTE_ID },
+                NoteColumns.ID + "=? AND " + NoteColumns.CLOUD_USER_ID + "=? AND "
+                        + NoteColumns.BODY_LOADED + "=0 AND " + NoteColumns.CLOUD_NOTE_ID + "<>''",
+                new String[] { String.valueOf(noteId), userId }, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 本地正文占用的字节数
+     */
+    public long getBodyBytes(String userId) {
+        return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(), BODY_BYTES_SQL,
+                new String[] { userId });
+    }
+
+    /**
+     * 按最近最少使用淘汰正文，直到本地正文不超过预算
+     *
+     * @param userId 当前用户的云端ID
+     * @param budgetBytes 正文存储预算（UTF-8 字节）
+     * @return 淘汰的正文数量
+     */
+    public int evictToBudget(String userId, long budgetBytes) {
+        long total = getBodyBytes(userId);
+        if (total <= budgetBytes) {
+            return 0;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long recent = System.currentTimeMillis() - RECENT_ACCESS_MS;
+        int evicted = 0;
+        Cursor cursor = db.rawQuery(EVICTION_CANDIDATES_SQL,
+                new String[] { userId, String.valueOf(recent) });
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            while (total > budgetBytes && cursor.moveToNext()) {
+                long noteId = cursor.getLong(0);
+                String content = cursor.getString(1) != null ? cursor.getString(1) : "";
+                if (evict(db, noteId, content)) {
+                    total -= content.getBytes(StandardCharsets.UTF_8).length;
+                    evicted++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (evicted > 0) {
+            mContext.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+        }
+        Log.d(TAG, "Evicted " + evicted + " note bodies, " + total + " bytes remain");
+        return evicted;
+    }
+
+    /**
+     * 在一个事务中清空一条笔记的正文，摘要改为预览
+     * <p>
+     * 查询之后笔记又被修改（LOCAL_MODIFIED 变为 1）时不淘汰。
+     * </p>
+     */
+    private static boolean evict(SQLiteDatabase db, long noteId, String content) {
+        String[] args = new String[] { String.valueOf(noteId) };
+        db.beginTransaction();
+        try {
+            ContentValues note = new ContentValues();
+            note.put(NoteColumns.BODY_LOADED, 0);
+            if (db.update(TABLE.NOTE, note, NoteColumns.ID + "=? AND " + NoteColumns.LOCAL_MODIFIED
+                    + "=0 AND " + NoteColumns.BODY_LOADED + "=1", args) == 0) {
+                return false;
+            }
+
+            ContentValues data = new ContentValues();
+            data.put(DataColumns.CONTENT, "");
+            db.update(TABLE.DATA, data, DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE
+                    + "='" + DataConstants.NOTE + "'", args);
+
+            // 清空正文时触发器把摘要置空，之后再写入预览
+            ContentValues snippet = new ContentValues();
+            snippet.put(NoteColumns.SNIPPET, preview(content));
+            db.update(TABLE.NOTE, snippet, NoteColumns.ID + "=?", args);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.model.WorkingNote;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 笔记批量加载器
+ * <p>
+ * 逐条调用 {@link WorkingNote#load} 时每条笔记要查询一次笔记表、一次数据表，N 条笔记共 1 + 2N 次查询。
+ * 本类用一次笔记表 LEFT JOIN 数据表的查询读出所有行，按笔记ID排序后一遍扫描组装：
+ * <ul>
+ * <li>{@link #loadWorkingNotes}：组装为 {@link WorkingNote}，用于同步上传</li>
+ * <li>{@link #iterate}：流式返回不可变的 {@link Snapshot}，游标逐行读取，适合导出等大批量场景</li>
+ * </ul>
+ * selection 与 orderBy 只能引用笔记表的列（直接写列名）；结果在 orderBy 之后再按笔记ID、数据ID排序，
+ * 保证同一条笔记的行相邻。所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class NoteBulkLoader {
+
+    private static final String[] NOTE_COLUMNS = {
+            NoteColumns.ID,
+            NoteColumns.PARENT_ID,
+            NoteColumns.TYPE,
+            NoteColumns.ALERTED_DATE,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE,
+            NoteColumns.MODIFIED_DATE,
+            NoteColumns.TITLE,
+            NoteColumns.SNIPPET,
+            NoteColumns.CLOUD_NOTE_ID,
+            NoteColumns.BODY_LOADED,
+            NoteColumns.LOCAL_MODIFIED,
+            NoteColumns.CLOUD_VERSION
+    };
+
+    private static final int NOTE_ID_COLUMN = 0;
+    private static final int NOTE_PARENT_ID_COLUMN = 1;
+    private static final int NOTE_TYPE_COLUMN = 2;
+    private static final int NOTE_ALERTED_DATE_COLUMN = 3;
+    private static final int NOTE_BG_COLOR_ID_COLUMN = 4;
+    private static final int NOTE_WIDGET_ID_COLUMN = 5;
+    private static final int NOTE_WIDGET_TYPE_COLUMN = 6;
+    private static final int NOTE_MODIFIED_DATE_COLUMN = 7;
+    private static final int NOTE_TITLE_COLUMN = 8;
+    private static final int NOTE_SNIPPET_COLUMN = 9;
+    private static final int NOTE_CLOUD_NOTE_ID_COLUMN = 10;
+    private static final int NOTE_BODY_LOADED_COLUMN = 11;
+    private static final int NOTE_LOCAL_MODIFIED_COLUMN = 12;
+    private static final int NOTE_CLOUD_VERSION_COLUMN = 13;
+
+    private static final String[] DATA_COLUMNS = {
+            DataColumns.ID,
+            DataColumns.MIME_TYPE,
+            DataColumns.CONTENT,
+            DataColumns.DATA1,
+            DataColumns.DATA2,
+            DataColumns.DATA3,
+            DataColumns.DATA4,
+            DataColumns.DATA5
+    };
+
+    /**
+     * 数据列在联合查询结果中的起始位置
+     */
+    private static final int DATA_OFFSET = NOTE_COLUMNS.length;
+
+    private static final int DATA_ID_COLUMN = DATA_OFFSET;
+    private static final int DATA_MIME_TYPE_COLUMN = DATA_OFFSET + 1;
+    private static final int DATA_CONTENT_COLUMN = DATA_OFFSET + 2;
+    private static final int DATA_DATA1_COLUMN = DATA_OFFSET + 3;
+    private static final int DATA_DATA2_COLUMN = DATA_OFFSET + 4;
+    private static final int DATA_DATA3_COLUMN = DATA_OFFSET + 5;
+    private static final int DATA_DATA4_COLUMN = DATA_OFFSET + 6;
+    private static final int DATA_DATA5_COLUMN = DATA_OFFSET + 7;
+
+    /**
+     * 结果列：笔记列保留原列名（orderBy 按列名解析到笔记表），数据列加 data_ 前缀
+     */
+    private static final String SELECT_COLUMNS = buildSelectColumns();
+
+    private final Context mContext;
+    private final NotesDatabaseHelper mHelper;
+
+    public NoteBulkLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+    }
+
+    /**
+     * 一条数据行（不可变）
+     */
+    public static class DataRow {
+        public final long id;
+        public final String mimeType;
+        public final String content;
+        public final long data1;
+        public final long data2;
+        public final String data3;
+        public final String data4;
+        public final String data5;
+
+        DataRow(Cursor cursor) {
+            id = cursor.getLong(DATA_ID_COLUMN);
+            mimeType = cursor.getString(DATA_MIME_TYPE_COLUMN);
+            content = cursor.getString(DATA_CONTENT_COLUMN);
+            data1 = cursor.getLong(DATA_DATA1_COLUMN);
+            data2 = cursor.getLong(DATA_DATA2_COLUMN);
+            data3 = cursor.getString(DATA_DATA3_COLUMN);
+            data4 = cursor.getString(DATA_DATA4_COLUMN);
+            data5 = cursor.getString(DATA_DATA5_COLUMN);
+        }
+    }
+
+    /**
+     * 一条笔记及其全部数据行的不可变快照
+     */
+    public static class Snapshot {
+        public final long id;
+        public final long parentId;
+        public final int type;
+        public final long alertedDate;
+        public final int bgColorId;
+        public final int widgetId;
+        public final int widgetType;
+        public final long modifiedDate;
+        public final String title;
+        public final String snippet;
+        public final String cloudNoteId;
+        public final boolean bodyLoaded;
+        public final boolean localModified;
+        public final int cloudVersion;
+        private final List<DataRow> mData = new ArrayList<>(1);
+
+        Snapshot(Cursor cursor) {
+            id = cursor.getLong(NOTE_ID_COLUMN);
+            parentId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
+            type = cursor.getInt(NOTE_TYPE_COLUMN);
+            alertedDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
+            bgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
+            widgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
+            widgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
+            modifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
+            title = cursor.getString(NOTE_TITLE_COLUMN);
+            snippet = cursor.getString(NOTE_SNIPPET_COLUMN);
+            cloudNoteId = cursor.getString(NOTE_CLOUD_NOTE_ID_COLUMN);
+            bodyLoaded = cursor.getInt(NOTE_BODY_LOADED_COLUMN) != 0;
+            localModified = cursor.getInt(NOTE_LOCAL_MODIFIED_COLUMN) != 0;
+            cloudVersion = cursor.getInt(NOTE_CLOUD_VERSION_COLUMN);
+        }
+
+        /**
+         * 全部数据行，按数据ID排序
+         */
+        public List<DataRow> getData() {
+            return Collections.unmodifiableList(mData);
+        }
+
+        /**
+         * 文本数据行，没有时返回 null
+         */
+        public DataRow getTextData() {
+            for (DataRow row : mData) {
+                if (DataConstants.NOTE.equals(row.mimeType)) {
+                    return row;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 流式读取快照的迭代器；读完最后一条后自动关闭游标，中途放弃时必须调用 {@link #close()}
+     */
+    public static class SnapshotIterator implements Iterator<Snapshot>, Closeable {
+        private final Cursor mCursor;
+        private boolean mHasRow;
+
+        SnapshotIterator(Cursor cursor) {
+            mCursor = cursor;
+            mHasRow = cursor.moveToFirst();
+            if (!mHasRow) {
+                close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mHasRow;
+        }
+
+        @Override
+        public Snapshot next() {
+            if (!mHasRow) {
+                throw new NoSuchElementException();
+            }
+            Snapshot snapshot = new Snapshot(mCursor);
+            do {
+                if (!mCursor.isNull(DATA_ID_COLUMN)) {
+                    snapshot.mData.add(new DataRow(mCursor));
+                }
+                mHasRow = mCursor.moveToNext();
+            } while (mHasRow && mCursor.getLong(NOTE_ID_COLUMN) == snapshot.id);
+            if (!mHasRow) {
+                close();
+            }
+            return snapshot;
+        }
+
+        @Override
+        public void close() {
+            mHasRow = false;
+            if (!mCursor.isClosed()) {
+                mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * 流式读取笔记快照
+     *
+     * @param selection 笔记表的筛选条件，为 null 时读取全部笔记
+     * @param selectionArgs 筛选参数
+     * @param orderBy 笔记表列的排序，可为 null
+     */
+    public SnapshotIterator iterate(String selection, String[] selectionArgs, String orderBy) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(SELECT_COLUMNS)
+                .append(" FROM (SELECT * FROM ").append(TABLE.NOTE);
+        if (selection != null) {
+            sql.append(" WHERE ").append(selection);
+        }
+        sql.append(") AS n LEFT JOIN ").append(TABLE.DATA).append(" AS d ON d.")
+                .append(DataColumns.NOTE_ID).append(" = n.").append(NoteColumns.ID)
+                .append(" ORDER BY ");
+        if (orderBy != null) {
+            sql.append(orderBy).append(", ");
+        }
+        sql.append(NoteColumns.ID).append(", data_").append(DataColumns.ID);
+        return new SnapshotIterator(mHelper.getReadableDatabase().rawQuery(sql.toString(), selectionArgs));
+    }
+
+    /**
+     * 读取全部匹配的笔记快照
+     */
+    public List<Snapshot> loadSnapshots(String selection, String[] selectionArgs, String orderBy) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        SnapshotIterator iterator = iterate(selection, selectionArgs, orderBy);
+        try {
+            while (iterator.hasNext()) {
+                snapshots.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        return snapshots;
+    }
+
+    /**
+     * 读取全部匹配的笔记并组装为 {@link WorkingNote}
+     * <p>
+     * 正文尚未下载的笔记与 {@link WorkingNote#load} 行为一致：在后台线程中单独加载一次以按需下载正文。
+     * </p>
+     */
+    public List<WorkingNote> loadWorkingNotes(String selection, String[] selectionArgs, String orderBy) {
+        List<WorkingNote> notes = new ArrayList<>();
+        SnapshotIterator iterator = iterate(selection, selectionArgs, orderBy);
+        try {
+            while (iterator.hasNext()) {
+                Snapshot snapshot = iterator.next();
+                notes.add(snapshot.bodyLoaded ? WorkingNote.fromSnapshot(mContext, snapshot)
+                        : WorkingNote.load(mContext, snapshot.id));
+            }
+        } finally {
+            iterator.close();
+        }
+        return notes;
+    }
+
+    private static String buildSelectColumns() {
+        StringBuilder columns = new StringBuilder();
+        for (String column : NOTE_COLUMNS) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append("n.").append(column).append(" AS ").append(column);
+        }
+        for (String column : DATA_COLUMNS) {
+            columns.append(", d.").append(column).append(" AS data_").append(column);
+        }
+        return columns.toString();
+    }
+}
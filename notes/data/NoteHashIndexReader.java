@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.sync.NoteContentHash;
+import net.micode.notes.sync.NoteHashTree;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 本地笔记哈希索引读取器
+ * <p>
+ * 用一次 note 与 data 的联表查询读取用户所有已上传的普通笔记，计算内容哈希放入 {@link NoteHashTree}，
+ * 供对账时与云端比较。正文尚未下载的笔记用下载元数据时记录的同步字段哈希计算。
+ * 所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class NoteHashIndexReader {
+
+    private static final String QUERY =
+        "SELECT n." + NoteColumns.CLOUD_NOTE_ID + ", n." + NoteColumns.TITLE + ", n." + NoteColumns.PARENT_ID
+            + ", n." + NoteColumns.LOCAL_MODIFIED + ", d." + DataColumns.CONTENT
+            + ", n." + NoteColumns.BODY_LOADED + ", n." + NoteColumns.SYNCED_HASH
+        + " FROM " + TABLE.NOTE + " n LEFT JOIN " + TABLE.DATA + " d"
+            + " ON d." + DataColumns.NOTE_ID + " = n." + NoteColumns.ID
+            + " AND d." + DataColumns.MIME_TYPE + " IN (?, ?)"
+        + " WHERE n." + NoteColumns.TYPE + " = " + Notes.TYPE_NOTE
+            + " AND n." + NoteColumns.CLOUD_USER_ID + " = ?"
+            + " AND n." + NoteColumns.CLOUD_NOTE_ID + " <> ''";
+
+    private final NotesDatabaseHelper mHelper;
+
+    public NoteHashIndexReader(Context context) {
+        mHelper = NotesDatabaseHelper.getInstance(context.getApplicationContext());
+    }
+
+    /**
+     * 把用户已上传的普通笔记读入哈希树
+     *
+     * @param userId 当前用户的云端ID
+     * @param tree 目标哈希树
+     * @return 有未上传本地修改的笔记的云端ID，对账时不应用云端版本覆盖
+     */
+    public Set<String> read(String userId, NoteHashTree tree) {
+        Set<String> locallyModified = new HashSet<>();
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(QUERY,
+                new String[] { DataConstants.NOTE, DataConstants.CALL_NOTE, userId });
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String cloudNoteId = cursor.getString(0);
+                    String parentId = String.valueOf(cursor.getLong(2));
+                    if (cursor.getInt(5) != 0) {
+                        tree.put(cloudNoteId, NoteHashTree.contentHash(cursor.getString(1),
+                                cursor.getString(4), parentId));
+                    } else {
+                        tree.put(cloudNoteId, NoteHashTree.contentHashOfBody(
+                                NoteContentHash.bodyOf(cursor.getString(6)), parentId));
+                    }
+                    if (cursor.getInt(3) != 0) {
+                        locallyModified.add(cloudNoteId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return locallyModified;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.sync.SyncConstants;
+
+import java.util.List;
+
+/**
+ * 笔记归属批量更新
+ * <p>
+ * 登录接管、账号迁移和同步完成后的标记都要改写大量笔记。逐条经 ContentProvider 更新时
+ * 每条笔记各有一次版本号递增、一次更新和一次变更通知；本类改为在一个事务中执行集合式
+ * UPDATE 语句（与 {@link NotesProvider} 一样递增 VERSION，发件箱触发器照常逐行生效），
+ * 事务提交后只发送一次数据变更通知。
+ * </p>
+ * <p>
+ * 接管全部笔记时按笔记ID区间分块执行，每块之后回报进度，仍在同一个事务中提交。
+ * 所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class NoteOwnershipStore {
+
+    private static final String TAG = "NoteOwnershipStore";
+
+    /**
+     * 接管时每块覆盖的笔记ID区间长度
+     */
+    private static final int TAKEOVER_CHUNK = 2000;
+
+    /**
+     * SQLite 单条语句允许的最大绑定参数数量，留出非ID参数的位置
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 999 - 2;
+
+    private static final String USER_NOTES = NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM;
+
+    private static final String TAKEOVER_SQL =
+        "UPDATE " + TABLE.NOTE + " SET " +
+            NoteColumns.CLOUD_USER_ID + "=?," +
+            NoteColumns.LOCAL_MODIFIED + "=1," +
+            NoteColumns.SYNC_STATUS + "=0," +
+            NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1" +
+        " WHERE " + USER_NOTES +
+        " AND " + NoteColumns.ID + ">=? AND " + NoteColumns.ID + "<?";
+
+    private static final String REASSIGN_SQL =
+        "UPDATE " + TABLE.NOTE + " SET " +
+            NoteColumns.CLOUD_USER_ID + "=?," +
+            NoteColumns.LOCAL_MODIFIED + "=1," +
+            NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1" +
+        " WHERE " + NoteColumns.CLOUD_USER_ID + "=?";
+
+    private static final String MARK_SYNCED_SQL_PREFIX =
+        "UPDATE " + TABLE.NOTE + " SET " +
+            NoteColumns.LOCAL_MODIFIED + "=0," +
+            NoteColumns.SYNC_STATUS + "=?," +
+            NoteColumns.LAST_SYNC_TIME + "=?," +
+            NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1" +
+        " WHERE " + NoteColumns.ID + " IN (";
+
+    /**
+     * 接管进度监听器，在调用线程上回调
+     */
+    public interface ProgressListener {
+        /**
+         * @param done 已接管的笔记数量
+         * @param total 需要接管的笔记总数
+         */
+        void onProgress(int done, int total);
+    }
+
+    private final Context mContext;
+    private final NotesDatabaseHelper mHelper;
+
+    public NoteOwnershipStore(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+    }
+
+    /**
+     * 新用户接管设备上的全部笔记（不含系统文件夹）
+     * <p>
+     * 改写 CLOUD_USER_ID 并标记为本地修改，发件箱触发器为每条笔记记录一次上传。
+     * </p>
+     *
+     * @param newUserId 新用户的云端ID
+     * @param listener 进度监听器，可为 null；只在笔记数超过一块时回调
+     * @return 接管的笔记数量
+     */
+    public int takeoverAll(String newUserId, ProgressListener listener) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int done = 0;
+        db.beginTransaction();
+        SQLiteStatement takeover = db.compileStatement(TAKEOVER_SQL);
+        try {
+            long minId = 0;
+            long maxId = -1;
+            int total = 0;
+            Cursor cursor = db.rawQuery("SELECT MIN(" + NoteColumns.ID + "), MAX(" + NoteColumns.ID
+                    + "), COUNT(*) FROM " + TABLE.NOTE + " WHERE " + USER_NOTES, null);
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    minId = cursor.getLong(0);
+                    maxId = cursor.getLong(1);
+                    total = cursor.getInt(2);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            boolean reportProgress = listener != null && total > TAKEOVER_CHUNK;
+            for (long from = minId; from <= maxId; from += TAKEOVER_CHUNK) {
+                takeover.bindString(1, newUserId);
+                takeover.bindLong(2, from);
+                takeover.bindLong(3, from + TAKEOVER_CHUNK);
+                done += takeover.executeUpdateDelete();
+                if (reportProgress) {
+                    listener.onProgress(done, total);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            takeover.close();
+        }
+
+        notifyChanged(done);
+        Log.d(TAG, "Takeover completed: " + done + " notes now belong to " + newUserId);
+        return done;
+    }
+
+    /**
+     * 把属于旧用户的笔记改为属于新用户，并标记为本地修改
+     *
+     * @return 更新的笔记数量
+     */
+    public int reassign(String oldUserId, String newUserId) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int rows;
+        db.beginTransaction();
+        SQLiteStatement reassign = db.compileStatement(REASSIGN_SQL);
+        try {
+            reassign.bindString(1, newUserId);
+            reassign.bindString(2, oldUserId);
+            rows = reassign.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            reassign.close();
+        }
+
+        notifyChanged(rows);
+        Log.d(TAG, "Reassigned " + rows + " notes from " + oldUserId + " to " + newUserId);
+        return rows;
+    }
+
+    /**
+     * 标记笔记为已同步
+     *
+     * @param noteIds 本地笔记ID
+     * @return 实际更新的笔记数量（不存在的ID不计）
+     */
+    public int markSynced(List<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        int rows = 0;
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < noteIds.size(); start += MAX_IDS_PER_STATEMENT) {
+                List<Long> chunk = noteIds.subList(start,
+                        Math.min(start + MAX_IDS_PER_STATEMENT, noteIds.size()));
+                StringBuilder sql = new StringBuilder(MARK_SYNCED_SQL_PREFIX);
+                for (int i = 0; i < chunk.size(); i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+
+                SQLiteStatement markSynced = db.compileStatement(sql.toString());
+                try {
+                    markSynced.bindLong(1, SyncConstants.SYNC_STATUS_SYNCED);
+                    markSynced.bindLong(2, now);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        markSynced.bindLong(i + 3, chunk.get(i));
+                    }
+                    rows += markSynced.executeUpdateDelete();
+                } finally {
+                    markSynced.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        notifyChanged(rows);
+        Log.d(TAG, "Marked " + rows + "/" + noteIds.size() + " notes as synced");
+        return rows;
+    }
+
+    private void notifyChanged(int rows) {
+        if (rows > 0) {
+            mContext.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+        }
+    }
+}
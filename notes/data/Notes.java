@@ -154,6 +154,11 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query and acknowledge pending sync operations
+     */
+    public static final Uri CONTENT_OUTBOX_URI = Uri.parse("content://" + AUTHORITY + "/outbox");
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -330,6 +335,300 @@ public class Notes {
          * <P> Type : TEXT </P>
          */
         public static final String CLOUD_NOTE_ID = "cloud_note_id";
+
+        /**
+         * Hash of the synced fields last confirmed by the server, empty if never synced
+         * <P> Type : TEXT </P>
+         */
+        public static final String SYNCED_HASH = "synced_hash";
+
+        /**
+         * Whether the note body is stored locally. 0 means only metadata and a preview
+         * (in {@link #SNIPPET}) were downloaded, the body is fetched when the note is opened
+         * <P> Type : INTEGER </P>
+         */
+        public static final String BODY_LOADED = "body_loaded";
+
+        /**
+         * Last time the note body was opened or fetched, used to evict cold bodies
+         * <P> Type : INTEGER (long) </P>
+         */
+        public static final String BODY_ACCESSED = "body_accessed";
+
+        /**
+         * Server-assigned revision of the cloud version this note was last synced with, 0 if unknown.
+         * A higher cloud revision means the cloud changed since then.
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CLOUD_VERSION = "cloud_version";
+    }
+
+    /**
+     * Columns of the sync outbox, one row per local mutation waiting to be pushed
+     */
+    public interface OutboxColumns {
+        /**
+         * The unique ID for a row, also the order in which operations happened
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note's id this operation belongs to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * Operation type, one of {@link #OP_CREATE}, {@link #OP_UPDATE},
+         * {@link #OP_MOVE}, {@link #OP_DELETE}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String OP_TYPE = "op_type";
+
+        /**
+         * Comma separated names of the note columns affected by this operation
+         * <P> Type: TEXT </P>
+         */
+        public static final String FIELDS = "fields";
+
+        /**
+         * Cloud note id captured at the time of the operation, kept for deletes
+         * because the note row is gone by the time the outbox is drained
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_NOTE_ID = "cloud_note_id";
+
+        /**
+         * Cloud user id owning the note, captured for deletes so that a delete
+         * is only pushed by the account which owned the note
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_USER_ID = "cloud_user_id";
+
+        /**
+         * Created date of the operation
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
+
+        public static final int OP_CREATE = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_MOVE   = 3;
+        public static final int OP_DELETE = 4;
+    }
+
+    /**
+     * Columns of the sync retry table, one row per note that failed to sync and
+     * is kept aside so that it does not block the rest of the sync
+     */
+    public interface RetryColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * Sync direction, one of {@link #DIRECTION_UPLOAD}, {@link #DIRECTION_DOWNLOAD}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String DIRECTION = "direction";
+
+        /**
+         * Local note id, 0 if unknown
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * Cloud note id, empty if the note has not been uploaded yet
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_NOTE_ID = "cloud_note_id";
+
+        /**
+         * JSON of the downloaded cloud note, only used by downloads
+         * <P> Type: TEXT </P>
+         */
+        public static final String PAYLOAD = "payload";
+
+        /**
+         * Number of failed attempts so far
+         * <P> Type: INTEGER </P>
+         */
+        public static final String ATTEMPTS = "attempts";
+
+        /**
+         * Message of the last failure
+         * <P> Type: TEXT </P>
+         */
+        public static final String LAST_ERROR = "last_error";
+
+        /**
+         * Time before which the note is not retried
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NEXT_RETRY_AT = "next_retry_at";
+
+        public static final int DIRECTION_UPLOAD   = 1;
+        public static final int DIRECTION_DOWNLOAD = 2;
+    }
+
+    /**
+     * Columns of the sync stats table, one row per finished sync
+     */
+    public interface StatsColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * Time the sync started
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String STARTED_AT = "started_at";
+
+        /**
+         * Total duration of the sync in milliseconds
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String DURATION = "duration";
+
+        /**
+         * Whether the sync succeeded, 1 or 0
+         * <P> Type: INTEGER </P>
+         */
+        public static final String SUCCESS = "success";
+
+        /**
+         * Error message of a failed sync
+         * <P> Type: TEXT </P>
+         */
+        public static final String ERROR = "error";
+
+        /**
+         * Durations of each phase in milliseconds
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String TOKEN_MS = "token_ms";
+        public static final String UPLOAD_MS = "upload_ms";
+        public static final String DOWNLOAD_MS = "download_ms";
+        public static final String PARSE_MS = "parse_ms";
+        public static final String APPLY_MS = "apply_ms";
+
+        /**
+         * Number of HTTP requests and retries
+         * <P> Type: INTEGER </P>
+         */
+        public static final String REQUESTS = "requests";
+        public static final String RETRIES = "retries";
+
+        /**
+         * Bytes sent and received on the wire
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String BYTES_UP = "bytes_up";
+        public static final String BYTES_DOWN = "bytes_down";
+
+        /**
+         * Note counters: pushed operations, applied cloud notes, conflicts, quarantined notes
+         * <P> Type: INTEGER </P>
+         */
+        public static final String NOTES_UPLOADED = "notes_uploaded";
+        public static final String NOTES_APPLIED = "notes_applied";
+        public static final String CONFLICTS = "conflicts";
+        public static final String QUARANTINED = "quarantined";
+    }
+
+    /**
+     * Columns of the sync conflict table, one row per note whose local and cloud versions diverged
+     */
+    public interface ConflictColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * Local note id, unique in the table
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * Cloud note id of the conflicting note
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_NOTE_ID = "cloud_note_id";
+
+        /**
+         * Sync field hash of the local version when the conflict was detected
+         * <P> Type: TEXT </P>
+         */
+        public static final String LOCAL_HASH = "local_hash";
+
+        /**
+         * Sync field hash of the cloud version
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_HASH = "cloud_hash";
+
+        /**
+         * JSON of the cloud version, used to resolve the conflict without downloading it again
+         * <P> Type: TEXT </P>
+         */
+        public static final String CLOUD_PAYLOAD = "cloud_payload";
+
+        /**
+         * Time the conflict was first detected
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String DETECTED_AT = "detected_at";
+    }
+
+    /**
+     * Columns of the text operation table, one row per note whose body is edited as a sequence CRDT
+     */
+    public interface TextStateColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * Local note id, unique in the table
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * Digest of the base text the character ids were derived from
+         * <P> Type: TEXT </P>
+         */
+        public static final String LINEAGE = "lineage";
+
+        /**
+         * Number of server operation batches already applied
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String SINCE = "since";
+
+        /**
+         * JSON of all characters in document order, including deleted ones
+         * <P> Type: TEXT </P>
+         */
+        public static final String STATE = "state";
+
+        /**
+         * JSON batch of local operations not yet acknowledged by the server
+         * <P> Type: TEXT </P>
+         */
+        public static final String PENDING = "pending";
     }
 
     public interface DataColumns {
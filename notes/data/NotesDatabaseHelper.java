@@ -22,9 +22,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.ConflictColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.data.Notes.RetryColumns;
+import net.micode.notes.data.Notes.StatsColumns;
+import net.micode.notes.data.Notes.TextStateColumns;
 
 
 /**
@@ -66,11 +71,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     /**
      * 数据库版本号
      * <p>
-     * 当前数据库版本为12，用于跟踪数据库结构变更。
+     * 当前数据库版本为15，用于跟踪数据库结构变更。
      * 当数据库版本变更时，onUpgrade方法会被调用以执行升级逻辑。
      * </p>
      */
-    private static final int DB_VERSION = 14;
+    private static final int DB_VERSION = 23;
 
     /**
      * 数据库表名常量接口
@@ -94,6 +99,47 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
          * </p>
          */
         public static final String DATA = "data";
+
+        /**
+         * 同步发件箱表名
+         * <p>
+         * 按发生顺序记录待推送到云端的本地操作（新建、修改、移动、删除），
+         * 由触发器在本地修改的同一事务中写入，同步时按顺序读取并合并。
+         * </p>
+         */
+        public static final String OUTBOX = "sync_outbox";
+
+        /**
+         * 同步重试表名
+         * <p>
+         * 记录多次同步失败的笔记（隔离区），按退避时间单独重试，不阻塞其余笔记的同步。
+         * </p>
+         */
+        public static final String RETRY = "sync_retry";
+
+        /**
+         * 同步统计表名
+         * <p>
+         * 每次同步结束写入一行，记录各阶段耗时、请求与流量、笔记数量，只保留最近的记录。
+         * </p>
+         */
+        public static final String STATS = "sync_stats";
+
+        /**
+         * 同步冲突表名
+         * <p>
+         * 记录本地与云端都修改过的笔记及其云端版本，解决前不上传该笔记，进程退出后仍可继续处理。
+         * </p>
+         */
+        public static final String CONFLICT = "sync_conflict";
+
+        /**
+         * 文本操作状态表名
+         * <p>
+         * 开启文本合并后，每条笔记正文的序列CRDT状态与尚未被云端确认的本地编辑操作。
+         * </p>
+         */
+        public static final String TEXT_STATE = "note_text_state";
     }
 
     /**
@@ -132,6 +178,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
      * <li>ORIGIN_PARENT_ID: 原始父文件夹ID，默认为0</li>
      * <li>GTASK_ID: Google Tasks ID，默认为空字符串</li>
      * <li>VERSION: 版本号，默认为0</li>
+     * <li>SYNCED_HASH: 云端确认过的同步字段哈希，用于跳过无变化的上传</li>
+     * <li>BODY_LOADED / BODY_ACCESSED: 正文是否已下载到本地，以及正文最近被打开或下载的时间</li>
+     * <li>CLOUD_VERSION: 上次同步时云端版本的修订号（服务端分配，单调递增）</li>
      * </ul>
      * </p>
      */
@@ -160,7 +209,12 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.CLOUD_USER_ID + " TEXT NOT NULL DEFAULT ''," +
             NoteColumns.CLOUD_DEVICE_ID + " TEXT NOT NULL DEFAULT ''," +
             NoteColumns.SYNC_STATUS + " INTEGER NOT NULL DEFAULT 0," +
-            NoteColumns.LAST_SYNC_TIME + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.LAST_SYNC_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CLOUD_NOTE_ID + " TEXT NOT NULL DEFAULT ''," +
+            NoteColumns.SYNCED_HASH + " TEXT NOT NULL DEFAULT ''," +
+            NoteColumns.BODY_LOADED + " INTEGER NOT NULL DEFAULT 1," +
+            NoteColumns.BODY_ACCESSED + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CLOUD_VERSION + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     /**
@@ -193,6 +247,16 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
+    /**
+     * 创建笔记表云端用户ID索引的SQL语句
+     * <p>
+     * 在note表的CLOUD_USER_ID字段上创建索引，提高按账号查询和批量更新笔记归属的效率。
+     * </p>
+     */
+    private static final String CREATE_NOTE_CLOUD_USER_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_cloud_user_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.CLOUD_USER_ID + ");";
+
     /**
      * 创建数据表索引的SQL语句
      * <p>
@@ -203,6 +267,192 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    /**
+     * 创建同步发件箱表的SQL语句
+     * <p>
+     * 创建sync_outbox表，包含以下字段：
+     * <ul>
+     * <li>ID: 主键，自增，同时表示操作发生的顺序</li>
+     * <li>NOTE_ID: 操作对应的笔记ID</li>
+     * <li>OP_TYPE: 操作类型（新建、修改、移动、删除）</li>
+     * <li>FIELDS: 受影响的列名，逗号分隔</li>
+     * <li>CLOUD_NOTE_ID: 操作发生时的云端笔记ID（删除操作依赖此列）</li>
+     * <li>CLOUD_USER_ID: 删除时笔记所属的云端用户ID，删除操作只由该账号推送</li>
+     * <li>CREATED_DATE: 操作时间</li>
+     * </ul>
+     * </p>
+     */
+    private static final String CREATE_OUTBOX_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.OUTBOX + "(" +
+            OutboxColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            OutboxColumns.NOTE_ID + " INTEGER NOT NULL," +
+            OutboxColumns.OP_TYPE + " INTEGER NOT NULL," +
+            OutboxColumns.FIELDS + " TEXT NOT NULL DEFAULT ''," +
+            OutboxColumns.CLOUD_NOTE_ID + " TEXT NOT NULL DEFAULT ''," +
+            OutboxColumns.CLOUD_USER_ID + " TEXT NOT NULL DEFAULT ''," +
+            OutboxColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" +
+        ")";
+
+    /**
+     * 在发件箱的NOTE_ID字段上创建索引，确认推送结果时按笔记删除记录
+     */
+    private static final String CREATE_OUTBOX_NOTE_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS outbox_note_id_index ON " +
+        TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + ");";
+
+    /**
+     * 创建同步重试表的SQL语句
+     * <p>
+     * 表结构说明：
+     * <ul>
+     * <li>DIRECTION: 同步方向（上传/下载）</li>
+     * <li>NOTE_ID / CLOUD_NOTE_ID: 失败笔记的本地ID与云端ID，与方向一起唯一确定一行</li>
+     * <li>PAYLOAD: 下载失败时保存的云端笔记JSON，重试时无需重新下载</li>
+     * <li>ATTEMPTS / LAST_ERROR / NEXT_RETRY_AT: 失败次数、最后一次错误与下次重试时间</li>
+     * </ul>
+     * </p>
+     */
+    private static final String CREATE_RETRY_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.RETRY + "(" +
+            RetryColumns.ID + " INTEGER PRIMARY KEY," +
+            RetryColumns.DIRECTION + " INTEGER NOT NULL," +
+            RetryColumns.NOTE_ID + " INTEGER NOT NULL DEFAULT 0," +
+            RetryColumns.CLOUD_NOTE_ID + " TEXT NOT NULL DEFAULT ''," +
+            RetryColumns.PAYLOAD + " TEXT NOT NULL DEFAULT ''," +
+            RetryColumns.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0," +
+            RetryColumns.LAST_ERROR + " TEXT NOT NULL DEFAULT ''," +
+            RetryColumns.NEXT_RETRY_AT + " INTEGER NOT NULL DEFAULT 0," +
+            "UNIQUE(" + RetryColumns.DIRECTION + "," + RetryColumns.NOTE_ID + ","
+                + RetryColumns.CLOUD_NOTE_ID + ")" +
+        ")";
+
+    /**
+     * 笔记被物理删除时清理其上传隔离记录，发件箱中的删除操作取代了上传失败的修改
+     */
+    private static final String RETRY_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS retry_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.RETRY +
+        "   WHERE " + RetryColumns.DIRECTION + "=" + RetryColumns.DIRECTION_UPLOAD +
+        "   AND " + RetryColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * 创建同步统计表的SQL语句
+     */
+    private static final String CREATE_STATS_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.STATS + "(" +
+            StatsColumns.ID + " INTEGER PRIMARY KEY," +
+            StatsColumns.STARTED_AT + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.DURATION + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.SUCCESS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.ERROR + " TEXT NOT NULL DEFAULT ''," +
+            StatsColumns.TOKEN_MS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.UPLOAD_MS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.DOWNLOAD_MS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.PARSE_MS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.APPLY_MS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.REQUESTS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.RETRIES + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.BYTES_UP + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.BYTES_DOWN + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.NOTES_UPLOADED + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.NOTES_APPLIED + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.CONFLICTS + " INTEGER NOT NULL DEFAULT 0," +
+            StatsColumns.QUARANTINED + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    /**
+     * 创建同步冲突表的SQL语句
+     * <p>
+     * 表结构说明：
+     * <ul>
+     * <li>NOTE_ID: 冲突的本地笔记ID，每条笔记最多一行</li>
+     * <li>CLOUD_NOTE_ID / CLOUD_PAYLOAD: 云端笔记ID与云端版本JSON，解决冲突时无需重新下载</li>
+     * <li>LOCAL_HASH / CLOUD_HASH: 发现冲突时双方的同步字段哈希</li>
+     * <li>DETECTED_AT: 首次发现冲突的时间，冲突按此列分页</li>
+     * </ul>
+     * </p>
+     */
+    private static final String CREATE_CONFLICT_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.CONFLICT + "(" +
+            ConflictColumns.ID + " INTEGER PRIMARY KEY," +
+            ConflictColumns.NOTE_ID + " INTEGER NOT NULL UNIQUE," +
+            ConflictColumns.CLOUD_NOTE_ID + " TEXT NOT NULL DEFAULT ''," +
+            ConflictColumns.LOCAL_HASH + " TEXT NOT NULL DEFAULT ''," +
+            ConflictColumns.CLOUD_HASH + " TEXT NOT NULL DEFAULT ''," +
+            ConflictColumns.CLOUD_PAYLOAD + " TEXT NOT NULL DEFAULT ''," +
+            ConflictColumns.DETECTED_AT + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    /**
+     * 在冲突表的DETECTED_AT字段上创建索引，按发现时间分页读取冲突
+     */
+    private static final String CREATE_CONFLICT_DETECTED_AT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS conflict_detected_at_index ON " +
+        TABLE.CONFLICT + "(" + ConflictColumns.DETECTED_AT + ");";
+
+    /**
+     * Drop the conflict of a physically deleted note
+     */
+    private static final String CONFLICT_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS conflict_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.CONFLICT +
+        "   WHERE " + ConflictColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * 创建文本操作状态表的SQL语句
+     * <p>
+     * 表结构说明：
+     * <ul>
+     * <li>NOTE_ID: 本地笔记ID，每条笔记最多一行</li>
+     * <li>LINEAGE: 字符ID所基于的基础文本摘要，与云端不一致时整行作废</li>
+     * <li>SINCE: 已合并的云端操作批次数</li>
+     * <li>STATE / PENDING: 全部字符（含已删除）与待确认的本地操作</li>
+     * </ul>
+     * </p>
+     */
+    private static final String CREATE_TEXT_STATE_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.TEXT_STATE + "(" +
+            TextStateColumns.ID + " INTEGER PRIMARY KEY," +
+            TextStateColumns.NOTE_ID + " INTEGER NOT NULL UNIQUE," +
+            TextStateColumns.LINEAGE + " TEXT NOT NULL DEFAULT ''," +
+            TextStateColumns.SINCE + " INTEGER NOT NULL DEFAULT 0," +
+            TextStateColumns.STATE + " TEXT NOT NULL DEFAULT '[]'," +
+            TextStateColumns.PENDING + " TEXT NOT NULL DEFAULT '[]'" +
+        ")";
+
+    /**
+     * Drop the text state of a physically deleted note
+     */
+    private static final String TEXT_STATE_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS text_state_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.TEXT_STATE +
+        "   WHERE " + TextStateColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * 需要推送到云端的笔记列，其中任一列变化即记录一次操作
+     */
+    private static final String[] OUTBOX_TRACKED_COLUMNS = new String[] {
+        NoteColumns.PARENT_ID,
+        NoteColumns.TITLE,
+        NoteColumns.SNIPPET,
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.TOP,
+        NoteColumns.LOCKED,
+        NoteColumns.TYPE,
+        NoteColumns.MODIFIED_DATE,
+        NoteColumns.CLOUD_USER_ID
+    };
+
     /**
      * Increase folder's note count when move note to the folder
      */
@@ -324,9 +574,112 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        "   , " + NoteColumns.LOCAL_MODIFIED + "=1" +
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * Record a create operation when a locally created note is inserted.
+     * Rows written by sync or presets keep local_modified=0 and are not recorded.
+     */
+    private static final String OUTBOX_ON_NOTE_INSERT_TRIGGER =
+        "CREATE TRIGGER outbox_on_note_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.LOCAL_MODIFIED + "=1" +
+        "  AND new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," +
+        OutboxColumns.OP_TYPE + "," + OutboxColumns.CLOUD_NOTE_ID + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," + OutboxColumns.OP_CREATE +
+        ",new." + NoteColumns.CLOUD_NOTE_ID + ");" +
+        " END";
+
+    /**
+     * Record an update (or a move when parent changes) for local modifications
+     * which touch a synced column. Version bumps and folder counters are ignored.
+     */
+    private static final String OUTBOX_ON_NOTE_UPDATE_TRIGGER =
+        "CREATE TRIGGER outbox_on_note_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.LOCAL_MODIFIED + "=1" +
+        "  AND new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        "  AND (old." + NoteColumns.LOCAL_MODIFIED + "=0 OR " + anyTrackedColumnChanged() + ")" +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," +
+        OutboxColumns.OP_TYPE + "," + OutboxColumns.FIELDS + "," + OutboxColumns.CLOUD_NOTE_ID + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," +
+        "    CASE WHEN old." + NoteColumns.PARENT_ID + "<>new." + NoteColumns.PARENT_ID +
+        "     THEN " + OutboxColumns.OP_MOVE + " ELSE " + OutboxColumns.OP_UPDATE + " END," +
+        "    " + changedTrackedColumns() + "," +
+        "    new." + NoteColumns.CLOUD_NOTE_ID + ");" +
+        " END";
+
+    /**
+     * Record a content update when data of a locally modified note changes
+     */
+    private static final String OUTBOX_ON_DATA_UPDATE_TRIGGER =
+        "CREATE TRIGGER outbox_on_data_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.CONTENT + " IS NOT new." + DataColumns.CONTENT +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," +
+        OutboxColumns.OP_TYPE + "," + OutboxColumns.FIELDS + "," + OutboxColumns.CLOUD_NOTE_ID + ")" +
+        "   SELECT " + NoteColumns.ID + "," + OutboxColumns.OP_UPDATE + ",'" + DataColumns.CONTENT + "'," +
+        NoteColumns.CLOUD_NOTE_ID + " FROM " + TABLE.NOTE +
+        "   WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID +
+        "   AND " + NoteColumns.LOCAL_MODIFIED + "=1;" +
+        " END";
+
+    /**
+     * Replace pending operations of a physically deleted note with a single delete.
+     * Notes which never reached the cloud leave nothing behind. The owner is kept
+     * because the note row, and with it the account it belonged to, is gone.
+     */
+    private static final String OUTBOX_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER outbox_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " WHEN old." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.OUTBOX +
+        "   WHERE " + OutboxColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        "  INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + "," +
+        OutboxColumns.OP_TYPE + "," + OutboxColumns.CLOUD_NOTE_ID + "," + OutboxColumns.CLOUD_USER_ID + ")" +
+        "   SELECT old." + NoteColumns.ID + "," + OutboxColumns.OP_DELETE +
+        ",old." + NoteColumns.CLOUD_NOTE_ID + ",old." + NoteColumns.CLOUD_USER_ID +
+        "   WHERE old." + NoteColumns.CLOUD_NOTE_ID + "<>'';" +
+        " END";
+
+    /**
+     * 构建“任一同步列发生变化”的触发器条件
+     */
+    private static String anyTrackedColumnChanged() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < OUTBOX_TRACKED_COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(" OR ");
+            }
+            String column = OUTBOX_TRACKED_COLUMNS[i];
+            sb.append("old.").append(column).append(" IS NOT new.").append(column);
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * 构建返回发生变化的同步列名（逗号分隔）的SQL表达式
+     */
+    private static String changedTrackedColumns() {
+        StringBuilder sb = new StringBuilder("rtrim(");
+        for (int i = 0; i < OUTBOX_TRACKED_COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(" || ");
+            }
+            String column = OUTBOX_TRACKED_COLUMNS[i];
+            sb.append("(CASE WHEN old.").append(column).append(" IS NOT new.").append(column)
+                    .append(" THEN '").append(column).append(",' ELSE '' END)");
+        }
+        return sb.append(", ',')").toString();
+    }
+
     /**
      * 构造器
      * 
@@ -346,6 +699,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
      */
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_cloud_note_id ON " + TABLE.NOTE
+                + "(" + NoteColumns.CLOUD_NOTE_ID + ")");
+        db.execSQL(CREATE_NOTE_CLOUD_USER_ID_INDEX_SQL);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
@@ -484,6 +840,94 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    /**
+     * 创建同步发件箱表
+     * <p>
+     * 创建sync_outbox表及其索引，并创建记录本地操作的触发器。
+     * 需要在note表和data表创建之后调用。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    public void createOutboxTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_OUTBOX_TABLE_SQL);
+        db.execSQL(CREATE_OUTBOX_NOTE_ID_INDEX_SQL);
+        reCreateOutboxTriggers(db);
+        Log.d(TAG, "outbox table has been created");
+    }
+
+    /**
+     * 重新创建同步发件箱触发器
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void reCreateOutboxTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_note_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_note_update");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_data_update");
+        db.execSQL("DROP TRIGGER IF EXISTS outbox_on_note_delete");
+
+        db.execSQL(OUTBOX_ON_NOTE_INSERT_TRIGGER);
+        db.execSQL(OUTBOX_ON_NOTE_UPDATE_TRIGGER);
+        db.execSQL(OUTBOX_ON_DATA_UPDATE_TRIGGER);
+        db.execSQL(OUTBOX_ON_NOTE_DELETE_TRIGGER);
+    }
+
+    /**
+     * 创建同步重试表
+     * <p>
+     * 创建重试表，以及笔记删除时清理上传隔离记录的触发器（V16 升级与新建数据库共用），需要在note表创建之后调用。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    public void createRetryTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_RETRY_TABLE_SQL);
+        db.execSQL(RETRY_ON_NOTE_DELETE_TRIGGER);
+        Log.d(TAG, "retry table has been created");
+    }
+
+    /**
+     * 创建同步统计表
+     *
+     * @param db SQLiteDatabase实例
+     */
+    public void createStatsTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_STATS_TABLE_SQL);
+        Log.d(TAG, "stats table has been created");
+    }
+
+    /**
+     * 创建同步冲突表
+     * <p>
+     * 创建sync_conflict表及其索引，并创建笔记删除时清理冲突的触发器。
+     * 需要在note表创建之后调用。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    public void createConflictTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_CONFLICT_TABLE_SQL);
+        db.execSQL(CREATE_CONFLICT_DETECTED_AT_INDEX_SQL);
+        db.execSQL(CONFLICT_ON_NOTE_DELETE_TRIGGER);
+        Log.d(TAG, "conflict table has been created");
+    }
+
+    /**
+     * 创建文本操作状态表
+     * <p>
+     * 创建note_text_state表，并创建笔记删除时清理状态的触发器。
+     * 需要在note表创建之后调用。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    public void createTextStateTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_TEXT_STATE_TABLE_SQL);
+        db.execSQL(TEXT_STATE_ON_NOTE_DELETE_TRIGGER);
+        Log.d(TAG, "text state table has been created");
+    }
+
     /**
      * 获取数据库帮助类单例实例
      * <p>
@@ -512,6 +956,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createOutboxTable(db);
+        createRetryTable(db);
+        createStatsTable(db);
+        createConflictTable(db);
+        createTextStateTable(db);
         createPresetTemplates(db);
     }
 
@@ -615,6 +1064,60 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        // 从V14升级到V15
+        if (oldVersion == 14) {
+            upgradeToV15(db);
+            oldVersion++;
+        }
+
+        // 从V15升级到V16
+        if (oldVersion == 15) {
+            upgradeToV16(db);
+            oldVersion++;
+        }
+
+        // 从V16升级到V17
+        if (oldVersion == 16) {
+            upgradeToV17(db);
+            oldVersion++;
+        }
+
+        // 从V17升级到V18
+        if (oldVersion == 17) {
+            upgradeToV18(db);
+            oldVersion++;
+        }
+
+        // 从V18升级到V19
+        if (oldVersion == 18) {
+            upgradeToV19(db);
+            oldVersion++;
+        }
+
+        // 从V19升级到V20
+        if (oldVersion == 19) {
+            upgradeToV20(db);
+            oldVersion++;
+        }
+
+        // 从V20升级到V21
+        if (oldVersion == 20) {
+            upgradeToV21(db);
+            oldVersion++;
+        }
+
+        // 从V21升级到V22
+        if (oldVersion == 21) {
+            upgradeToV22(db);
+            oldVersion++;
+        }
+
+        // 从V22升级到V23
+        if (oldVersion == 22) {
+            upgradeToV23(db);
+            oldVersion++;
+        }
+
         // 如果需要，重新创建触发器
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
@@ -996,6 +1499,164 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * 升级数据库到V15版本
+     * <p>
+     * 创建同步发件箱表和触发器，更新回收站触发器使其标记被连带移动的笔记，
+     * 并把现有 LOCAL_MODIFIED = 1 的笔记写入发件箱，保证升级前的修改不会丢失。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV15(SQLiteDatabase db) {
+        try {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CLOUD_NOTE_ID
+                    + " TEXT NOT NULL DEFAULT ''");
+        } catch (Exception e) {
+            Log.d(TAG, "CLOUD_NOTE_ID column already exists before V15 upgrade");
+        }
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        createOutboxTable(db);
+
+        db.execSQL("INSERT INTO " + TABLE.OUTBOX + "(" + OutboxColumns.NOTE_ID + ","
+                + OutboxColumns.OP_TYPE + "," + OutboxColumns.CLOUD_NOTE_ID + ","
+                + OutboxColumns.CREATED_DATE + ")"
+                + " SELECT " + NoteColumns.ID + ","
+                + " CASE WHEN " + NoteColumns.CLOUD_NOTE_ID + "='' THEN " + OutboxColumns.OP_CREATE
+                + " ELSE " + OutboxColumns.OP_UPDATE + " END,"
+                + NoteColumns.CLOUD_NOTE_ID + "," + NoteColumns.MODIFIED_DATE
+                + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.LOCAL_MODIFIED + "=1"
+                + " AND " + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM
+                + " ORDER BY " + NoteColumns.MODIFIED_DATE);
+        Log.i(TAG, "Upgraded database to V15: Created sync outbox");
+    }
+
+    /**
+     * 升级数据库到V16版本
+     * <p>
+     * 创建同步重试表，用于隔离反复同步失败的笔记。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV16(SQLiteDatabase db) {
+        createRetryTable(db);
+        Log.i(TAG, "Upgraded database to V16: Created sync retry table");
+    }
+
+    /**
+     * 升级数据库到V17版本
+     * <p>
+     * 创建同步统计表。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV17(SQLiteDatabase db) {
+        createStatsTable(db);
+        Log.i(TAG, "Upgraded database to V17: Created sync stats table");
+    }
+
+    /**
+     * 升级数据库到V18版本
+     * <p>
+     * 为笔记表添加 SYNCED_HASH 列。已有笔记的哈希为空，
+     * 下一次上传时照常完整上传并记录哈希。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV18(SQLiteDatabase db) {
+        try {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.SYNCED_HASH
+                    + " TEXT NOT NULL DEFAULT ''");
+        } catch (Exception e) {
+            Log.d(TAG, "Synced hash column already exists before V18 upgrade");
+        }
+        Log.i(TAG, "Upgraded database to V18: Added synced hash column");
+    }
+
+    /**
+     * 升级数据库到V19版本
+     * <p>
+     * 为笔记表添加 BODY_LOADED 与 BODY_ACCESSED 列。已有笔记的正文都在本地，BODY_LOADED 默认为 1。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV19(SQLiteDatabase db) {
+        try {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.BODY_LOADED
+                    + " INTEGER NOT NULL DEFAULT 1");
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.BODY_ACCESSED
+                    + " INTEGER NOT NULL DEFAULT 0");
+        } catch (Exception e) {
+            Log.d(TAG, "Body columns already exist before V19 upgrade");
+        }
+        Log.i(TAG, "Upgraded database to V19: Added body loaded columns");
+    }
+
+    /**
+     * 升级数据库到V20版本
+     * <p>
+     * 创建同步冲突表。升级前只保存在内存中的冲突无法恢复。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV20(SQLiteDatabase db) {
+        createConflictTable(db);
+        Log.i(TAG, "Upgraded database to V20: Created sync conflict table");
+    }
+
+    /**
+     * 升级数据库到V21版本
+     * <p>
+     * 为笔记表添加 CLOUD_VERSION 列。已有笔记的修订号为 0，
+     * 下载时退回比较修改时间，下一次同步写入云端修订号后改为比较修订号。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV21(SQLiteDatabase db) {
+        try {
+            db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CLOUD_VERSION
+                    + " INTEGER NOT NULL DEFAULT 0");
+        } catch (Exception e) {
+            Log.d(TAG, "Cloud version column already exists before V21 upgrade");
+        }
+        Log.i(TAG, "Upgraded database to V21: Added cloud version column");
+    }
+
+    /**
+     * 升级数据库到V22版本
+     * <p>
+     * 为笔记表的 CLOUD_USER_ID 列建立索引。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV22(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_CLOUD_USER_ID_INDEX_SQL);
+        Log.i(TAG, "Upgraded database to V22: Added cloud user id index");
+    }
+
+    /**
+     * 升级数据库到V23版本
+     * <p>
+     * 新增文本操作状态表。
+     * </p>
+     *
+     * @param db SQLiteDatabase实例
+     */
+    private void upgradeToV23(SQLiteDatabase db) {
+        createTextStateTable(db);
+        Log.i(TAG, "Upgraded database to V23: Added text state table");
+    }
+
     /**
      * 创建模板系统文件夹
      *
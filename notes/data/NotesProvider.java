@@ -32,6 +32,7 @@ import android.util.Log;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
 
@@ -64,6 +65,8 @@ import net.micode.notes.data.NotesDatabaseHelper.TABLE;
  * <li>content://micode_notes/data/# - 查询指定ID的数据</li>
  * <li>content://micode_notes/search - 搜索笔记</li>
  * <li>content://micode_notes/search_suggest_query - 搜索建议</li>
+ * <li>content://micode_notes/outbox - 查询/确认待推送的同步操作</li>
+ * <li>content://micode_notes/outbox/# - 确认指定ID的同步操作</li>
  * </ul>
  * </p>
  * 
@@ -120,6 +123,15 @@ public class NotesProvider extends ContentProvider {
      */
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    /**
+     * 同步发件箱URI匹配码
+     */
+    private static final int URI_OUTBOX          = 7;
+    /**
+     * 同步发件箱项URI匹配码
+     */
+    private static final int URI_OUTBOX_ITEM     = 8;
+
     /**
      * URI匹配器初始化块
      * <p>
@@ -135,6 +147,8 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
+        mMatcher.addURI(Notes.AUTHORITY, "outbox", URI_OUTBOX);
+        mMatcher.addURI(Notes.AUTHORITY, "outbox/#", URI_OUTBOX_ITEM);
     }
 
     /**
@@ -261,6 +275,11 @@ public class NotesProvider extends ContentProvider {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
                 break;
+            case URI_OUTBOX:
+                // 查询待推送的同步操作（发件箱只由触发器写入）
+                c = db.query(TABLE.OUTBOX, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -374,6 +393,15 @@ public class NotesProvider extends ContentProvider {
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
                 break;
+            case URI_OUTBOX:
+                // 确认已推送的同步操作
+                count = db.delete(TABLE.OUTBOX, selection, selectionArgs);
+                break;
+            case URI_OUTBOX_ITEM:
+                id = uri.getPathSegments().get(1);
+                count = db.delete(TABLE.OUTBOX,
+                        OutboxColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
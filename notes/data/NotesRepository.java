@@ -28,10 +28,13 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.model.Note;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.sync.SyncConstants;
+import net.micode.notes.sync.SyncMetrics;
+import net.micode.notes.sync.SyncOperation;
 import net.micode.notes.tool.ResourceParser;
 
 import java.util.ArrayList;
@@ -1756,7 +1759,7 @@ public class NotesRepository {
     /**
      * 查询所有本地修改过的笔记（LOCAL_MODIFIED = 1）
      * <p>
-     * 根据当前登录用户过滤，只返回该用户的笔记
+     * 根据当前登录用户过滤，只返回该用户的笔记。笔记与数据行由 {@link NoteBulkLoader} 一次联合查询读出。
      * </p>
      *
      * @param cloudUserId 当前用户的云端ID
@@ -1770,23 +1773,8 @@ public class NotesRepository {
                 String[] selectionArgs = new String[] { "1", cloudUserId };
                 String sortOrder = NoteColumns.MODIFIED_DATE + " DESC";
 
-                Cursor cursor = contentResolver.query(
-                    Notes.CONTENT_NOTE_URI,
-                    null,
-                    selection,
-                    selectionArgs,
-                    sortOrder
-                );
-
-                List<WorkingNote> notes = new ArrayList<>();
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        long id = cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID));
-                        WorkingNote note = WorkingNote.load(context, id);
-                        notes.add(note);
-                    }
-                    cursor.close();
-                }
+                List<WorkingNote> notes = new NoteBulkLoader(context)
+                        .loadWorkingNotes(selection, selectionArgs, sortOrder);
 
                 Log.d(TAG, "Found " + notes.size() + " locally modified notes for user: " + cloudUserId);
                 callback.onSuccess(notes);
@@ -1811,23 +1799,8 @@ public class NotesRepository {
                 String[] selectionArgs = new String[] { "1" };
                 String sortOrder = NoteColumns.MODIFIED_DATE + " DESC";
 
-                Cursor cursor = contentResolver.query(
-                    Notes.CONTENT_NOTE_URI,
-                    null,
-                    selection,
-                    selectionArgs,
-                    sortOrder
-                );
-
-                List<WorkingNote> notes = new ArrayList<>();
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        long id = cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID));
-                        WorkingNote note = WorkingNote.load(context, id);
-                        notes.add(note);
-                    }
-                    cursor.close();
-                }
+                List<WorkingNote> notes = new NoteBulkLoader(context)
+                        .loadWorkingNotes(selection, selectionArgs, sortOrder);
 
                 Log.d(TAG, "Found " + notes.size() + " locally modified notes");
                 callback.onSuccess(notes);
@@ -1868,6 +1841,230 @@ public class NotesRepository {
         });
     }
 
+    /**
+     * 标记笔记为已同步，并记录云端返回的笔记ID
+     * <p>
+     * 在同一次更新中写入 CLOUD_NOTE_ID 和 LOCAL_MODIFIED = 0，
+     * 因此不会在发件箱中产生新的操作。
+     * </p>
+     *
+     * @param noteId 笔记ID
+     * @param cloudNoteId 云端笔记ID，为空时保持不变
+     * @param callback 回调接口
+     */
+    public void markNoteSynced(long noteId, String cloudNoteId, Callback<Void> callback) {
+        markNoteSynced(noteId, cloudNoteId, null, callback);
+    }
+
+    /**
+     * 标记笔记为已同步，记录云端返回的笔记ID和云端确认的同步字段哈希
+     *
+     * @param noteId 笔记ID
+     * @param cloudNoteId 云端笔记ID，为空时保持不变
+     * @param syncedHash 云端已确认的同步字段哈希，为空时保持不变
+     * @param callback 回调接口
+     */
+    public void markNoteSynced(long noteId, String cloudNoteId, String syncedHash,
+            Callback<Void> callback) {
+        markNoteSynced(noteId, cloudNoteId, syncedHash, 0, callback);
+    }
+
+    /**
+     * 标记笔记为已同步，记录云端返回的笔记ID、云端确认的同步字段哈希与云端修订号
+     *
+     * @param noteId 笔记ID
+     * @param cloudNoteId 云端笔记ID，为空时保持不变
+     * @param syncedHash 云端已确认的同步字段哈希，为空时保持不变
+     * @param cloudVersion 服务端为这次写入分配的修订号，不大于 0 时保持不变
+     * @param callback 回调接口
+     */
+    public void markNoteSynced(long noteId, String cloudNoteId, String syncedHash,
+            int cloudVersion, Callback<Void> callback) {
+        executor.execute(() -> {
+            try {
+                ContentValues values = new ContentValues();
+                if (cloudNoteId != null && !cloudNoteId.isEmpty()) {
+                    values.put(NoteColumns.CLOUD_NOTE_ID, cloudNoteId);
+                }
+                if (syncedHash != null && !syncedHash.isEmpty()) {
+                    values.put(NoteColumns.SYNCED_HASH, syncedHash);
+                }
+                if (cloudVersion > 0) {
+                    values.put(NoteColumns.CLOUD_VERSION, cloudVersion);
+                }
+                values.put(NoteColumns.LOCAL_MODIFIED, 0);
+                values.put(NoteColumns.SYNC_STATUS, SyncConstants.SYNC_STATUS_SYNCED);
+                values.put(NoteColumns.LAST_SYNC_TIME, System.currentTimeMillis());
+
+                Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+                contentResolver.update(uri, values, null, null);
+
+                callback.onSuccess(null);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to mark note as synced: " + noteId, e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 读取笔记同步字段中云端确认过的哈希
+     * <p>
+     * 只读查询：通过 ContentProvider 更新笔记会使 VERSION 自增，不能在每次推送前写入。
+     * </p>
+     *
+     * @param noteId 笔记ID
+     * @param callback 回调接口，返回 SYNCED_HASH，笔记不存在或从未同步时为空字符串
+     */
+    public void getSyncedHash(long noteId, Callback<String> callback) {
+        executor.execute(() -> {
+            try {
+                Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+                String syncedHash = "";
+                Cursor cursor = contentResolver.query(uri,
+                        new String[] { NoteColumns.SYNCED_HASH }, null, null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            syncedHash = cursor.getString(0);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                callback.onSuccess(syncedHash != null ? syncedHash : "");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to read synced hash for note: " + noteId, e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 读取发件箱中待推送的操作（未合并，按发生顺序）
+     * <p>
+     * 只返回属于指定用户的笔记的操作；删除操作对应的笔记已不存在，按发件箱中记录的所属账号过滤，
+     * 所属账号为空的（删除时笔记尚未归属任何账号）删除记录也一并返回。
+     * </p>
+     *
+     * @param cloudUserId 当前用户的云端ID
+     * @param callback 回调接口，返回发件箱记录
+     */
+    public void getPendingOutbox(String cloudUserId, Callback<List<SyncOperation>> callback) {
+        executor.execute(() -> {
+            try {
+                String selection = "(" + OutboxColumns.OP_TYPE + " = " + OutboxColumns.OP_DELETE
+                        + " AND " + OutboxColumns.CLOUD_USER_ID + " IN (?, ''))"
+                        + " OR " + OutboxColumns.NOTE_ID + " IN (SELECT " + NoteColumns.ID
+                        + " FROM " + NotesDatabaseHelper.TABLE.NOTE
+                        + " WHERE " + NoteColumns.CLOUD_USER_ID + " = ?)";
+                String[] selectionArgs = new String[] { cloudUserId, cloudUserId };
+
+                Cursor cursor = contentResolver.query(
+                    Notes.CONTENT_OUTBOX_URI,
+                    new String[] {
+                        OutboxColumns.ID, OutboxColumns.NOTE_ID, OutboxColumns.OP_TYPE,
+                        OutboxColumns.FIELDS, OutboxColumns.CLOUD_NOTE_ID
+                    },
+                    selection,
+                    selectionArgs,
+                    OutboxColumns.ID + " ASC"
+                );
+
+                List<SyncOperation> entries = new ArrayList<>();
+                if (cursor != null) {
+                    try {
+                        while (cursor.moveToNext()) {
+                            entries.add(new SyncOperation(cursor.getLong(0), cursor.getLong(1),
+                                    cursor.getInt(2), cursor.getString(3), cursor.getString(4)));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+
+                Log.d(TAG, "Found " + entries.size() + " pending outbox entries for user: " + cloudUserId);
+                callback.onSuccess(entries);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to read sync outbox", e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 确认操作已推送，删除其合并范围内的发件箱记录
+     * <p>
+     * 推送过程中新产生的记录ID大于合并范围，会保留到下次同步。
+     * </p>
+     *
+     * @param operation 已推送的操作
+     * @param callback 回调接口，返回删除的记录数
+     */
+    public void ackOutbox(SyncOperation operation, Callback<Integer> callback) {
+        executor.execute(() -> {
+            try {
+                String selection = OutboxColumns.NOTE_ID + " = ? AND "
+                        + OutboxColumns.ID + " BETWEEN ? AND ?";
+                String[] selectionArgs = new String[] {
+                    String.valueOf(operation.getNoteId()),
+                    String.valueOf(operation.getFirstEntryId()),
+                    String.valueOf(operation.getLastEntryId())
+                };
+
+                int rows = contentResolver.delete(Notes.CONTENT_OUTBOX_URI, selection, selectionArgs);
+                callback.onSuccess(rows);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to ack outbox for note: " + operation.getNoteId(), e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 批量确认已推送的操作
+     *
+     * @param operations 已推送的合并操作
+     * @param callback 回调接口，返回删除的发件箱记录数量
+     */
+    public void ackOutbox(List<SyncOperation> operations, Callback<Integer> callback) {
+        executor.execute(() -> {
+            try {
+                int rows = 0;
+                for (SyncOperation operation : operations) {
+                    rows += contentResolver.delete(Notes.CONTENT_OUTBOX_URI,
+                            OutboxColumns.NOTE_ID + " = ? AND " + OutboxColumns.ID + " BETWEEN ? AND ?",
+                            new String[] {
+                                String.valueOf(operation.getNoteId()),
+                                String.valueOf(operation.getFirstEntryId()),
+                                String.valueOf(operation.getLastEntryId())
+                            });
+                }
+                callback.onSuccess(rows);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to ack outbox for " + operations.size() + " operations", e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 查询最近的同步统计记录
+     *
+     * @param limit 最多返回的数量
+     * @param callback 回调接口，返回按时间倒序排列的记录
+     */
+    public void getRecentSyncStats(int limit, Callback<List<SyncMetrics>> callback) {
+        executor.execute(() -> {
+            try {
+                callback.onSuccess(new SyncStatsStore(context).getRecent(limit));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to query sync stats", e);
+                callback.onError(e);
+            }
+        });
+    }
+
     /**
      * 根据noteId查找笔记
      *
@@ -1948,6 +2145,9 @@ public class NotesRepository {
 
     /**
      * 查询指定云端用户ID的笔记
+     * <p>
+     * 笔记与数据行由 {@link NoteBulkLoader} 一次联合查询读出。
+     * </p>
      *
      * @param cloudUserId 云端用户ID
      * @param callback 回调接口，返回笔记列表
@@ -1958,27 +2158,46 @@ public class NotesRepository {
                 String selection = NoteColumns.CLOUD_USER_ID + " = ?";
                 String[] selectionArgs = new String[] { cloudUserId };
 
-                Cursor cursor = contentResolver.query(
-                    Notes.CONTENT_NOTE_URI,
-                    null,
-                    selection,
-                    selectionArgs,
-                    null
-                );
+                List<WorkingNote> notes = new NoteBulkLoader(context)
+                        .loadWorkingNotes(selection, selectionArgs, null);
 
-                List<WorkingNote> notes = new ArrayList<>();
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        long noteId = cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID));
-                        WorkingNote note = WorkingNote.load(context, noteId);
-                        notes.add(note);
+                callback.onSuccess(notes);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to get notes by cloudUserId: " + cloudUserId, e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * 按笔记ID批量加载笔记
+     * <p>
+     * 由 {@link NoteBulkLoader} 一次联合查询读出，替代逐条 {@link WorkingNote#load}；
+     * 已不存在的笔记不出现在结果中。
+     * </p>
+     *
+     * @param noteIds 笔记ID
+     * @param callback 回调接口，返回笔记ID到笔记的映射
+     */
+    public void getNotesByIds(List<Long> noteIds, Callback<Map<Long, WorkingNote>> callback) {
+        executor.execute(() -> {
+            try {
+                Map<Long, WorkingNote> notes = new HashMap<>();
+                if (!noteIds.isEmpty()) {
+                    StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+                    for (int i = 0; i < noteIds.size(); i++) {
+                        selection.append(i == 0 ? "" : ",").append(noteIds.get(i).longValue());
                     }
-                    cursor.close();
-                }
+                    selection.append(')');
 
+                    for (WorkingNote note : new NoteBulkLoader(context)
+                            .loadWorkingNotes(selection.toString(), null, null)) {
+                        notes.put(note.getNoteId(), note);
+                    }
+                }
                 callback.onSuccess(notes);
             } catch (Exception e) {
-                Log.e(TAG, "Failed to get notes by cloudUserId: " + cloudUserId, e);
+                Log.e(TAG, "Failed to load " + noteIds.size() + " notes by id", e);
                 callback.onError(e);
             }
         });
@@ -1986,6 +2205,9 @@ public class NotesRepository {
 
     /**
      * 更新笔记的云端用户ID（用于匿名用户迁移）
+     * <p>
+     * 由 {@link NoteOwnershipStore} 在一个事务中以一条 UPDATE 语句完成。
+     * </p>
      *
      * @param oldUserId 旧的云端用户ID
      * @param newUserId 新的云端用户ID
@@ -1994,21 +2216,7 @@ public class NotesRepository {
     public void updateCloudUserId(String oldUserId, String newUserId, Callback<Integer> callback) {
         executor.execute(() -> {
             try {
-                ContentValues values = new ContentValues();
-                values.put(NoteColumns.CLOUD_USER_ID, newUserId);
-                values.put(NoteColumns.LOCAL_MODIFIED, 1);
-
-                String selection = NoteColumns.CLOUD_USER_ID + " = ?";
-                String[] selectionArgs = new String[] { oldUserId };
-
-                int rows = contentResolver.update(
-                    Notes.CONTENT_NOTE_URI,
-                    values,
-                    selection,
-                    selectionArgs
-                );
-
-                Log.d(TAG, "Updated " + rows + " notes from " + oldUserId + " to " + newUserId);
+                int rows = new NoteOwnershipStore(context).reassign(oldUserId, newUserId);
                 callback.onSuccess(rows);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to update cloudUserId", e);
@@ -2019,94 +2227,55 @@ public class NotesRepository {
 
     /**
      * 批量标记笔记为已同步（带事务支持）
+     * <p>
+     * 由 {@link NoteOwnershipStore} 在一个事务中以 IN 列表的 UPDATE 语句完成。
+     * </p>
      *
      * @param noteIds 笔记ID列表
      * @param callback 回调接口
      */
     public void batchMarkNotesSynced(List<Long> noteIds, Callback<Integer> callback) {
         executor.execute(() -> {
-            int successCount = 0;
-            Exception lastError = null;
-
-            for (Long noteId : noteIds) {
-                try {
-                    ContentValues values = new ContentValues();
-                    values.put(NoteColumns.LOCAL_MODIFIED, 0);
-                values.put(NoteColumns.SYNC_STATUS, SyncConstants.SYNC_STATUS_SYNCED);
-                    values.put(NoteColumns.LAST_SYNC_TIME, System.currentTimeMillis());
-
-                    Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                    int rows = contentResolver.update(uri, values, null, null);
-
-                    if (rows > 0) {
-                        successCount++;
-                        Log.d(TAG, "Marked note " + noteId + " as synced");
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to mark note as synced: " + noteId, e);
-                    lastError = e;
+            try {
+                int rows = new NoteOwnershipStore(context).markSynced(noteIds);
+                if (rows > 0 || noteIds.isEmpty()) {
+                    callback.onSuccess(rows);
+                } else {
+                    callback.onError(new Exception("All batch operations failed"));
                 }
-            }
-
-            Log.d(TAG, "Batch sync completed: " + successCount + "/" + noteIds.size() + " notes marked as synced");
-
-            if (successCount == noteIds.size()) {
-                callback.onSuccess(successCount);
-            } else if (successCount > 0) {
-                callback.onSuccess(successCount);
-            } else {
-                callback.onError(lastError != null ? lastError : new Exception("All batch operations failed"));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to mark notes as synced", e);
+                callback.onError(e);
             }
         });
     }
 
+    /**
+     * 新用户接管设备上的所有笔记
+     *
+     * @see #takeoverAllNotes(String, NoteOwnershipStore.ProgressListener, Callback)
+     */
+    public void takeoverAllNotes(String newUserId, Callback<Integer> callback) {
+        takeoverAllNotes(newUserId, null, callback);
+    }
+
     /**
      * 新用户接管设备上的所有笔记
      * <p>
      * 将设备上所有笔记（无论之前的cloud_user_id是谁）的cloud_user_id更新为新用户，
      * 并标记为需要同步。这样新用户登录后可以把设备上的所有笔记上传到云端。
+     * 由 {@link NoteOwnershipStore} 在一个事务中分块完成，笔记很多时按块回报进度。
      * </p>
      *
      * @param newUserId 新用户的云端ID
+     * @param listener 进度监听器，在后台线程回调，可为 null
      * @param callback 回调接口，返回接管的笔记数量
      */
-    public void takeoverAllNotes(String newUserId, Callback<Integer> callback) {
+    public void takeoverAllNotes(String newUserId, NoteOwnershipStore.ProgressListener listener,
+            Callback<Integer> callback) {
         executor.execute(() -> {
             try {
-                // 1. 获取设备上所有笔记（排除系统文件夹）
-                String selection = NoteColumns.TYPE + " != ?";
-                String[] selectionArgs = new String[] { String.valueOf(Notes.TYPE_SYSTEM) };
-
-                Cursor cursor = contentResolver.query(
-                    Notes.CONTENT_NOTE_URI,
-                    null,
-                    selection,
-                    selectionArgs,
-                    null
-                );
-
-                int takeoverCount = 0;
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        long noteId = cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID));
-
-                        // 更新笔记的cloud_user_id为新用户，并标记为本地修改
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.CLOUD_USER_ID, newUserId);
-                        values.put(NoteColumns.LOCAL_MODIFIED, 1);
-                        values.put(NoteColumns.SYNC_STATUS, 0);
-
-                        Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                        int rows = contentResolver.update(uri, values, null, null);
-
-                        if (rows > 0) {
-                            takeoverCount++;
-                        }
-                    }
-                    cursor.close();
-                }
-
-                Log.d(TAG, "Takeover completed: " + takeoverCount + " notes now belong to " + newUserId);
+                int takeoverCount = new NoteOwnershipStore(context).takeoverAll(newUserId, listener);
                 callback.onSuccess(takeoverCount);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to takeover notes for user: " + newUserId, e);
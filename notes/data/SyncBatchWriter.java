@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.OutboxColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.model.CloudNote;
+import net.micode.notes.sync.NoteContentHash;
+import net.micode.notes.sync.SyncConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 云端笔记批量写入器
+ * <p>
+ * 将一页下载的云端笔记在一个事务中写入本地数据库：
+ * <ol>
+ * <li>用一次 IN 查询把整页的云端ID解析为本地笔记（ID、修改时间、本地修改标记、云端修订号）</li>
+ * <li>在同一事务中用预编译语句插入新笔记、覆盖未修改的笔记</li>
+ * <li>双方都修改过的笔记不写入，作为冲突返回给调用方</li>
+ * </ol>
+ * 云端版本的新旧由服务端分配的修订号（{@link CloudNote#getVersion()}）与本地记录的
+ * {@link NoteColumns#CLOUD_VERSION} 判断，与设备时钟无关：修订号更大表示云端在上次同步后变化，
+ * 此时本地也有未上传的修改即为并发修改；修订号相同或更小表示云端版本本地已有。
+ * 任一方没有修订号（旧数据或服务端不分配修订号）时退回比较修改时间。
+ * 写入的行 LOCAL_MODIFIED = 0，不会进入同步发件箱，并记录云端版本的同步字段哈希，
+ * 之后没有实际修改的保存不会被重新上传；整页写完后只发送一次数据变更通知。
+ * </p>
+ * <p>
+ * 只含元数据的云端笔记（{@link CloudNote#isBodyOmitted()}）写入空正文，摘要使用云端预览，
+ * 并标记 BODY_LOADED = 0；之后按需下载的完整笔记只补全正文，不改动本地的元数据与修改标记。
+ * </p>
+ * <p>
+ * 所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class SyncBatchWriter {
+
+    private static final String TAG = "SyncBatchWriter";
+
+    /**
+     * 每个事务写入的笔记数量
+     */
+    public static final int PAGE_SIZE = 200;
+
+    /**
+     * SQLite 单条语句允许的最大绑定参数数量
+     */
+    private static final int MAX_SQL_ARGS = 999;
+
+    private static final String INSERT_NOTE_SQL =
+        "INSERT INTO " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," +
+            NoteColumns.TYPE + "," +
+            NoteColumns.TITLE + "," +
+            NoteColumns.SNIPPET + "," +
+            NoteColumns.CREATED_DATE + "," +
+            NoteColumns.MODIFIED_DATE + "," +
+            NoteColumns.CLOUD_NOTE_ID + "," +
+            NoteColumns.CLOUD_USER_ID + "," +
+            NoteColumns.SYNC_STATUS + "," +
+            NoteColumns.LAST_SYNC_TIME + "," +
+            NoteColumns.SYNCED_HASH + "," +
+            NoteColumns.BODY_LOADED + "," +
+            NoteColumns.CLOUD_VERSION + "," +
+            NoteColumns.LOCAL_MODIFIED +
+        ") VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,0)";
+
+    private static final String UPDATE_NOTE_SQL =
+        "UPDATE " + TABLE.NOTE + " SET " +
+            NoteColumns.PARENT_ID + "=?," +
+            NoteColumns.TYPE + "=?," +
+            NoteColumns.TITLE + "=?," +
+            NoteColumns.MODIFIED_DATE + "=?," +
+            NoteColumns.CLOUD_NOTE_ID + "=?," +
+            NoteColumns.CLOUD_USER_ID + "=?," +
+            NoteColumns.SYNC_STATUS + "=?," +
+            NoteColumns.LAST_SYNC_TIME + "=?," +
+            NoteColumns.SYNCED_HASH + "=?," +
+            NoteColumns.BODY_LOADED + "=?," +
+            NoteColumns.CLOUD_VERSION + "=?," +
+            NoteColumns.LOCAL_MODIFIED + "=0" +
+        " WHERE " + NoteColumns.ID + "=? AND " + NoteColumns.LOCAL_MODIFIED + "=0";
+
+    private static final String UPDATE_SNIPPET_SQL =
+        "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=?" +
+        " WHERE " + NoteColumns.ID + "=?";
+
+    private static final String MARK_BODY_LOADED_SQL =
+        "UPDATE " + TABLE.NOTE + " SET " +
+            NoteColumns.BODY_LOADED + "=1," +
+            NoteColumns.BODY_ACCESSED + "=?" +
+        " WHERE " + NoteColumns.ID + "=?";
+
+    private static final String INSERT_DATA_SQL =
+        "INSERT INTO " + TABLE.DATA + "(" +
+            DataColumns.NOTE_ID + "," +
+            DataColumns.MIME_TYPE + "," +
+            DataColumns.CONTENT + "," +
+            DataColumns.CREATED_DATE + "," +
+            DataColumns.MODIFIED_DATE +
+        ") VALUES(?,?,?,?,?)";
+
+    private static final String UPDATE_DATA_SQL =
+        "UPDATE " + TABLE.DATA + " SET " +
+            DataColumns.CONTENT + "=?," +
+            DataColumns.MODIFIED_DATE + "=?" +
+        " WHERE " + DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'";
+
+    private final Context mContext;
+    private final NotesDatabaseHelper mHelper;
+    private final AttachmentStore mAttachments;
+
+    public SyncBatchWriter(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+        mAttachments = new AttachmentStore(mContext);
+    }
+
+    /**
+     * 本地笔记的同步相关状态
+     */
+    private static class LocalState {
+        final long id;
+        final long modifiedDate;
+        final int localModified;
+        final boolean bodyLoaded;
+        final int cloudVersion;
+
+        LocalState(long id, long modifiedDate, int localModified, boolean bodyLoaded,
+                int cloudVersion) {
+            this.id = id;
+            this.modifiedDate = modifiedDate;
+            this.localModified = localModified;
+            this.bodyLoaded = bodyLoaded;
+            this.cloudVersion = cloudVersion;
+        }
+
+        /**
+         * 云端版本与本地上次同步的版本相比：大于 0 表示云端更新，0 表示相同，小于 0 表示云端版本更旧
+         */
+        int compareCloud(CloudNote cloudNote) {
+            if (cloudNote.getVersion() > 0 && cloudVersion > 0) {
+                return Integer.compare(cloudNote.getVersion(), cloudVersion);
+            }
+            // 没有修订号时退回比较修改时间，不晚于本地即视为本地已有
+            return cloudNote.getModifiedTime() > modifiedDate ? 1 : 0;
+        }
+    }
+
+    /**
+     * 冲突记录：本地笔记ID与对应的云端笔记
+     */
+    public static class ConflictEntry {
+        public final long localNoteId;
+        public final CloudNote cloudNote;
+
+        ConflictEntry(long localNoteId, CloudNote cloudNote) {
+            this.localNoteId = localNoteId;
+            this.cloudNote = cloudNote;
+        }
+    }
+
+    /**
+     * 写入失败的记录：云端笔记与错误信息
+     */
+    public static class FailedEntry {
+        public final CloudNote cloudNote;
+        public final String error;
+
+        FailedEntry(CloudNote cloudNote, String error) {
+            this.cloudNote = cloudNote;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 一页写入的结果
+     */
+    public static class Result {
+        public int inserted;
+        public int updated;
+        public int unchanged;
+        /** 补全了正文的只含元数据的笔记数量 */
+        public int bodiesLoaded;
+        public final List<ConflictEntry> conflicts = new ArrayList<>();
+        public final List<FailedEntry> failures = new ArrayList<>();
+
+        /**
+         * 已处理（含冲突）的笔记数量
+         */
+        public int processed() {
+            return inserted + updated + unchanged + bodiesLoaded + conflicts.size();
+        }
+
+        @Override
+        public String toString() {
+            return "inserted=" + inserted + ", updated=" + updated + ", unchanged=" + unchanged
+                    + ", bodiesLoaded=" + bodiesLoaded + ", conflicts=" + conflicts.size()
+                    + ", failed=" + failures.size();
+        }
+    }
+
+    /**
+     * 在一个事务中写入一页云端笔记
+     *
+     * @param page 云端笔记，建议不超过 {@link #PAGE_SIZE} 条
+     * @param userId 当前用户的云端ID
+     * @return 写入结果
+     */
+    public Result applyPage(List<CloudNote> page, String userId) {
+        return applyPage(page, userId, false);
+    }
+
+    /**
+     * 在一个事务中写入一页云端笔记
+     *
+     * @param page 云端笔记，建议不超过 {@link #PAGE_SIZE} 条
+     * @param userId 当前用户的云端ID
+     * @param overwriteUnchanged 为 true 时（对账修复），本地未修改的笔记即使云端版本没有变化也用云端版本覆盖
+     * @return 写入结果
+     */
+    public Result applyPage(List<CloudNote> page, String userId, boolean overwriteUnchanged) {
+        Result result = new Result();
+        if (page.isEmpty()) {
+            return result;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        Map<String, LocalState> byCloudId = resolveByCloudId(db, page);
+        Map<Long, LocalState> byLocalId = resolveByLocalId(db, page);
+
+        SQLiteStatement insertNote = db.compileStatement(INSERT_NOTE_SQL);
+        SQLiteStatement updateNote = db.compileStatement(UPDATE_NOTE_SQL);
+        SQLiteStatement updateSnippet = db.compileStatement(UPDATE_SNIPPET_SQL);
+        SQLiteStatement markBodyLoaded = db.compileStatement(MARK_BODY_LOADED_SQL);
+        SQLiteStatement insertData = db.compileStatement(INSERT_DATA_SQL);
+        SQLiteStatement updateData = db.compileStatement(UPDATE_DATA_SQL);
+        long now = System.currentTimeMillis();
+
+        db.beginTransaction();
+        try {
+            for (CloudNote cloudNote : page) {
+                try {
+                    LocalState local = findLocal(cloudNote, byCloudId, byLocalId);
+                    int order = local != null ? local.compareCloud(cloudNote) : 1;
+                    if (local == null) {
+                        long noteId = insertNote(insertNote, cloudNote, userId, now);
+                        writeContent(updateSnippet, insertData, null, noteId, cloudNote, now);
+                        result.inserted++;
+                    } else if (!local.bodyLoaded && !cloudNote.isBodyOmitted() && order == 0) {
+                        // 按需下载的正文：本地正文从未被编辑，只补全正文
+                        writeContent(updateSnippet, insertData, updateData, local.id, cloudNote, now);
+                        markBodyLoaded.clearBindings();
+                        markBodyLoaded.bindLong(1, now);
+                        markBodyLoaded.bindLong(2, local.id);
+                        markBodyLoaded.executeUpdateDelete();
+                        result.bodiesLoaded++;
+                    } else if (!overwriteUnchanged && order <= 0) {
+                        result.unchanged++;
+                    } else if (local.localModified != 0) {
+                        // 云端在上次同步后变化，本地也有未上传的修改：并发修改，不覆盖本地
+                        result.conflicts.add(new ConflictEntry(local.id, cloudNote));
+                    } else if (updateNote(updateNote, local.id, cloudNote, userId, now)) {
+                        writeContent(updateSnippet, insertData, updateData, local.id, cloudNote, now);
+                        result.updated++;
+                    } else {
+                        // 解析之后本地又被修改，交给冲突处理
+                        result.conflicts.add(new ConflictEntry(local.id, cloudNote));
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to apply cloud note: " + cloudNote.getCloudNoteId(), e);
+                    result.failures.add(new FailedEntry(cloudNote, String.valueOf(e.getMessage())));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertNote.close();
+            updateNote.close();
+            updateSnippet.close();
+            markBodyLoaded.close();
+            insertData.close();
+            updateData.close();
+        }
+
+        if (result.inserted + result.updated + result.bodiesLoaded > 0) {
+            mContext.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+        }
+        Log.d(TAG, "Applied page of " + page.size() + " cloud notes: " + result);
+        return result;
+    }
+
+    /**
+     * 删除记录的写入结果
+     */
+    public static class TombstoneResult {
+        /** 删除的本地笔记数量（不含文件夹连带删除的笔记） */
+        public int deleted;
+        /** 因有未上传的本地修改而保留的笔记数量 */
+        public int kept;
+
+        @Override
+        public String toString() {
+            return "deleted=" + deleted + ", kept=" + kept;
+        }
+    }
+
+    /**
+     * 在一个事务中应用云端的删除记录
+     * <p>
+     * 删除对应的本地笔记（文件夹连同其中的笔记）。笔记本身或文件夹中有未上传修改的保留不删，
+     * 之后上传时按原云端ID在云端复活。删除触发器为这些笔记写入的发件箱删除操作在同一事务中撤销，
+     * 不会再推回云端。
+     * </p>
+     *
+     * @param cloudNoteIds 云端已删除的笔记ID
+     * @return 写入结果
+     */
+    public TombstoneResult applyTombstones(List<String> cloudNoteIds) {
+        TombstoneResult result = new TombstoneResult();
+        if (cloudNoteIds.isEmpty()) {
+            return result;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long lastOutboxId = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(" + OutboxColumns.ID + "), 0) FROM " + TABLE.OUTBOX, null);
+            Map<String, LocalState> byCloudId = resolveCloudIds(db, cloudNoteIds);
+            for (LocalState local : byCloudId.values()) {
+                if (local.localModified != 0 || hasModifiedChildren(db, local.id)) {
+                    result.kept++;
+                    continue;
+                }
+                result.deleted += db.delete(TABLE.NOTE, NoteColumns.ID + "=?",
+                        new String[] { String.valueOf(local.id) });
+            }
+            // 以上删除产生的发件箱记录都在本事务中插入
+            db.delete(TABLE.OUTBOX, OutboxColumns.ID + ">?",
+                    new String[] { String.valueOf(lastOutboxId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (result.deleted > 0) {
+            mContext.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+        }
+        Log.d(TAG, "Applied " + cloudNoteIds.size() + " tombstones: " + result);
+        return result;
+    }
+
+    private static boolean hasModifiedChildren(SQLiteDatabase db, long folderId) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.PARENT_ID + "=? AND " + NoteColumns.LOCAL_MODIFIED + "<>0",
+                new String[] { String.valueOf(folderId) }) > 0;
+    }
+
+    private LocalState findLocal(CloudNote cloudNote, Map<String, LocalState> byCloudId,
+            Map<Long, LocalState> byLocalId) {
+        String cloudNoteId = cloudNote.getCloudNoteId();
+        if (!TextUtils.isEmpty(cloudNoteId)) {
+            return byCloudId.get(cloudNoteId);
+        }
+        Long localId = parseLocalId(cloudNote);
+        return localId != null ? byLocalId.get(localId) : null;
+    }
+
+    private long insertNote(SQLiteStatement stmt, CloudNote cloudNote, String userId, long now) {
+        stmt.clearBindings();
+        stmt.bindLong(1, parseParentId(cloudNote));
+        stmt.bindLong(2, cloudNote.getType());
+        stmt.bindString(3, nonNull(cloudNote.getTitle()));
+        stmt.bindString(4, "");
+        stmt.bindLong(5, cloudNote.getCreatedTime());
+        stmt.bindLong(6, cloudNote.getModifiedTime());
+        stmt.bindString(7, nonNull(cloudNote.getCloudNoteId()));
+        stmt.bindString(8, nonNull(userId));
+        stmt.bindLong(9, SyncConstants.SYNC_STATUS_SYNCED);
+        stmt.bindLong(10, now);
+        stmt.bindString(11, NoteContentHash.of(cloudNote));
+        stmt.bindLong(12, cloudNote.isBodyOmitted() ? 0 : 1);
+        stmt.bindLong(13, cloudNote.getVersion());
+        return stmt.executeInsert();
+    }
+
+    private boolean updateNote(SQLiteStatement stmt, long noteId, CloudNote cloudNote,
+            String userId, long now) {
+        stmt.clearBindings();
+        stmt.bindLong(1, parseParentId(cloudNote));
+        stmt.bindLong(2, cloudNote.getType());
+        stmt.bindString(3, nonNull(cloudNote.getTitle()));
+        stmt.bindLong(4, cloudNote.getModifiedTime());
+        stmt.bindString(5, nonNull(cloudNote.getCloudNoteId()));
+        stmt.bindString(6, nonNull(userId));
+        stmt.bindLong(7, SyncConstants.SYNC_STATUS_SYNCED);
+        stmt.bindLong(8, now);
+        stmt.bindString(9, NoteContentHash.of(cloudNote));
+        stmt.bindLong(10, cloudNote.isBodyOmitted() ? 0 : 1);
+        stmt.bindLong(11, cloudNote.getVersion());
+        stmt.bindLong(12, noteId);
+        return stmt.executeUpdateDelete() > 0;
+    }
+
+    /**
+     * 写入笔记内容：文件夹名存储在 SNIPPET 中，普通笔记内容写入 data 表（由触发器同步摘要）。
+     * 附件引用改写为本地路径，附件本身在打开笔记时按需下载。
+     * 只含元数据的笔记写入空正文（保留 data 行，补全正文时原地更新），摘要改为云端预览。
+     */
+    private void writeContent(SQLiteStatement updateSnippet, SQLiteStatement insertData,
+            SQLiteStatement updateData, long noteId, CloudNote cloudNote, long now) {
+        if (cloudNote.getType() == Notes.TYPE_FOLDER) {
+            setSnippet(updateSnippet, noteId, cloudNote.getTitle());
+            return;
+        }
+
+        String content = nonNull(mAttachments.toLocalForm(cloudNote.getContent()));
+        writeData(insertData, updateData, noteId, content, now);
+        if (cloudNote.isBodyOmitted()) {
+            setSnippet(updateSnippet, noteId, mAttachments.toLocalForm(cloudNote.getPreview()));
+        }
+    }
+
+    private static void writeData(SQLiteStatement insertData, SQLiteStatement updateData,
+            long noteId, String content, long now) {
+        if (updateData != null) {
+            updateData.clearBindings();
+            updateData.bindString(1, content);
+            updateData.bindLong(2, now);
+            updateData.bindLong(3, noteId);
+            if (updateData.executeUpdateDelete() > 0) {
+                return;
+            }
+        }
+
+        insertData.clearBindings();
+        insertData.bindLong(1, noteId);
+        insertData.bindString(2, DataConstants.NOTE);
+        insertData.bindString(3, content);
+        insertData.bindLong(4, now);
+        insertData.bindLong(5, now);
+        insertData.executeInsert();
+    }
+
+    private static void setSnippet(SQLiteStatement updateSnippet, long noteId, String snippet) {
+        updateSnippet.clearBindings();
+        updateSnippet.bindString(1, nonNull(snippet));
+        updateSnippet.bindLong(2, noteId);
+        updateSnippet.executeUpdateDelete();
+    }
+
+    /**
+     * 一次（按参数上限分块）查询解析整页的云端ID
+     */
+    private Map<String, LocalState> resolveByCloudId(SQLiteDatabase db, List<CloudNote> page) {
+        List<String> cloudIds = new ArrayList<>();
+        for (CloudNote cloudNote : page) {
+            if (!TextUtils.isEmpty(cloudNote.getCloudNoteId())) {
+                cloudIds.add(cloudNote.getCloudNoteId());
+            }
+        }
+        return resolveCloudIds(db, cloudIds);
+    }
+
+    private Map<String, LocalState> resolveCloudIds(SQLiteDatabase db, List<String> cloudIds) {
+        Map<String, LocalState> result = new HashMap<>();
+        for (int start = 0; start < cloudIds.size(); start += MAX_SQL_ARGS) {
+            List<String> chunk = cloudIds.subList(start, Math.min(start + MAX_SQL_ARGS, cloudIds.size()));
+            Cursor cursor = db.query(TABLE.NOTE,
+                    new String[] { NoteColumns.ID, NoteColumns.MODIFIED_DATE,
+                            NoteColumns.LOCAL_MODIFIED, NoteColumns.CLOUD_NOTE_ID,
+                            NoteColumns.BODY_LOADED, NoteColumns.CLOUD_VERSION },
+                    NoteColumns.CLOUD_NOTE_ID + " IN (" + placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]), null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        result.put(cursor.getString(3), new LocalState(cursor.getLong(0),
+                                cursor.getLong(1), cursor.getInt(2), cursor.getInt(4) != 0,
+                                cursor.getInt(5)));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 没有云端ID的笔记按本地ID匹配（与原逐条处理逻辑保持一致）
+     */
+    private Map<Long, LocalState> resolveByLocalId(SQLiteDatabase db, List<CloudNote> page) {
+        List<String> localIds = new ArrayList<>();
+        for (CloudNote cloudNote : page) {
+            if (TextUtils.isEmpty(cloudNote.getCloudNoteId())) {
+                Long localId = parseLocalId(cloudNote);
+                if (localId != null) {
+                    localIds.add(String.valueOf(localId));
+                }
+            }
+        }
+
+        Map<Long, LocalState> result = new HashMap<>();
+        for (int start = 0; start < localIds.size(); start += MAX_SQL_ARGS) {
+            List<String> chunk = localIds.subList(start, Math.min(start + MAX_SQL_ARGS, localIds.size()));
+            Cursor cursor = db.query(TABLE.NOTE,
+                    new String[] { NoteColumns.ID, NoteColumns.MODIFIED_DATE, NoteColumns.LOCAL_MODIFIED,
+                            NoteColumns.BODY_LOADED, NoteColumns.CLOUD_VERSION },
+                    NoteColumns.ID + " IN (" + placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]), null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        result.put(cursor.getLong(0), new LocalState(cursor.getLong(0),
+                                cursor.getLong(1), cursor.getInt(2), cursor.getInt(3) != 0,
+                                cursor.getInt(4)));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    private static Long parseLocalId(CloudNote cloudNote) {
+        try {
+            return Long.parseLong(cloudNote.getNoteId());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseParentId(CloudNote cloudNote) {
+        try {
+            return Long.parseLong(cloudNote.getParentId());
+        } catch (NumberFormatException e) {
+            return Notes.ID_ROOT_FOLDER;
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
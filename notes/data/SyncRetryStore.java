@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.RetryColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 同步重试表（隔离区）访问类
+ * <p>
+ * 单条笔记同步失败时记录到重试表，按失败次数指数退避，退避期间同步跳过该笔记，
+ * 其余笔记照常推进，同步检查点也不会因为一条坏数据而停滞。
+ * </p>
+ * <p>
+ * 所有方法都是同步的，需要在同步线程调用。
+ * </p>
+ */
+public class SyncRetryStore {
+
+    private static final String TAG = "SyncRetryStore";
+
+    /**
+     * 第一次失败后的退避时间
+     */
+    public static final long BACKOFF_BASE_MS = 60 * 1000L;
+
+    /**
+     * 退避时间上限
+     */
+    public static final long BACKOFF_MAX_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String KEY_WHERE =
+            RetryColumns.DIRECTION + "=? AND " + RetryColumns.NOTE_ID + "=? AND "
+            + RetryColumns.CLOUD_NOTE_ID + "=?";
+
+    private final NotesDatabaseHelper mHelper;
+
+    public SyncRetryStore(Context context) {
+        mHelper = NotesDatabaseHelper.getInstance(context.getApplicationContext());
+    }
+
+    /**
+     * 重试表中的一行
+     */
+    public static class Entry {
+        public final long noteId;
+        public final String cloudNoteId;
+        public final String payload;
+        public final int attempts;
+        public final long nextRetryAt;
+
+        Entry(long noteId, String cloudNoteId, String payload, int attempts, long nextRetryAt) {
+            this.noteId = noteId;
+            this.cloudNoteId = cloudNoteId;
+            this.payload = payload;
+            this.attempts = attempts;
+            this.nextRetryAt = nextRetryAt;
+        }
+    }
+
+    /**
+     * 计算第 attempts 次失败后的退避时间
+     */
+    public static long backoffMs(int attempts) {
+        int shift = Math.min(Math.max(attempts - 1, 0), 16);
+        return Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << shift);
+    }
+
+    /**
+     * 记录一次失败，失败次数加一并推迟下次重试时间
+     *
+     * @param direction 同步方向
+     * @param noteId 本地笔记ID，未知时为 0
+     * @param cloudNoteId 云端笔记ID，可为空
+     * @param payload 下载失败时的云端笔记JSON，上传时为 null
+     * @param error 错误信息
+     * @return 累计失败次数
+     */
+    public int recordFailure(int direction, long noteId, String cloudNoteId, String payload,
+            String error) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        String[] keyArgs = keyArgs(direction, noteId, cloudNoteId);
+
+        int attempts = 0;
+        Cursor cursor = db.query(TABLE.RETRY, new String[] { RetryColumns.ATTEMPTS },
+                KEY_WHERE, keyArgs, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    attempts = cursor.getInt(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        attempts++;
+
+        ContentValues values = new ContentValues();
+        values.put(RetryColumns.ATTEMPTS, attempts);
+        values.put(RetryColumns.LAST_ERROR, error != null ? error : "");
+        values.put(RetryColumns.NEXT_RETRY_AT, System.currentTimeMillis() + backoffMs(attempts));
+        if (payload != null) {
+            values.put(RetryColumns.PAYLOAD, payload);
+        }
+
+        if (db.update(TABLE.RETRY, values, KEY_WHERE, keyArgs) == 0) {
+            values.put(RetryColumns.DIRECTION, direction);
+            values.put(RetryColumns.NOTE_ID, noteId);
+            values.put(RetryColumns.CLOUD_NOTE_ID, cloudNoteId != null ? cloudNoteId : "");
+            db.insert(TABLE.RETRY, null, values);
+        }
+        Log.w(TAG, "Quarantined note " + noteId + "/" + cloudNoteId + " (direction=" + direction
+                + ", attempts=" + attempts + "): " + error);
+        return attempts;
+    }
+
+    /**
+     * 移除一行（同步成功或放弃重试时调用）
+     */
+    public void remove(int direction, long noteId, String cloudNoteId) {
+        mHelper.getWritableDatabase().delete(TABLE.RETRY, KEY_WHERE,
+                keyArgs(direction, noteId, cloudNoteId));
+    }
+
+    /**
+     * 查询某个方向上已到重试时间的记录
+     *
+     * @param direction 同步方向
+     * @param now 当前时间
+     */
+    public List<Entry> getDue(int direction, long now) {
+        return query(RetryColumns.DIRECTION + "=? AND " + RetryColumns.NEXT_RETRY_AT + "<=?",
+                new String[] { String.valueOf(direction), String.valueOf(now) });
+    }
+
+    /**
+     * 查询某个方向上的全部记录，按本地笔记ID索引
+     */
+    public Map<Long, Entry> getByNoteId(int direction) {
+        Map<Long, Entry> result = new HashMap<>();
+        for (Entry entry : query(RetryColumns.DIRECTION + "=?",
+                new String[] { String.valueOf(direction) })) {
+            result.put(entry.noteId, entry);
+        }
+        return result;
+    }
+
+    /**
+     * 清空重试表（切换账号时调用）
+     */
+    public void clear() {
+        mHelper.getWritableDatabase().delete(TABLE.RETRY, null, null);
+    }
+
+    private List<Entry> query(String selection, String[] selectionArgs) {
+        List<Entry> result = new ArrayList<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.RETRY,
+                new String[] { RetryColumns.NOTE_ID, RetryColumns.CLOUD_NOTE_ID,
+                        RetryColumns.PAYLOAD, RetryColumns.ATTEMPTS, RetryColumns.NEXT_RETRY_AT },
+                selection, selectionArgs, null, null, RetryColumns.ID);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(new Entry(cursor.getLong(0), cursor.getString(1),
+                            cursor.getString(2), cursor.getInt(3), cursor.getLong(4)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private static String[] keyArgs(int direction, long noteId, String cloudNoteId) {
+        return new String[] { String.valueOf(direction), String.valueOf(noteId),
+                cloudNoteId != null ? cloudNoteId : "" };
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.StatsColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.sync.SyncMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同步统计表访问类
+ * <p>
+ * 每次同步结束写入一行，只保留最近 {@link #MAX_ROWS} 次。所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class SyncStatsStore {
+
+    /**
+     * 保留的同步记录数量
+     */
+    public static final int MAX_ROWS = 100;
+
+    private final NotesDatabaseHelper mHelper;
+
+    public SyncStatsStore(Context context) {
+        mHelper = NotesDatabaseHelper.getInstance(context.getApplicationContext());
+    }
+
+    /**
+     * 写入一次同步的指标，并删除超出保留数量的旧记录
+     */
+    public void insert(SyncMetrics metrics) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insert(TABLE.STATS, null, metrics.toContentValues());
+            db.execSQL("DELETE FROM " + TABLE.STATS + " WHERE " + StatsColumns.ID
+                    + " NOT IN (SELECT " + StatsColumns.ID + " FROM " + TABLE.STATS
+                    + " ORDER BY " + StatsColumns.ID + " DESC LIMIT " + MAX_ROWS + ")");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 查询最近的同步记录
+     *
+     * @param limit 最多返回的数量
+     * @return 按时间倒序排列的记录
+     */
+    public List<SyncMetrics> getRecent(int limit) {
+        List<SyncMetrics> result = new ArrayList<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.STATS, null, null, null,
+                null, null, StatsColumns.ID + " DESC", String.valueOf(limit));
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(SyncMetrics.fromCursor(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+}
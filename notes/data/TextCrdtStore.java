@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextStateColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.model.CloudNote;
+import net.micode.notes.model.TextEditLog;
+import net.micode.notes.sync.NoteContentHash;
+import net.micode.notes.sync.SyncConstants;
+import net.micode.notes.sync.TextCrdt;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 笔记正文的文本操作状态表（note_text_state）
+ * <p>
+ * 开启文本合并后，每条编辑过的笔记在表中保存一份 {@link TextCrdt} 状态与尚未被云端确认的本地操作：
+ * <ul>
+ * <li>{@link #recordEdits}：保存笔记时把编辑器记录的编辑（或与基础文本的差异）转换为操作，追加到待确认操作</li>
+ * <li>{@link #prepare}：同步上传前取出谱系、已合并的云端批次数与待确认操作</li>
+ * <li>{@link #acknowledge}：云端合并后并入其他设备的操作、移除已确认的操作并写回笔记</li>
+ * </ul>
+ * 没有待确认操作、而笔记正文已被其他途径（下载、冲突解决）改写的状态视为过期，
+ * 下一次编辑时以当时的正文重新建立，谱系随之改变。
+ * </p>
+ * <p>
+ * 所有方法都是同步的，需要在后台线程调用。
+ * </p>
+ */
+public class TextCrdtStore {
+
+    private static final String TAG = "TextCrdtStore";
+
+    private static final String[] PROJECTION = new String[] {
+            TextStateColumns.LINEAGE,
+            TextStateColumns.SINCE,
+            TextStateColumns.STATE,
+            TextStateColumns.PENDING
+    };
+
+    private static final String WHERE_NOTE = TextStateColumns.NOTE_ID + "=?";
+
+    private static final String WHERE_TEXT_DATA = DataColumns.NOTE_ID + "=? AND "
+            + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'";
+
+    /**
+     * 一次上传要推送的内容
+     */
+    public static class Entry {
+        /** 字符ID所基于的基础文本摘要 */
+        public final String lineage;
+        /** 已合并的云端操作批次数 */
+        public final long since;
+        /** 待确认的本地操作批次 */
+        public final JSONArray pending;
+
+        Entry(String lineage, long since, JSONArray pending) {
+            this.lineage = lineage;
+            this.since = since;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * 表中的一行，已解析为 CRDT
+     */
+    private static class Row {
+        String lineage;
+        long since;
+        TextCrdt crdt;
+        JSONArray pending;
+    }
+
+    private final Context mContext;
+    private final NotesDatabaseHelper mHelper;
+
+    public TextCrdtStore(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+    }
+
+    /**
+     * 记录一次保存的编辑
+     *
+     * @param noteId 本地笔记ID
+     * @param site 本设备的站点ID
+     * @param base 编辑开始时的正文
+     * @param edits 编辑器记录的编辑，可为空（只对比 base 与 saved）
+     * @param saved 保存后的正文
+     */
+    public void recordEdits(long noteId, String site, String base, List<TextEditLog.Edit> edits,
+            String saved) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Row row = read(db, noteId, site);
+            if (row == null || (row.pending.length() == 0 && !row.crdt.getText().equals(base))) {
+                row = new Row();
+                row.lineage = NoteContentHash.textDigest(base);
+                row.since = 0;
+                row.crdt = TextCrdt.fromBase(base, site);
+                row.pending = new JSONArray();
+            }
+
+            List<TextCrdt.Op> ops = new ArrayList<>();
+            if (row.crdt.getText().equals(base)) {
+                try {
+                    for (TextEditLog.Edit edit : edits) {
+                        ops.addAll(row.crdt.edit(edit.start, edit.deleteCount, edit.inserted));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // 记录的编辑与正文对不上，剩余部分由下面的全文对比补齐
+                    Log.w(TAG, "Edit log of note " + noteId + " out of step: " + e.getMessage());
+                }
+            }
+            ops.addAll(row.crdt.replaceWith(saved));
+            if (ops.isEmpty()) {
+                db.setTransactionSuccessful();
+                return;
+            }
+            row.pending = TextCrdt.concat(row.pending, ops);
+            write(db, noteId, row);
+            db.setTransactionSuccessful();
+            Log.d(TAG, "Recorded " + ops.size() + " text operations for note " + noteId);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to record text operations for note " + noteId, e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 取出待推送的操作
+     * <p>
+     * 有待确认操作时，先把保存时未记录的修改（正文与状态不一致的部分）补记为操作。
+     * </p>
+     *
+     * @param content 笔记当前的正文
+     * @return 待推送的内容；没有状态、状态已过期或没有待确认操作时返回 null，调用方按普通方式上传
+     */
+    public Entry prepare(long noteId, String site, String content) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Row row = read(db, noteId, site);
+            if (row == null || row.pending.length() == 0) {
+                db.setTransactionSuccessful();
+                return null;
+            }
+            List<TextCrdt.Op> ops = row.crdt.replaceWith(content);
+            if (!ops.isEmpty()) {
+                row.pending = TextCrdt.concat(row.pending, ops);
+                write(db, noteId, row);
+            }
+            db.setTransactionSuccessful();
+            return new Entry(row.lineage, row.since, row.pending);
+        } catch (JSONException e) {
+            Log.e(TAG, "Corrupt text state of note " + noteId + ", dropping it", e);
+            db.delete(TABLE.TEXT_STATE, WHERE_NOTE, new String[] { String.valueOf(noteId) });
+            db.setTransactionSuccessful();
+            return null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 云端合并了推送的操作：并入其他设备的操作，移除已确认的操作，并把合并结果写回笔记
+     * <p>
+     * 不再有待确认操作时写入合并后的正文与云端标题并标记为已同步；
+     * 否则（推送期间又保存了编辑）只写入合并后的正文，笔记保持本地修改状态，由下一次同步推送剩余操作。
+     * </p>
+     *
+     * @param sent 推送的操作批次
+     * @param since 云端合并后的操作批次数
+     * @param remote 本设备尚未合并的其他设备操作批次
+     * @param merged 合并后的云端笔记
+     * @param cloudVersion 云端为这次合并分配的修订号
+     * @throws IllegalStateException 合并出的正文与云端不一致，或云端操作引用了未知字符；不写入任何修改
+     */
+    public void acknowledge(long noteId, String site, JSONArray sent, long since, JSONArray remote,
+            CloudNote merged, int cloudVersion) throws JSONException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        String[] noteArgs = new String[] { String.valueOf(noteId) };
+        db.beginTransaction();
+        try {
+            Row row = read(db, noteId, site);
+            if (row == null) {
+                db.setTransactionSuccessful();
+                return;
+            }
+            String content = readContent(db, noteId);
+            if (content != null) {
+                row.pending = TextCrdt.concat(row.pending, row.crdt.replaceWith(content));
+            }
+            for (int i = 0; i < remote.length(); i++) {
+                row.crdt.applyBatch(remote.getJSONArray(i));
+            }
+            row.pending = TextCrdt.without(row.pending, sent);
+            row.since = since;
+            String text = row.crdt.getText();
+            String hash = NoteContentHash.of(merged);
+            boolean synced = row.pending.length() == 0;
+            if (synced && !hash.equals(NoteContentHash.of(withContent(merged, text)))) {
+                throw new IllegalStateException("Merged text of note " + noteId + " diverged from cloud");
+            }
+            long now = System.currentTimeMillis();
+
+            ContentValues note = new ContentValues();
+            note.put(NoteColumns.CLOUD_VERSION, cloudVersion);
+            note.put(NoteColumns.SYNCED_HASH, hash);
+            if (synced) {
+                note.put(NoteColumns.TITLE, merged.getTitle());
+                note.put(NoteColumns.SYNC_STATUS, SyncConstants.SYNC_STATUS_SYNCED);
+                note.put(NoteColumns.LAST_SYNC_TIME, now);
+                note.put(NoteColumns.LOCAL_MODIFIED, 0);
+            }
+            // 先更新笔记再更新正文：已同步时 LOCAL_MODIFIED 先置 0，正文更新不会进入发件箱
+            db.update(TABLE.NOTE, note, NoteColumns.ID + "=?", noteArgs);
+            if (!text.equals(content)) {
+                ContentValues data = new ContentValues();
+                data.put(DataColumns.CONTENT, text);
+                data.put(DataColumns.MODIFIED_DATE, now);
+                db.update(TABLE.DATA, data, WHERE_TEXT_DATA, noteArgs);
+            }
+            write(db, noteId, row);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mContext.getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+    }
+
+    /**
+     * 笔记是否有基于指定谱系、尚未被云端确认的操作；有则云端的并发修改会在下一次推送时合并，不算冲突
+     */
+    public boolean hasPending(long noteId, String lineage) {
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE.TEXT_STATE,
+                new String[] { TextStateColumns.PENDING },
+                WHERE_NOTE + " AND " + TextStateColumns.LINEAGE + "=?",
+                new String[] { String.valueOf(noteId), lineage }, null, null, null);
+        try {
+            return cursor.moveToFirst() && !"[]".equals(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 丢弃一条笔记的状态（云端拒绝合并，或冲突已按整篇解决）
+     */
+    public void remove(long noteId) {
+        mHelper.getWritableDatabase().delete(TABLE.TEXT_STATE, WHERE_NOTE,
+                new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * 清空全部状态（切换账号时）
+     */
+    public void clear() {
+        int rows = mHelper.getWritableDatabase().delete(TABLE.TEXT_STATE, null, null);
+        Log.d(TAG, "Cleared " + rows + " text states");
+    }
+
+    private static Row read(SQLiteDatabase db, long noteId, String site) throws JSONException {
+        Cursor cursor = db.query(TABLE.TEXT_STATE, PROJECTION, WHERE_NOTE,
+                new String[] { String.valueOf(noteId) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Row row = new Row();
+            row.lineage = cursor.getString(0);
+            row.since = cursor.getLong(1);
+            row.crdt = TextCrdt.fromState(new JSONArray(cursor.getString(2)), site);
+            row.pending = new JSONArray(cursor.getString(3));
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void write(SQLiteDatabase db, long noteId, Row row) {
+        ContentValues values = new ContentValues();
+        values.put(TextStateColumns.NOTE_ID, noteId);
+        values.put(TextStateColumns.LINEAGE, row.lineage);
+        values.put(TextStateColumns.SINCE, row.since);
+        values.put(TextStateColumns.STATE, row.crdt.toState().toString());
+        values.put(TextStateColumns.PENDING, row.pending.toString());
+        db.insertWithOnConflict(TABLE.TEXT_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * 以 text 为正文的云端笔记副本，用于计算同步字段哈希
+     */
+    private static CloudNote withContent(CloudNote note, String text) {
+        return new CloudNote(note.getCloudNoteId(), note.getNoteId(), note.getTitle(), text,
+                note.getParentId(), note.getType(), note.getCreatedTime(), note.getModifiedTime(),
+                note.getVersion(), note.getDeviceId());
+    }
+
+    private static String readContent(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.query(TABLE.DATA, new String[] { DataColumns.CONTENT }, WHERE_TEXT_DATA,
+                new String[] { String.valueOf(noteId) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -21,7 +21,9 @@ import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
 
+import net.micode.notes.data.AttachmentStore;
 import net.micode.notes.data.Notes;
+import net.micode.notes.tool.AttachmentRefs;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -29,7 +31,8 @@ import org.json.JSONObject;
 /**
  * 云端笔记数据模型
  * <p>
- * 用于表示从云数据库下载的笔记数据
+ * 用于表示从云数据库下载的笔记数据。只下载元数据时（见 {@link #isBodyOmitted()}），
+ * 正文为空，改为携带预览与同步字段哈希。
  * </p>
  */
 public class CloudNote {
@@ -46,6 +49,10 @@ public class CloudNote {
     private long mModifiedTime;
     private int mVersion;
     private String mDeviceId;
+    private boolean mBodyOmitted;
+    private String mPreview = "";
+    private String mContentHash = "";
+    private String mTextLineage = "";
 
     /**
      * 从JSON构造CloudNote
@@ -61,16 +68,40 @@ public class CloudNote {
         mModifiedTime = json.optLong("modifiedTime", System.currentTimeMillis());
         mVersion = json.optInt("version", 1);
         mDeviceId = json.optString("deviceId", "");
+        mTextLineage = json.optString("textLineage", "");
+        if (json.optBoolean("bodyOmitted", false)) {
+            setBodyOmitted(json.optString("preview", ""), json.optString("hash", ""));
+        }
+    }
+
+    /**
+     * 由各字段构造CloudNote（用于二进制报文解码）
+     */
+    public CloudNote(String cloudNoteId, String noteId, String title, String content, String parentId,
+            int type, long createdTime, long modifiedTime, int version, String deviceId) {
+        mCloudNoteId = cloudNoteId != null ? cloudNoteId : "";
+        mNoteId = noteId != null ? noteId : "";
+        mTitle = title != null ? title : "";
+        mContent = content != null ? content : "";
+        mParentId = parentId != null ? parentId : "0";
+        mType = type;
+        mCreatedTime = createdTime;
+        mModifiedTime = modifiedTime;
+        mVersion = version;
+        mDeviceId = deviceId != null ? deviceId : "";
     }
 
     /**
      * 从WorkingNote构造CloudNote（用于上传）
+     * <p>
+     * 内容中的本地附件路径改写为与设备无关的云端形式，见 {@link AttachmentRefs}。
+     * </p>
      */
     public CloudNote(WorkingNote note, String deviceId) {
         mCloudNoteId = note.getCloudNoteId() != null ? note.getCloudNoteId() : "";
         mNoteId = String.valueOf(note.getNoteId());
         mTitle = note.getTitle();
-        mContent = note.getContent();
+        mContent = AttachmentRefs.toCloudForm(note.getContent());
         mParentId = String.valueOf(note.getFolderId());
         mType = note.getType();
         mCreatedTime = System.currentTimeMillis();
@@ -104,7 +135,7 @@ public class CloudNote {
 
             note.setType(mType);
             note.setTitle(mTitle);
-            note.setContent(mContent);
+            note.setContent(new AttachmentStore(context).toLocalForm(mContent));
             note.setFolderId(Long.parseLong(mParentId));
             note.setModifiedDate(mModifiedTime);
             note.setCloudUserId(userId);
@@ -176,9 +207,30 @@ public class CloudNote {
         json.put("modifiedTime", mModifiedTime);
         json.put("version", mVersion);
         json.put("deviceId", mDeviceId);
+        if (!mTextLineage.isEmpty()) {
+            json.put("textLineage", mTextLineage);
+        }
+        if (mBodyOmitted) {
+            json.put("bodyOmitted", true);
+            json.put("preview", mPreview);
+            json.put("hash", mContentHash);
+        }
         return json;
     }
 
+    /**
+     * 标记为只含元数据的笔记
+     *
+     * @param preview 正文开头的预览
+     * @param contentHash 云端笔记的同步字段哈希（{@link net.micode.notes.sync.NoteContentHash}）
+     */
+    public void setBodyOmitted(String preview, String contentHash) {
+        mBodyOmitted = true;
+        mContent = "";
+        mPreview = preview != null ? preview : "";
+        mContentHash = contentHash != null ? contentHash : "";
+    }
+
     // Getters
     public String getCloudNoteId() { return mCloudNoteId; }
     public String getNoteId() { return mNoteId; }
@@ -190,4 +242,12 @@ public class CloudNote {
     public long getModifiedTime() { return mModifiedTime; }
     public int getVersion() { return mVersion; }
     public String getDeviceId() { return mDeviceId; }
+    public boolean isBodyOmitted() { return mBodyOmitted; }
+    public String getPreview() { return mPreview; }
+    public String getContentHash() { return mContentHash; }
+
+    /**
+     * 云端正文由文本操作合并时的谱系（见 {@link net.micode.notes.sync.TextCrdt}），否则为空
+     */
+    public String getTextLineage() { return mTextLineage; }
 }
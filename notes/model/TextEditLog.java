@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 编辑器的编辑流记录
+ * <p>
+ * 作为 {@link TextWatcher} 挂在正文编辑器上，把每次文本变化记录为"在某位置删除若干字符并插入一段文本"，
+ * 连续输入与连续退格合并为一条。保存时交给 {@link net.micode.notes.data.TextCrdtStore} 转换为文本操作，
+ * 比保存时对比前后全文更准确地保留用户的意图（例如在重复的段落中输入）。
+ * </p>
+ * <p>
+ * 只有编辑器文本与笔记正文逐字一致时（普通文本模式）才记录；清单与富文本模式下编辑器内容与正文格式不同，
+ * 不记录编辑，保存时退回对比全文。编辑过多时同样放弃记录。只在主线程使用。
+ * </p>
+ */
+public class TextEditLog implements TextWatcher {
+
+    /**
+     * 最多记录的编辑数量，超过后放弃记录，保存时对比全文
+     */
+    private static final int MAX_EDITS = 2000;
+
+    /**
+     * 一次编辑：在 start 处删除 deleteCount 个字符，再插入 inserted
+     */
+    public static final class Edit {
+        public final int start;
+        public final int deleteCount;
+        public final String inserted;
+
+        public Edit(int start, int deleteCount, String inserted) {
+            this.start = start;
+            this.deleteCount = deleteCount;
+            this.inserted = inserted;
+        }
+    }
+
+    private final List<Edit> mEdits = new ArrayList<>();
+    private String mBase = "";
+    private boolean mTracking;
+    private String mRemoved = "";
+
+    /**
+     * 以 base 为基础文本重新开始记录
+     *
+     * @param base 编辑开始时的笔记正文
+     * @param trackEditor 编辑器文本是否与正文逐字一致；为 false 时只记住基础文本
+     */
+    public void start(String base, boolean trackEditor) {
+        mBase = base != null ? base : "";
+        mTracking = trackEditor;
+        mEdits.clear();
+    }
+
+    /**
+     * 保存后以新的正文为基础继续记录，是否记录编辑器不变
+     */
+    public void rebase(String base) {
+        mBase = base != null ? base : "";
+        mEdits.clear();
+    }
+
+    /**
+     * 停止记录，已记录的编辑作废（例如切换到清单模式）
+     */
+    public void stop() {
+        mTracking = false;
+        mEdits.clear();
+    }
+
+    /**
+     * 编辑开始时的笔记正文
+     */
+    public String getBase() {
+        return mBase;
+    }
+
+    /**
+     * 按发生顺序记录的编辑；未记录时为空
+     */
+    public List<Edit> getEdits() {
+        return Collections.unmodifiableList(mEdits);
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        if (mTracking) {
+            mRemoved = s.subSequence(start, start + count).toString();
+        }
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (!mTracking) {
+            return;
+        }
+        String inserted = s.subSequence(start, start + count).toString();
+        // 输入法常以整词替换提交，去掉前后未变的部分
+        int prefix = 0;
+        int maxPrefix = Math.min(mRemoved.length(), inserted.length());
+        while (prefix < maxPrefix && mRemoved.charAt(prefix) == inserted.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix && mRemoved.charAt(mRemoved.length() - 1 - suffix)
+                == inserted.charAt(inserted.length() - 1 - suffix)) {
+            suffix++;
+        }
+        int deleteCount = mRemoved.length() - prefix - suffix;
+        String text = inserted.substring(prefix, inserted.length() - suffix);
+        if (deleteCount > 0 || !text.isEmpty()) {
+            record(new Edit(start + prefix, deleteCount, text));
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    private void record(Edit edit) {
+        if (!mEdits.isEmpty()) {
+            Edit last = mEdits.get(mEdits.size() - 1);
+            if (edit.deleteCount == 0 && last.start + last.inserted.length() == edit.start) {
+                // 连续输入
+                mEdits.set(mEdits.size() - 1,
+                        new Edit(last.start, last.deleteCount, last.inserted + edit.inserted));
+                return;
+            }
+            if (edit.inserted.isEmpty() && last.inserted.isEmpty()
+                    && edit.start + edit.deleteCount == last.start) {
+                // 连续退格
+                mEdits.set(mEdits.size() - 1,
+                        new Edit(edit.start, last.deleteCount + edit.deleteCount, ""));
+                return;
+            }
+        }
+        if (mEdits.size() >= MAX_EDITS) {
+            stop();
+            return;
+        }
+        mEdits.add(edit);
+    }
+}
@@ -20,9 +20,12 @@ import android.appwidget.AppWidgetManager;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.AttachmentStore;
+import net.micode.notes.data.NoteBulkLoader;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
@@ -38,6 +41,11 @@ import net.micode.notes.tool.ResourceParser.NoteBgResources;
  * 表示正在编辑或查看的笔记对象，提供笔记的加载、保存和修改功能。
  * 支持文本笔记和通话记录笔记两种类型，包含笔记的所有属性和设置监听器。
  * </p>
+ * <p>
+ * 只同步了元数据的笔记没有正文（{@link #isBodyLoaded()} 为 false），
+ * {@link #load(Context, long)} 在后台线程中通过 {@link BodyLoader} 按需下载正文；
+ * 正文下载前不能修改内容。
+ * </p>
  */
 public class WorkingNote {
     /** 底层笔记对象 */
@@ -103,6 +111,15 @@ public class WorkingNote {
     /** 是否已删除 */
     private boolean mIsDeleted;
 
+    /** 正文是否已在本地 */
+    private boolean mBodyLoaded = true;
+
+    /** 上次同步时云端版本的修订号，未同步过为 0 */
+    private int mCloudVersion;
+
+    /** 正文按需下载器 */
+    private static volatile BodyLoader sBodyLoader;
+
     /** 笔记设置变更监听器 */
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
@@ -129,7 +146,10 @@ public class WorkingNote {
             NoteColumns.MODIFIED_DATE,
             NoteColumns.TITLE,
             NoteColumns.TYPE,
-            NoteColumns.SNIPPET
+            NoteColumns.SNIPPET,
+            NoteColumns.CLOUD_NOTE_ID,
+            NoteColumns.BODY_LOADED,
+            NoteColumns.CLOUD_VERSION
     };
 
     /** 数据 ID 列索引 */
@@ -243,6 +263,46 @@ public class WorkingNote {
         loadNote();
     }
 
+    /**
+     * 由批量加载的快照构造，不查询数据库
+     *
+     * @param context 应用上下文
+     * @param snapshot 笔记与数据行的快照
+     */
+    private WorkingNote(Context context, NoteBulkLoader.Snapshot snapshot) {
+        mContext = context;
+        mNoteId = snapshot.id;
+        mIsDeleted = false;
+        mNote = new Note();
+        mFolderId = snapshot.parentId;
+        mBgColorId = snapshot.bgColorId;
+        mWidgetId = snapshot.widgetId;
+        mWidgetType = snapshot.widgetType;
+        mAlertDate = snapshot.alertedDate;
+        mModifiedDate = snapshot.modifiedDate;
+        mType = snapshot.type;
+        mTitle = snapshot.title;
+        if (mType == Notes.TYPE_FOLDER && TextUtils.isEmpty(mTitle)) {
+            mTitle = snapshot.snippet;
+        }
+        mCloudNoteId = snapshot.cloudNoteId;
+        mBodyLoaded = snapshot.bodyLoaded;
+        mCloudVersion = snapshot.cloudVersion;
+
+        for (NoteBulkLoader.DataRow row : snapshot.getData()) {
+            if (DataConstants.NOTE.equals(row.mimeType)) {
+                mContent = row.content;
+                mMode = (int) row.data1;
+                mNote.setTextDataId(row.id);
+                mWallpaperPath = !TextUtils.isEmpty(row.data5) ? row.data5 : null;
+            } else if (DataConstants.CALL_NOTE.equals(row.mimeType)) {
+                mNote.setCallDataId(row.id);
+            } else {
+                Log.d(TAG, "Wrong note type with type:" + row.mimeType);
+            }
+        }
+    }
+
     /**
      * 加载笔记元数据
      * <p>
@@ -287,6 +347,12 @@ public class WorkingNote {
                 } else {
                     mCloudNoteId = "";
                 }
+
+                int bodyLoadedIndex = cursor.getColumnIndex(NoteColumns.BODY_LOADED);
+                mBodyLoaded = bodyLoadedIndex == -1 || cursor.getInt(bodyLoadedIndex) != 0;
+
+                int cloudVersionIndex = cursor.getColumnIndex(NoteColumns.CLOUD_VERSION);
+                mCloudVersion = cloudVersionIndex != -1 ? cursor.getInt(cloudVersionIndex) : 0;
             }
             cursor.close();
         } else {
@@ -380,10 +446,30 @@ public class WorkingNote {
         return note;
     }
 
+    /**
+     * 正文按需下载器
+     */
+    public interface BodyLoader {
+        /**
+         * 下载笔记正文并写入本地数据库，阻塞直到完成
+         *
+         * @return 正文是否已写入
+         */
+        boolean loadBody(Context context, long noteId);
+    }
+
+    /**
+     * 设置正文按需下载器
+     */
+    public static void setBodyLoader(BodyLoader loader) {
+        sBodyLoader = loader;
+    }
+
     /**
      * 加载已有笔记
      * <p>
-     * 从数据库加载指定 ID 的笔记。
+     * 从数据库加载指定 ID 的笔记。笔记正文尚未下载时，在后台线程中先下载正文再加载；
+     * 在主线程中不下载，返回的笔记 {@link #isBodyLoaded()} 为 false，调用方应在后台线程中重新加载。
      * </p>
      * 
      * @param context 应用上下文
@@ -391,7 +477,55 @@ public class WorkingNote {
      * @return 加载的 WorkingNote 对象
      */
     public static WorkingNote load(Context context, long id) {
-        return new WorkingNote(context, id, 0);
+        WorkingNote note = new WorkingNote(context, id, 0);
+        if (!note.mBodyLoaded && loadMissingBody(context, id)) {
+            note = new WorkingNote(context, id, 0);
+        }
+        return note;
+    }
+
+    /**
+     * 下载笔记尚未下载的正文
+     * <p>
+     * 只在后台线程中下载；在主线程中或没有注册 {@link BodyLoader} 时直接返回 false。
+     * </p>
+     *
+     * @param context 应用上下文
+     * @param id 笔记 ID
+     * @return 正文是否已写入
+     */
+    public static boolean loadMissingBody(Context context, long id) {
+        BodyLoader loader = sBodyLoader;
+        return loader != null && Looper.myLooper() != Looper.getMainLooper()
+                && loader.loadBody(context, id);
+    }
+
+    /**
+     * 由 {@link NoteBulkLoader} 读取的快照组装笔记，不再查询数据库
+     * <p>
+     * 快照中正文尚未下载时不会按需下载，需要正文的调用方应使用 {@link #load(Context, long)}。
+     * </p>
+     *
+     * @param context 应用上下文
+     * @param snapshot 笔记快照
+     * @return 组装的 WorkingNote 对象
+     */
+    public static WorkingNote fromSnapshot(Context context, NoteBulkLoader.Snapshot snapshot) {
+        return new WorkingNote(context, snapshot);
+    }
+
+    /**
+     * 正文是否已在本地
+     */
+    public boolean isBodyLoaded() {
+        return mBodyLoaded;
+    }
+
+    /**
+     * 上次同步时云端版本的修订号，上传时作为基础修订号；未同步过为 0
+     */
+    public int getCloudVersion() {
+        return mCloudVersion;
     }
 
     /**
@@ -606,6 +740,11 @@ public class WorkingNote {
      * @param text 文本内容
      */
     public void setWorkingText(String text) {
+        if (!mBodyLoaded) {
+            // 正文尚未下载，本地的空正文不能覆盖云端正文
+            Log.w(TAG, "Ignoring text change of note " + mNoteId + " before its body is loaded");
+            return;
+        }
         if (!TextUtils.equals(mContent, text)) {
             mContent = text;
             mNote.setTextData(DataColumns.CONTENT, mContent);
@@ -810,11 +949,15 @@ public class WorkingNote {
     }
 
     /**
-     * 设置笔记内容
+     * 设置笔记内容（完整正文）
      */
     public void setContent(String content) {
         mContent = content;
         mNote.setTextData(DataColumns.CONTENT, mContent);
+        if (!mBodyLoaded) {
+            mBodyLoaded = true;
+            mNote.setNoteValue(NoteColumns.BODY_LOADED, "1");
+        }
     }
 
     /**
@@ -869,11 +1012,16 @@ public class WorkingNote {
 
     /**
      * 从CloudNote更新当前笔记
-     * 用于云端下载后更新本地笔记
+     * 用于云端下载后更新本地笔记；只含元数据的云端笔记不改动正文，正文标记为待下载
      */
     public void updateFrom(CloudNote cloudNote) {
         setTitle(cloudNote.getTitle());
-        setContent(cloudNote.getContent());
+        if (cloudNote.isBodyOmitted()) {
+            mBodyLoaded = false;
+            mNote.setNoteValue(NoteColumns.BODY_LOADED, "0");
+        } else {
+            setContent(new AttachmentStore(mContext).toLocalForm(cloudNote.getContent()));
+        }
         setFolderId(Long.parseLong(cloudNote.getParentId()));
         setModifiedDate(cloudNote.getModifiedTime());
         setType(cloudNote.getType());
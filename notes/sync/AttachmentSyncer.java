@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.micode.notes.api.AttachmentClient;
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.AttachmentStore;
+import net.micode.notes.tool.AttachmentRefs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 附件同步
+ * <p>
+ * 上传笔记前先确保它引用的附件已在云端：一次请求询问服务端缺少哪些哈希，只上传缺少的
+ * （分块、可续传）。打开引用了本地缺失附件的笔记时再按需下载。
+ * 实例在一次同步内缓存已确认存在于云端的哈希，同一附件只询问一次。
+ * 所有方法都是阻塞的，需要在后台线程调用。
+ * </p>
+ */
+public class AttachmentSyncer {
+
+    private static final String TAG = "AttachmentSyncer";
+
+    private static final long CHECK_TIMEOUT_SECONDS = 30;
+    private static final long TRANSFER_TIMEOUT_SECONDS = 5 * 60;
+
+    private final AttachmentStore mStore;
+    private final AttachmentClient mClient;
+    private final Set<String> mConfirmedOnCloud = Collections.synchronizedSet(new HashSet<>());
+
+    public AttachmentSyncer(Context context, AttachmentClient client) {
+        mStore = new AttachmentStore(context);
+        mClient = client;
+    }
+
+    /**
+     * 为当前登录用户创建，未登录时返回 null
+     */
+    public static AttachmentSyncer forCurrentUser(Context context) {
+        UserAuthManager authManager = UserAuthManager.getInstance(context);
+        if (!authManager.isLoggedIn()) {
+            return null;
+        }
+        return new AttachmentSyncer(context, new AttachmentClient(authManager.getAuthToken()));
+    }
+
+    /**
+     * 确保内容引用的附件都已上传
+     *
+     * @param content 笔记内容
+     * @return 是否全部就绪；有附件上传失败时返回 false，调用方应推迟上传该笔记
+     * @throws TimeoutException 网络整体不可用
+     */
+    public boolean pushReferencedBlobs(String content) throws Exception {
+        List<String> candidates = new ArrayList<>();
+        for (String hash : AttachmentRefs.referencedHashes(content)) {
+            if (mConfirmedOnCloud.contains(hash)) {
+                continue;
+            }
+            if (!mStore.has(hash)) {
+                // 本设备也没有该附件（来自其他设备且尚未下载），云端必然已有
+                continue;
+            }
+            candidates.add(hash);
+        }
+        if (candidates.isEmpty()) {
+            return true;
+        }
+
+        List<String> missing = CloudAwait.await(callback -> mClient.checkMissing(candidates, callback),
+                CHECK_TIMEOUT_SECONDS, "查询附件超时");
+        boolean allUploaded = true;
+        for (String hash : candidates) {
+            if (!missing.contains(hash)) {
+                mConfirmedOnCloud.add(hash);
+                continue;
+            }
+            File file = mStore.fileFor(hash);
+            try {
+                CloudAwait.await(callback -> mClient.uploadBlob(hash, file, callback),
+                        TRANSFER_TIMEOUT_SECONDS, "上传附件超时: " + hash);
+                mConfirmedOnCloud.add(hash);
+                Log.d(TAG, "Uploaded blob " + hash + " (" + file.length() + " bytes)");
+            } catch (TimeoutException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to upload blob " + hash + ": " + e.getMessage());
+                allUploaded = false;
+            }
+        }
+        return allUploaded;
+    }
+
+    /**
+     * 内容引用的附件中本地缺失的哈希
+     */
+    public List<String> findMissingLocally(String content) {
+        List<String> missing = new ArrayList<>();
+        for (String hash : AttachmentRefs.referencedHashes(content)) {
+            if (!mStore.has(hash)) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * 下载内容引用的、本地缺失的附件
+     *
+     * @return 成功下载的数量
+     */
+    public int fetchMissingBlobs(String content) throws Exception {
+        int fetched = 0;
+        for (String hash : findMissingLocally(content)) {
+            File temp = mStore.newTempFile();
+            try {
+                CloudAwait.await(callback -> mClient.downloadBlob(hash, temp, callback),
+                        TRANSFER_TIMEOUT_SECONDS, "下载附件超时: " + hash);
+                mStore.commit(temp, hash);
+                fetched++;
+            } catch (TimeoutException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to fetch blob " + hash + ": " + e.getMessage());
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    Log.w(TAG, "Failed to delete temp file " + temp);
+                }
+            }
+        }
+        return fetched;
+    }
+}
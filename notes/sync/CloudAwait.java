@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import net.micode.notes.api.CloudCallback;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 在同步线程中等待云端异步调用的结果
+ * <p>
+ * 供 {@link SyncManager}、{@link AttachmentSyncer}、{@link NoteBodyFetcher} 共用，
+ * 不能在主线程调用。
+ * </p>
+ */
+final class CloudAwait {
+
+    /**
+     * 可等待的云端调用
+     */
+    interface Call<T> {
+        void run(CloudCallback<T> callback);
+    }
+
+    private CloudAwait() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 发起调用并等待回调
+     *
+     * @param call 云端调用
+     * @param timeoutSeconds 等待时限（秒）
+     * @param timeoutMessage 超时异常的消息
+     * @return 调用结果
+     * @throws TimeoutException 超时未回调
+     * @throws Exception 调用返回错误
+     */
+    static <T> T await(Call<T> call, long timeoutSeconds, String timeoutMessage) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<T> resultRef = new AtomicReference<>();
+        final AtomicReference<String> errorRef = new AtomicReference<>();
+
+        call.run(new CloudCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                resultRef.set(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                errorRef.set(error != null ? error : "unknown");
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(timeoutSeconds, TimeUnit.SECONDS)) {
+            throw new TimeoutException(timeoutMessage);
+        }
+        if (errorRef.get() != null) {
+            throw new Exception(errorRef.get());
+        }
+        return resultRef.get();
+    }
+}
@@ -38,6 +38,15 @@ public class Conflict {
         VERSION_MISMATCH   // 版本号不匹配
     }
 
+    /**
+     * 冲突的解决方式
+     */
+    public enum Resolution {
+        KEEP_LOCAL,        // 保留本地版本，上传覆盖云端
+        KEEP_CLOUD,        // 采用云端版本
+        MERGE              // 保存合并后的内容并上传
+    }
+
     public Conflict(WorkingNote localNote, CloudNote cloudNote) {
         this(localNote, cloudNote, ConflictType.BOTH_MODIFIED);
     }
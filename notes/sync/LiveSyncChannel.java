@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.micode.notes.api.AliyunConfig;
+import net.micode.notes.api.HttpClientProvider;
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * 实时同步通道
+ * <p>
+ * 应用在前台时与后端保持一条 WebSocket 长连接（{@code <基础地址>/live}），
+ * 服务端在笔记写入后推送变更通知：
+ * <pre>
+ * {"type":"changes","deviceId":"...","notes":[{"cloudNoteId":"...","version":3}],"deleted":["..."]}
+ * </pre>
+ * 收到通知后：
+ * <ul>
+ * <li>本设备发出的变更忽略</li>
+ * <li>本地已有相同或更新修订号（{@link Notes.NoteColumns#CLOUD_VERSION}）的笔记跳过</li>
+ * <li>其余笔记经 {@link SyncManager#syncNotesById} 定向下载；含删除或笔记过多时改为一次增量同步</li>
+ * </ul>
+ * 每次连接建立时执行一次增量同步，补上断开期间错过的变更。
+ * 断开后按指数退避重连；应用进入后台、用户退出登录或关闭该选项时断开，
+ * 此时跨设备的变更仍由推送与 {@link SyncScheduler} 的轮询同步送达。
+ * 后端不支持该通道（握手返回 404）时本次前台期间不再重试。
+ * </p>
+ * <p>
+ * 应用在前台（见 {@link #install(Application)}）或持有引用时保持连接：
+ * 前台状态是一个布尔标记，不参与引用计数；测试工具可以用 {@link #acquire()} / {@link #release()}
+ * 在后台保持连接。
+ * </p>
+ */
+public class LiveSyncChannel {
+
+    private static final String TAG = "LiveSyncChannel";
+
+    private static final String PREFS_SYNC = "sync_settings";
+    private static final String KEY_LIVE_SYNC = "live_sync";
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    /**
+     * 最后一个前台 Activity 停止后延迟断开，避免旋转屏幕或页面切换时反复重连
+     */
+    private static final long BACKGROUND_GRACE_MS = 5000;
+
+    private static final int NORMAL_CLOSURE = 1000;
+
+    /**
+     * 静态内部类实现单例模式（Initialization-on-demand holder idiom）
+     */
+    private static class Holder {
+        private static final LiveSyncChannel INSTANCE = new LiveSyncChannel();
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private Context mContext;
+    private SharedPreferences mPrefs;
+
+    // 以下状态由 this 保护
+    private boolean mForeground;
+    private int mHolders;
+    private WebSocket mWebSocket;
+    private boolean mConnected;
+    private boolean mUnsupported;
+    private int mAttempt;
+    private ScheduledFuture<?> mPendingReconnect;
+    private ScheduledFuture<?> mPendingRelease;
+
+    private LiveSyncChannel() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 获取单例
+     */
+    public static LiveSyncChannel getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * 初始化并跟踪应用前后台：有 Activity 处于 started 状态时保持连接
+     *
+     * @param application 应用
+     */
+    public static void install(Application application) {
+        LiveSyncChannel channel = getInstance();
+        channel.initialize(application);
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            private int mStarted;
+
+            @Override
+            public void onActivityStarted(@NonNull Activity activity) {
+                if (mStarted++ == 0) {
+                    channel.enterForeground();
+                } else {
+                    // 登录页返回等场景：登录状态可能已变化
+                    channel.refresh();
+                }
+            }
+
+            @Override
+            public void onActivityStopped(@NonNull Activity activity) {
+                if (mStarted > 0 && --mStarted == 0) {
+                    channel.leaveForegroundDelayed(BACKGROUND_GRACE_MS);
+                }
+            }
+
+            @Override
+            public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityResumed(@NonNull Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(@NonNull Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(@NonNull Activity activity) {
+            }
+        });
+    }
+
+    /**
+     * 初始化
+     *
+     * @param context 应用上下文
+     */
+    public synchronized void initialize(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_SYNC, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 设置是否启用实时通道
+     */
+    public void setEnabled(boolean enabled) {
+        mPrefs.edit().putBoolean(KEY_LIVE_SYNC, enabled).apply();
+        refresh();
+    }
+
+    /**
+     * 是否启用实时通道
+     */
+    public boolean isEnabled() {
+        return mPrefs != null && mPrefs.getBoolean(KEY_LIVE_SYNC, true);
+    }
+
+    /**
+     * 通道是否已连接
+     */
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * 增加一个连接引用
+     */
+    public synchronized void acquire() {
+        if (!isHeld()) {
+            mUnsupported = false;
+        }
+        mHolders++;
+        refresh();
+    }
+
+    /**
+     * 释放一个连接引用，不在前台且最后一个引用释放后断开
+     */
+    public synchronized void release() {
+        if (mHolders > 0) {
+            mHolders--;
+        }
+        refresh();
+    }
+
+    /**
+     * 应用回到前台：取消尚未执行的延迟断开
+     * <p>
+     * 前台状态只是一个标记，在宽限期内回到前台不会重复计入。
+     * </p>
+     */
+    private synchronized void enterForeground() {
+        if (mPendingRelease != null) {
+            mPendingRelease.cancel(false);
+            mPendingRelease = null;
+        }
+        if (!isHeld()) {
+            mUnsupported = false;
+        }
+        mForeground = true;
+        refresh();
+    }
+
+    /**
+     * 应用进入后台：宽限期后清除前台标记
+     */
+    private synchronized void leaveForegroundDelayed(long delayMs) {
+        if (mPendingRelease != null) {
+            mPendingRelease.cancel(false);
+        }
+        mPendingRelease = mScheduler.schedule(() -> {
+            synchronized (LiveSyncChannel.this) {
+                mPendingRelease = null;
+                mForeground = false;
+                refresh();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 是否需要保持连接：应用在前台或有引用
+     */
+    private boolean isHeld() {
+        return mForeground || mHolders > 0;
+    }
+
+    /**
+     * 按前台状态、引用计数、登录状态与设置重新决定是否连接（登录、退出登录或修改设置后调用）
+     */
+    public synchronized void refresh() {
+        if (mContext == null) {
+            return;
+        }
+        boolean wanted = isHeld() && isEnabled() && !mUnsupported
+                && UserAuthManager.getInstance(mContext).isLoggedIn();
+        if (wanted && mWebSocket == null && mPendingReconnect == null) {
+            connect();
+        } else if (!wanted) {
+            disconnect();
+        }
+    }
+
+    private synchronized void connect() {
+        UserAuthManager authManager = UserAuthManager.getInstance(mContext);
+        Request request = new Request.Builder()
+                .url(AliyunConfig.getBaseUrl() + "/live")
+                .addHeader("Authorization", "Bearer " + authManager.getAuthToken())
+                .build();
+        Log.d(TAG, "Connecting live channel (attempt " + (mAttempt + 1) + ")");
+        mWebSocket = HttpClientProvider.forLiveSync().newWebSocket(request, new Listener());
+    }
+
+    private synchronized void disconnect() {
+        if (mPendingReconnect != null) {
+            mPendingReconnect.cancel(false);
+            mPendingReconnect = null;
+        }
+        if (mWebSocket != null) {
+            Log.d(TAG, "Closing live channel");
+            mWebSocket.close(NORMAL_CLOSURE, null);
+            mWebSocket = null;
+        }
+        mConnected = false;
+        mAttempt = 0;
+    }
+
+    /**
+     * 连接断开或失败后，仍需要连接时按指数退避安排重连
+     */
+    private synchronized void scheduleReconnect(WebSocket webSocket, int httpStatus) {
+        if (webSocket != mWebSocket) {
+            return;
+        }
+        mWebSocket = null;
+        mConnected = false;
+        if (httpStatus == 404 || httpStatus == 405) {
+            Log.i(TAG, "Backend has no live channel, relying on polling");
+            mUnsupported = true;
+            return;
+        }
+        if (!isHeld()) {
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(mAttempt, 16));
+        mAttempt++;
+        Log.d(TAG, "Live channel down, reconnecting in " + delay + "ms");
+        mPendingReconnect = mScheduler.schedule(() -> {
+            synchronized (LiveSyncChannel.this) {
+                mPendingReconnect = null;
+                refresh();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean onOpened(WebSocket webSocket) {
+        if (webSocket != mWebSocket) {
+            return false;
+        }
+        mConnected = true;
+        mAttempt = 0;
+        return true;
+    }
+
+    private synchronized boolean isCurrent(WebSocket webSocket) {
+        return webSocket == mWebSocket;
+    }
+
+    /**
+     * 处理一条变更通知
+     */
+    private void onChanges(JSONObject message) {
+        UserAuthManager authManager = UserAuthManager.getInstance(mContext);
+        if (authManager.getDeviceId() != null
+                && authManager.getDeviceId().equals(message.optString("deviceId"))) {
+            return;
+        }
+
+        SyncManager syncManager = SyncManager.getInstance();
+        JSONArray deleted = message.optJSONArray("deleted");
+        if (deleted != null && deleted.length() > 0) {
+            // 删除经删除记录下发，由增量同步处理
+            syncManager.syncNotes(null);
+            return;
+        }
+
+        Map<String, Integer> revisions = new HashMap<>();
+        JSONArray notes = message.optJSONArray("notes");
+        for (int i = 0; notes != null && i < notes.length(); i++) {
+            JSONObject change = notes.optJSONObject(i);
+            if (change != null && !change.optString("cloudNoteId").isEmpty()) {
+                revisions.put(change.optString("cloudNoteId"), change.optInt("version", 0));
+            }
+        }
+        List<String> stale = findStale(revisions);
+        if (stale.isEmpty()) {
+            return;
+        }
+        if (stale.size() > SyncConstants.MAX_TARGETED_NOTES) {
+            syncManager.syncNotes(null);
+            return;
+        }
+
+        Log.d(TAG, "Fetching " + stale.size() + " notes from live notification");
+        syncManager.syncNotesById(stale, new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Targeted fetch failed, falling back to sync: " + error);
+                syncManager.syncNotes(null);
+            }
+        });
+    }
+
+    /**
+     * 本地没有或修订号较旧的笔记
+     *
+     * @param revisions 云端笔记ID到通知中的修订号，修订号为 0 表示服务端未提供
+     */
+    private List<String> findStale(Map<String, Integer> revisions) {
+        List<String> stale = new ArrayList<>(revisions.keySet());
+        if (revisions.isEmpty()) {
+            return stale;
+        }
+        StringBuilder selection = new StringBuilder(Notes.NoteColumns.CLOUD_NOTE_ID + " IN (");
+        for (int i = 0; i < stale.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor = NotesDatabaseHelper.getInstance(mContext).getReadableDatabase().query(
+                TABLE.NOTE,
+                new String[] { Notes.NoteColumns.CLOUD_NOTE_ID, Notes.NoteColumns.CLOUD_VERSION },
+                selection.toString(), stale.toArray(new String[0]), null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Integer revision = revisions.get(cursor.getString(0));
+                int localRevision = cursor.getInt(1);
+                if (revision != null && revision > 0 && localRevision >= revision) {
+                    stale.remove(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return stale;
+    }
+
+    private class Listener extends WebSocketListener {
+
+        @Override
+        public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+            if (!onOpened(webSocket)) {
+                return;
+            }
+            Log.i(TAG, "Live channel connected");
+            // 补上断开期间错过的变更
+            SyncManager.getInstance().syncNotes(null);
+        }
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+            if (!isCurrent(webSocket)) {
+                return;
+            }
+            try {
+                JSONObject message = new JSONObject(text);
+                if ("changes".equals(message.optString("type"))) {
+                    onChanges(message);
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Malformed live message", e);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to handle live message", e);
+            }
+        }
+
+        @Override
+        public void onClosing(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            webSocket.close(NORMAL_CLOSURE, null);
+        }
+
+        @Override
+        public void onClosed(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            Log.d(TAG, "Live channel closed: " + code);
+            scheduleReconnect(webSocket, 0);
+        }
+
+        @Override
+        public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t,
+                @Nullable Response response) {
+            int status = response != null ? response.code() : 0;
+            Log.w(TAG, "Live channel failed" + (status != 0 ? " (HTTP " + status + ")" : "")
+                    + ": " + t.getMessage());
+            scheduleReconnect(webSocket, status);
+        }
+    }
+}
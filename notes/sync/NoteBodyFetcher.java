@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.micode.notes.api.CloudDatabaseHelper;
+import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.NoteBodyStore;
+import net.micode.notes.data.SyncBatchWriter;
+import net.micode.notes.model.CloudNote;
+import net.micode.notes.model.WorkingNote;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 笔记正文按需下载
+ * <p>
+ * 只同步元数据的笔记在打开时（{@link WorkingNote#load}）或同步后的预取中下载正文：
+ * 按云端ID批量请求完整笔记，交给 {@link SyncBatchWriter} 补全正文。
+ * 所有方法都是阻塞的，需要在后台线程调用。
+ * </p>
+ */
+public class NoteBodyFetcher {
+
+    private static final String TAG = "NoteBodyFetcher";
+
+    private static final long FETCH_TIMEOUT_SECONDS = 30;
+
+    private final Context mContext;
+    private final CloudDatabaseHelper mCloudHelper;
+    private final String mUserId;
+
+    public NoteBodyFetcher(Context context, CloudDatabaseHelper cloudHelper, String userId) {
+        mContext = context.getApplicationContext();
+        mCloudHelper = cloudHelper;
+        mUserId = userId;
+    }
+
+    /**
+     * 把正文按需下载器注册到 {@link WorkingNote}
+     */
+    public static void install() {
+        WorkingNote.setBodyLoader(NoteBodyFetcher::loadBody);
+    }
+
+    /**
+     * 为当前登录用户下载一条笔记的正文
+     */
+    private static boolean loadBody(Context context, long noteId) {
+        UserAuthManager authManager = UserAuthManager.getInstance(context);
+        if (!authManager.isLoggedIn()) {
+            return false;
+        }
+        String userId = authManager.getUserId();
+        String cloudNoteId = new NoteBodyStore(context).findMissingBody(noteId, userId);
+        if (cloudNoteId == null) {
+            return false;
+        }
+        NoteBodyFetcher fetcher = new NoteBodyFetcher(context, new CloudDatabaseHelper(userId,
+                authManager.getDeviceId(), authManager.getAuthToken()), userId);
+        try {
+            return fetcher.fetchBodies(Collections.singletonList(cloudNoteId)) > 0;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to load body of note " + noteId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 下载并补全一批笔记的正文
+     *
+     * @param cloudNoteIds 云端笔记ID
+     * @return 补全正文的笔记数量
+     */
+    public int fetchBodies(List<String> cloudNoteIds) throws Exception {
+        SyncBatchWriter writer = new SyncBatchWriter(mContext);
+        int loaded = 0;
+        for (int start = 0; start < cloudNoteIds.size(); start += SyncBatchWriter.PAGE_SIZE) {
+            List<String> ids = cloudNoteIds.subList(start,
+                    Math.min(start + SyncBatchWriter.PAGE_SIZE, cloudNoteIds.size()));
+            JSONArray notesArray = CloudAwait.await(callback -> mCloudHelper.fetchNotes(ids, callback),
+                    FETCH_TIMEOUT_SECONDS, "下载笔记正文超时");
+            List<CloudNote> page = new ArrayList<>(notesArray.length());
+            for (int i = 0; i < notesArray.length(); i++) {
+                page.add(new CloudNote(notesArray.getJSONObject(i)));
+            }
+            SyncBatchWriter.Result result = writer.applyPage(page, mUserId);
+            loaded += result.bodiesLoaded;
+        }
+        Log.d(TAG, "Loaded " + loaded + "/" + cloudNoteIds.size() + " note bodies");
+        return loaded;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.text.TextUtils;
+
+import net.micode.notes.model.CloudNote;
+import net.micode.notes.tool.AttachmentRefs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 同步字段哈希
+ * <p>
+ * 对上传到云端的字段计算哈希，形如 "正文哈希:元数据哈希"：
+ * <ul>
+ * <li>正文：标题、内容与类型</li>
+ * <li>元数据：所在文件夹</li>
+ * </ul>
+ * 置顶、锁定、背景色、版本号等不上传的列不参与计算，修改它们不会引起上传。
+ * 正文中的附件引用按云端形式（{@link AttachmentRefs}）计算，与设备上的存储路径无关。
+ * 只含元数据的云端笔记没有正文，正文哈希取自云端随元数据下发的哈希。
+ * 与 {@link net.micode.notes.data.Notes.NoteColumns#SYNCED_HASH} 比较即可判断一次上传是可以跳过、
+ * 只需更新元数据，还是必须上传完整笔记。
+ * </p>
+ */
+public class NoteContentHash {
+
+    /**
+     * 与云端确认过的哈希相比，本次上传需要做什么
+     */
+    public enum Change {
+        /** 同步字段都没变，无需上传 */
+        NONE,
+        /** 只有元数据变化，只更新元数据 */
+        METADATA,
+        /** 正文变化或从未同步，上传完整笔记 */
+        FULL
+    }
+
+    private static final char SEPARATOR = ':';
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private NoteContentHash() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 计算云端笔记（或由本地笔记构造的待上传笔记）的同步字段哈希
+     */
+    public static String of(CloudNote note) {
+        String body;
+        if (note.isBodyOmitted()) {
+            if (TextUtils.isEmpty(note.getContentHash())) {
+                return "";
+            }
+            body = bodyOf(note.getContentHash());
+        } else {
+            body = bodyDigest(note.getTitle(), note.getContent(), note.getType());
+        }
+        String meta = digest(nonNull(note.getParentId()));
+        return body + SEPARATOR + meta;
+    }
+
+    /**
+     * 正文部分的哈希：标题、内容与类型
+     */
+    public static String bodyDigest(String title, String content, int type) {
+        return digest(nonNull(title) + '\u0000' + nonNull(AttachmentRefs.toCloudForm(content))
+                + '\u0000' + type);
+    }
+
+    /**
+     * 一段文本的摘要，用作 {@link TextCrdt} 基础文本的谱系标识
+     */
+    public static String textDigest(String text) {
+        return digest(nonNull(text));
+    }
+
+    /**
+     * 比较当前哈希与云端确认过的哈希
+     *
+     * @param current 当前同步字段的哈希
+     * @param synced 云端确认过的哈希，为空表示从未同步
+     */
+    public static Change compare(String current, String synced) {
+        if (TextUtils.isEmpty(synced) || TextUtils.isEmpty(current)) {
+            return Change.FULL;
+        }
+        if (current.equals(synced)) {
+            return Change.NONE;
+        }
+        return bodyOf(current).equals(bodyOf(synced)) ? Change.METADATA : Change.FULL;
+    }
+
+    /**
+     * 取出哈希的正文部分
+     */
+    public static String bodyOf(String hash) {
+        int separator = hash.indexOf(SEPARATOR);
+        return separator >= 0 ? hash.substring(0, separator) : hash;
+    }
+
+    /**
+     * SHA-1 的前 8 字节（16 个十六进制字符）
+     */
+    private static String digest(String value) {
+        byte[] bytes;
+        try {
+            bytes = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        char[] chars = new char[16];
+        for (int i = 0; i < 8; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
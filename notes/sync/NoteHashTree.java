@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.model.CloudNote;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 笔记哈希树（Merkle 风格）
+ * <p>
+ * 每条笔记按云端ID的 SHA-1（十六进制）放入一棵 16 叉前缀树：前缀 "" 是根，"a" 是它的一个子桶，
+ * "a3" 是 "a" 的子桶，依此类推。桶的摘要是桶内所有笔记 (云端ID, 内容哈希) 混合值的异或，
+ * 与笔记顺序无关，客户端和服务端各自计算后只需比较摘要即可判断桶内是否一致。
+ * </p>
+ * <p>
+ * 对账时从根开始逐层比较子桶摘要，只深入不一致的桶；桶内笔记不超过 {@link #LEAF_SIZE}
+ * （或到达 {@link #MAX_DEPTH}）时直接比较每条笔记的内容哈希。客户端与
+ * 测试用的本地云端替身服务器（LocalCloudServer） 共用本类，保证双方算法一致。
+ * </p>
+ * <p>
+ * 只收录普通笔记（{@link Notes#TYPE_NOTE}）：文件夹名在本地与云端的存储位置不同，无法稳定比较。
+ * 笔记的内容哈希由 {@link NoteContentHash} 的正文部分与所在文件夹组成，正文未下载的笔记用云端下发的哈希计算。
+ * 非线程安全。
+ * </p>
+ */
+public class NoteHashTree {
+
+    /**
+     * 每个桶的子桶数量（一个十六进制字符）
+     */
+    public static final int FANOUT = 16;
+
+    /**
+     * 桶内笔记不超过该数量时直接返回笔记列表，不再细分
+     */
+    public static final int LEAF_SIZE = 32;
+
+    /**
+     * 最大前缀长度
+     */
+    public static final int MAX_DEPTH = 8;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 一条笔记的叶子
+     */
+    private static class Leaf {
+        final String cloudNoteId;
+        final long hash;
+
+        Leaf(String cloudNoteId, long hash) {
+            this.cloudNoteId = cloudNoteId;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 以桶键（云端ID的 SHA-1）排序，前缀查询即一次 subMap
+     */
+    private final TreeMap<String, Leaf> mLeaves = new TreeMap<>();
+
+    private final int mLeafSize;
+    private final int mMaxDepth;
+
+    /**
+     * 使用对账双方约定的 {@link #LEAF_SIZE} 与 {@link #MAX_DEPTH}
+     */
+    public NoteHashTree() {
+        this(LEAF_SIZE, MAX_DEPTH);
+    }
+
+    /**
+     * 以指定的叶子大小与最大深度构造，测试用于在少量笔记上触发细分与深度截止；
+     * 对账双方必须使用相同的参数
+     */
+    NoteHashTree(int leafSize, int maxDepth) {
+        mLeafSize = leafSize;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * 加入一条笔记
+     *
+     * @param cloudNoteId 云端笔记ID
+     * @param contentHash {@link #contentHash} 计算的内容哈希
+     */
+    public void put(String cloudNoteId, long contentHash) {
+        mLeaves.put(bucketKey(cloudNoteId), new Leaf(cloudNoteId, contentHash));
+    }
+
+    /**
+     * 笔记总数
+     */
+    public int size() {
+        return mLeaves.size();
+    }
+
+    /**
+     * 桶内笔记数量
+     */
+    public int count(String prefix) {
+        return bucket(prefix).size();
+    }
+
+    /**
+     * 桶摘要，空桶为 0
+     */
+    public long digest(String prefix) {
+        long digest = 0;
+        for (Leaf leaf : bucket(prefix).values()) {
+            digest ^= mix(leaf.cloudNoteId, leaf.hash);
+        }
+        return digest;
+    }
+
+    /**
+     * 桶是否应直接以笔记列表比较
+     */
+    public boolean isLeafBucket(String prefix) {
+        return prefix.length() >= mMaxDepth || count(prefix) <= mLeafSize;
+    }
+
+    /**
+     * 桶内的笔记
+     *
+     * @return 云端ID到内容哈希的映射
+     */
+    public Map<String, Long> notesIn(String prefix) {
+        SortedMap<String, Leaf> bucket = bucket(prefix);
+        Map<String, Long> result = new HashMap<>(bucket.size() * 2);
+        for (Leaf leaf : bucket.values()) {
+            result.put(leaf.cloudNoteId, leaf.hash);
+        }
+        return result;
+    }
+
+    /**
+     * 子桶前缀
+     */
+    public static String childPrefix(String prefix, int index) {
+        return prefix + HEX[index];
+    }
+
+    private SortedMap<String, Leaf> bucket(String prefix) {
+        if (prefix.isEmpty()) {
+            return mLeaves;
+        }
+        // '~' 大于任何十六进制字符，[prefix, prefix~) 恰好是以 prefix 开头的所有键
+        return mLeaves.subMap(prefix, prefix + '~');
+    }
+
+    /**
+     * 云端笔记的内容哈希；只含元数据的笔记使用随元数据下发的正文哈希
+     */
+    public static long contentHash(CloudNote note) {
+        if (note.isBodyOmitted()) {
+            return contentHashOfBody(NoteContentHash.bodyOf(note.getContentHash()), note.getParentId());
+        }
+        return contentHash(note.getTitle(), note.getContent(), note.getParentId());
+    }
+
+    /**
+     * 笔记内容哈希：覆盖标题、正文与所在文件夹，不含修改时间
+     * （本地写入云端版本时触发器会改写修改时间）。正文按附件引用的云端形式计算。
+     */
+    public static long contentHash(String title, String content, String parentId) {
+        return contentHashOfBody(NoteContentHash.bodyDigest(title, content, Notes.TYPE_NOTE), parentId);
+    }
+
+    /**
+     * 由 {@link NoteContentHash} 的正文部分与所在文件夹计算内容哈希，
+     * 使正文尚未下载的笔记也能参与对账
+     */
+    public static long contentHashOfBody(String bodyDigest, String parentId) {
+        byte[] digest = sha1(nonNull(bodyDigest) + '\u0000' + normalizeParentId(parentId));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * 笔记在树中的位置：云端ID的 SHA-1 十六进制串
+     */
+    static String bucketKey(String cloudNoteId) {
+        byte[] digest = sha1(cloudNoteId);
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 把云端ID混入内容哈希，使同一内容出现在不同笔记上时摘要不同
+     */
+    private static long mix(String cloudNoteId, long contentHash) {
+        long h = contentHash ^ (cloudNoteId.hashCode() * 0x9E3779B97F4A7C15L);
+        // splitmix64 终结函数，让异或后的摘要分布均匀
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private static String normalizeParentId(String parentId) {
+        try {
+            return String.valueOf(Long.parseLong(parentId));
+        } catch (NumberFormatException e) {
+            return String.valueOf(Notes.ID_ROOT_FOLDER);
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    private static byte[] sha1(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -19,13 +19,23 @@ package net.micode.notes.sync;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 推送消息接收器
  * <p>
  * 接收云端推送的同步通知消息，触发本地同步操作。
  * </p>
+ * <p>
+ * 消息可以携带发生变化的云端笔记ID（{@link SyncConstants#EXTRA_NOTE_IDS}），此时由 {@link PushFetchWorker}
+ * 在后台只下载并写入这些笔记；
+ * 没有ID列表或数量超过 {@link SyncConstants#MAX_TARGETED_NOTES} 时执行普通的增量同步。
+ * 携带的水位线（{@link SyncConstants#EXTRA_WATERMARK}）不晚于本地同步时间的消息直接忽略。
+ * </p>
  */
 public class NotesPushMessageReceiver extends BroadcastReceiver {
 
@@ -56,10 +66,55 @@ public class NotesPushMessageReceiver extends BroadcastReceiver {
         Log.d(TAG, "Message received");
         // Check if this is a sync message
         String messageAction = intent.getStringExtra("action");
-        if ("sync".equals(messageAction)) {
-            Log.d(TAG, "Sync action received, broadcasting sync intent");
-            Intent syncIntent = new Intent(SyncConstants.ACTION_SYNC);
-            context.sendBroadcast(syncIntent);
+        if (!"sync".equals(messageAction)) {
+            return;
+        }
+
+        SyncManager syncManager = SyncManager.getInstance();
+        syncManager.initialize(context);
+
+        long watermark = parseLong(intent.getStringExtra(SyncConstants.EXTRA_WATERMARK));
+        if (watermark > 0 && watermark <= syncManager.getLastSyncTime()) {
+            Log.d(TAG, "Sync message watermark " + watermark + " already synced, ignoring");
+            return;
+        }
+
+        List<String> noteIds = parseNoteIds(intent.getStringExtra(SyncConstants.EXTRA_NOTE_IDS));
+        if (noteIds.isEmpty() || noteIds.size() > SyncConstants.MAX_TARGETED_NOTES) {
+            broadcastSync(context);
+            return;
+        }
+
+        // 下载交给加急任务，广播立即结束，不占用接收器的执行时限
+        Log.d(TAG, "Fetching " + noteIds.size() + " notes from sync message");
+        PushFetchWorker.enqueue(context, noteIds);
+    }
+
+    private static void broadcastSync(Context context) {
+        Log.d(TAG, "Sync action received, broadcasting sync intent");
+        Intent syncIntent = new Intent(SyncConstants.ACTION_SYNC);
+        context.sendBroadcast(syncIntent);
+    }
+
+    private static List<String> parseNoteIds(String value) {
+        List<String> noteIds = new ArrayList<>();
+        if (TextUtils.isEmpty(value)) {
+            return noteIds;
+        }
+        for (String id : value.split(",")) {
+            String trimmed = id.trim();
+            if (!trimmed.isEmpty() && !noteIds.contains(trimmed)) {
+                noteIds.add(trimmed);
+            }
+        }
+        return noteIds;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import net.micode.notes.R;
+import net.micode.notes.auth.UserAuthManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 推送笔记下载Worker
+ * <p>
+ * {@link NotesPushMessageReceiver} 收到携带笔记ID的推送后以加急任务入队，立即结束广播；
+ * 由本任务下载并写入这些笔记，下载失败时退回普通的增量同步。
+ * 同一时间只保留一个任务，后到的推送追加在其后执行。
+ * </p>
+ */
+public class PushFetchWorker extends Worker {
+
+    private static final String TAG = "PushFetchWorker";
+
+    public static final String WORK_NAME = "cloudSyncPushFetch";
+
+    /**
+     * 输入参数：需要下载的云端笔记ID
+     */
+    public static final String KEY_NOTE_IDS = "note_ids";
+
+    private static final long FETCH_WAIT_SECONDS = 60;
+
+    private static final String CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 2;
+
+    public PushFetchWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * 以加急任务入队下载推送中的笔记，配额用尽时按普通任务执行
+     *
+     * @param context 上下文
+     * @param noteIds 云端笔记ID
+     */
+    public static void enqueue(Context context, List<String> noteIds) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(PushFetchWorker.class)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .setInputData(new Data.Builder()
+                        .putStringArray(KEY_NOTE_IDS, noteIds.toArray(new String[0]))
+                        .build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME,
+                ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+        Log.d(TAG, "Enqueued fetch of " + noteIds.size() + " pushed notes");
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String[] noteIds = getInputData().getStringArray(KEY_NOTE_IDS);
+        if (noteIds == null || noteIds.length == 0) {
+            return Result.success();
+        }
+        Context context = getApplicationContext();
+        if (!UserAuthManager.getInstance(context).isLoggedIn()) {
+            Log.d(TAG, "User not logged in, skip pushed notes");
+            return Result.success();
+        }
+
+        SyncManager syncManager = SyncManager.getInstance();
+        syncManager.initialize(context);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] success = {false};
+        syncManager.syncNotesById(Arrays.asList(noteIds), new SyncManager.SyncCallback() {
+            @Override
+            public void onSuccess() {
+                success[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Targeted fetch failed: " + error);
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await(FETCH_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Fetch of pushed notes interrupted", e);
+        }
+
+        if (!success[0]) {
+            // 与同步按钮相同的入口，由同步接收器执行普通的增量同步
+            Log.d(TAG, "Falling back to sync");
+            context.sendBroadcast(new Intent(SyncConstants.ACTION_SYNC));
+        }
+        return Result.success();
+    }
+
+    /**
+     * Android 12 以下加急任务以前台服务运行，需要提供通知
+     */
+    @NonNull
+    @Override
+    public ForegroundInfo getForegroundInfo() {
+        Context context = getApplicationContext();
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = context.getSystemService(NotificationManager.class);
+            if (manager != null) {
+                manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                        context.getString(R.string.sync_title), NotificationManager.IMPORTANCE_MIN));
+            }
+            builder = new Notification.Builder(context, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(context);
+        }
+        Notification notification = builder
+                .setContentTitle(context.getString(R.string.sync_status_syncing))
+                .setSmallIcon(R.drawable.notification)
+                .build();
+        return new ForegroundInfo(NOTIFICATION_ID, notification);
+    }
+}
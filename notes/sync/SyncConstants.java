@@ -52,4 +52,19 @@ public class SyncConstants {
      * 同步广播Action
      */
     public static final String ACTION_SYNC = "com.micode.notes.ACTION_SYNC";
+
+    /**
+     * 同步推送消息的附加字段：发生变化的云端笔记ID，逗号分隔
+     */
+    public static final String EXTRA_NOTE_IDS = "noteIds";
+
+    /**
+     * 同步推送消息的附加字段：云端变化后的最新修改时间（毫秒），不晚于本地同步时间时忽略该消息
+     */
+    public static final String EXTRA_WATERMARK = "watermark";
+
+    /**
+     * 推送消息携带的笔记ID超过该数量时，改为执行一次普通的增量同步
+     */
+    public static final int MAX_TARGETED_NOTES = 50;
 }
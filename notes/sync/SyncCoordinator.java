@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * 单飞同步协调器
+ * <p>
+ * 保证同一时刻最多只有一次同步在执行、一次同步在等待：
+ * <ul>
+ * <li>空闲时收到请求立即执行</li>
+ * <li>执行中收到的请求全部合并到同一个等待中的同步里，全量同步请求会把等待中的同步升级为全量</li>
+ * <li>同步结束后把结果分发给该次同步合并的所有调用方，然后开始等待中的同步</li>
+ * </ul>
+ * 执行中的同步可能已经过了上传阶段，因此新请求不会并入正在执行的同步，而是等待下一次。
+ * 登录后的全量上传与哈希对账也经本类提交，与同步互斥；合并到同一次请求时按
+ * 全量上传、同步、对账的顺序执行。对账总是先同步，保证发件箱中的删除已推送。
+ * </p>
+ */
+public class SyncCoordinator {
+
+    private static final String TAG = "SyncCoordinator";
+
+    /**
+     * 实际执行同步的操作
+     */
+    public interface SyncRunner {
+        void run(boolean forceFullSync, SyncManager.SyncProgressCallback progressCallback)
+                throws Exception;
+    }
+
+    /**
+     * 与同步互斥执行的其他操作（全量上传、对账）
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * 合并后的一次同步请求
+     */
+    private static class Request {
+        boolean sync;
+        boolean forceFullSync;
+        boolean uploadAll;
+        boolean reconcile;
+        final List<SyncManager.SyncCallback> callbacks = new CopyOnWriteArrayList<>();
+        final List<SyncManager.SyncProgressCallback> progressCallbacks = new CopyOnWriteArrayList<>();
+
+        void add(boolean forceFull, SyncManager.SyncCallback callback,
+                SyncManager.SyncProgressCallback progressCallback) {
+            sync = true;
+            forceFullSync |= forceFull;
+            addCallbacks(callback, progressCallback);
+        }
+
+        void addUploadAll(SyncManager.SyncCallback callback) {
+            uploadAll = true;
+            addCallbacks(callback, null);
+        }
+
+        void addReconcile(SyncManager.SyncCallback callback) {
+            sync = true;
+            reconcile = true;
+            addCallbacks(callback, null);
+        }
+
+        private void addCallbacks(SyncManager.SyncCallback callback,
+                SyncManager.SyncProgressCallback progressCallback) {
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+            if (progressCallback != null) {
+                progressCallbacks.add(progressCallback);
+            }
+        }
+    }
+
+    private final Executor mExecutor;
+    private final SyncRunner mRunner;
+    private final Task mUploadAllTask;
+    private final Task mReconcileTask;
+    private final Object mLock = new Object();
+    private Request mRunning;
+    private Request mPending;
+
+    public SyncCoordinator(Executor executor, SyncRunner runner, Task uploadAllTask,
+            Task reconcileTask) {
+        mExecutor = executor;
+        mRunner = runner;
+        mUploadAllTask = uploadAllTask;
+        mReconcileTask = reconcileTask;
+    }
+
+    /**
+     * 请求一次同步
+     *
+     * @param forceFullSync 是否强制全量同步
+     * @param callback 同步结果回调，可为 null
+     * @param progressCallback 进度回调，可为 null
+     */
+    public void requestSync(boolean forceFullSync, SyncManager.SyncCallback callback,
+            SyncManager.SyncProgressCallback progressCallback) {
+        synchronized (mLock) {
+            boolean idle = mRunning == null;
+            Request request = idle ? newRunningRequest() : pendingRequest();
+            request.add(forceFullSync, callback, progressCallback);
+            if (idle) {
+                start(request);
+            } else {
+                Log.d(TAG, "Sync in progress, request coalesced into pending sync (full="
+                        + request.forceFullSync + ", waiters=" + request.callbacks.size() + ")");
+            }
+        }
+    }
+
+    /**
+     * 请求上传全部本地笔记，与同步互斥执行
+     *
+     * @param callback 结果回调，可为 null
+     */
+    public void requestUploadAll(SyncManager.SyncCallback callback) {
+        synchronized (mLock) {
+            boolean idle = mRunning == null;
+            Request request = idle ? newRunningRequest() : pendingRequest();
+            request.addUploadAll(callback);
+            if (idle) {
+                start(request);
+            } else {
+                Log.d(TAG, "Sync in progress, upload of all notes queued");
+            }
+        }
+    }
+
+    /**
+     * 请求一次哈希对账，对账前先执行一次同步
+     *
+     * @param callback 结果回调，可为 null
+     */
+    public void requestReconcile(SyncManager.SyncCallback callback) {
+        synchronized (mLock) {
+            boolean idle = mRunning == null;
+            Request request = idle ? newRunningRequest() : pendingRequest();
+            request.addReconcile(callback);
+            if (idle) {
+                start(request);
+            } else {
+                Log.d(TAG, "Sync in progress, reconciliation queued");
+            }
+        }
+    }
+
+    /**
+     * 是否有同步正在执行
+     */
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning != null;
+        }
+    }
+
+    private Request newRunningRequest() {
+        mRunning = new Request();
+        return mRunning;
+    }
+
+    private Request pendingRequest() {
+        if (mPending == null) {
+            mPending = new Request();
+        }
+        return mPending;
+    }
+
+    /**
+     * 执行一次请求
+     * <p>
+     * 结果分发与启动下一次请求放在 finally 中：同步中抛出 Error 时调用方也会收到失败回调，
+     * 且不会一直占着执行中的位置让之后的请求永远等待。
+     * </p>
+     */
+    private void start(Request request) {
+        mExecutor.execute(() -> {
+            boolean completed = false;
+            Exception error = null;
+            try {
+                if (request.uploadAll) {
+                    mUploadAllTask.run();
+                }
+                if (request.sync) {
+                    mRunner.run(request.forceFullSync, (current, total, message) -> {
+                        for (SyncManager.SyncProgressCallback progress : request.progressCallbacks) {
+                            progress.onProgress(current, total, message);
+                        }
+                    });
+                }
+                if (request.reconcile) {
+                    mReconcileTask.run();
+                }
+                completed = true;
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                deliver(request, completed, error);
+
+                synchronized (mLock) {
+                    mRunning = mPending;
+                    mPending = null;
+                    if (mRunning != null) {
+                        start(mRunning);
+                    }
+                }
+            }
+        });
+    }
+
+    private void deliver(Request request, boolean completed, Exception error) {
+        for (SyncManager.SyncCallback callback : request.callbacks) {
+            try {
+                if (completed) {
+                    callback.onSuccess();
+                } else {
+                    callback.onError(error != null ? error.getMessage() : "同步意外中止");
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Sync callback threw", e);
+            }
+        }
+    }
+}
@@ -18,29 +18,47 @@ package net.micode.notes.sync;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import net.micode.notes.api.AttachmentClient;
 import net.micode.notes.api.CloudCallback;
 import net.micode.notes.api.CloudDatabaseHelper;
+import net.micode.notes.api.TrafficMeter;
 import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.ConflictStore;
+import net.micode.notes.data.NoteBodyStore;
+import net.micode.notes.data.NoteHashIndexReader;
 import net.micode.notes.data.NotesRepository;
+import net.micode.notes.data.Notes.RetryColumns;
+import net.micode.notes.data.SyncBatchWriter;
+import net.micode.notes.data.SyncRetryStore;
+import net.micode.notes.data.SyncStatsStore;
+import net.micode.notes.data.TextCrdtStore;
 import net.micode.notes.model.CloudNote;
+import net.micode.notes.model.TextEditLog;
 import net.micode.notes.model.WorkingNote;
+import net.micode.notes.tool.AttachmentRefs;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -55,6 +73,24 @@ import java.util.concurrent.atomic.AtomicReference;
  * 2. 优化线程同步机制 - 使用 CountDownLatch 替代 synchronized/wait/notify
  * 3. 添加全量同步支持 - 支持强制下载所有云端笔记
  * 4. 添加同步进度回调 - 支持实时显示同步进度
+ * 5. 上传改为读取同步发件箱 - 按顺序推送本地操作（含删除、移动），不再扫描 LOCAL_MODIFIED
+ * 6. 下载改为分页批量写入 - 每页一次ID解析查询、一个事务，冲突在同一遍中收集
+ * 7. 可恢复同步 - 下载每写完一页即持久化检查点（水位线），崩溃、超时或取消后从检查点继续；
+ *    上传以发件箱逐条确认作为进度；反复失败的笔记隔离到重试表按退避重试，不再阻塞整个同步
+ * 8. 同步性能指标 - 记录各阶段耗时、请求与流量、笔记数量到统计表；进度回调节流
+ * 9. 哈希对账 - 与云端逐层比较笔记哈希树的桶摘要，只下载不一致的笔记，代替用全量同步检查数据漂移
+ * 10. 跳过无变化的上传 - 比较同步字段哈希与云端确认过的哈希，未变则不上传，只移动文件夹时只更新元数据
+ * 11. 删除记录 - 发件箱中的删除以批量请求推送；下载时应用云端删除记录（按云端时钟单独维护水位线）
+ * 12. 定向下载 - 推送消息携带变化的笔记ID时只下载这些笔记，超过上限时退回增量同步
+ * 13. 附件同步 - 上传笔记前按内容哈希询问云端缺少的附件并分块续传，附件在打开笔记时按需下载
+ * 14. 只同步元数据 - 开启后下载只含元数据、预览与正文哈希，正文在打开笔记时按需下载；
+ *     同步后预取最近修改的正文，并把长期未打开的正文逐出到存储预算以内
+ * 15. 冲突持久化 - 冲突连同云端版本写入冲突表，解决前不上传该笔记；解决后无需重新下载，
+ *     需要上传的结果经发件箱推送
+ * 16. 修订号比较 - 服务端为每次写入分配单调递增的修订号，下载时与本地记录的修订号比较判断云端新旧与并发修改，
+ *     不再比较设备时钟
+ * 17. 文本合并 - 开启后保存笔记时记录正文的编辑流，上传时以文本操作（{@link TextCrdt}）推送，
+ *     云端与其他设备的并发编辑自动合并，不再产生冲突；云端拒绝或笔记引用了附件时退回完整上传
  * </p>
  */
 public class SyncManager {
@@ -63,13 +99,63 @@ public class SyncManager {
     private static final String PREFS_SYNC = "sync_settings";
     private static final String KEY_LAST_SYNC = "last_sync_time";
     private static final String KEY_IS_FIRST_SYNC = "is_first_sync";
+    private static final String KEY_DOWNLOAD_CHECKPOINT = "download_checkpoint";
+    private static final String KEY_DOWNLOAD_CHECKPOINT_FULL = "download_checkpoint_full";
+    private static final String KEY_TOMBSTONE_SINCE = "tombstone_since";
+    private static final String KEY_METADATA_ONLY = "metadata_only";
+    private static final String KEY_BODY_BUDGET = "body_budget_bytes";
+    private static final String KEY_TEXT_MERGE = "text_merge";
     private static final long SYNC_TIMEOUT_SECONDS = 60;
 
+    /**
+     * 下载失败的笔记最多重试的次数，超过后丢弃（下一次全量同步会重新下载）
+     */
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 8;
+
+    /**
+     * 一次对账请求最多查询的桶数量
+     */
+    private static final int MAX_RECONCILE_PREFIXES = 64;
+
+    /**
+     * 一次批量删除请求包含的笔记数量
+     */
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    /**
+     * 推送发件箱时一次查询加载的笔记数量，限制大批量同步时同时驻留内存的笔记
+     */
+    private static final int PUSH_LOAD_BATCH_SIZE = 100;
+
+    /**
+     * 只同步元数据时本地正文的默认存储预算
+     */
+    public static final long DEFAULT_BODY_BUDGET_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * 只同步元数据时每次同步后预取的正文数量（按修改时间从新到旧）
+     */
+    private static final int PREFETCH_COUNT = 100;
+
     private final ExecutorService mExecutor;
+    private final SyncCoordinator mCoordinator;
     private Context mContext;
     private SharedPreferences mPrefs;
-    private List<Conflict> mConflicts;
     private ConflictListener mConflictListener;
+    private volatile TrafficMeter.Snapshot mLastSyncTraffic;
+    private volatile int mLastRemoteChanges;
+    private volatile SyncMetrics mMetrics;
+    private volatile SyncMetrics mLastSyncMetrics;
+    private volatile ReconcileReport mLastReconcileReport;
+    // 本次同步（或全量上传）的附件同步器，只在同步线程中使用
+    private AttachmentSyncer mAttachmentSyncer;
+
+    /**
+     * 仓库异步调用，配合 {@link #awaitRepo(RepoCall, String)} 在同步线程中等待结果
+     */
+    private interface RepoCall<T> {
+        void run(NotesRepository.Callback<T> callback);
+    }
 
     /**
      * 静态内部类实现单例模式（Initialization-on-demand holder idiom）
@@ -80,7 +166,8 @@ public class SyncManager {
 
     private SyncManager() {
         mExecutor = Executors.newSingleThreadExecutor();
-        mConflicts = new ArrayList<>();
+        mCoordinator = new SyncCoordinator(mExecutor, this::performSync, this::performUploadAll,
+                this::performReconcile);
     }
 
     /**
@@ -135,12 +222,94 @@ public class SyncManager {
     }
 
     /**
-     * 移除冲突
+     * 移除冲突（不解决），该笔记下一次同步时按本地版本上传
      *
      * @param conflict 要移除的冲突
      */
     public void removeConflict(Conflict conflict) {
-        mConflicts.remove(conflict);
+        long noteId = conflict.getLocalNote().getNoteId();
+        mExecutor.execute(() -> new ConflictStore(mContext).remove(noteId));
+    }
+
+    /**
+     * 解决一个冲突
+     * <p>
+     * 在同步线程中执行，与同步互斥。云端版本取自冲突表，无需重新下载；
+     * 保留本地或合并时修改经发件箱在下一次同步中上传。
+     * </p>
+     *
+     * @param noteId 本地笔记ID
+     * @param resolution 解决方式
+     * @param mergedTitle 合并后的标题，仅 {@link Conflict.Resolution#MERGE} 使用
+     * @param mergedContent 合并后的内容，仅 {@link Conflict.Resolution#MERGE} 使用
+     * @param callback 回调，可为 null
+     */
+    public void resolveConflict(long noteId, Conflict.Resolution resolution, String mergedTitle,
+            String mergedContent, SyncCallback callback) {
+        mExecutor.execute(() -> {
+            try {
+                resolveConflictInternal(noteId, resolution, mergedTitle, mergedContent);
+                if (callback != null) {
+                    callback.onSuccess();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to resolve conflict of note " + noteId, e);
+                if (callback != null) {
+                    callback.onError(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void resolveConflictInternal(long noteId, Conflict.Resolution resolution,
+            String mergedTitle, String mergedContent) throws Exception {
+        ConflictStore store = new ConflictStore(mContext);
+        ConflictStore.Entry entry = store.get(noteId);
+        if (entry == null) {
+            Log.d(TAG, "Conflict of note " + noteId + " already resolved");
+            return;
+        }
+        CloudNote cloudNote = entry.getCloudNote();
+        WorkingNote localNote = WorkingNote.load(mContext, noteId);
+        switch (resolution) {
+            case KEEP_CLOUD:
+                localNote.updateFrom(cloudNote);
+                break;
+            case MERGE:
+                localNote.setTitle(mergedTitle);
+                localNote.setWorkingText(mergedContent);
+                localNote.saveNote();
+                break;
+            case KEEP_LOCAL:
+            default:
+                break;
+        }
+        store.resolve(noteId, entry.cloudHash, cloudNote.getVersion(),
+                resolution == Conflict.Resolution.KEEP_CLOUD);
+        // 按整篇解决后之前的文本操作不再适用
+        new TextCrdtStore(mContext).remove(noteId);
+        Log.d(TAG, "Resolved conflict of note " + noteId + ": " + resolution);
+    }
+
+    /**
+     * 记录一次保存的正文编辑，下一次同步时以文本操作推送
+     * <p>
+     * 在同步线程中执行，与同步互斥。未开启文本合并或笔记尚未上传过时忽略。
+     * </p>
+     *
+     * @param note 刚保存的笔记
+     * @param base 编辑开始时的正文
+     * @param edits 编辑器记录的编辑，可为空
+     */
+    public void recordTextEdits(WorkingNote note, String base, List<TextEditLog.Edit> edits) {
+        if (!isTextMergeEnabled() || TextUtils.isEmpty(note.getCloudNoteId())) {
+            return;
+        }
+        long noteId = note.getNoteId();
+        String saved = note.getContent();
+        List<TextEditLog.Edit> copy = new ArrayList<>(edits);
+        mExecutor.execute(() -> new TextCrdtStore(mContext).recordEdits(noteId,
+                UserAuthManager.getInstance(mContext).getDeviceId(), base, copy, saved));
     }
 
     /**
@@ -166,22 +335,35 @@ public class SyncManager {
      * <p>
      * 用于新用户登录后，将设备上所有笔记上传到云端。
      * 不管笔记的 LOCAL_MODIFIED 状态如何，都会上传。
+     * 经 {@link SyncCoordinator} 提交，不会与正在执行的同步并发。
      * </p>
      *
      * @param callback 同步回调
      */
     public void uploadAllNotes(SyncCallback callback) {
-        Log.d(TAG, "========== Starting upload all notes ==========");
+        Log.d(TAG, "Upload all notes requested");
+        mCoordinator.requestUploadAll(callback);
+    }
 
+    /**
+     * 只下载并写入指定的云端笔记
+     * <p>
+     * 用于携带变化笔记ID的推送消息：不上传、不做增量下载，也不推进同步水位线，
+     * 之后的增量同步会把这些笔记视为未变化。云端已不存在的笔记忽略（由删除记录处理）。
+     * </p>
+     *
+     * @param cloudNoteIds 云端笔记ID
+     * @param callback 回调
+     */
+    public void syncNotesById(List<String> cloudNoteIds, SyncCallback callback) {
         mExecutor.execute(() -> {
             try {
-                performUploadAll();
-                Log.d(TAG, "Upload all notes completed successfully");
+                performTargetedFetch(cloudNoteIds);
                 if (callback != null) {
                     callback.onSuccess();
                 }
             } catch (Exception e) {
-                Log.e(TAG, "Upload all notes failed", e);
+                Log.e(TAG, "Targeted fetch failed", e);
                 if (callback != null) {
                     callback.onError(e.getMessage());
                 }
@@ -189,6 +371,47 @@ public class SyncManager {
         });
     }
 
+    private void performTargetedFetch(List<String> cloudNoteIds) throws Exception {
+        UserAuthManager authManager = UserAuthManager.getInstance(mContext);
+        if (!authManager.isLoggedIn()) {
+            throw new RuntimeException("用户未登录");
+        }
+        ensureValidToken(authManager);
+
+        String userId = authManager.getUserId();
+        CloudDatabaseHelper cloudHelper = new CloudDatabaseHelper(userId,
+                authManager.getDeviceId(), authManager.getAuthToken());
+        JSONArray notesArray = awaitCloud(callback -> cloudHelper.fetchNotes(cloudNoteIds, callback),
+                "下载推送的笔记超时");
+
+        List<CloudNote> notes = new ArrayList<>(notesArray.length());
+        for (int i = 0; i < notesArray.length(); i++) {
+            notes.add(new CloudNote(notesArray.getJSONObject(i)));
+        }
+        SyncBatchWriter.Result result = new SyncBatchWriter(mContext).applyPage(notes, userId);
+        collectConflicts(result.conflicts);
+        quarantineDownloads(new SyncRetryStore(mContext), result.failures);
+        Log.d(TAG, "Targeted fetch of " + cloudNoteIds.size() + " notes: " + result);
+    }
+
+    /**
+     * 哈希对账：不重新下载全部笔记，找出并修复与云端不一致的笔记
+     * <p>
+     * 与云端逐层比较 {@link NoteHashTree} 的桶摘要，只深入不一致的桶，最后只下载内容不同的笔记。
+     * 一致的账号只需交换根桶的摘要，开销与笔记总数无关。
+     * 有未上传本地修改的笔记不会被覆盖（留给下一次同步的上传与冲突处理），
+     * 发件箱中待推送删除的笔记也不会重新下载。
+     * 经 {@link SyncCoordinator} 提交，先执行一次同步推送发件箱，再对账。
+     * 结果见 {@link #getLastReconcileReport()}。
+     * </p>
+     *
+     * @param callback 对账回调
+     */
+    public void reconcileNotes(SyncCallback callback) {
+        Log.d(TAG, "Reconciliation requested");
+        mCoordinator.requestReconcile(callback);
+    }
+
     /**
      * 执行笔记同步（带进度回调）
      *
@@ -201,44 +424,82 @@ public class SyncManager {
         syncNotesInternal(forceFullSync, callback, progressCallback);
     }
 
+    /**
+     * 是否有同步正在执行
+     */
+    public boolean isSyncInProgress() {
+        return mCoordinator.isRunning();
+    }
+
     /**
      * 内部同步方法
+     * <p>
+     * 通过 {@link SyncCoordinator} 提交：同步执行期间到达的请求合并为一次等待中的同步，
+     * 结果分发给所有调用方。
+     * </p>
      */
     private void syncNotesInternal(boolean forceFullSync, SyncCallback callback, 
             SyncProgressCallback progressCallback) {
-        Log.d(TAG, "========== Starting sync operation ==========");
-        Log.d(TAG, "Force full sync: " + forceFullSync);
-
-        mExecutor.execute(() -> {
-            try {
-                performSync(forceFullSync, progressCallback);
-                Log.d(TAG, "Sync completed successfully");
-                if (callback != null) {
-                    callback.onSuccess();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Sync failed", e);
-                if (callback != null) {
-                    callback.onError(e.getMessage());
-                }
-            }
-        });
+        Log.d(TAG, "Sync requested, force full sync: " + forceFullSync);
+        mCoordinator.requestSync(forceFullSync, callback, progressCallback);
     }
 
     /**
      * 执行实际的同步操作
      */
     private void performSync(boolean forceFullSync, SyncProgressCallback progressCallback) throws Exception {
+        Log.d(TAG, "========== Starting sync operation ==========");
+        Log.d(TAG, "Force full sync: " + forceFullSync);
+        TrafficMeter.Snapshot trafficStart = TrafficMeter.snapshot();
+        SyncMetrics metrics = new SyncMetrics(System.currentTimeMillis());
+        mMetrics = metrics;
+        boolean success = false;
+        String error = null;
+        try {
+            performSyncInternal(forceFullSync, SyncProgressThrottle.wrap(progressCallback));
+            success = true;
+            Log.d(TAG, "Sync completed successfully");
+        } catch (Exception e) {
+            error = e.getMessage();
+            Log.e(TAG, "Sync failed", e);
+            throw e;
+        } finally {
+            mLastSyncTraffic = TrafficMeter.snapshot().minus(trafficStart);
+            Log.d(TAG, "Sync traffic: " + mLastSyncTraffic);
+            metrics.finish(success, error, mLastSyncTraffic);
+            mLastSyncMetrics = metrics;
+            saveMetrics(metrics);
+        }
+    }
+
+    /**
+     * 持久化一次同步的指标，写入失败不影响同步结果
+     */
+    private void saveMetrics(SyncMetrics metrics) {
+        Log.d(TAG, "Sync metrics: " + metrics.toSummary());
+        try {
+            new SyncStatsStore(mContext).insert(metrics);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save sync metrics", e);
+        }
+    }
+
+    private void performSyncInternal(boolean forceFullSync, SyncProgressCallback progressCallback)
+            throws Exception {
+        mLastRemoteChanges = 0;
         UserAuthManager authManager = UserAuthManager.getInstance(mContext);
         if (!authManager.isLoggedIn()) {
             throw new RuntimeException("用户未登录");
         }
 
         // 检查并刷新Token
+        long phaseStart = System.currentTimeMillis();
         ensureValidToken(authManager);
+        mMetrics.addPhaseTime(SyncMetrics.Phase.TOKEN, System.currentTimeMillis() - phaseStart);
 
         NotesRepository repo = new NotesRepository(mContext);
         String authToken = authManager.getAuthToken();
+        mAttachmentSyncer = new AttachmentSyncer(mContext, new AttachmentClient(authToken));
         Log.d(TAG, "Auth token: " + (authToken != null ? authToken.substring(0, Math.min(20, authToken.length())) + "..." : "null"));
         
         CloudDatabaseHelper cloudHelper = new CloudDatabaseHelper(
@@ -251,119 +512,564 @@ public class SyncManager {
         if (progressCallback != null) {
             progressCallback.onProgress(0, 100, "正在上传本地修改...");
         }
+        phaseStart = System.currentTimeMillis();
         uploadNotesSync(repo, cloudHelper, progressCallback, authManager.getUserId());
+        mMetrics.addPhaseTime(SyncMetrics.Phase.UPLOAD, System.currentTimeMillis() - phaseStart);
 
         // 2. 下载云端更新的笔记
         if (progressCallback != null) {
             progressCallback.onProgress(50, 100, "正在下载云端更新...");
         }
-        boolean downloadSuccess = downloadNotesSync(repo, cloudHelper, forceFullSync, progressCallback, authManager.getUserId());
+        downloadNotesSync(cloudHelper, forceFullSync, progressCallback, authManager.getUserId());
+        if (isMetadataOnlySync()) {
+            manageNoteBodies(cloudHelper, authManager.getUserId());
+        }
 
-        // 3. 只有在下载成功后才更新同步时间
-        if (downloadSuccess) {
-            updateSyncFlags();
-            // 标记已完成首次同步
-            markFirstSyncCompleted();
-        } else {
-            throw new RuntimeException("下载云端笔记失败，同步时间未更新");
+        // 3. 下载完成（同步时间已在下载中按云端水位线更新），标记已完成首次同步
+        markFirstSyncCompleted();
+    }
+
+    /**
+     * 只同步元数据时预取最近修改的正文，再把正文逐出到存储预算以内
+     * <p>
+     * 失败只记录日志：正文在打开笔记时仍会按需下载。
+     * </p>
+     */
+    private void manageNoteBodies(CloudDatabaseHelper cloudHelper, String userId) {
+        NoteBodyStore store = new NoteBodyStore(mContext);
+        try {
+            List<String> missing = store.findMissingBodies(userId, PREFETCH_COUNT);
+            if (!missing.isEmpty()) {
+                new NoteBodyFetcher(mContext, cloudHelper, userId).fetchBodies(missing);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to prefetch note bodies: " + e.getMessage());
+        }
+        int evicted = store.evictToBudget(userId, getBodyStorageBudget());
+        if (evicted > 0) {
+            Log.d(TAG, "Evicted " + evicted + " note bodies to stay within budget");
         }
     }
 
     /**
      * 确保Token有效
+     * <p>
+     * 已过期时必须刷新成功才能继续；即将过期时顺带刷新，失败不影响本次同步。
+     * 刷新是单飞的，与后台续期或其他请求触发的刷新共享同一个请求。
+     * </p>
      */
     private void ensureValidToken(UserAuthManager authManager) throws Exception {
-        if (authManager.isTokenExpired()) {
-            Log.w(TAG, "Token已过期，尝试刷新...");
-            final CountDownLatch latch = new CountDownLatch(1);
-            final AtomicBoolean refreshSuccess = new AtomicBoolean(false);
-            final AtomicReference<String> errorMsg = new AtomicReference<>();
-
-            authManager.refreshToken(new UserAuthManager.TokenRefreshCallback() {
-                @Override
-                public void onSuccess(String newToken) {
-                    Log.d(TAG, "Token刷新成功");
-                    refreshSuccess.set(true);
-                    latch.countDown();
-                }
+        if (!authManager.isTokenExpiringSoon()) {
+            return;
+        }
+        boolean expired = authManager.isTokenExpired();
+        Log.w(TAG, expired ? "Token已过期，尝试刷新..." : "Token即将过期，尝试刷新...");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean refreshSuccess = new AtomicBoolean(false);
+        final AtomicReference<String> errorMsg = new AtomicReference<>();
 
-                @Override
-                public void onError(String error) {
-                    Log.e(TAG, "Token刷新失败: " + error);
-                    errorMsg.set(error);
-                    latch.countDown();
-                }
-            });
+        authManager.refreshToken(new UserAuthManager.TokenRefreshCallback() {
+            @Override
+            public void onSuccess(String newToken) {
+                Log.d(TAG, "Token刷新成功");
+                refreshSuccess.set(true);
+                latch.countDown();
+            }
 
-            boolean completed = latch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            if (!completed || !refreshSuccess.get()) {
-                throw new RuntimeException("Token刷新失败: " + errorMsg.get());
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Token刷新失败: " + error);
+                errorMsg.set(error);
+                latch.countDown();
             }
+        });
+
+        boolean completed = latch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if ((!completed || !refreshSuccess.get()) && expired) {
+            throw new RuntimeException("Token刷新失败: " + errorMsg.get());
         }
     }
 
     /**
-     * 同步方式上传笔记
+     * 一次对账的结果
      */
-    private void uploadNotesSync(NotesRepository repo, CloudDatabaseHelper cloudHelper,
-            SyncProgressCallback progressCallback, String userId) throws Exception {
-        Log.d(TAG, "Uploading local modified notes for user: " + userId);
+    public static class ReconcileReport {
+        /** 本地参与比较的笔记数量 */
+        public int localNotes;
+        /** 请求的桶数量 */
+        public int bucketsCompared;
+        /** 对账请求次数（不含下载笔记） */
+        public int roundTrips;
+        /** 下载并写入的不一致笔记数量 */
+        public int repaired;
+        /** 不一致但有本地未上传修改、未覆盖的笔记数量 */
+        public int skippedLocallyModified;
+        /** 不一致但本地删除尚未推送、未重新下载的笔记数量 */
+        public int skippedPendingDelete;
+        /** 本地有而云端已不存在的笔记数量（只报告，不删除） */
+        public int missingOnCloud;
+        /** 对账期间的网络流量 */
+        public TrafficMeter.Snapshot traffic;
+
+        @Override
+        public String toString() {
+            return "localNotes=" + localNotes + ", buckets=" + bucketsCompared
+                    + ", roundTrips=" + roundTrips + ", repaired=" + repaired
+                    + ", skippedLocallyModified=" + skippedLocallyModified
+                    + ", skippedPendingDelete=" + skippedPendingDelete
+                    + ", missingOnCloud=" + missingOnCloud + ", traffic=" + traffic;
+        }
+    }
 
-        final List<WorkingNote> notesToUpload = new ArrayList<>();
-        final CountDownLatch queryLatch = new CountDownLatch(1);
-        final AtomicReference<Exception> errorRef = new AtomicReference<>();
+    private void performReconcile() throws Exception {
+        Log.d(TAG, "========== Starting reconciliation ==========");
+        UserAuthManager authManager = UserAuthManager.getInstance(mContext);
+        if (!authManager.isLoggedIn()) {
+            throw new RuntimeException("用户未登录");
+        }
+        ensureValidToken(authManager);
 
-        // 使用带用户过滤的方法，只查询当前用户的笔记
-        repo.getLocalModifiedNotes(userId, new NotesRepository.Callback<List<WorkingNote>>() {
-            @Override
-            public void onSuccess(List<WorkingNote> notes) {
-                notesToUpload.addAll(notes);
-                queryLatch.countDown();
+        String userId = authManager.getUserId();
+        NotesRepository repo = new NotesRepository(mContext);
+        CloudDatabaseHelper cloudHelper = new CloudDatabaseHelper(userId,
+                authManager.getDeviceId(), authManager.getAuthToken());
+        TrafficMeter.Snapshot trafficStart = TrafficMeter.snapshot();
+        ReconcileReport report = new ReconcileReport();
+
+        NoteHashTree local = new NoteHashTree();
+        Set<String> locallyModified = new NoteHashIndexReader(mContext).read(userId, local);
+        report.localNotes = local.size();
+
+        // 从根开始逐层比较，只把摘要不一致的子桶放入下一轮
+        List<String> differing = new ArrayList<>();
+        List<String> level = Collections.singletonList("");
+        while (!level.isEmpty()) {
+            List<String> next = new ArrayList<>();
+            for (int start = 0; start < level.size(); start += MAX_RECONCILE_PREFIXES) {
+                List<String> batch = level.subList(start,
+                        Math.min(start + MAX_RECONCILE_PREFIXES, level.size()));
+                JSONArray buckets = awaitCloud(callback -> cloudHelper.reconcile(batch, callback),
+                        "对账超时");
+                report.roundTrips++;
+                report.bucketsCompared += batch.size();
+                for (int i = 0; i < buckets.length(); i++) {
+                    compareBucket(local, buckets.getJSONObject(i), next, differing, report);
+                }
             }
+            level = next;
+        }
 
-            @Override
-            public void onError(Exception e) {
-                errorRef.set(e);
-                queryLatch.countDown();
+        // 本地已删除的笔记不在本地哈希树中，删除推送失败仍在发件箱时不能把它下载回来
+        List<SyncOperation> outbox = awaitRepo(
+                callback -> repo.getPendingOutbox(userId, callback), "查询待同步操作超时");
+        Set<String> pendingDeletes = new HashSet<>();
+        for (SyncOperation entry : outbox) {
+            if (entry.isDelete() && !TextUtils.isEmpty(entry.getCloudNoteId())) {
+                pendingDeletes.add(entry.getCloudNoteId());
             }
-        });
+        }
 
-        boolean completed = queryLatch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        if (!completed) {
-            throw new RuntimeException("查询本地修改笔记超时");
+        List<String> toFetch = new ArrayList<>(differing.size());
+        for (String cloudNoteId : differing) {
+            if (locallyModified.contains(cloudNoteId)) {
+                report.skippedLocallyModified++;
+            } else if (pendingDeletes.contains(cloudNoteId)) {
+                report.skippedPendingDelete++;
+            } else {
+                toFetch.add(cloudNoteId);
+            }
         }
-        if (errorRef.get() != null) {
-            throw errorRef.get();
+
+        SyncBatchWriter writer = new SyncBatchWriter(mContext);
+        for (int start = 0; start < toFetch.size(); start += SyncBatchWriter.PAGE_SIZE) {
+            List<String> ids = toFetch.subList(start,
+                    Math.min(start + SyncBatchWriter.PAGE_SIZE, toFetch.size()));
+            JSONArray notesArray = awaitCloud(callback -> cloudHelper.fetchNotes(ids, callback),
+                    "下载不一致笔记超时");
+            List<CloudNote> page = new ArrayList<>(notesArray.length());
+            for (int i = 0; i < notesArray.length(); i++) {
+                page.add(new CloudNote(notesArray.getJSONObject(i)));
+            }
+            SyncBatchWriter.Result result = writer.applyPage(page, userId, true);
+            report.repaired += result.inserted + result.updated;
+            collectConflicts(result.conflicts);
         }
 
-        Log.d(TAG, "Found " + notesToUpload.size() + " notes to upload");
+        report.traffic = TrafficMeter.snapshot().minus(trafficStart);
+        mLastReconcileReport = report;
+        Log.d(TAG, "Reconciliation finished: " + report);
+    }
+
+    /**
+     * 比较一个云端桶：叶子桶逐条比较内容哈希，其余比较子桶摘要
+     *
+     * @param next 收集需要继续深入的子桶
+     * @param differing 收集云端内容与本地不同（或本地缺失）的笔记云端ID
+     */
+    private static void compareBucket(NoteHashTree local, JSONObject bucket, List<String> next,
+            List<String> differing, ReconcileReport report) throws Exception {
+        String prefix = bucket.getString("prefix");
+        JSONArray leaves = bucket.optJSONArray("notes");
+        if (leaves != null) {
+            Map<String, Long> localNotes = local.notesIn(prefix);
+            for (int i = 0; i < leaves.length(); i++) {
+                JSONObject leaf = leaves.getJSONObject(i);
+                String cloudNoteId = leaf.getString("id");
+                Long localHash = localNotes.remove(cloudNoteId);
+                if (localHash == null || !Long.toHexString(localHash).equals(leaf.getString("hash"))) {
+                    differing.add(cloudNoteId);
+                }
+            }
+            report.missingOnCloud += localNotes.size();
+            return;
+        }
 
-        int total = notesToUpload.size();
+        JSONArray children = bucket.getJSONArray("children");
+        for (int i = 0; i < children.length(); i++) {
+            JSONObject child = children.getJSONObject(i);
+            String childPrefix = NoteHashTree.childPrefix(prefix, i);
+            if (child.getInt("count") != local.count(childPrefix)
+                    || !Long.toHexString(local.digest(childPrefix)).equals(child.getString("digest"))) {
+                next.add(childPrefix);
+            }
+        }
+    }
+
+    /**
+     * 在同步线程中等待一次云端调用
+     */
+    private <T> T awaitCloud(CloudAwait.Call<T> call, String timeoutMessage) throws Exception {
+        return CloudAwait.await(call, SYNC_TIMEOUT_SECONDS, timeoutMessage);
+    }
+
+    /**
+     * 同步方式上传本地修改
+     * <p>
+     * 按发生顺序读取发件箱，合并同一笔记的多条记录后逐条推送，
+     * 推送成功后确认（删除）对应的发件箱记录。
+     * </p>
+     */
+    private void uploadNotesSync(NotesRepository repo, CloudDatabaseHelper cloudHelper,
+            SyncProgressCallback progressCallback, String userId) throws Exception {
+        Log.d(TAG, "Draining sync outbox for user: " + userId);
+
+        List<SyncOperation> entries = awaitRepo(
+                callback -> repo.getPendingOutbox(userId, callback), "查询待同步操作超时");
+        List<SyncOperation> operations = SyncOperation.collapse(entries);
+
+        Log.d(TAG, "Outbox: " + entries.size() + " entries collapsed into "
+                + operations.size() + " operations");
+
+        SyncRetryStore retryStore = new SyncRetryStore(mContext);
+        Map<Long, SyncRetryStore.Entry> quarantined =
+                retryStore.getByNoteId(RetryColumns.DIRECTION_UPLOAD);
+        Set<Long> conflicted = new ConflictStore(mContext).getNoteIds();
+        long now = System.currentTimeMillis();
+
+        // 删除操作攒成批量请求先推送，其余操作逐条推送
+        List<SyncOperation> deletes = new ArrayList<>();
+        List<SyncOperation> changes = new ArrayList<>();
+        for (SyncOperation operation : operations) {
+            SyncRetryStore.Entry retry = quarantined.get(operation.getNoteId());
+            if (operation.isDelete() && (retry == null || retry.nextRetryAt <= now)) {
+                deletes.add(operation);
+            } else if (!operation.isDelete()) {
+                changes.add(operation);
+            }
+        }
+        pushDeletes(repo, cloudHelper, deletes, retryStore, quarantined);
+
+        // 跳过隔离中和冲突未解决的笔记，其余按批一次查询加载
+        List<SyncOperation> pushable = new ArrayList<>(changes.size());
+        for (SyncOperation operation : changes) {
+            long noteId = operation.getNoteId();
+            SyncRetryStore.Entry retry = quarantined.get(noteId);
+            if (retry != null && retry.nextRetryAt > now) {
+                Log.d(TAG, "Skipping quarantined note " + noteId + " until " + retry.nextRetryAt);
+            } else if (conflicted.contains(noteId)) {
+                // 冲突解决前不能用本地版本覆盖云端
+                Log.d(TAG, "Skipping note " + noteId + " with unresolved conflict");
+            } else {
+                pushable.add(operation);
+            }
+        }
+
+        int total = pushable.size();
+        Map<Long, WorkingNote> loaded = new HashMap<>();
         for (int i = 0; i < total; i++) {
-            WorkingNote note = notesToUpload.get(i);
-            
+            SyncOperation operation = pushable.get(i);
+
             if (progressCallback != null) {
                 int progress = (i * 50) / total; // 上传占50%进度
                 progressCallback.onProgress(progress, 100, "正在上传笔记 " + (i + 1) + "/" + total);
             }
 
-            uploadSingleNote(repo, cloudHelper, note);
+            if (i % PUSH_LOAD_BATCH_SIZE == 0) {
+                List<Long> batchIds = new ArrayList<>(PUSH_LOAD_BATCH_SIZE);
+                for (SyncOperation next : pushable.subList(i, Math.min(i + PUSH_LOAD_BATCH_SIZE, total))) {
+                    batchIds.add(next.getNoteId());
+                }
+                loaded = awaitRepo(callback -> repo.getNotesByIds(batchIds, callback), "加载待同步笔记超时");
+            }
+
+            long noteId = operation.getNoteId();
+            SyncRetryStore.Entry retry = quarantined.get(noteId);
+            WorkingNote note = loaded.get(noteId);
+            if (note == null) {
+                // 读取发件箱后笔记被删除，删除触发器已把它的记录替换为删除操作，下次同步推送
+                Log.d(TAG, "Note " + noteId + " deleted since outbox was read, skipping");
+                continue;
+            }
+
+            try {
+                if (pushOperation(repo, cloudHelper, operation, note)) {
+                    mMetrics.addUploaded(1);
+                    if (retry != null) {
+                        retryStore.remove(RetryColumns.DIRECTION_UPLOAD, noteId, "");
+                    }
+                } else if (new ConflictStore(mContext).get(noteId) == null) {
+                    // 被拒绝并记录为冲突的写入在冲突解决后再推送，不进入重试隔离
+                    retryStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, noteId, "", null,
+                            "云端拒绝: " + operation);
+                }
+            } catch (TimeoutException e) {
+                // 网络整体不可用时中止本次同步，已确认的操作不会重复推送
+                retryStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, noteId, "", null,
+                        e.getMessage());
+                throw e;
+            } catch (Exception e) {
+                // 单条笔记的错误（如本地数据损坏）只隔离该笔记，继续推送其余操作
+                Log.e(TAG, "Failed to push " + operation, e);
+                retryStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, noteId, "", null,
+                        String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * 以批量请求推送删除操作（删除记录），云端确认后回收对应的发件箱记录
+     * <p>
+     * 一批失败时该批每条笔记都记入重试表；网络超时则中止本次同步。
+     * </p>
+     */
+    private void pushDeletes(NotesRepository repo, CloudDatabaseHelper cloudHelper,
+            List<SyncOperation> deletes, SyncRetryStore retryStore,
+            Map<Long, SyncRetryStore.Entry> quarantined) throws Exception {
+        for (int start = 0; start < deletes.size(); start += DELETE_BATCH_SIZE) {
+            List<SyncOperation> batch = deletes.subList(start,
+                    Math.min(start + DELETE_BATCH_SIZE, deletes.size()));
+            List<String> cloudNoteIds = new ArrayList<>(batch.size());
+            for (SyncOperation operation : batch) {
+                if (!TextUtils.isEmpty(operation.getCloudNoteId())) {
+                    cloudNoteIds.add(operation.getCloudNoteId());
+                }
+            }
+
+            try {
+                if (!cloudNoteIds.isEmpty()) {
+                    awaitCloud(callback -> cloudHelper.deleteNotes(cloudNoteIds, callback),
+                            "删除云端笔记超时");
+                }
+                awaitRepo(callback -> repo.ackOutbox(batch, callback), "确认同步操作超时");
+            } catch (TimeoutException e) {
+                recordDeleteFailures(retryStore, batch, e.getMessage());
+                throw e;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to push " + batch.size() + " deletes", e);
+                recordDeleteFailures(retryStore, batch, String.valueOf(e.getMessage()));
+                continue;
+            }
+
+            mMetrics.addUploaded(batch.size());
+            for (SyncOperation operation : batch) {
+                if (quarantined.containsKey(operation.getNoteId())) {
+                    retryStore.remove(RetryColumns.DIRECTION_UPLOAD, operation.getNoteId(), "");
+                }
+            }
+            Log.d(TAG, "Pushed " + batch.size() + " deletes");
+        }
+    }
+
+    private static void recordDeleteFailures(SyncRetryStore retryStore, List<SyncOperation> batch,
+            String error) {
+        for (SyncOperation operation : batch) {
+            retryStore.recordFailure(RetryColumns.DIRECTION_UPLOAD, operation.getNoteId(), "", null,
+                    error);
+        }
+    }
+
+    /**
+     * 推送单个合并后的（非删除）操作，成功后确认发件箱记录
+     *
+     * @return 是否推送成功
+     */
+    private boolean pushOperation(NotesRepository repo, CloudDatabaseHelper cloudHelper,
+            SyncOperation operation, WorkingNote note) throws Exception {
+        boolean pushed = pushNoteChanges(repo, cloudHelper, note);
+
+        if (pushed) {
+            awaitRepo(callback -> repo.ackOutbox(operation, callback), "确认同步操作超时");
+            Log.d(TAG, "Pushed " + operation);
+        }
+        return pushed;
+    }
+
+    /**
+     * 按同步字段哈希推送一条笔记的修改
+     * <p>
+     * 与云端确认过的哈希相同（只改了置顶、锁定等不上传的列，或保存时内容未变）则不发请求，直接标记已同步；
+     * 只有文件夹变化时只更新元数据；其余情况完整上传。
+     * </p>
+     *
+     * @return 是否推送成功
+     */
+    private boolean pushNoteChanges(NotesRepository repo, CloudDatabaseHelper cloudHelper,
+            WorkingNote note) throws Exception {
+        long noteId = note.getNoteId();
+        if (!note.isBodyLoaded()) {
+            // 加载时未能下载正文，绝不能用空正文覆盖云端
+            throw new IllegalStateException("笔记正文尚未下载: " + noteId);
+        }
+        String hash = NoteContentHash.of(new CloudNote(note, ""));
+        String syncedHash = awaitRepo(callback -> repo.getSyncedHash(noteId, callback),
+                "读取同步哈希超时: " + noteId);
+        NoteContentHash.Change change = TextUtils.isEmpty(note.getCloudNoteId())
+                ? NoteContentHash.Change.FULL : NoteContentHash.compare(hash, syncedHash);
+
+        if (change == NoteContentHash.Change.NONE) {
+            Log.d(TAG, "Synced fields of note " + noteId + " unchanged, skipping upload");
+            awaitRepo(callback -> repo.markNoteSynced(noteId, null, hash, callback),
+                    "标记笔记同步状态超时: " + noteId);
+            return true;
+        }
+        if (change == NoteContentHash.Change.METADATA) {
+            Integer version = patchNoteMetadata(cloudHelper, note);
+            if (version != null) {
+                Log.d(TAG, "Patched metadata of note " + noteId + ", cloud version " + version);
+                awaitRepo(callback -> repo.markNoteSynced(noteId, null, hash, version, callback),
+                        "标记笔记同步状态超时: " + noteId);
+                return true;
+            }
+        }
+        if (change == NoteContentHash.Change.FULL && isTextMergeEnabled()) {
+            Boolean merged = pushTextOperations(cloudHelper, note, syncedHash);
+            if (merged != null) {
+                return merged;
+            }
+        }
+        return uploadSingleNote(repo, cloudHelper, note, hash);
+    }
+
+    /**
+     * 以文本操作推送笔记正文，云端与其他设备的并发编辑合并后写回本地
+     * <p>
+     * 有待推送的操作却不能走文本合并（笔记引用了附件、云端拒绝合并或合并结果无法写回）时，
+     * 下载时因可合并而未记录的并发修改可能还在云端，先确认云端自上次同步后没有变化才允许完整上传，
+     * 否则记录为冲突，不覆盖云端。
+     * </p>
+     *
+     * @param syncedHash 上次与云端确认的同步字段哈希
+     * @return 是否推送成功；没有待推送的操作，或不能合并但云端未变化时返回 null，调用方改为完整上传
+     */
+    private Boolean pushTextOperations(CloudDatabaseHelper cloudHelper, WorkingNote note,
+            String syncedHash) throws Exception {
+        long noteId = note.getNoteId();
+        if (TextUtils.isEmpty(note.getCloudNoteId())) {
+            return null;
+        }
+        String site = UserAuthManager.getInstance(mContext).getDeviceId();
+        TextCrdtStore store = new TextCrdtStore(mContext);
+        TextCrdtStore.Entry entry = store.prepare(noteId, site, note.getContent());
+        if (entry == null) {
+            return null;
+        }
+        if (!AttachmentRefs.referencedHashes(note.getContent()).isEmpty()) {
+            Log.d(TAG, "Note " + noteId + " references attachments, text operations not applicable");
+            store.remove(noteId);
+            return recordIfCloudChanged(cloudHelper, note, syncedHash) ? Boolean.FALSE : null;
+        }
+
+        CloudDatabaseHelper.TextMergeResult result = awaitCloud(
+                callback -> cloudHelper.pushTextOperations(note, entry.lineage, entry.since,
+                        entry.pending, callback),
+                "推送文本操作超时: " + noteId);
+        if (!result.accepted) {
+            Log.w(TAG, "Cloud rejected text operations of note " + noteId);
+            store.remove(noteId);
+            return recordIfCloudChanged(cloudHelper, note, syncedHash) ? Boolean.FALSE : null;
+        }
+        try {
+            store.acknowledge(noteId, site, entry.pending, result.since, result.operations, result.note,
+                    result.version);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to integrate merged text of note " + noteId, e);
+            store.remove(noteId);
+            // 云端已合并了本次推送，完整上传本地正文会丢掉合并进来的其他设备修改
+            return recordIfCloudChanged(cloudHelper, note, syncedHash) ? Boolean.FALSE : null;
+        }
+        Log.d(TAG, "Merged text operations of note " + noteId + ", cloud version " + result.version
+                + ", " + result.operations.length() + " remote batches");
+        return true;
+    }
+
+    /**
+     * 只更新云端笔记的元数据
+     *
+     * @return 云端的新修订号；失败（如云端已没有该笔记）时返回 null，调用方改为完整上传
+     */
+    private Integer patchNoteMetadata(CloudDatabaseHelper cloudHelper, WorkingNote note)
+            throws Exception {
+        try {
+            return awaitCloud(callback -> cloudHelper.patchNoteMetadata(note, callback),
+                    "更新笔记元数据超时: " + note.getNoteId());
+        } catch (TimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.w(TAG, "Metadata patch failed for note " + note.getNoteId()
+                    + ", falling back to full upload: " + e.getMessage());
+            return null;
         }
     }
 
     /**
      * 上传单条笔记
+     *
+     * @return 是否上传成功
      */
-    private void uploadSingleNote(NotesRepository repo, CloudDatabaseHelper cloudHelper, 
+    private boolean uploadSingleNote(NotesRepository repo, CloudDatabaseHelper cloudHelper,
             WorkingNote note) throws Exception {
+        return uploadSingleNote(repo, cloudHelper, note, NoteContentHash.of(new CloudNote(note, "")));
+    }
+
+    /**
+     * 上传单条笔记，成功后记录云端确认的同步字段哈希
+     * <p>
+     * 先上传笔记引用的、云端缺少的附件；附件未能全部上传时不上传笔记，留待下次重试，
+     * 避免其他设备收到引用了云端不存在附件的笔记。
+     * 云端在本地上次同步后已被修改时服务端拒绝覆盖，笔记记录为冲突（见 {@link #recordRejectedWrite}）。
+     * </p>
+     *
+     * @return 是否上传成功
+     */
+    private boolean uploadSingleNote(NotesRepository repo, CloudDatabaseHelper cloudHelper,
+            WorkingNote note, String contentHash) throws Exception {
+        if (!note.isBodyLoaded()) {
+            Log.w(TAG, "Body of note " + note.getNoteId() + " not downloaded, skipping upload");
+            return false;
+        }
+        if (mAttachmentSyncer != null && !mAttachmentSyncer.pushReferencedBlobs(note.getContent())) {
+            Log.w(TAG, "Attachments of note " + note.getNoteId() + " not uploaded, deferring note");
+            return false;
+        }
+
         final CountDownLatch uploadLatch = new CountDownLatch(1);
-        final AtomicReference<String> cloudIdRef = new AtomicReference<>();
+        final AtomicReference<CloudDatabaseHelper.UploadResult> resultRef = new AtomicReference<>();
         final AtomicReference<Exception> errorRef = new AtomicReference<>();
 
-        cloudHelper.uploadNote(note, new CloudCallback<String>() {
+        cloudHelper.uploadNote(note, new CloudCallback<CloudDatabaseHelper.UploadResult>() {
             @Override
-            public void onSuccess(String result) {
-                cloudIdRef.set(result);
+            public void onSuccess(CloudDatabaseHelper.UploadResult result) {
+                resultRef.set(result);
                 uploadLatch.countDown();
             }
 
@@ -376,55 +1082,61 @@ public class SyncManager {
 
         boolean completed = uploadLatch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
         if (!completed) {
-            throw new RuntimeException("上传笔记超时: " + note.getNoteId());
+            throw new TimeoutException("上传笔记超时: " + note.getNoteId());
         }
         if (errorRef.get() != null) {
             Log.e(TAG, "Failed to upload note: " + note.getNoteId(), errorRef.get());
-            return; // 继续处理其他笔记
+            return false; // 继续处理其他笔记
         }
 
-        Log.d(TAG, "Uploaded note: " + note.getNoteId() + " with cloudId: " + cloudIdRef.get());
-
-        String cloudNoteId = cloudIdRef.get();
-        if (cloudNoteId != null && !cloudNoteId.isEmpty()) {
-            note.setCloudNoteId(cloudNoteId);
-            if (!note.saveNote()) {
-                Log.w(TAG, "Failed to save cloudNoteId for note: " + note.getNoteId());
-            }
+        CloudDatabaseHelper.UploadResult result = resultRef.get();
+        if (result.stale) {
+            Log.w(TAG, "Cloud rejected stale upload of note " + note.getNoteId()
+                    + " (base version " + note.getCloudVersion() + ")");
+            recordRejectedWrite(cloudHelper, note);
+            return false;
         }
+        Log.d(TAG, "Uploaded note: " + note.getNoteId() + " with cloudId: " + result.cloudId
+                + ", cloud version " + result.version);
+
+        // 云端ID、修订号与同步标记在同一次更新中写入，避免再次进入发件箱
+        awaitRepo(callback -> repo.markNoteSynced(note.getNoteId(), result.cloudId, contentHash,
+                result.version, callback), "标记笔记同步状态超时: " + note.getNoteId());
 
-        markNoteAsSynced(repo, note.getNoteId());
+        Log.d(TAG, "Marked note " + note.getNoteId() + " as synced");
+        return true;
     }
 
     /**
-     * 标记笔记为已同步
+     * 在同步线程中等待仓库异步调用的结果
      */
-    private void markNoteAsSynced(NotesRepository repo, long noteId) throws Exception {
-        final CountDownLatch markLatch = new CountDownLatch(1);
+    private <T> T awaitRepo(RepoCall<T> call, String timeoutMessage) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<T> resultRef = new AtomicReference<>();
         final AtomicReference<Exception> errorRef = new AtomicReference<>();
 
-        repo.markNoteSynced(noteId, new NotesRepository.Callback<Void>() {
+        call.run(new NotesRepository.Callback<T>() {
             @Override
-            public void onSuccess(Void result) {
-                markLatch.countDown();
+            public void onSuccess(T result) {
+                resultRef.set(result);
+                latch.countDown();
             }
 
             @Override
             public void onError(Exception e) {
                 errorRef.set(e);
-                markLatch.countDown();
+                latch.countDown();
             }
         });
 
-        boolean completed = markLatch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        boolean completed = latch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
         if (!completed) {
-            throw new RuntimeException("标记笔记同步状态超时: " + noteId);
+            throw new TimeoutException(timeoutMessage);
         }
         if (errorRef.get() != null) {
             throw errorRef.get();
         }
-
-        Log.d(TAG, "Marked note " + noteId + " as synced");
+        return resultRef.get();
     }
 
     /**
@@ -446,6 +1158,7 @@ public class SyncManager {
             authManager.getDeviceId(),
             authToken
         );
+        mAttachmentSyncer = new AttachmentSyncer(mContext, new AttachmentClient(authToken));
 
         // 获取当前用户的所有笔记（不管modified状态）
         final List<WorkingNote> allNotes = new ArrayList<>();
@@ -476,14 +1189,29 @@ public class SyncManager {
 
         Log.d(TAG, "Found " + allNotes.size() + " notes to upload");
 
+        // 全量上传覆盖了发件箱中这些笔记的待推送操作，上传成功后一并确认
+        Map<Long, SyncOperation> pendingByNote = new HashMap<>();
+        List<SyncOperation> entries = awaitRepo(
+                callback -> repo.getPendingOutbox(userId, callback), "查询待同步操作超时");
+        for (SyncOperation operation : SyncOperation.collapse(entries)) {
+            if (!operation.isDelete()) {
+                pendingByNote.put(operation.getNoteId(), operation);
+            }
+        }
+
         // 上传所有笔记
         int total = allNotes.size();
         int successCount = 0;
         for (int i = 0; i < total; i++) {
             WorkingNote note = allNotes.get(i);
             try {
-                uploadSingleNote(repo, cloudHelper, note);
-                successCount++;
+                if (uploadSingleNote(repo, cloudHelper, note)) {
+                    successCount++;
+                    SyncOperation pending = pendingByNote.get(note.getNoteId());
+                    if (pending != null) {
+                        awaitRepo(callback -> repo.ackOutbox(pending, callback), "确认同步操作超时");
+                    }
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Failed to upload note: " + note.getNoteId(), e);
                 // 继续上传其他笔记
@@ -499,45 +1227,49 @@ public class SyncManager {
 
     /**
      * 同步方式下载笔记
-     * 
-     * @return 是否下载成功
+     * <p>
+     * 下载结果按修改时间排序后分页写入，每页写完立即持久化检查点（该页的水位线），
+     * 中途崩溃、超时或被取消时，下一次同步从检查点继续而不是从头开始。
+     * 写入失败的笔记隔离到重试表，水位线照常推进；下载完成后水位线成为新的同步时间。
+     * 云端删除记录在写入笔记之前应用，其水位线（云端时钟）与笔记水位线分开保存。
+     * </p>
      */
-    private boolean downloadNotesSync(NotesRepository repo, CloudDatabaseHelper cloudHelper,
-            boolean forceFullSync, SyncProgressCallback progressCallback, String userId) throws Exception {
+    private void downloadNotesSync(CloudDatabaseHelper cloudHelper, boolean forceFullSync,
+            SyncProgressCallback progressCallback, String userId) throws Exception {
         Log.d(TAG, "Downloading cloud updates");
 
-        long lastSyncTime = forceFullSync ? 0 : mPrefs.getLong(KEY_LAST_SYNC, 0);
-        Log.d(TAG, "Last sync time: " + lastSyncTime + (forceFullSync ? " (强制全量同步)" : ""));
-        
-        // 首次同步时传递 0，获取所有笔记
-        // 后续同步只获取修改过的笔记
-        long downloadSince = (lastSyncTime == 0) ? 0 : lastSyncTime;
-        
-        final AtomicReference<JSONArray> notesArrayRef = new AtomicReference<>();
+        SyncBatchWriter writer = new SyncBatchWriter(mContext);
+        SyncRetryStore retryStore = new SyncRetryStore(mContext);
+        retryQuarantinedDownloads(writer, retryStore, userId);
+
+        // 未完成的下载留下了检查点：增量同步总是从检查点继续；
+        // 全量同步只继续未完成的全量下载，否则从头开始
+        long checkpoint = mPrefs.getLong(KEY_DOWNLOAD_CHECKPOINT, -1);
+        boolean checkpointFull = mPrefs.getBoolean(KEY_DOWNLOAD_CHECKPOINT_FULL, false);
+        boolean resume = checkpoint >= 0 && (checkpointFull || !forceFullSync);
+        boolean fullDownload = resume ? checkpointFull || forceFullSync : forceFullSync;
+
+        long downloadSince;
+        if (resume) {
+            downloadSince = checkpoint;
+        } else {
+            downloadSince = forceFullSync ? 0 : mPrefs.getLong(KEY_LAST_SYNC, 0);
+        }
+        Log.d(TAG, "Download since: " + downloadSince + (resume ? " (从检查点恢复)" : "")
+                + (fullDownload ? " (强制全量同步)" : ""));
+
+        long tombstonesSince = mPrefs.getLong(KEY_TOMBSTONE_SINCE, 0);
+        final AtomicReference<CloudDatabaseHelper.Changes> changesRef = new AtomicReference<>();
         final CountDownLatch downloadLatch = new CountDownLatch(1);
         final AtomicReference<Exception> errorRef = new AtomicReference<>();
-        final AtomicLong maxModifiedTime = new AtomicLong(0);
+        long waitStart = System.currentTimeMillis();
+        long parseBefore = TrafficMeter.snapshot().parseTimeMs;
 
-        cloudHelper.downloadNotes(downloadSince, new CloudCallback<JSONArray>() {
+        cloudHelper.downloadNotes(downloadSince, tombstonesSince, isMetadataOnlySync(),
+                new CloudCallback<CloudDatabaseHelper.Changes>() {
             @Override
-            public void onSuccess(JSONArray result) {
-                notesArrayRef.set(result);
-                
-                // 计算云端最新修改时间
-                long latestCloudTime = 0;
-                try {
-                    for (int i = 0; i < result.length(); i++) {
-                        JSONObject noteJson = result.getJSONObject(i);
-                        long modifiedTime = noteJson.optLong("modifiedTime", 0);
-                        if (modifiedTime > latestCloudTime) {
-                            latestCloudTime = modifiedTime;
-                        }
-                    }
-                    maxModifiedTime.set(latestCloudTime);
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to calculate latest cloud time", e);
-                }
-                
+            public void onSuccess(CloudDatabaseHelper.Changes result) {
+                changesRef.set(result);
                 downloadLatch.countDown();
             }
 
@@ -549,134 +1281,349 @@ public class SyncManager {
         });
 
         boolean completed = downloadLatch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // 等待时间中包含响应 JSON 的解析，单独计入解析阶段
+        long responseParseMs = TrafficMeter.snapshot().parseTimeMs - parseBefore;
+        mMetrics.addPhaseTime(SyncMetrics.Phase.DOWNLOAD,
+                System.currentTimeMillis() - waitStart - responseParseMs);
+        mMetrics.addPhaseTime(SyncMetrics.Phase.PARSE, responseParseMs);
         if (!completed) {
-            throw new RuntimeException("下载云端笔记超时");
+            throw new TimeoutException("下载云端笔记超时");
         }
         if (errorRef.get() != null) {
             throw errorRef.get();
         }
 
-        JSONArray notesArray = notesArrayRef.get();
-        if (notesArray == null) {
-            Log.w(TAG, "Downloaded notes array is null");
-            return true; // 视为成功，只是没有数据
+        CloudDatabaseHelper.Changes changes = changesRef.get();
+        List<CloudNote> notes = changes != null ? new ArrayList<>(changes.notes) : new ArrayList<>();
+        Log.d(TAG, "Downloaded " + notes.size() + " notes from cloud");
+
+        // 先应用云端删除记录（与笔记互斥：复活的笔记在云端已撤销删除记录），重复应用是幂等的
+        long tombstoneWatermark = tombstonesSince;
+        if (changes != null && changes.tombstones.length() > 0) {
+            List<String> deletedIds = new ArrayList<>(changes.tombstones.length());
+            for (int i = 0; i < changes.tombstones.length(); i++) {
+                JSONObject tombstone = changes.tombstones.getJSONObject(i);
+                deletedIds.add(tombstone.getString("cloudNoteId"));
+                tombstoneWatermark = Math.max(tombstoneWatermark, tombstone.optLong("deletedTime", 0));
+            }
+            long applyStart = System.currentTimeMillis();
+            SyncBatchWriter.TombstoneResult deleted = writer.applyTombstones(deletedIds);
+            mLastRemoteChanges += deleted.deleted;
+            mMetrics.addApplied(deleted.deleted);
+            mMetrics.addPhaseTime(SyncMetrics.Phase.APPLY, System.currentTimeMillis() - applyStart);
         }
 
-        Log.d(TAG, "Downloaded " + notesArray.length() + " notes from cloud");
+        // 响应已在下载回调中解码为 CloudNote（解码耗时已计入解析阶段）
+        long sortStart = System.currentTimeMillis();
+        // 按修改时间升序写入，检查点之前的笔记都已落盘
+        Collections.sort(notes, (a, b) -> Long.compare(a.getModifiedTime(), b.getModifiedTime()));
+        mMetrics.addPhaseTime(SyncMetrics.Phase.PARSE, System.currentTimeMillis() - sortStart);
 
-        // 处理下载的笔记
-        int total = notesArray.length();
+        // 分页批量写入下载的笔记：每页一次ID解析查询、一个事务
+        int total = notes.size();
         int successCount = 0;
-        
-        for (int i = 0; i < total; i++) {
-            if (progressCallback != null) {
-                int progress = 50 + (i * 50) / total; // 下载占50-100%进度
-                progressCallback.onProgress(progress, 100, "正在处理笔记 " + (i + 1) + "/" + total);
+        int quarantinedCount = 0;
+        long watermark = downloadSince;
+
+        for (int start = 0; start < total; start += SyncBatchWriter.PAGE_SIZE) {
+            int end = Math.min(start + SyncBatchWriter.PAGE_SIZE, total);
+            long applyStart = System.currentTimeMillis();
+            SyncBatchWriter.Result result = writer.applyPage(notes.subList(start, end), userId);
+            successCount += result.processed();
+            recordAppliedPage(result);
+            int quarantined = quarantineDownloads(retryStore, result.failures);
+            quarantinedCount += quarantined;
+            mMetrics.addQuarantined(quarantined);
+            mMetrics.addPhaseTime(SyncMetrics.Phase.APPLY, System.currentTimeMillis() - applyStart);
+
+            // 下一页第一条与本页最后一条修改时间相同时，水位线退到该时间之前，保证不会漏下
+            long pageWatermark = notes.get(end - 1).getModifiedTime();
+            if (end < total) {
+                pageWatermark = Math.min(pageWatermark, notes.get(end).getModifiedTime() - 1);
+            }
+            if (pageWatermark > watermark) {
+                watermark = pageWatermark;
+                saveDownloadCheckpoint(watermark, fullDownload);
             }
 
-            CloudNote cloudNote = new CloudNote(notesArray.getJSONObject(i));
-            boolean processed = processDownloadedNote(repo, cloudNote, userId);
-            if (processed) {
-                successCount++;
+            if (progressCallback != null) {
+                int progress = 50 + (end * 50) / total; // 下载占50-100%进度
+                progressCallback.onProgress(progress, 100, "正在处理笔记 " + end + "/" + total);
             }
         }
 
-        Log.d(TAG, "Successfully processed " + successCount + "/" + total + " notes");
+        Log.d(TAG, "Successfully processed " + successCount + "/" + total + " notes, "
+                + quarantinedCount + " quarantined");
 
-        // 只有在所有笔记都处理成功后才更新同步时间
-        if (successCount == total) {
-            // 使用云端最新修改时间更新 lastSyncTime
-            if (maxModifiedTime.get() > 0) {
-                updateLastSyncTime(maxModifiedTime.get());
-                Log.d(TAG, "Updated last sync time to: " + maxModifiedTime.get());
-            }
-            return true;
-        } else {
-            Log.w(TAG, "Some notes failed to process, not updating sync time");
-            return false;
+        // 下载完成：水位线成为新的同步时间，清除检查点
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .remove(KEY_DOWNLOAD_CHECKPOINT)
+                .remove(KEY_DOWNLOAD_CHECKPOINT_FULL)
+                .putLong(KEY_TOMBSTONE_SINCE, tombstoneWatermark);
+        if (watermark > 0) {
+            editor.putLong(KEY_LAST_SYNC, watermark);
         }
+        editor.commit();
+        Log.d(TAG, "Updated last sync time to: " + watermark);
+    }
+
+    /**
+     * 持久化下载检查点
+     * <p>
+     * 使用 commit 同步写入，进程随后被杀也不会丢失。
+     * </p>
+     */
+    private void saveDownloadCheckpoint(long watermark, boolean fullDownload) {
+        mPrefs.edit()
+                .putLong(KEY_DOWNLOAD_CHECKPOINT, watermark)
+                .putBoolean(KEY_DOWNLOAD_CHECKPOINT_FULL, fullDownload)
+                .commit();
     }
 
     /**
-     * 处理下载的单条笔记
+     * 把写入失败的云端笔记放入重试表
      *
-     * @return 是否处理成功
-     */
-    private boolean processDownloadedNote(NotesRepository repo, CloudNote cloudNote, String userId) {
-        final CountDownLatch findLatch = new CountDownLatch(1);
-        final AtomicReference<WorkingNote> localNoteRef = new AtomicReference<>();
-
-        String cloudNoteId = cloudNote.getCloudNoteId();
-        if (cloudNoteId != null && !cloudNoteId.isEmpty()) {
-            repo.findByCloudNoteId(cloudNoteId, new NotesRepository.Callback<WorkingNote>() {
-                @Override
-                public void onSuccess(WorkingNote result) {
-                    localNoteRef.set(result);
-                    findLatch.countDown();
-                }
+     * @return 放入的数量
+     */
+    private int quarantineDownloads(SyncRetryStore retryStore,
+            List<SyncBatchWriter.FailedEntry> failures) {
+        for (SyncBatchWriter.FailedEntry failure : failures) {
+            CloudNote cloudNote = failure.cloudNote;
+            String payload;
+            try {
+                payload = cloudNote.toJson().toString();
+            } catch (Exception e) {
+                Log.e(TAG, "Cannot serialize failed cloud note: " + cloudNote.getCloudNoteId(), e);
+                continue;
+            }
+            retryStore.recordFailure(RetryColumns.DIRECTION_DOWNLOAD, localIdOf(cloudNote),
+                    cloudNote.getCloudNoteId(), payload, failure.error);
+        }
+        return failures.size();
+    }
 
-                @Override
-                public void onError(Exception e) {
-                    Log.e(TAG, "Failed to find note by cloudNoteId: " + cloudNoteId, e);
-                    findLatch.countDown();
-                }
-            });
-        } else {
-            repo.findNoteByNoteId(cloudNote.getNoteId(), new NotesRepository.Callback<WorkingNote>() {
-                @Override
-                public void onSuccess(WorkingNote result) {
-                    localNoteRef.set(result);
-                    findLatch.countDown();
-                }
+    /**
+     * 重试隔离区中已到重试时间的下载笔记
+     * <p>
+     * 成功（含转为冲突）的移出重试表；再次失败的推迟重试，超过 {@link #MAX_DOWNLOAD_ATTEMPTS} 次后放弃。
+     * </p>
+     */
+    private void retryQuarantinedDownloads(SyncBatchWriter writer, SyncRetryStore retryStore,
+            String userId) throws Exception {
+        List<SyncRetryStore.Entry> due = retryStore.getDue(RetryColumns.DIRECTION_DOWNLOAD,
+                System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Retrying " + due.size() + " quarantined downloads");
+
+        Map<String, SyncRetryStore.Entry> byKey = new HashMap<>();
+        List<CloudNote> notes = new ArrayList<>(due.size());
+        for (SyncRetryStore.Entry entry : due) {
+            try {
+                CloudNote cloudNote = new CloudNote(new JSONObject(entry.payload));
+                notes.add(cloudNote);
+                byKey.put(entry.noteId + "/" + entry.cloudNoteId, entry);
+            } catch (Exception e) {
+                Log.e(TAG, "Dropping unreadable quarantined note: " + entry.cloudNoteId, e);
+                retryStore.remove(RetryColumns.DIRECTION_DOWNLOAD, entry.noteId, entry.cloudNoteId);
+            }
+        }
 
-                @Override
-                public void onError(Exception e) {
-                    Log.e(TAG, "Failed to find note by noteId: " + cloudNote.getNoteId(), e);
-                    findLatch.countDown();
+        for (int start = 0; start < notes.size(); start += SyncBatchWriter.PAGE_SIZE) {
+            List<CloudNote> page = notes.subList(start,
+                    Math.min(start + SyncBatchWriter.PAGE_SIZE, notes.size()));
+            long applyStart = System.currentTimeMillis();
+            SyncBatchWriter.Result result = writer.applyPage(page, userId);
+            recordAppliedPage(result);
+            mMetrics.addPhaseTime(SyncMetrics.Phase.APPLY, System.currentTimeMillis() - applyStart);
+
+            Map<String, String> errors = new HashMap<>();
+            for (SyncBatchWriter.FailedEntry failure : result.failures) {
+                errors.put(localIdOf(failure.cloudNote) + "/" + failure.cloudNote.getCloudNoteId(),
+                        failure.error);
+            }
+
+            for (CloudNote cloudNote : page) {
+                long noteId = localIdOf(cloudNote);
+                String key = noteId + "/" + cloudNote.getCloudNoteId();
+                SyncRetryStore.Entry entry = byKey.get(key);
+                if (!errors.containsKey(key)) {
+                    retryStore.remove(RetryColumns.DIRECTION_DOWNLOAD, noteId, cloudNote.getCloudNoteId());
+                } else if (entry != null && entry.attempts + 1 >= MAX_DOWNLOAD_ATTEMPTS) {
+                    Log.w(TAG, "Giving up quarantined note " + key + " after "
+                            + (entry.attempts + 1) + " attempts: " + errors.get(key));
+                    retryStore.remove(RetryColumns.DIRECTION_DOWNLOAD, noteId, cloudNote.getCloudNoteId());
+                } else {
+                    retryStore.recordFailure(RetryColumns.DIRECTION_DOWNLOAD, noteId,
+                            cloudNote.getCloudNoteId(), null, errors.get(key));
                 }
-            });
+            }
         }
+    }
 
+    /**
+     * 云端笔记携带的本地ID，无法解析时为 0
+     */
+    private static long localIdOf(CloudNote cloudNote) {
         try {
-            boolean completed = findLatch.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            if (!completed) {
-                Log.e(TAG, "查询本地笔记超时: " + cloudNote.getCloudNoteId());
-                return false;
+            return Long.parseLong(cloudNote.getNoteId());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 统计一页写入结果，并处理其中的冲突
+     */
+    private void recordAppliedPage(SyncBatchWriter.Result result) throws Exception {
+        mLastRemoteChanges += result.inserted + result.updated + result.conflicts.size();
+        mMetrics.addApplied(result.inserted + result.updated);
+        mMetrics.addConflicts(result.conflicts.size());
+        collectConflicts(result.conflicts);
+    }
+
+    /**
+     * 记录批量写入时发现的冲突，并通知冲突监听器
+     * <p>
+     * 只含元数据的云端笔记先下载完整版本，冲突双方都必须带正文才能比较和选择。
+     * 冲突连同云端版本写入冲突表；双方同步字段哈希相同时直接视为已解决。
+     * </p>
+     */
+    private void collectConflicts(List<SyncBatchWriter.ConflictEntry> entries) throws Exception {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (isTextMergeEnabled()) {
+            entries = withoutMergeableText(entries);
+        }
+        Map<String, CloudNote> fullNotes = fetchOmittedBodies(entries);
+        ConflictStore store = new ConflictStore(mContext);
+        for (SyncBatchWriter.ConflictEntry entry : entries) {
+            Log.d(TAG, "Conflict detected for note: cloudNoteId=" + entry.cloudNote.getCloudNoteId());
+            CloudNote cloudNote = entry.cloudNote;
+            if (cloudNote.isBodyOmitted()) {
+                cloudNote = fullNotes.get(cloudNote.getCloudNoteId());
+                if (cloudNote == null) {
+                    Log.w(TAG, "Cloud note " + entry.cloudNote.getCloudNoteId()
+                            + " disappeared while resolving conflict");
+                    continue;
+                }
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            recordConflict(store, entry.localNoteId, cloudNote);
+        }
+    }
+
+    /**
+     * 把本地笔记与完整的云端版本记录为冲突并通知监听器；双方同步字段哈希相同时直接视为已解决
+     */
+    private void recordConflict(ConflictStore store, long localNoteId, CloudNote cloudNote)
+            throws Exception {
+        WorkingNote localNote = WorkingNote.load(mContext, localNoteId);
+        String localHash = NoteContentHash.of(new CloudNote(localNote, ""));
+        String cloudHash = NoteContentHash.of(cloudNote);
+        if (localHash.equals(cloudHash)) {
+            // 双方改成了相同的内容，不是真正的冲突
+            store.resolve(localNoteId, cloudHash, cloudNote.getVersion(), false);
+            return;
+        }
+        store.record(localNoteId, cloudNote, localHash, cloudHash);
+        Conflict conflict = new Conflict(localNote, cloudNote);
+        if (mConflictListener != null) {
+            mConflictListener.onConflictDetected(conflict);
+        }
+    }
+
+    /**
+     * 云端拒绝了本地的写入（云端在本地上次同步后已被其他设备修改）：下载云端当前版本，
+     * 与本地版本一起记录为冲突，由用户选择；冲突解决前不再推送该笔记，不会覆盖云端
+     */
+    private void recordRejectedWrite(CloudDatabaseHelper cloudHelper, WorkingNote note) throws Exception {
+        CloudNote cloudNote = fetchCloudNote(cloudHelper, note);
+        if (cloudNote == null) {
+            Log.w(TAG, "Cloud note " + note.getCloudNoteId() + " disappeared after rejecting write");
+            return;
+        }
+        mMetrics.addConflicts(1);
+        recordConflict(new ConflictStore(mContext), note.getNoteId(), cloudNote);
+    }
+
+    /**
+     * 文本合并不可用时下载云端当前版本：同步字段哈希与上次确认的不同（云端在本地上次同步后被修改）则记录为冲突
+     *
+     * @param syncedHash 上次与云端确认的同步字段哈希
+     * @return 是否记录了冲突；云端未变化或已没有该笔记时返回 false，可以完整上传
+     */
+    private boolean recordIfCloudChanged(CloudDatabaseHelper cloudHelper, WorkingNote note,
+            String syncedHash) throws Exception {
+        CloudNote cloudNote = fetchCloudNote(cloudHelper, note);
+        if (cloudNote == null || NoteContentHash.of(cloudNote).equals(syncedHash)) {
             return false;
         }
+        Log.d(TAG, "Cloud note " + note.getCloudNoteId() + " changed since last sync, recording conflict");
+        mMetrics.addConflicts(1);
+        recordConflict(new ConflictStore(mContext), note.getNoteId(), cloudNote);
+        return true;
+    }
 
-        WorkingNote localNote = localNoteRef.get();
+    /**
+     * 下载一条笔记的云端当前版本
+     *
+     * @return 云端笔记；云端已没有该笔记时返回 null
+     */
+    private CloudNote fetchCloudNote(CloudDatabaseHelper cloudHelper, WorkingNote note) throws Exception {
+        List<String> ids = Collections.singletonList(note.getCloudNoteId());
+        JSONArray notesArray = awaitCloud(callback -> cloudHelper.fetchNotes(ids, callback),
+                "下载冲突笔记超时: " + note.getNoteId());
+        return notesArray.length() == 0 ? null : new CloudNote(notesArray.getJSONObject(0));
+    }
 
-        if (localNote == null) {
-            // 本地不存在，插入新笔记
-            Log.d(TAG, "Inserting new note from cloud: cloudNoteId=" + cloudNote.getCloudNoteId());
-            WorkingNote newNote = cloudNote.toWorkingNote(mContext, userId);
-            if (newNote != null) {
-                newNote.saveNote();
-                return true;
+    /**
+     * 去掉云端以文本操作修改、本地也有同一谱系待推送操作的笔记：下一次推送时自动合并，不是冲突。
+     * 推送时云端拒绝合并的，由 {@link #pushTextOperations} 重新下载并记录为冲突，不会被完整上传覆盖
+     */
+    private List<SyncBatchWriter.ConflictEntry> withoutMergeableText(
+            List<SyncBatchWriter.ConflictEntry> entries) {
+        TextCrdtStore textStore = new TextCrdtStore(mContext);
+        List<SyncBatchWriter.ConflictEntry> result = new ArrayList<>(entries.size());
+        for (SyncBatchWriter.ConflictEntry entry : entries) {
+            String lineage = entry.cloudNote.getTextLineage();
+            if (!lineage.isEmpty() && textStore.hasPending(entry.localNoteId, lineage)) {
+                Log.d(TAG, "Concurrent edit of note " + entry.localNoteId + " will be merged on push");
+                continue;
             }
-            return false;
-        } else {
-            // 本地已存在，检查版本
-            if (cloudNote.getModifiedTime() > localNote.getModifiedDate()) {
-                if (localNote.getLocalModified() == 0) {
-                    // 本地未修改，直接覆盖
-                    Log.d(TAG, "Updating local note from cloud: cloudNoteId=" + cloudNote.getCloudNoteId());
-                    localNote.updateFrom(cloudNote);
-                    localNote.saveNote();
-                    return true;
-                } else {
-                    // 双方都修改过，记录冲突
-                    Log.d(TAG, "Conflict detected for note: cloudNoteId=" + cloudNote.getCloudNoteId());
-                    mConflicts.add(new Conflict(localNote, cloudNote));
-                    return true;
-                }
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * 下载冲突中只含元数据的云端笔记的完整版本
+     *
+     * @return 云端ID到完整笔记的映射
+     */
+    private Map<String, CloudNote> fetchOmittedBodies(List<SyncBatchWriter.ConflictEntry> entries)
+            throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (SyncBatchWriter.ConflictEntry entry : entries) {
+            if (entry.cloudNote.isBodyOmitted()) {
+                ids.add(entry.cloudNote.getCloudNoteId());
             }
-            return true;
         }
+        Map<String, CloudNote> result = new HashMap<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        UserAuthManager authManager = UserAuthManager.getInstance(mContext);
+        CloudDatabaseHelper cloudHelper = new CloudDatabaseHelper(authManager.getUserId(),
+                authManager.getDeviceId(), authManager.getAuthToken());
+        JSONArray notesArray = awaitCloud(callback -> cloudHelper.fetchNotes(ids, callback),
+                "下载冲突笔记正文超时");
+        for (int i = 0; i < notesArray.length(); i++) {
+            CloudNote note = new CloudNote(notesArray.getJSONObject(i));
+            result.put(note.getCloudNoteId(), note);
+        }
+        return result;
     }
 
     /**
@@ -688,14 +1635,6 @@ public class SyncManager {
         Log.d(TAG, "Sync time updated: " + currentTime);
     }
 
-    /**
-     * 更新最后同步时间
-     */
-    private void updateLastSyncTime(long syncTime) {
-        mPrefs.edit().putLong(KEY_LAST_SYNC, syncTime).apply();
-        Log.d(TAG, "Saved last sync time: " + syncTime);
-    }
-
     /**
      * 标记已完成首次同步
      */
@@ -717,11 +1656,70 @@ public class SyncManager {
     public void resetSyncState() {
         mPrefs.edit()
             .remove(KEY_LAST_SYNC)
+            .remove(KEY_DOWNLOAD_CHECKPOINT)
+            .remove(KEY_DOWNLOAD_CHECKPOINT_FULL)
+            .remove(KEY_TOMBSTONE_SINCE)
             .putBoolean(KEY_IS_FIRST_SYNC, true)
             .apply();
+        // 重试表、冲突表与文本状态表中的记录属于之前的账号，在同步线程中清空
+        mExecutor.execute(() -> {
+            new SyncRetryStore(mContext).clear();
+            new ConflictStore(mContext).clear();
+            new TextCrdtStore(mContext).clear();
+        });
         Log.d(TAG, "Sync state reset");
     }
 
+    /**
+     * 设置是否只同步元数据（正文在打开笔记时按需下载）
+     */
+    public void setMetadataOnlySync(boolean enabled) {
+        mPrefs.edit().putBoolean(KEY_METADATA_ONLY, enabled).apply();
+    }
+
+    /**
+     * 是否只同步元数据
+     */
+    public boolean isMetadataOnlySync() {
+        return mPrefs.getBoolean(KEY_METADATA_ONLY, false);
+    }
+
+    /**
+     * 设置只同步元数据时本地正文的存储预算
+     *
+     * @param budgetBytes 字节数，超出时逐出最久未打开的正文
+     */
+    public void setBodyStorageBudget(long budgetBytes) {
+        mPrefs.edit().putLong(KEY_BODY_BUDGET, budgetBytes).apply();
+    }
+
+    /**
+     * 只同步元数据时本地正文的存储预算（字节）
+     */
+    public long getBodyStorageBudget() {
+        return mPrefs.getLong(KEY_BODY_BUDGET, DEFAULT_BODY_BUDGET_BYTES);
+    }
+
+    /**
+     * 设置是否以文本操作推送正文，自动合并不同设备的并发编辑
+     * <p>
+     * 关闭时丢弃尚未推送的文本操作，对应笔记按完整上传推送。
+     * </p>
+     */
+    public void setTextMergeEnabled(boolean enabled) {
+        mPrefs.edit().putBoolean(KEY_TEXT_MERGE, enabled).apply();
+        if (!enabled) {
+            mExecutor.execute(() -> new TextCrdtStore(mContext).clear());
+        }
+    }
+
+    /**
+     * 是否以文本操作推送正文
+     */
+    public boolean isTextMergeEnabled() {
+        return mPrefs.getBoolean(KEY_TEXT_MERGE, false);
+    }
+
     /**
      * 获取最后同步时间
      */
@@ -730,17 +1728,86 @@ public class SyncManager {
     }
 
     /**
-     * 获取待解决冲突列表
+     * 获取本进程内最近一次同步的性能指标
+     *
+     * @return 指标，本进程尚未同步过时返回 null（历史记录见统计表）
+     */
+    @Nullable
+    public SyncMetrics getLastSyncMetrics() {
+        return mLastSyncMetrics;
+    }
+
+    /**
+     * 获取本进程内最近一次对账的结果
+     *
+     * @return 对账结果，尚未对账过时返回 null
+     */
+    @Nullable
+    public ReconcileReport getLastReconcileReport() {
+        return mLastReconcileReport;
+    }
+
+    /**
+     * 获取最近一次同步的流量统计（线上字节、原始字节与压缩率）
+     *
+     * @return 流量快照，尚未同步过时返回 null
+     */
+    @Nullable
+    public TrafficMeter.Snapshot getLastSyncTraffic() {
+        return mLastSyncTraffic;
+    }
+
+    /**
+     * 获取最近一次同步从云端收到的变更数量（新增、更新与冲突）
+     */
+    public int getLastRemoteChangeCount() {
+        return mLastRemoteChanges;
+    }
+
+    /**
+     * 获取待解决冲突列表（按发现时间分页）
+     * <p>
+     * 读取数据库并加载本地笔记，不要在主线程调用。
+     * 无法读取的冲突（本地笔记已不存在或云端版本无法解析）从冲突表中移除，
+     * 对应笔记下一次同步时按本地版本处理；移除后用后面的冲突补足本页，
+     * 因此调用后 {@link #getPendingConflictCount()} 可能变小。
+     * </p>
+     *
+     * @param offset 跳过的冲突数量
+     * @param limit 最多返回的冲突数量
+     */
+    public List<Conflict> getPendingConflicts(int offset, int limit) {
+        ConflictStore store = new ConflictStore(mContext);
+        List<Conflict> result = new ArrayList<>();
+        boolean removed = true;
+        while (removed && result.size() < limit) {
+            removed = false;
+            for (ConflictStore.Entry entry : store.getPage(offset + result.size(), limit - result.size())) {
+                try {
+                    result.add(new Conflict(WorkingNote.load(mContext, entry.noteId),
+                            entry.getCloudNote()));
+                } catch (Exception e) {
+                    Log.e(TAG, "Removing unreadable conflict of note " + entry.noteId, e);
+                    store.remove(entry.noteId);
+                    removed = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 获取待解决冲突数量
      */
-    public List<Conflict> getPendingConflicts() {
-        return new ArrayList<>(mConflicts);
+    public int getPendingConflictCount() {
+        return new ConflictStore(mContext).count();
     }
 
     /**
-     * 清除所有冲突
+     * 清除所有冲突（不解决），对应笔记下一次同步时按本地版本上传
      */
     public void clearAllConflicts() {
-        mConflicts.clear();
+        mExecutor.execute(() -> new ConflictStore(mContext).clear());
         Log.d(TAG, "All conflicts cleared");
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import net.micode.notes.api.TrafficMeter;
+import net.micode.notes.data.Notes.StatsColumns;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 一次同步的性能指标
+ * <p>
+ * 记录各阶段耗时（Token 刷新、上传、下载等待、解析、本地写入）、请求数与重试数、
+ * 线上流量，以及上传、写入、冲突和隔离的笔记数量。同步线程写入，结束后持久化到统计表。
+ * </p>
+ */
+public class SyncMetrics {
+
+    /**
+     * 同步阶段
+     */
+    public enum Phase {
+        TOKEN, UPLOAD, DOWNLOAD, PARSE, APPLY
+    }
+
+    private long mStartedAt;
+    private long mDurationMs;
+    private boolean mSuccess;
+    private String mError = "";
+    private final long[] mPhaseMs = new long[Phase.values().length];
+    private long mRequests;
+    private long mRetries;
+    private long mBytesUp;
+    private long mBytesDown;
+    private int mNotesUploaded;
+    private int mNotesApplied;
+    private int mConflicts;
+    private int mQuarantined;
+
+    SyncMetrics(long startedAt) {
+        mStartedAt = startedAt;
+    }
+
+    private SyncMetrics() {
+    }
+
+    void addPhaseTime(Phase phase, long millis) {
+        mPhaseMs[phase.ordinal()] += Math.max(0, millis);
+    }
+
+    void addUploaded(int count) {
+        mNotesUploaded += count;
+    }
+
+    void addApplied(int count) {
+        mNotesApplied += count;
+    }
+
+    void addConflicts(int count) {
+        mConflicts += count;
+    }
+
+    void addQuarantined(int count) {
+        mQuarantined += count;
+    }
+
+    /**
+     * 同步结束时调用，合并本次同步的流量统计
+     *
+     * @param success 是否成功
+     * @param error 失败原因，成功时为 null
+     * @param traffic 本次同步的流量增量
+     */
+    void finish(boolean success, String error, TrafficMeter.Snapshot traffic) {
+        mDurationMs = System.currentTimeMillis() - mStartedAt;
+        mSuccess = success;
+        mError = error != null ? error : "";
+        if (traffic != null) {
+            mRequests = traffic.requestCount;
+            mRetries = traffic.retryCount;
+            mBytesUp = traffic.requestWireBytes;
+            mBytesDown = traffic.responseWireBytes;
+        }
+    }
+
+    public long getStartedAt() { return mStartedAt; }
+    public long getFinishedAt() { return mStartedAt + mDurationMs; }
+    public long getDurationMs() { return mDurationMs; }
+    public boolean isSuccess() { return mSuccess; }
+    public String getError() { return mError; }
+    public long getPhaseMs(Phase phase) { return mPhaseMs[phase.ordinal()]; }
+    public long getRequests() { return mRequests; }
+    public long getRetries() { return mRetries; }
+    public long getBytesUp() { return mBytesUp; }
+    public long getBytesDown() { return mBytesDown; }
+    public int getNotesUploaded() { return mNotesUploaded; }
+    public int getNotesApplied() { return mNotesApplied; }
+    public int getConflicts() { return mConflicts; }
+    public int getQuarantined() { return mQuarantined; }
+
+    /**
+     * 转换为统计表的一行
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(StatsColumns.STARTED_AT, mStartedAt);
+        values.put(StatsColumns.DURATION, mDurationMs);
+        values.put(StatsColumns.SUCCESS, mSuccess ? 1 : 0);
+        values.put(StatsColumns.ERROR, mError);
+        values.put(StatsColumns.TOKEN_MS, getPhaseMs(Phase.TOKEN));
+        values.put(StatsColumns.UPLOAD_MS, getPhaseMs(Phase.UPLOAD));
+        values.put(StatsColumns.DOWNLOAD_MS, getPhaseMs(Phase.DOWNLOAD));
+        values.put(StatsColumns.PARSE_MS, getPhaseMs(Phase.PARSE));
+        values.put(StatsColumns.APPLY_MS, getPhaseMs(Phase.APPLY));
+        values.put(StatsColumns.REQUESTS, mRequests);
+        values.put(StatsColumns.RETRIES, mRetries);
+        values.put(StatsColumns.BYTES_UP, mBytesUp);
+        values.put(StatsColumns.BYTES_DOWN, mBytesDown);
+        values.put(StatsColumns.NOTES_UPLOADED, mNotesUploaded);
+        values.put(StatsColumns.NOTES_APPLIED, mNotesApplied);
+        values.put(StatsColumns.CONFLICTS, mConflicts);
+        values.put(StatsColumns.QUARANTINED, mQuarantined);
+        return values;
+    }
+
+    /**
+     * 从统计表的当前行还原
+     */
+    public static SyncMetrics fromCursor(Cursor cursor) {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.mStartedAt = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.STARTED_AT));
+        metrics.mDurationMs = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.DURATION));
+        metrics.mSuccess = cursor.getInt(cursor.getColumnIndexOrThrow(StatsColumns.SUCCESS)) != 0;
+        metrics.mError = cursor.getString(cursor.getColumnIndexOrThrow(StatsColumns.ERROR));
+        metrics.mPhaseMs[Phase.TOKEN.ordinal()] =
+                cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.TOKEN_MS));
+        metrics.mPhaseMs[Phase.UPLOAD.ordinal()] =
+                cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.UPLOAD_MS));
+        metrics.mPhaseMs[Phase.DOWNLOAD.ordinal()] =
+                cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.DOWNLOAD_MS));
+        metrics.mPhaseMs[Phase.PARSE.ordinal()] =
+                cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.PARSE_MS));
+        metrics.mPhaseMs[Phase.APPLY.ordinal()] =
+                cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.APPLY_MS));
+        metrics.mRequests = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.REQUESTS));
+        metrics.mRetries = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.RETRIES));
+        metrics.mBytesUp = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.BYTES_UP));
+        metrics.mBytesDown = cursor.getLong(cursor.getColumnIndexOrThrow(StatsColumns.BYTES_DOWN));
+        metrics.mNotesUploaded = cursor.getInt(cursor.getColumnIndexOrThrow(StatsColumns.NOTES_UPLOADED));
+        metrics.mNotesApplied = cursor.getInt(cursor.getColumnIndexOrThrow(StatsColumns.NOTES_APPLIED));
+        metrics.mConflicts = cursor.getInt(cursor.getColumnIndexOrThrow(StatsColumns.CONFLICTS));
+        metrics.mQuarantined = cursor.getInt(cursor.getColumnIndexOrThrow(StatsColumns.QUARANTINED));
+        return metrics;
+    }
+
+    /**
+     * 一行可读的摘要，用于界面显示
+     */
+    public String toSummary() {
+        return "耗时 " + mDurationMs + "ms（Token " + getPhaseMs(Phase.TOKEN)
+                + " / 上传 " + getPhaseMs(Phase.UPLOAD)
+                + " / 下载 " + getPhaseMs(Phase.DOWNLOAD)
+                + " / 解析 " + getPhaseMs(Phase.PARSE)
+                + " / 写入 " + getPhaseMs(Phase.APPLY) + "）\n"
+                + "请求 " + mRequests + " 次，重试 " + mRetries + " 次，上行 " + mBytesUp
+                + "B，下行 " + mBytesDown + "B\n"
+                + "上传 " + mNotesUploaded + "，写入 " + mNotesApplied + "，冲突 " + mConflicts
+                + "，隔离 " + mQuarantined;
+    }
+
+    /**
+     * 生成可导出的 CSV 报告
+     *
+     * @param history 同步记录，按时间倒序
+     */
+    public static String formatReport(List<SyncMetrics> history) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        sb.append("started,duration_ms,success,token_ms,upload_ms,download_ms,parse_ms,apply_ms,")
+                .append("requests,retries,bytes_up,bytes_down,uploaded,applied,conflicts,quarantined,error\n");
+        for (SyncMetrics m : history) {
+            sb.append(format.format(new Date(m.mStartedAt))).append(',')
+                    .append(m.mDurationMs).append(',')
+                    .append(m.mSuccess ? 1 : 0).append(',')
+                    .append(m.getPhaseMs(Phase.TOKEN)).append(',')
+                    .append(m.getPhaseMs(Phase.UPLOAD)).append(',')
+                    .append(m.getPhaseMs(Phase.DOWNLOAD)).append(',')
+                    .append(m.getPhaseMs(Phase.PARSE)).append(',')
+                    .append(m.getPhaseMs(Phase.APPLY)).append(',')
+                    .append(m.mRequests).append(',')
+                    .append(m.mRetries).append(',')
+                    .append(m.mBytesUp).append(',')
+                    .append(m.mBytesDown).append(',')
+                    .append(m.mNotesUploaded).append(',')
+                    .append(m.mNotesApplied).append(',')
+                    .append(m.mConflicts).append(',')
+                    .append(m.mQuarantined).append(',')
+                    .append('"').append(m.mError.replace("\"", "\"\"")).append('"')
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
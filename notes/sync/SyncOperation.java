@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.text.TextUtils;
+
+import net.micode.notes.data.Notes.OutboxColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 同步操作
+ * <p>
+ * 对应发件箱中的一条或多条记录。从发件箱读出的每一行先构造成一个操作，
+ * 再通过 {@link #collapse(List)} 按笔记合并，得到每条笔记真正需要推送的一次操作。
+ * </p>
+ * <p>
+ * 合并规则：
+ * <ul>
+ * <li>新建 + 修改/移动 = 新建（云端尚无此笔记，上传最新内容即可）</li>
+ * <li>修改 + 移动 = 移动</li>
+ * <li>任意操作 + 删除 = 删除</li>
+ * <li>删除之后又出现的操作（笔记ID被复用）单独成为新的操作，不与删除合并</li>
+ * </ul>
+ * </p>
+ */
+public class SyncOperation {
+
+    private final long mNoteId;
+    private int mOpType;
+    private final Set<String> mFields;
+    private String mCloudNoteId;
+    private final long mFirstEntryId;
+    private long mLastEntryId;
+    private int mEntryCount;
+
+    public SyncOperation(long entryId, long noteId, int opType, String fields, String cloudNoteId) {
+        mNoteId = noteId;
+        mOpType = opType;
+        mFields = new LinkedHashSet<>();
+        addFields(fields);
+        mCloudNoteId = cloudNoteId != null ? cloudNoteId : "";
+        mFirstEntryId = entryId;
+        mLastEntryId = entryId;
+        mEntryCount = 1;
+    }
+
+    /**
+     * 按笔记合并发件箱记录
+     *
+     * @param entries 按发生顺序排列的发件箱记录
+     * @return 合并后的操作列表，顺序为每个操作第一条记录的顺序
+     */
+    public static List<SyncOperation> collapse(List<SyncOperation> entries) {
+        List<SyncOperation> result = new ArrayList<>();
+        Map<Long, SyncOperation> open = new HashMap<>();
+
+        for (SyncOperation entry : entries) {
+            SyncOperation current = open.get(entry.mNoteId);
+            if (current == null || (current.mOpType == OutboxColumns.OP_DELETE
+                    && entry.mOpType != OutboxColumns.OP_DELETE)) {
+                SyncOperation op = new SyncOperation(entry.mFirstEntryId, entry.mNoteId,
+                        entry.mOpType, null, entry.mCloudNoteId);
+                op.mFields.addAll(entry.mFields);
+                open.put(entry.mNoteId, op);
+                result.add(op);
+            } else {
+                current.merge(entry);
+            }
+        }
+        return result;
+    }
+
+    private void merge(SyncOperation next) {
+        if (next.mOpType == OutboxColumns.OP_DELETE) {
+            mOpType = OutboxColumns.OP_DELETE;
+            mFields.clear();
+        } else if (mOpType == OutboxColumns.OP_UPDATE && next.mOpType == OutboxColumns.OP_MOVE) {
+            mOpType = OutboxColumns.OP_MOVE;
+        }
+        // OP_CREATE 吸收后续的修改和移动，OP_MOVE 吸收后续的修改
+
+        if (mOpType != OutboxColumns.OP_DELETE) {
+            mFields.addAll(next.mFields);
+        }
+        if (!TextUtils.isEmpty(next.mCloudNoteId)) {
+            mCloudNoteId = next.mCloudNoteId;
+        }
+        mLastEntryId = next.mLastEntryId;
+        mEntryCount += next.mEntryCount;
+    }
+
+    private void addFields(String fields) {
+        if (TextUtils.isEmpty(fields)) {
+            return;
+        }
+        for (String field : fields.split(",")) {
+            if (!field.isEmpty()) {
+                mFields.add(field);
+            }
+        }
+    }
+
+    public long getNoteId() {
+        return mNoteId;
+    }
+
+    public int getOpType() {
+        return mOpType;
+    }
+
+    public boolean isDelete() {
+        return mOpType == OutboxColumns.OP_DELETE;
+    }
+
+    /**
+     * 受影响的列名，为空表示未知（升级时迁移的记录），应按整条笔记推送
+     */
+    public Set<String> getFields() {
+        return mFields;
+    }
+
+    public String getCloudNoteId() {
+        return mCloudNoteId;
+    }
+
+    /**
+     * 合并范围内第一条发件箱记录的ID
+     */
+    public long getFirstEntryId() {
+        return mFirstEntryId;
+    }
+
+    /**
+     * 合并范围内最后一条发件箱记录的ID
+     */
+    public long getLastEntryId() {
+        return mLastEntryId;
+    }
+
+    /**
+     * 合并的发件箱记录数量
+     */
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncOperation{noteId=" + mNoteId + ", op=" + mOpType + ", fields=" + mFields
+                + ", entries=" + mFirstEntryId + ".." + mLastEntryId + "}";
+    }
+}
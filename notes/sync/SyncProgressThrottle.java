@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+/**
+ * 同步进度节流器
+ * <p>
+ * 包装 {@link SyncManager.SyncProgressCallback}，两次回调之间至少间隔 {@link #MIN_INTERVAL_MS}，
+ * 避免每处理一条笔记就向界面投递一次更新。第一次回调和到达终点（current &gt;= total）的回调总是转发。
+ * </p>
+ */
+public class SyncProgressThrottle implements SyncManager.SyncProgressCallback {
+
+    public static final long MIN_INTERVAL_MS = 200;
+
+    private final SyncManager.SyncProgressCallback mDelegate;
+    private long mLastDispatchAt = -1;
+
+    private SyncProgressThrottle(SyncManager.SyncProgressCallback delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * 包装进度回调
+     *
+     * @param delegate 原回调，可为 null
+     * @return 节流后的回调；delegate 为 null 时返回 null
+     */
+    public static SyncManager.SyncProgressCallback wrap(SyncManager.SyncProgressCallback delegate) {
+        return delegate != null ? new SyncProgressThrottle(delegate) : null;
+    }
+
+    @Override
+    public void onProgress(int current, int total, String message) {
+        long now = System.currentTimeMillis();
+        boolean finished = current >= total;
+        if (!finished && mLastDispatchAt >= 0 && now - mLastDispatchAt < MIN_INTERVAL_MS) {
+            return;
+        }
+        mLastDispatchAt = now;
+        mDelegate.onProgress(current, total, message);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 同步调度策略
+ * <p>
+ * 纯 Java 决策逻辑，不依赖 Android 组件，时间通过 {@link Clock} 注入，可用假时钟验证：
+ * <ul>
+ * <li>本地编辑后防抖：最后一次保存 {@link #DEBOUNCE_MS} 后同步，
+ * 持续编辑时距第一次未同步的编辑最多等待 {@link #MAX_DEBOUNCE_MS}</li>
+ * <li>云端无变化时轮询间隔指数增长，直到 {@link #MAX_INTERVAL_MS}</li>
+ * <li>云端有变化时间隔减半；一段时间内频繁变化则直接收紧到 {@link #MIN_INTERVAL_MS}</li>
+ * <li>同步失败时按失败次数指数退避；退避期间的本地编辑重新开始防抖，但不早于退避结束</li>
+ * </ul>
+ * </p>
+ * <p>
+ * 非线程安全，由调用方加锁。
+ * </p>
+ */
+public class SyncSchedulePolicy {
+
+    /**
+     * 时钟接口
+     */
+    public interface Clock {
+        long now();
+    }
+
+    public static final Clock SYSTEM_CLOCK = System::currentTimeMillis;
+
+    public static final long DEBOUNCE_MS = 5 * 1000L;
+    public static final long MAX_DEBOUNCE_MS = 60 * 1000L;
+
+    public static final long MIN_INTERVAL_MS = 2 * 60 * 1000L;
+    public static final long DEFAULT_INTERVAL_MS = 15 * 60 * 1000L;
+    public static final long MAX_INTERVAL_MS = 4 * 60 * 60 * 1000L;
+
+    public static final long FAILURE_BASE_MS = 60 * 1000L;
+    public static final long FAILURE_MAX_MS = 60 * 60 * 1000L;
+
+    /**
+     * 判断“频繁变化”的时间窗口与次数阈值
+     */
+    public static final long ACTIVITY_WINDOW_MS = 60 * 60 * 1000L;
+    public static final int BUSY_THRESHOLD = 3;
+
+    private final Clock mClock;
+    private final Deque<Long> mRemoteChangeTimes = new ArrayDeque<>();
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private long mFirstPendingEditAt;
+    private long mBackoffUntil;
+    private int mConsecutiveFailures;
+
+    public SyncSchedulePolicy(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * 记录一次本地编辑
+     *
+     * @return 距离执行同步的延迟（毫秒），失败退避期间不早于退避结束
+     */
+    public long onLocalEdit() {
+        long now = mClock.now();
+        if (mFirstPendingEditAt == 0) {
+            mFirstPendingEditAt = now;
+        }
+        long deadline = mFirstPendingEditAt + MAX_DEBOUNCE_MS;
+        long debounce = Math.max(0, Math.min(DEBOUNCE_MS, deadline - now));
+        return Math.max(debounce, mBackoffUntil - now);
+    }
+
+    /**
+     * 记录一次同步结果并计算下一次轮询的延迟
+     *
+     * @param success 同步是否成功
+     * @param remoteChanges 本次从云端收到的变更数量
+     * @return 距离下一次轮询的延迟（毫秒）
+     */
+    public long onSyncCompleted(boolean success, int remoteChanges) {
+        long now = mClock.now();
+        // 失败的同步也消费了此前的编辑，之后的编辑重新开始防抖
+        mFirstPendingEditAt = 0;
+        if (!success) {
+            mConsecutiveFailures++;
+            int shift = Math.min(mConsecutiveFailures - 1, 16);
+            long backoff = Math.min(FAILURE_MAX_MS, FAILURE_BASE_MS << shift);
+            mBackoffUntil = now + backoff;
+            return backoff;
+        }
+
+        mConsecutiveFailures = 0;
+        mBackoffUntil = 0;
+
+        if (remoteChanges > 0) {
+            mRemoteChangeTimes.addLast(now);
+        }
+        while (!mRemoteChangeTimes.isEmpty()
+                && now - mRemoteChangeTimes.peekFirst() > ACTIVITY_WINDOW_MS) {
+            mRemoteChangeTimes.removeFirst();
+        }
+
+        if (mRemoteChangeTimes.size() >= BUSY_THRESHOLD) {
+            mIntervalMs = MIN_INTERVAL_MS;
+        } else if (remoteChanges > 0) {
+            mIntervalMs = Math.max(MIN_INTERVAL_MS, mIntervalMs / 2);
+        } else {
+            mIntervalMs = Math.min(MAX_INTERVAL_MS, mIntervalMs * 2);
+        }
+        return mIntervalMs;
+    }
+
+    /**
+     * 当前轮询间隔（毫秒）
+     */
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /**
+     * 恢复持久化的轮询间隔，超出范围时截断
+     */
+    public void setIntervalMs(long intervalMs) {
+        mIntervalMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, intervalMs));
+    }
+
+    /**
+     * 连续失败次数
+     */
+    public int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+}
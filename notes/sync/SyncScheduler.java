@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自适应同步调度器
+ * <p>
+ * 用 WorkManager 一次性任务代替固定 30 分钟的周期任务，延迟由 {@link SyncSchedulePolicy} 决定：
+ * <ul>
+ * <li>编辑同步（{@link #WORK_EDIT}）：每次保存以 REPLACE 重新入队，实现防抖</li>
+ * <li>轮询同步（{@link #WORK_POLL}）：每次同步结束后按策略计算的间隔入队下一次；
+ * 应用启动时以 KEEP 入队，不会重置已有的计时</li>
+ * <li>哈希对账：距上次成功对账超过 {@link #RECONCILE_INTERVAL_MS} 时，由一次轮询同步改为执行对账</li>
+ * </ul>
+ * 轮询间隔持久化在 SharedPreferences 中，进程重启后继续使用。
+ * </p>
+ */
+public class SyncScheduler {
+
+    private static final String TAG = "SyncScheduler";
+
+    public static final String WORK_EDIT = "cloudSyncEdit";
+    public static final String WORK_POLL = "cloudSyncPoll";
+
+    /**
+     * 旧版本使用的周期任务名称
+     */
+    private static final String LEGACY_PERIODIC_WORK = "cloudSync";
+
+    private static final String PREFS_SCHEDULE = "sync_schedule";
+    private static final String KEY_INTERVAL = "poll_interval_ms";
+    private static final String KEY_LAST_RECONCILE = "last_reconcile_at";
+
+    /**
+     * 两次哈希对账的最小间隔
+     */
+    public static final long RECONCILE_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+
+    private static volatile SyncScheduler sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final SyncSchedulePolicy mPolicy;
+
+    private SyncScheduler(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_SCHEDULE, Context.MODE_PRIVATE);
+        mPolicy = new SyncSchedulePolicy(SyncSchedulePolicy.SYSTEM_CLOCK);
+        mPolicy.setIntervalMs(mPrefs.getLong(KEY_INTERVAL, SyncSchedulePolicy.DEFAULT_INTERVAL_MS));
+    }
+
+    /**
+     * 获取调度器单例
+     */
+    public static SyncScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (SyncScheduler.class) {
+                if (sInstance == null) {
+                    sInstance = new SyncScheduler(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 启动轮询（应用启动时调用）
+     * <p>
+     * 使用 KEEP 策略，已排队的轮询保持原计时。
+     * </p>
+     */
+    public void start() {
+        WorkManager workManager = WorkManager.getInstance(mContext);
+        workManager.cancelUniqueWork(LEGACY_PERIODIC_WORK);
+
+        long delay;
+        synchronized (mPolicy) {
+            delay = mPolicy.getIntervalMs();
+        }
+        workManager.enqueueUniqueWork(WORK_POLL, ExistingWorkPolicy.KEEP,
+                buildRequest(SyncWorker.REASON_POLL, delay));
+        Log.d(TAG, "Poll sync ensured, interval " + delay / 1000 + "s");
+    }
+
+    /**
+     * 本地编辑保存后调用，防抖后执行同步
+     */
+    public void onLocalEdit() {
+        long delay;
+        synchronized (mPolicy) {
+            delay = mPolicy.onLocalEdit();
+        }
+        WorkManager.getInstance(mContext).enqueueUniqueWork(WORK_EDIT, ExistingWorkPolicy.REPLACE,
+                buildRequest(SyncWorker.REASON_EDIT, delay));
+        Log.d(TAG, "Edit sync debounced, runs in " + delay + "ms");
+    }
+
+    /**
+     * 同步结束后调用，按结果安排下一次轮询
+     *
+     * @param reason 触发本次同步的原因
+     * @param success 是否成功
+     * @param remoteChanges 从云端收到的变更数量
+     */
+    void onSyncFinished(String reason, boolean success, int remoteChanges) {
+        long delay;
+        synchronized (mPolicy) {
+            delay = mPolicy.onSyncCompleted(success, remoteChanges);
+            mPrefs.edit().putLong(KEY_INTERVAL, mPolicy.getIntervalMs()).apply();
+        }
+
+        // 轮询任务自身仍在运行，追加到其后；其他来源的同步直接替换排队中的轮询
+        ExistingWorkPolicy policy = SyncWorker.REASON_POLL.equals(reason)
+                ? ExistingWorkPolicy.APPEND_OR_REPLACE
+                : ExistingWorkPolicy.REPLACE;
+        WorkManager.getInstance(mContext).enqueueUniqueWork(WORK_POLL, policy,
+                buildRequest(SyncWorker.REASON_POLL, delay));
+        Log.d(TAG, "Next poll sync in " + delay / 1000 + "s (success=" + success
+                + ", remoteChanges=" + remoteChanges + ")");
+    }
+
+    /**
+     * 是否到了执行哈希对账的时间
+     */
+    boolean isReconcileDue() {
+        long last = mPrefs.getLong(KEY_LAST_RECONCILE, 0);
+        return System.currentTimeMillis() - last >= RECONCILE_INTERVAL_MS;
+    }
+
+    /**
+     * 记录一次成功的对账
+     */
+    void onReconciled() {
+        mPrefs.edit().putLong(KEY_LAST_RECONCILE, System.currentTimeMillis()).apply();
+    }
+
+    /**
+     * 取消所有排队的同步任务（用户退出登录时调用）
+     */
+    public void cancel() {
+        WorkManager workManager = WorkManager.getInstance(mContext);
+        workManager.cancelUniqueWork(WORK_EDIT);
+        workManager.cancelUniqueWork(WORK_POLL);
+        workManager.cancelUniqueWork(PushFetchWorker.WORK_NAME);
+        workManager.cancelUniqueWork(LEGACY_PERIODIC_WORK);
+    }
+
+    private OneTimeWorkRequest buildRequest(String reason, long delayMs) {
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED);
+        if (SyncWorker.REASON_POLL.equals(reason)) {
+            constraints.setRequiresBatteryNotLow(true);
+        }
+
+        return new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setConstraints(constraints.build())
+                .setInitialDelay(delayMs, TimeUnit.MILLISECONDS)
+                .setInputData(new Data.Builder()
+                        .putString(SyncWorker.KEY_REASON, reason)
+                        .build())
+                .build();
+    }
+}
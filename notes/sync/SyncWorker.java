@@ -20,13 +20,10 @@ import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.work.Constraints;
-import androidx.work.NetworkType;
-import androidx.work.PeriodicWorkRequest;
-import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
-import androidx.work.ExistingPeriodicWorkPolicy;
+
+import net.micode.notes.auth.UserAuthManager;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -34,13 +31,23 @@ import java.util.concurrent.TimeUnit;
 /**
  * 同步Worker
  * <p>
- * 使用WorkManager执行后台同步任务，定期同步笔记到云端。
+ * 由 {@link SyncScheduler} 以一次性任务的方式调度执行同步，
+ * 同步结束后把结果交回调度器安排下一次轮询。到了对账时间的轮询改为执行哈希对账（对账前先同步）。
  * </p>
  */
 public class SyncWorker extends Worker {
 
     private static final String TAG = "SyncWorker";
-    private static final String WORK_NAME = "cloudSync";
+
+    /**
+     * 输入参数：触发原因
+     */
+    public static final String KEY_REASON = "reason";
+    public static final String REASON_POLL = "poll";
+    public static final String REASON_EDIT = "edit";
+
+    private static final long SYNC_WAIT_SECONDS = 60;
+    private static final long RECONCILE_WAIT_SECONDS = 180;
 
     public SyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
@@ -49,12 +56,24 @@ public class SyncWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
-        Log.d(TAG, "Starting background sync work");
+        String reason = getInputData().getString(KEY_REASON);
+        if (reason == null) {
+            reason = REASON_POLL;
+        }
+        Log.d(TAG, "Starting background sync work, reason: " + reason);
+
+        if (!UserAuthManager.getInstance(getApplicationContext()).isLoggedIn()) {
+            Log.d(TAG, "User not logged in, skip background sync");
+            return Result.success();
+        }
+
+        SyncScheduler scheduler = SyncScheduler.getInstance(getApplicationContext());
+        boolean reconcile = REASON_POLL.equals(reason) && scheduler.isReconcileDue();
 
         final CountDownLatch latch = new CountDownLatch(1);
         final boolean[] success = {false};
 
-        SyncManager.getInstance().syncNotes(new SyncManager.SyncCallback() {
+        SyncManager.SyncCallback callback = new SyncManager.SyncCallback() {
             @Override
             public void onSuccess() {
                 Log.d(TAG, "Background sync completed successfully");
@@ -68,51 +87,48 @@ public class SyncWorker extends Worker {
                 success[0] = false;
                 latch.countDown();
             }
-        });
+        };
+        if (reconcile) {
+            SyncManager.getInstance().reconcileNotes(callback);
+        } else {
+            SyncManager.getInstance().syncNotes(callback);
+        }
 
         try {
-            latch.await(60, TimeUnit.SECONDS);
+            latch.await(reconcile ? RECONCILE_WAIT_SECONDS : SYNC_WAIT_SECONDS, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             Log.e(TAG, "Sync work interrupted", e);
-            return Result.retry();
+            success[0] = false;
+        }
+
+        if (reconcile && success[0]) {
+            Log.d(TAG, "Reconciliation: " + SyncManager.getInstance().getLastReconcileReport());
+            scheduler.onReconciled();
         }
 
-        return success[0] ? Result.success() : Result.retry();
+        // 失败也返回 success：重试节奏由调度器的退避策略决定，避免与 WorkManager 自带重试叠加
+        scheduler.onSyncFinished(reason, success[0],
+                SyncManager.getInstance().getLastRemoteChangeCount());
+        return Result.success();
     }
 
     /**
-     * 初始化定期同步任务
+     * 初始化后台同步调度
      *
      * @param context 应用上下文
      */
     public static void initialize(Context context) {
-        Log.d(TAG, "Initializing periodic sync work");
-
-        Constraints constraints = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED)
-                .setRequiresBatteryNotLow(true)
-                .build();
-
-        PeriodicWorkRequest syncWork = new PeriodicWorkRequest.Builder(
-                SyncWorker.class, 30, TimeUnit.MINUTES)
-                .setConstraints(constraints)
-                .build();
-
-        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
-                WORK_NAME,
-                ExistingPeriodicWorkPolicy.REPLACE,
-                syncWork);
-
-        Log.d(TAG, "Periodic sync work scheduled (30 minutes interval)");
+        Log.d(TAG, "Initializing adaptive sync scheduling");
+        SyncScheduler.getInstance(context).start();
     }
 
     /**
-     * 取消定期同步任务
+     * 取消后台同步任务
      *
      * @param context 应用上下文
      */
     public static void cancel(Context context) {
-        Log.d(TAG, "Canceling periodic sync work");
-        WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME);
+        Log.d(TAG, "Canceling background sync work");
+        SyncScheduler.getInstance(context).cancel();
     }
 }
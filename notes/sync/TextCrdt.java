@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 笔记正文的序列 CRDT（RGA，Replicated Growable Array）
+ * <p>
+ * 每个字符有全局唯一的ID（Lamport 时钟, 站点），插入记录"插在哪个字符之后"，删除只打删除标记（墓碑），
+ * 因此并发的插入与删除以任意顺序应用都收敛到相同的文本：插在同一字符之后的并发插入按ID从大到小排列，
+ * 新插入的字符总是排在ID更小的字符之前。只要按因果顺序应用（服务端按接收顺序转发即可保证），
+ * 客户端与服务端得到的结果完全一致。
+ * </p>
+ * <p>
+ * 同一段基础文本在任何一端都产生相同的ID（站点为 {@link #BASE_SITE}，时钟为 1..n），
+ * 各端无需交换初始状态；基础文本的摘要即为这组ID的"谱系"，见 {@link NoteContentHash#textDigest}。
+ * </p>
+ * <p>
+ * 操作以批次传输，连续输入的字符与连续删除的字符分别压缩为一项：
+ * <ul>
+ * <li>插入 {@code ["i", 时钟, 站点, 前驱时钟, 前驱站点, 文本]}：文本的第 k 个字符ID为 (时钟 + k, 站点)，
+ * 第一个字符插在前驱之后，其余依次插在前一个字符之后；前驱为 (0, "") 表示文本开头</li>
+ * <li>删除 {@code ["d", 时钟, 站点, 数量]}：删除ID为 (时钟..时钟 + 数量 - 1, 站点) 的字符</li>
+ * </ul>
+ * 批次内插入在前、删除在后。状态以相同方式按文档顺序压缩为 {@code [时钟, 站点, 文本, 是否删除]}。
+ * 墓碑不回收，长期编辑的笔记状态会随删除的字符增长。
+ * </p>
+ * <p>
+ * 不是线程安全的。
+ * </p>
+ */
+public class TextCrdt {
+
+    /**
+     * 基础文本字符的站点
+     */
+    public static final String BASE_SITE = "";
+
+    private static final String OP_INSERT = "i";
+    private static final String OP_DELETE = "d";
+
+    /**
+     * 字符ID：先比较时钟，再比较站点
+     */
+    public static final class Id implements Comparable<Id> {
+        public final long clock;
+        public final String site;
+
+        public Id(long clock, String site) {
+            this.clock = clock;
+            this.site = site;
+        }
+
+        Id next() {
+            return new Id(clock + 1, site);
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            int result = Long.compare(clock, other.clock);
+            return result != 0 ? result : site.compareTo(other.site);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Id)) {
+                return false;
+            }
+            Id other = (Id) o;
+            return clock == other.clock && site.equals(other.site);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(clock) + site.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return clock + "@" + site;
+        }
+    }
+
+    /**
+     * 文本开头（不对应任何字符）
+     */
+    private static final Id HEAD = new Id(0, BASE_SITE);
+
+    /**
+     * 一个字符的插入或删除
+     */
+    public static final class Op {
+        public final boolean insert;
+        public final Id id;
+        /** 插入位置的前驱，删除时为 null */
+        public final Id ref;
+        public final char value;
+
+        private Op(boolean insert, Id id, Id ref, char value) {
+            this.insert = insert;
+            this.id = id;
+            this.ref = ref;
+            this.value = value;
+        }
+
+        static Op insert(Id id, Id ref, char value) {
+            return new Op(true, id, ref, value);
+        }
+
+        static Op delete(Id id) {
+            return new Op(false, id, null, '\0');
+        }
+
+        /**
+         * 操作的唯一标识（用于确认已发送的操作）
+         */
+        String key() {
+            return (insert ? OP_INSERT : OP_DELETE) + id;
+        }
+    }
+
+    private static final class Element {
+        final Id id;
+        final char value;
+        boolean deleted;
+
+        Element(Id id, char value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    private final String mSite;
+    private final List<Element> mElements = new ArrayList<>();
+    private final Map<Id, Element> mById = new HashMap<>();
+    private long mClock;
+    private int mVisible;
+    // 上一次插入的位置：连续插入的前驱通常就是它，省去查找
+    private int mLastInsert = -1;
+
+    private TextCrdt(String site) {
+        mSite = site;
+    }
+
+    /**
+     * 由基础文本建立
+     *
+     * @param text 基础文本，各端相同的文本得到相同的字符ID
+     * @param site 本端站点（设备ID），不能为空
+     */
+    public static TextCrdt fromBase(String text, String site) {
+        TextCrdt crdt = new TextCrdt(checkSite(site));
+        for (int i = 0; i < text.length(); i++) {
+            crdt.append(new Element(new Id(i + 1, BASE_SITE), text.charAt(i)));
+        }
+        crdt.mClock = text.length();
+        return crdt;
+    }
+
+    /**
+     * 由 {@link #toState()} 的结果恢复
+     */
+    public static TextCrdt fromState(JSONArray state, String site) throws JSONException {
+        TextCrdt crdt = new TextCrdt(checkSite(site));
+        for (int i = 0; i < state.length(); i++) {
+            JSONArray run = state.getJSONArray(i);
+            Id id = new Id(run.getLong(0), run.getString(1));
+            String text = run.getString(2);
+            boolean deleted = run.getInt(3) != 0;
+            for (int k = 0; k < text.length(); k++) {
+                Element element = new Element(id, text.charAt(k));
+                element.deleted = deleted;
+                crdt.append(element);
+                crdt.mClock = Math.max(crdt.mClock, id.clock);
+                id = id.next();
+            }
+        }
+        return crdt;
+    }
+
+    /**
+     * 按文档顺序压缩的全部字符（含墓碑）
+     */
+    public JSONArray toState() {
+        JSONArray state = new JSONArray();
+        int i = 0;
+        while (i < mElements.size()) {
+            Element first = mElements.get(i);
+            StringBuilder text = new StringBuilder().append(first.value);
+            Id last = first.id;
+            i++;
+            while (i < mElements.size()) {
+                Element element = mElements.get(i);
+                if (element.deleted != first.deleted || !element.id.equals(last.next())) {
+                    break;
+                }
+                text.append(element.value);
+                last = element.id;
+                i++;
+            }
+            state.put(new JSONArray().put(first.id.clock).put(first.id.site).put(text.toString())
+                    .put(first.deleted ? 1 : 0));
+        }
+        return state;
+    }
+
+    /**
+     * 当前可见的文本
+     */
+    public String getText() {
+        StringBuilder text = new StringBuilder(mVisible);
+        for (Element element : mElements) {
+            if (!element.deleted) {
+                text.append(element.value);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * 本端的一次编辑：从 start 开始删除 deleteCount 个字符，再在 start 处插入 inserted
+     *
+     * @return 产生的操作，按应用顺序排列
+     * @throws IllegalArgumentException 位置超出当前文本
+     */
+    public List<Op> edit(int start, int deleteCount, String inserted) {
+        if (start < 0 || deleteCount < 0 || start + deleteCount > mVisible) {
+            throw new IllegalArgumentException("Edit [" + start + ", +" + deleteCount
+                    + ") outside text of length " + mVisible);
+        }
+        List<Op> ops = new ArrayList<>(deleteCount + inserted.length());
+        if (deleteCount == 0 && inserted.isEmpty()) {
+            return ops;
+        }
+
+        // 找到 start 之前最后一个可见字符的位置（-1 表示文本开头）
+        int refIndex = -1;
+        int index = 0;
+        int visible = 0;
+        while (visible < start) {
+            if (!mElements.get(index).deleted) {
+                visible++;
+                refIndex = index;
+            }
+            index++;
+        }
+
+        for (int remaining = deleteCount; remaining > 0; index++) {
+            Element element = mElements.get(index);
+            if (!element.deleted) {
+                element.deleted = true;
+                mVisible--;
+                ops.add(Op.delete(element.id));
+                remaining--;
+            }
+        }
+
+        if (!inserted.isEmpty()) {
+            // 本端新产生的ID大于所有已知ID，按插入规则紧跟在前驱之后
+            Id ref = refIndex >= 0 ? mElements.get(refIndex).id : HEAD;
+            List<Element> added = new ArrayList<>(inserted.length());
+            for (int i = 0; i < inserted.length(); i++) {
+                Element element = new Element(new Id(++mClock, mSite), inserted.charAt(i));
+                added.add(element);
+                mById.put(element.id, element);
+                ops.add(Op.insert(element.id, ref, element.value));
+                ref = element.id;
+            }
+            mElements.addAll(refIndex + 1, added);
+            mVisible += added.size();
+            mLastInsert = refIndex + added.size();
+        }
+        return ops;
+    }
+
+    /**
+     * 把当前文本改为 target：只替换首尾相同部分之间的区域
+     *
+     * @return 产生的操作
+     */
+    public List<Op> replaceWith(String target) {
+        String text = getText();
+        int prefix = 0;
+        int max = Math.min(text.length(), target.length());
+        while (prefix < max && text.charAt(prefix) == target.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && text.charAt(text.length() - 1 - suffix)
+                == target.charAt(target.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return edit(prefix, text.length() - prefix - suffix,
+                target.substring(prefix, target.length() - suffix));
+    }
+
+    /**
+     * 应用另一端（或服务端转发）的操作；已应用过的操作被忽略
+     *
+     * @throws IllegalStateException 操作引用了未知的字符（没有按因果顺序应用）
+     */
+    public void apply(Op op) {
+        mClock = Math.max(mClock, op.id.clock);
+        if (!op.insert) {
+            Element element = mById.get(op.id);
+            if (element == null) {
+                throw new IllegalStateException("Delete of unknown character " + op.id);
+            }
+            if (!element.deleted) {
+                element.deleted = true;
+                mVisible--;
+            }
+            return;
+        }
+        if (mById.containsKey(op.id)) {
+            return;
+        }
+
+        int index = indexOf(op.ref) + 1;
+        // 跳过ID更大的并发插入（及其后继，它们的ID更大）
+        while (index < mElements.size() && mElements.get(index).id.compareTo(op.id) > 0) {
+            index++;
+        }
+        Element element = new Element(op.id, op.value);
+        mElements.add(index, element);
+        mById.put(op.id, element);
+        mVisible++;
+        mLastInsert = index;
+    }
+
+    /**
+     * 应用一个批次
+     */
+    public void applyBatch(JSONArray batch) throws JSONException {
+        for (Op op : decode(batch)) {
+            apply(op);
+        }
+    }
+
+    private int indexOf(Id id) {
+        if (id.equals(HEAD)) {
+            return -1;
+        }
+        if (mLastInsert >= 0 && mLastInsert < mElements.size()
+                && mElements.get(mLastInsert).id.equals(id)) {
+            return mLastInsert;
+        }
+        Element target = mById.get(id);
+        if (target != null) {
+            for (int i = 0; i < mElements.size(); i++) {
+                if (mElements.get(i) == target) {
+                    return i;
+                }
+            }
+        }
+        throw new IllegalStateException("Insert after unknown character " + id);
+    }
+
+    private void append(Element element) {
+        mElements.add(element);
+        mById.put(element.id, element);
+        if (!element.deleted) {
+            mVisible++;
+        }
+    }
+
+    private static String checkSite(String site) {
+        if (site == null || site.isEmpty()) {
+            throw new IllegalArgumentException("Site must not be empty");
+        }
+        return site;
+    }
+
+    /**
+     * 把操作压缩为一个批次
+     */
+    public static JSONArray encode(List<Op> ops) {
+        JSONArray batch = new JSONArray();
+        List<Op> deletes = new ArrayList<>();
+        int i = 0;
+        while (i < ops.size()) {
+            Op first = ops.get(i++);
+            if (!first.insert) {
+                deletes.add(first);
+                continue;
+            }
+            StringBuilder text = new StringBuilder().append(first.value);
+            Id last = first.id;
+            while (i < ops.size() && ops.get(i).insert && ops.get(i).id.equals(last.next())
+                    && ops.get(i).ref.equals(last)) {
+                last = ops.get(i).id;
+                text.append(ops.get(i++).value);
+            }
+            batch.put(new JSONArray().put(OP_INSERT).put(first.id.clock).put(first.id.site)
+                    .put(first.ref.clock).put(first.ref.site).put(text.toString()));
+        }
+
+        // 删除互相可交换，排序后连续的ID压缩为一项
+        Collections.sort(deletes, (a, b) -> {
+            int result = a.id.site.compareTo(b.id.site);
+            return result != 0 ? result : Long.compare(a.id.clock, b.id.clock);
+        });
+        i = 0;
+        while (i < deletes.size()) {
+            Id first = deletes.get(i++).id;
+            Id last = first;
+            while (i < deletes.size() && deletes.get(i).id.equals(last.next())) {
+                last = deletes.get(i++).id;
+            }
+            batch.put(new JSONArray().put(OP_DELETE).put(first.clock).put(first.site)
+                    .put(last.clock - first.clock + 1));
+        }
+        return batch;
+    }
+
+    /**
+     * 展开一个批次
+     */
+    public static List<Op> decode(JSONArray batch) throws JSONException {
+        List<Op> ops = new ArrayList<>();
+        for (int i = 0; i < batch.length(); i++) {
+            JSONArray item = batch.getJSONArray(i);
+            Id id = new Id(item.getLong(1), item.getString(2));
+            if (OP_INSERT.equals(item.getString(0))) {
+                Id ref = new Id(item.getLong(3), item.getString(4));
+                String text = item.getString(5);
+                for (int k = 0; k < text.length(); k++) {
+                    ops.add(Op.insert(id, ref, text.charAt(k)));
+                    ref = id;
+                    id = id.next();
+                }
+            } else if (OP_DELETE.equals(item.getString(0))) {
+                long count = item.getLong(3);
+                for (long k = 0; k < count; k++) {
+                    ops.add(Op.delete(id));
+                    id = id.next();
+                }
+            } else {
+                throw new JSONException("Unknown text operation: " + item.getString(0));
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * 合并两个批次（后者在前者之后应用）
+     */
+    public static JSONArray concat(JSONArray first, List<Op> second) throws JSONException {
+        List<Op> ops = decode(first);
+        ops.addAll(second);
+        return encode(ops);
+    }
+
+    /**
+     * 从批次中去掉已确认的操作
+     *
+     * @param pending 待确认的批次
+     * @param acknowledged 已确认的批次
+     */
+    public static JSONArray without(JSONArray pending, JSONArray acknowledged) throws JSONException {
+        Set<String> done = new HashSet<>();
+        for (Op op : decode(acknowledged)) {
+            done.add(op.key());
+        }
+        List<Op> remaining = new ArrayList<>();
+        for (Op op : decode(pending)) {
+            if (!done.contains(op.key())) {
+                remaining.add(op);
+            }
+        }
+        return encode(remaining);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 笔记中附件引用的改写
+ * <p>
+ * 图片以内容哈希（SHA-256）命名保存在应用私有目录的 blobs 下，笔记 HTML 中引用为
+ * {@code file://<私有目录>/blobs/<哈希>}。私有目录因设备和用户而异，因此同步时改写为与设备无关的
+ * {@code blob:<哈希>}（云端形式），写入本地时再改回本地路径。尺寸片段（{@code #w=..&h=..}）原样保留。
+ * </p>
+ * <p>
+ * 同步字段哈希与对账哈希都按云端形式计算，保证两台设备上同一笔记的哈希一致。
+ * </p>
+ */
+public class AttachmentRefs {
+
+    /**
+     * 云端形式的引用前缀
+     */
+    public static final String BLOB_SCHEME = "blob:";
+
+    /**
+     * 本地附件目录名
+     */
+    public static final String BLOB_DIR = "blobs";
+
+    private static final String HASH = "([0-9a-f]{64})";
+
+    private static final Pattern LOCAL_REF = Pattern.compile("file://[^\"'#?\\s]*/" + BLOB_DIR + "/" + HASH);
+    private static final Pattern CLOUD_REF = Pattern.compile(BLOB_SCHEME + HASH);
+    private static final Pattern ANY_REF = Pattern.compile(
+            "(?:file://[^\"'#?\\s]*/" + BLOB_DIR + "/|" + BLOB_SCHEME + ")" + HASH);
+
+    private AttachmentRefs() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 本地路径改写为云端形式；已是云端形式或没有附件的内容原样返回
+     */
+    public static String toCloudForm(String content) {
+        if (content == null || !content.contains("/" + BLOB_DIR + "/")) {
+            return content;
+        }
+        return LOCAL_REF.matcher(content).replaceAll(BLOB_SCHEME + "$1");
+    }
+
+    /**
+     * 云端形式改写为本地路径
+     *
+     * @param blobDirPath 本地附件目录的绝对路径
+     */
+    public static String toLocalForm(String content, String blobDirPath) {
+        if (content == null || !content.contains(BLOB_SCHEME)) {
+            return content;
+        }
+        return CLOUD_REF.matcher(content).replaceAll(
+                Matcher.quoteReplacement("file://" + blobDirPath + "/") + "$1");
+    }
+
+    /**
+     * 内容引用的附件哈希（两种形式都识别），按出现顺序去重
+     */
+    public static Set<String> referencedHashes(String content) {
+        Set<String> hashes = new LinkedHashSet<>();
+        if (content == null || (!content.contains(BLOB_SCHEME) && !content.contains("/" + BLOB_DIR + "/"))) {
+            return hashes;
+        }
+        Matcher matcher = ANY_REF.matcher(content);
+        while (matcher.find()) {
+            hashes.add(matcher.group(1));
+        }
+        return hashes;
+    }
+
+    /**
+     * 是否为合法的附件哈希
+     */
+    public static boolean isValidHash(String hash) {
+        return hash != null && hash.matches(HASH);
+    }
+}
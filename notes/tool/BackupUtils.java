@@ -24,16 +24,20 @@ import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.NoteBulkLoader;
 import net.micode.notes.data.Notes;
-import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.model.WorkingNote;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -85,6 +89,9 @@ public class BackupUtils {
     // Backup or restore success
     /** 备份或恢复成功 */
     public static final int STATE_SUCCESS                      = 4;
+    // Exported, but some notes' bodies were not downloaded yet
+    /** 已导出，但部分笔记的正文尚未下载，导出文件中只有标记 */
+    public static final int STATE_BODIES_MISSING               = 5;
 
     /** 文本导出对象 */
     private TextExport mTextExport;
@@ -110,7 +117,8 @@ public class BackupUtils {
     /**
      * 导出笔记数据为文本文件
      * 
-     * @return 导出状态码，可能为 STATE_SD_CARD_UNMOUONTED、STATE_SYSTEM_ERROR 或 STATE_SUCCESS
+     * @return 导出状态码，可能为 STATE_SD_CARD_UNMOUONTED、STATE_SYSTEM_ERROR、STATE_SUCCESS
+     *         或 STATE_BODIES_MISSING
      */
     public int exportToText() {
         return mTextExport.exportToText();
@@ -160,6 +168,9 @@ public class BackupUtils {
      * <p>
      * 负责将笔记数据导出为可读的文本文件。
      * 支持导出文件夹、笔记和通话记录等不同类型的数据。
+     * 笔记与数据行通过 {@link NoteBulkLoader} 按文件夹一次联合查询读出，不再逐条查询数据表。
+     * 只同步了元数据的笔记先下载正文（仅后台线程）；仍没有正文的笔记在导出文件中输出标记，
+     * 导出结果为 {@link #STATE_BODIES_MISSING}，不会把它们当作空笔记导出。
      * </p>
      */
     private static class TextExport {
@@ -174,34 +185,9 @@ public class BackupUtils {
         /** 笔记 ID 列索引 */
         private static final int NOTE_COLUMN_ID = 0;
 
-        /** 笔记修改日期列索引 */
-        private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
-
         /** 笔记摘要列索引 */
         private static final int NOTE_COLUMN_SNIPPET = 2;
 
-        /** 数据查询投影字段 */
-        private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,
-                DataColumns.MIME_TYPE,
-                DataColumns.DATA1,
-                DataColumns.DATA2,
-                DataColumns.DATA3,
-                DataColumns.DATA4,
-        };
-
-        /** 数据内容列索引 */
-        private static final int DATA_COLUMN_CONTENT = 0;
-
-        /** 数据 MIME 类型列索引 */
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
-
-        /** 通话日期列索引 */
-        private static final int DATA_COLUMN_CALL_DATE = 2;
-
-        /** 电话号码列索引 */
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
-
         /** 导出文本格式数组 */
         private final String [] TEXT_FORMAT;
         /** 文件夹名称格式索引 */
@@ -213,10 +199,14 @@ public class BackupUtils {
 
         /** 应用上下文 */
         private Context mContext;
+        /** 笔记批量加载器 */
+        private final NoteBulkLoader mLoader;
         /** 导出文件名 */
         private String mFileName;
         /** 导出文件目录 */
         private String mFileDirectory;
+        /** 本次导出中没有正文的笔记数量 */
+        private int mMissingBodies;
 
         /**
          * 构造函数
@@ -226,6 +216,7 @@ public class BackupUtils {
         public TextExport(Context context) {
             TEXT_FORMAT = context.getResources().getStringArray(R.array.format_for_exported_note);
             mContext = context;
+            mLoader = new NoteBulkLoader(context);
             mFileName = "";
             mFileDirectory = "";
         }
@@ -243,83 +234,107 @@ public class BackupUtils {
         /**
          * 导出指定文件夹及其笔记到文本
          * <p>
-         * 查询属于该文件夹的所有笔记，并将每个笔记的内容导出到输出流中。
+         * 一次联合查询读出属于该文件夹的所有笔记及其数据，并将每个笔记的内容导出到输出流中。
          * </p>
          * 
          * @param folderId 文件夹 ID
          * @param ps 输出流
          */
         private void exportFolderToText(String folderId, PrintStream ps) {
-            // Query notes belong to this folder
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] {
-                        folderId
-                    }, null);
-
-            if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // Print note's last modified date
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
+            exportNotes(NoteColumns.PARENT_ID + "=?", new String[] {
+                    folderId
+            }, ps);
+        }
+
+        /**
+         * 导出匹配条件的所有笔记：每条笔记先输出修改日期，再输出内容
+         *
+         * @param selection 笔记表筛选条件
+         * @param selectionArgs 筛选参数
+         * @param ps 输出流
+         */
+        private void exportNotes(String selection, String[] selectionArgs, PrintStream ps) {
+            NoteBulkLoader.SnapshotIterator notes = mLoader.iterate(selection, selectionArgs, null);
+            try {
+                while (notes.hasNext()) {
+                    NoteBulkLoader.Snapshot note = notes.next();
+                    printNoteDate(note, ps);
+                    exportNoteToText(note, ps);
                 }
-                notesCursor.close();
+            } finally {
+                notes.close();
             }
         }
 
+        /**
+         * 输出笔记的最后修改日期
+         */
+        private void printNoteDate(NoteBulkLoader.Snapshot note, PrintStream ps) {
+            ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
+                    mContext.getString(R.string.format_datetime_mdhm), note.modifiedDate)));
+        }
+
         /**
          * 导出指定笔记到输出流
-         * <p>
-         * 查询笔记的所有数据，根据 MIME 类型分别处理通话记录和普通笔记。
-         * </p>
-         * 
+         *
          * @param noteId 笔记 ID
          * @param ps 输出流
          */
         private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
-                        noteId
-                    }, null);
+            NoteBulkLoader.SnapshotIterator notes = mLoader.iterate(NoteColumns.ID + "=?",
+                    new String[] { noteId }, null);
+            try {
+                if (notes.hasNext()) {
+                    exportNoteToText(notes.next(), ps);
+                }
+            } finally {
+                notes.close();
+            }
+        }
 
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // Print phone number
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        phoneNumber));
-                            }
-                            // Print call date
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
-                                    .format(mContext.getString(R.string.format_datetime_mdhm),
-                                            callDate)));
-                            // Print call attachment location
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
+        /**
+         * 导出笔记快照到输出流
+         * <p>
+         * 根据数据行的 MIME 类型分别处理通话记录和普通笔记。
+         * </p>
+         * 
+         * @param note 笔记快照
+         * @param ps 输出流
+         */
+        private void exportNoteToText(NoteBulkLoader.Snapshot note, PrintStream ps) {
+            note = withBody(note);
+            if (!note.bodyLoaded) {
+                mMissingBodies++;
+                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                        mContext.getString(R.string.export_body_not_downloaded)));
+            }
+            for (NoteBulkLoader.DataRow data : note.getData()) {
+                if (DataConstants.CALL_NOTE.equals(data.mimeType)) {
+                    // Print phone number
+                    String phoneNumber = data.data3;
+                    long callDate = data.data1;
+                    String location = data.content;
+
+                    if (!TextUtils.isEmpty(phoneNumber)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                phoneNumber));
+                    }
+                    // Print call date
+                    ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
+                            .format(mContext.getString(R.string.format_datetime_mdhm),
+                                    callDate)));
+                    // Print call attachment location
+                    if (!TextUtils.isEmpty(location)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                location));
+                    }
+                } else if (DataConstants.NOTE.equals(data.mimeType)) {
+                    String content = data.content;
+                    if (!TextUtils.isEmpty(content)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                content));
+                    }
                 }
-                dataCursor.close();
             }
             // print a line separator between note
             try {
@@ -331,6 +346,30 @@ public class BackupUtils {
             }
         }
 
+        /**
+         * 正文尚未下载时先下载并重新读取快照；无法下载时返回原快照
+         */
+        private NoteBulkLoader.Snapshot withBody(NoteBulkLoader.Snapshot note) {
+            if (note.bodyLoaded || !WorkingNote.loadMissingBody(mContext, note.id)) {
+                return note;
+            }
+            List<NoteBulkLoader.Snapshot> reloaded = mLoader.loadSnapshots(NoteColumns.ID + "=?",
+                    new String[] { String.valueOf(note.id) }, null);
+            return reloaded.isEmpty() ? note : reloaded.get(0);
+        }
+
+        /**
+         * 关闭输出流并给出导出结果
+         */
+        private int finishExport(PrintStream ps) {
+            ps.close();
+            if (mMissingBodies > 0) {
+                Log.w(TAG, mMissingBodies + " exported notes have no downloaded body");
+                return STATE_BODIES_MISSING;
+            }
+            return STATE_SUCCESS;
+        }
+
         /**
          * 导出单条笔记为文本文件
          *
@@ -349,11 +388,10 @@ public class BackupUtils {
                 Log.e(TAG, "get print stream error");
                 return STATE_SYSTEM_ERROR;
             }
+            mMissingBodies = 0;
 
             exportNoteToText(noteId, ps);
-            ps.close();
-
-            return STATE_SUCCESS;
+            return finishExport(ps);
         }
 
         /**
@@ -373,28 +411,29 @@ public class BackupUtils {
                 Log.e(TAG, "get print stream error");
                 return STATE_SYSTEM_ERROR;
             }
-
+            mMissingBodies = 0;
+
+            // 一次查询读出所有选中的笔记，再按调用方给出的顺序输出
+            Map<Long, NoteBulkLoader.Snapshot> notesById = new HashMap<>();
+            if (!noteIds.isEmpty()) {
+                StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+                for (int i = 0; i < noteIds.size(); i++) {
+                    selection.append(i == 0 ? "" : ",").append(noteIds.get(i).longValue());
+                }
+                selection.append(')');
+                List<NoteBulkLoader.Snapshot> notes = mLoader.loadSnapshots(selection.toString(), null, null);
+                for (NoteBulkLoader.Snapshot note : notes) {
+                    notesById.put(note.id, note);
+                }
+            }
             for (Long noteId : noteIds) {
-                Cursor noteCursor = mContext.getContentResolver().query(
-                        net.micode.notes.data.Notes.CONTENT_NOTE_URI,
-                        NOTE_PROJECTION,
-                        net.micode.notes.data.Notes.NoteColumns.ID + "=?",
-                        new String[]{String.valueOf(noteId)},
-                        null);
-
-                if (noteCursor != null) {
-                    if (noteCursor.moveToFirst()) {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        exportNoteToText(String.valueOf(noteId), ps);
-                    }
-                    noteCursor.close();
+                NoteBulkLoader.Snapshot note = notesById.get(noteId);
+                if (note != null) {
+                    printNoteDate(note, ps);
+                    exportNoteToText(note, ps);
                 }
             }
-            ps.close();
-
-            return STATE_SUCCESS;
+            return finishExport(ps);
         }
 
         /**
@@ -417,6 +456,7 @@ public class BackupUtils {
                 Log.e(TAG, "get print stream error");
                 return STATE_SYSTEM_ERROR;
             }
+            mMissingBodies = 0;
             // First export folder and its notes
             Cursor folderCursor = mContext.getContentResolver().query(
                     Notes.CONTENT_NOTE_URI,
@@ -446,28 +486,9 @@ public class BackupUtils {
             }
 
             // Export notes in root's folder
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                            + "=0", null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
-                }
-                noteCursor.close();
-            }
-            ps.close();
-
-            return STATE_SUCCESS;
+            exportNotes(NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
+                    + "=0", null, ps);
+            return finishExport(ps);
         }
 
         /**
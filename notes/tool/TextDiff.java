@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文本差异比较
+ * <p>
+ * 先按行比较（Myers 差分算法，相同的首尾行先行剔除），再对每处修改的行按词比较，
+ * 结果是带上下文的紧凑差异块列表，供冲突对话框逐块显示。词按以下规则切分：连续的字母数字、
+ * 单个汉字（中文没有空格分词）、连续的空白、单个标点。
+ * </p>
+ * <p>
+ * 比较受时间预算限制：行级比较超出预算或编辑距离过大时，未比较完的区域整段作为一处修改；
+ * 词级比较超出预算后其余修改只标出整行。比较是纯计算，不访问任何 Android API，
+ * 可以在任意后台线程调用，不能在主线程调用（大文档单次可能耗时数十毫秒）。
+ * </p>
+ */
+public class TextDiff {
+
+    /**
+     * 对话框中比较一对版本的默认时间预算
+     */
+    public static final long DEFAULT_BUDGET_MS = 200;
+
+    /**
+     * 每个差异块在修改前后保留的相同行数
+     */
+    public static final int CONTEXT_LINES = 2;
+
+    /**
+     * 行级比较允许的最大编辑距离：回溯需要保存 O(D²) 的状态，超过后整段作为一处修改
+     */
+    private static final int MAX_EDIT_DISTANCE = 1024;
+
+    /**
+     * 按词比较的一处修改最多包含的字符数，更长的修改只标出整行
+     */
+    private static final int MAX_WORD_DIFF_CHARS = 8 * 1024;
+
+    /**
+     * 每比较这么多步检查一次是否超出时间预算
+     */
+    private static final int DEADLINE_CHECK_MASK = 0xF;
+
+    private TextDiff() {
+        // Utility class, prevent instantiation
+    }
+
+    /**
+     * 差异块中的一行
+     */
+    public static final class Line {
+        public static final int CONTEXT = 0;
+        public static final int REMOVED = 1;
+        public static final int ADDED = 2;
+
+        public final int type;
+        public final String text;
+        /**
+         * 行内改动的字符区间，依次为 [起点, 终点) 对；为 null 时没有词级结果（整行视为改动）
+         */
+        public final int[] changes;
+
+        Line(int type, String text, int[] changes) {
+            this.type = type;
+            this.text = text;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * 一个差异块：一处或几处相邻的修改及其上下文
+     */
+    public static final class Hunk {
+        /** 本地版本中的起始行（从 0 开始）与行数，含上下文 */
+        public final int localStart;
+        public final int localCount;
+        /** 云端版本中的起始行（从 0 开始）与行数，含上下文 */
+        public final int cloudStart;
+        public final int cloudCount;
+        public final List<Line> lines;
+
+        Hunk(int localStart, int localCount, int cloudStart, int cloudCount, List<Line> lines) {
+            this.localStart = localStart;
+            this.localCount = localCount;
+            this.cloudStart = cloudStart;
+            this.cloudCount = cloudCount;
+            this.lines = Collections.unmodifiableList(lines);
+        }
+    }
+
+    /**
+     * 比较结果
+     */
+    public static final class Result {
+        public final List<Hunk> hunks;
+        /** 是否在预算内完成了全部比较；为 false 时部分修改按整段或整行表示 */
+        public final boolean complete;
+        public final long elapsedNanos;
+
+        Result(List<Hunk> hunks, boolean complete, long elapsedNanos) {
+            this.hunks = Collections.unmodifiableList(hunks);
+            this.complete = complete;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * 一处修改：本地的 [localStart, localEnd) 行被替换为云端的 [cloudStart, cloudEnd) 行
+     */
+    private static final class Region {
+        final int localStart;
+        final int localEnd;
+        final int cloudStart;
+        final int cloudEnd;
+
+        Region(int localStart, int localEnd, int cloudStart, int cloudEnd) {
+            this.localStart = localStart;
+            this.localEnd = localEnd;
+            this.cloudStart = cloudStart;
+            this.cloudEnd = cloudEnd;
+        }
+    }
+
+    /**
+     * 比较本地与云端两个版本
+     *
+     * @param local 本地版本
+     * @param cloud 云端版本
+     * @param budgetMs 时间预算（毫秒）
+     */
+    public static Result diff(String local, String cloud, long budgetMs) {
+        long start = System.nanoTime();
+        long deadline = start + budgetMs * 1000000L;
+        String[] localLines = splitLines(local != null ? local : "");
+        String[] cloudLines = splitLines(cloud != null ? cloud : "");
+
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = intern(localLines, ids);
+        int[] b = intern(cloudLines, ids);
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        boolean complete = compare(a, b, removed, added, deadline);
+
+        List<Region> regions = regions(removed, added);
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        while (i < regions.size()) {
+            // 相隔不超过两倍上下文的修改合并为一块
+            int j = i;
+            while (j + 1 < regions.size()
+                    && regions.get(j + 1).localStart - regions.get(j).localEnd <= 2 * CONTEXT_LINES) {
+                j++;
+            }
+            boolean words = buildHunk(localLines, cloudLines, regions.subList(i, j + 1), deadline, hunks);
+            complete &= words;
+            i = j + 1;
+        }
+        return new Result(hunks, complete, System.nanoTime() - start);
+    }
+
+    private static boolean buildHunk(String[] localLines, String[] cloudLines, List<Region> regions,
+            long deadline, List<Hunk> hunks) {
+        Region first = regions.get(0);
+        Region last = regions.get(regions.size() - 1);
+        int before = Math.min(CONTEXT_LINES, first.localStart);
+        int after = Math.min(CONTEXT_LINES, localLines.length - last.localEnd);
+        List<Line> lines = new ArrayList<>();
+        boolean complete = true;
+
+        for (int k = first.localStart - before; k < first.localStart; k++) {
+            lines.add(new Line(Line.CONTEXT, localLines[k], null));
+        }
+        for (int r = 0; r < regions.size(); r++) {
+            Region region = regions.get(r);
+            if (r > 0) {
+                for (int k = regions.get(r - 1).localEnd; k < region.localStart; k++) {
+                    lines.add(new Line(Line.CONTEXT, localLines[k], null));
+                }
+            }
+            int[][] localChanges = null;
+            int[][] cloudChanges = null;
+            if (region.localEnd > region.localStart && region.cloudEnd > region.cloudStart) {
+                String localText = join(localLines, region.localStart, region.localEnd);
+                String cloudText = join(cloudLines, region.cloudStart, region.cloudEnd);
+                if (localText.length() + cloudText.length() <= MAX_WORD_DIFF_CHARS
+                        && System.nanoTime() < deadline) {
+                    List<int[]> localRanges = new ArrayList<>();
+                    List<int[]> cloudRanges = new ArrayList<>();
+                    if (compareWords(localText, cloudText, localRanges, cloudRanges, deadline)) {
+                        localChanges = perLine(localLines, region.localStart, region.localEnd, localRanges);
+                        cloudChanges = perLine(cloudLines, region.cloudStart, region.cloudEnd, cloudRanges);
+                    } else {
+                        complete = false;
+                    }
+                }
+            }
+            for (int k = region.localStart; k < region.localEnd; k++) {
+                lines.add(new Line(Line.REMOVED, localLines[k],
+                        localChanges != null ? localChanges[k - region.localStart] : null));
+            }
+            for (int k = region.cloudStart; k < region.cloudEnd; k++) {
+                lines.add(new Line(Line.ADDED, cloudLines[k],
+                        cloudChanges != null ? cloudChanges[k - region.cloudStart] : null));
+            }
+        }
+        for (int k = last.localEnd; k < last.localEnd + after; k++) {
+            lines.add(new Line(Line.CONTEXT, localLines[k], null));
+        }
+
+        int localStart = first.localStart - before;
+        int cloudStart = first.cloudStart - before;
+        hunks.add(new Hunk(localStart, last.localEnd + after - localStart,
+                cloudStart, last.cloudEnd + after - cloudStart, lines));
+        return complete;
+    }
+
+    /**
+     * 比较两个序列，在 removed / added 中标出不在公共子序列中的元素
+     *
+     * @return 是否在预算内完成；未完成时剩余区域全部标为修改
+     */
+    private static boolean compare(int[] a, int[] b, boolean[] removed, boolean[] added, long deadline) {
+        int aLo = 0;
+        int bLo = 0;
+        int aHi = a.length;
+        int bHi = b.length;
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aHi > aLo && bHi > bLo && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (myers(a, aLo, aHi, b, bLo, bHi, removed, added, deadline)) {
+            return true;
+        }
+        Arrays.fill(removed, aLo, aHi, true);
+        Arrays.fill(added, bLo, bHi, true);
+        return false;
+    }
+
+    /**
+     * Myers O(ND) 差分：记录每一步的 V 数组，找到终点后回溯出删除与插入
+     *
+     * @return 是否在编辑距离上限与时间预算内完成
+     */
+    private static boolean myers(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+            boolean[] removed, boolean[] added, long deadline) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        if (n == 0 || m == 0) {
+            Arrays.fill(removed, aLo, aHi, true);
+            Arrays.fill(added, bLo, bHi, true);
+            return true;
+        }
+        int limit = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        List<int[]> trace = new ArrayList<>();
+
+        for (int d = 0; d <= limit; d++) {
+            if ((d & DEADLINE_CHECK_MASK) == 0 && System.nanoTime() > deadline) {
+                return false;
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+                        ? v[offset + k + 1] : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+                    backtrack(trace, n, m, aLo, bLo, removed, added);
+                    return true;
+                }
+            }
+            trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+        }
+        return false;
+    }
+
+    private static void backtrack(List<int[]> trace, int n, int m, int aLo, int bLo,
+            boolean[] removed, boolean[] added) {
+        int x = n;
+        int y = m;
+        for (int d = trace.size() - 1; d > 0; d--) {
+            int[] previous = trace.get(d - 1);
+            int k = x - y;
+            // previous 覆盖 k ∈ [-(d-1), d-1]，下标为 k + d - 1
+            boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+            int prevK = down ? k + 1 : k - 1;
+            int prevX = previous[prevK + d - 1];
+            int prevY = prevX - prevK;
+            if (down) {
+                added[bLo + prevY] = true;
+            } else {
+                removed[aLo + prevX] = true;
+            }
+            x = prevX;
+            y = prevY;
+        }
+    }
+
+    /**
+     * 由修改标记得到修改区域：未修改的元素按顺序一一对应
+     */
+    private static List<Region> regions(boolean[] removed, boolean[] added) {
+        List<Region> regions = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < removed.length || j < added.length) {
+            if (i < removed.length && !removed[i] && j < added.length && !added[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int localStart = i;
+            int cloudStart = j;
+            while (i < removed.length && removed[i]) {
+                i++;
+            }
+            while (j < added.length && added[j]) {
+                j++;
+            }
+            regions.add(new Region(localStart, i, cloudStart, j));
+        }
+        return regions;
+    }
+
+    /**
+     * 按词比较一处修改，把改动的词换算为字符区间
+     */
+    private static boolean compareWords(String local, String cloud, List<int[]> localRanges,
+            List<int[]> cloudRanges, long deadline) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] localBounds = tokenize(local);
+        int[] cloudBounds = tokenize(cloud);
+        int[] a = internTokens(local, localBounds, ids);
+        int[] b = internTokens(cloud, cloudBounds, ids);
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        if (!compare(a, b, removed, added, deadline)) {
+            return false;
+        }
+        toRanges(localBounds, removed, localRanges);
+        toRanges(cloudBounds, added, cloudRanges);
+        return true;
+    }
+
+    /**
+     * 切分词，返回每个词的起点，最后一项为文本长度
+     */
+    private static int[] tokenize(String text) {
+        int[] bounds = new int[text.length() + 1];
+        int count = 0;
+        int i = 0;
+        while (i < text.length()) {
+            bounds[count++] = i;
+            char c = text.charAt(i);
+            i++;
+            if (isWordChar(c)) {
+                while (i < text.length() && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+            } else if (Character.isWhitespace(c) && c != '\n') {
+                while (i < text.length() && Character.isWhitespace(text.charAt(i))
+                        && text.charAt(i) != '\n') {
+                    i++;
+                }
+            }
+        }
+        bounds[count++] = text.length();
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c)
+                && Character.UnicodeScript.of(c) != Character.UnicodeScript.HAN;
+    }
+
+    private static int[] internTokens(String text, int[] bounds, Map<String, Integer> ids) {
+        int[] tokens = new int[bounds.length - 1];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = id(text.substring(bounds[i], bounds[i + 1]), ids);
+        }
+        return tokens;
+    }
+
+    /**
+     * 相邻的改动词合并为一个字符区间
+     */
+    private static void toRanges(int[] bounds, boolean[] changed, List<int[]> ranges) {
+        int i = 0;
+        while (i < changed.length) {
+            if (!changed[i]) {
+                i++;
+                continue;
+            }
+            int start = bounds[i];
+            while (i < changed.length && changed[i]) {
+                i++;
+            }
+            ranges.add(new int[] { start, bounds[i] });
+        }
+    }
+
+    /**
+     * 把多行文本上的字符区间拆分到各行（行之间以一个换行符连接）
+     */
+    private static int[][] perLine(String[] lines, int from, int to, List<int[]> ranges) {
+        int[][] result = new int[to - from][];
+        int lineStart = 0;
+        int r = 0;
+        for (int k = from; k < to; k++) {
+            int lineEnd = lineStart + lines[k].length();
+            List<Integer> changes = new ArrayList<>();
+            while (r < ranges.size() && ranges.get(r)[0] <= lineEnd) {
+                int start = Math.max(ranges.get(r)[0], lineStart);
+                int end = Math.min(ranges.get(r)[1], lineEnd);
+                if (end > start) {
+                    changes.add(start - lineStart);
+                    changes.add(end - lineStart);
+                }
+                if (ranges.get(r)[1] > lineEnd + 1) {
+                    // 区间跨过换行，下一行继续
+                    break;
+                }
+                r++;
+            }
+            int[] array = new int[changes.size()];
+            for (int c = 0; c < array.length; c++) {
+                array[c] = changes.get(c);
+            }
+            result[k - from] = array;
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    private static String[] splitLines(String text) {
+        return text.split("\n", -1);
+    }
+
+    private static String join(String[] lines, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = from; k < to; k++) {
+            if (k > from) {
+                sb.append('\n');
+            }
+            sb.append(lines[k]);
+        }
+        return sb.toString();
+    }
+
+    private static int[] intern(String[] lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            result[i] = id(lines[i], ids);
+        }
+        return result;
+    }
+
+    private static int id(String value, Map<String, Integer> ids) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = ids.size();
+            ids.put(value, id);
+        }
+        return id;
+    }
+}
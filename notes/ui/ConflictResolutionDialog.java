@@ -17,7 +17,14 @@
 package net.micode.notes.ui;
 
 import android.app.Dialog;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -32,12 +39,24 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import net.micode.notes.R;
-import net.micode.notes.model.WorkingNote;
+import net.micode.notes.sync.Conflict;
+import net.micode.notes.sync.SyncManager;
+import net.micode.notes.tool.TextDiff;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 冲突解决对话框
  * <p>
- * 当本地笔记和云端笔记发生冲突时显示，让用户选择保留哪个版本。
+ * 逐条显示冲突表中待解决的冲突（按发现时间排序，可前后翻页），让用户选择保留哪个版本。
+ * 冲突由 {@link SyncManager#resolveConflict} 在同步线程中解决，解决后显示下一条，
+ * 全部解决后关闭。冲突保存在数据库中，对话框关闭或进程退出后可以稍后继续处理。
+ * </p>
+ * <p>
+ * 冲突的读取与两个版本正文的差异计算（{@link TextDiff}）在对话框的后台线程中执行，差异结果按块逐帧追加到差异区域，
+ * 大文档也不会阻塞主线程；翻页后尚未完成的计算与显示自动作废。
  * </p>
  */
 public class ConflictResolutionDialog extends DialogFragment {
@@ -47,34 +66,54 @@ public class ConflictResolutionDialog extends DialogFragment {
     private static final String ARG_LOCAL_CONTENT = "local_content";
     private static final String ARG_CLOUD_TITLE = "cloud_title";
     private static final String ARG_CLOUD_CONTENT = "cloud_content";
+    private static final String STATE_POSITION = "position";
+
+    /**
+     * 每帧追加到差异区域的最多行数
+     */
+    private static final int DIFF_LINES_PER_FRAME = 100;
 
     private ConflictResolutionListener mListener;
 
+    /** 当前显示的冲突在待解决列表中的位置 */
+    private int mPosition;
+    private int mCount;
+    private Conflict mConflict;
+
+    private TextView mTvPage;
+    private TextView mTvLocalContent;
+    private TextView mTvCloudContent;
+    private MaterialButton mBtnPrev;
+    private MaterialButton mBtnNext;
+    private MaterialButton mBtnUseLocal;
+    private MaterialButton mBtnUseCloud;
+    private TextView mTvDiffStatus;
+    private TextView mTvDiff;
+
+    /** 差异计算与显示的代数，每次显示新冲突时递增，旧的任务据此放弃 */
+    private int mDiffGeneration;
+
+    /** 读取冲突与计算差异的后台线程，视图销毁时关闭 */
+    private ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * 冲突解决监听器接口
      */
     public interface ConflictResolutionListener {
-        void onChooseLocal();
-        void onChooseCloud();
-        void onMerge(String mergedTitle, String mergedContent);
+        /**
+         * 所有待解决的冲突都已解决
+         */
+        void onAllConflictsResolved();
     }
 
     /**
-     * 创建冲突解决对话框实例
+     * 创建冲突解决对话框实例，从第一条待解决的冲突开始显示
      *
-     * @param localNote 本地笔记
-     * @param cloudNote 云端笔记
      * @return ConflictResolutionDialog实例
      */
-    public static ConflictResolutionDialog newInstance(WorkingNote localNote, WorkingNote cloudNote) {
-        ConflictResolutionDialog dialog = new ConflictResolutionDialog();
-        Bundle args = new Bundle();
-        args.putString(ARG_LOCAL_TITLE, localNote.getTitle());
-        args.putString(ARG_LOCAL_CONTENT, localNote.getContent());
-        args.putString(ARG_CLOUD_TITLE, cloudNote.getTitle());
-        args.putString(ARG_CLOUD_CONTENT, cloudNote.getContent());
-        dialog.setArguments(args);
-        return dialog;
+    public static ConflictResolutionDialog newInstance() {
+        return new ConflictResolutionDialog();
     }
 
     /**
@@ -94,52 +133,284 @@ public class ConflictResolutionDialog extends DialogFragment {
         LayoutInflater inflater = requireActivity().getLayoutInflater();
         View view = inflater.inflate(R.layout.dialog_conflict_resolution, null);
 
-        // Get arguments
-        Bundle args = getArguments();
-        if (args != null) {
-            String localTitle = args.getString(ARG_LOCAL_TITLE, "");
-            String localContent = args.getString(ARG_LOCAL_CONTENT, "");
-            String cloudTitle = args.getString(ARG_CLOUD_TITLE, "");
-            String cloudContent = args.getString(ARG_CLOUD_CONTENT, "");
-
-            // Set content previews (first 100 chars)
-            TextView tvLocalContent = view.findViewById(R.id.tv_local_content);
-            tvLocalContent.setText(truncateContent(localTitle, localContent));
-
-            TextView tvCloudContent = view.findViewById(R.id.tv_cloud_content);
-            tvCloudContent.setText(truncateContent(cloudTitle, cloudContent));
-        }
+        mExecutor = Executors.newSingleThreadExecutor();
+        mPosition = savedInstanceState != null ? savedInstanceState.getInt(STATE_POSITION, 0) : 0;
+        mTvPage = view.findViewById(R.id.tv_conflict_page);
+        mTvLocalContent = view.findViewById(R.id.tv_local_content);
+        mTvCloudContent = view.findViewById(R.id.tv_cloud_content);
+        mBtnPrev = view.findViewById(R.id.btn_conflict_prev);
+        mBtnNext = view.findViewById(R.id.btn_conflict_next);
+        mTvDiffStatus = view.findViewById(R.id.tv_diff_status);
+        mTvDiff = view.findViewById(R.id.tv_diff);
 
         // Setup buttons
-        MaterialButton btnUseLocal = view.findViewById(R.id.btn_use_local);
-        MaterialButton btnUseCloud = view.findViewById(R.id.btn_use_cloud);
+        mBtnUseLocal = view.findViewById(R.id.btn_use_local);
+        mBtnUseCloud = view.findViewById(R.id.btn_use_cloud);
         MaterialButton btnMerge = view.findViewById(R.id.btn_merge);
 
-        btnUseLocal.setOnClickListener(v -> {
+        mBtnPrev.setOnClickListener(v -> loadPage(mPosition - 1));
+        mBtnNext.setOnClickListener(v -> loadPage(mPosition + 1));
+
+        mBtnUseLocal.setOnClickListener(v -> {
             Log.d(TAG, "User chose local version");
-            if (mListener != null) {
-                mListener.onChooseLocal();
-            }
-            dismiss();
+            resolve(Conflict.Resolution.KEEP_LOCAL, null, null);
         });
 
-        btnUseCloud.setOnClickListener(v -> {
+        mBtnUseCloud.setOnClickListener(v -> {
             Log.d(TAG, "User chose cloud version");
-            if (mListener != null) {
-                mListener.onChooseCloud();
-            }
-            dismiss();
+            resolve(Conflict.Resolution.KEEP_CLOUD, null, null);
         });
 
         btnMerge.setOnClickListener(v -> {
             Log.d(TAG, "User chose merge");
-            showMergeDialog(args);
+            showMergeDialog(currentArgs());
         });
 
+        setButtonsEnabled(false);
+        loadPage(mPosition);
+
         builder.setView(view);
         return builder.create();
     }
 
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_POSITION, mPosition);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * 在后台线程执行；视图已销毁时放弃
+     */
+    private void runInBackground(Runnable task) {
+        if (mExecutor != null) {
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 回到主线程执行；对话框已移除或视图已销毁时放弃
+     */
+    private void runOnMainThread(Runnable task) {
+        mMainHandler.post(() -> {
+            if (isAdded() && mExecutor != null) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * 在后台读取指定位置的冲突并显示；位置越界时显示最后一条，没有冲突时关闭对话框
+     */
+    private void loadPage(int position) {
+        setButtonsEnabled(false);
+        SyncManager syncManager = SyncManager.getInstance();
+        runInBackground(() -> {
+            int count;
+            int target;
+            List<Conflict> page;
+            do {
+                // 读取时会移除无法读取的冲突，位置之后已没有冲突时按新的数量重新定位
+                count = syncManager.getPendingConflictCount();
+                target = Math.max(0, Math.min(position, count - 1));
+                page = count > 0 ? syncManager.getPendingConflicts(target, 1) : null;
+            } while (page != null && page.isEmpty() && syncManager.getPendingConflictCount() < count);
+            final List<Conflict> loaded = page;
+            final int shownPosition = target;
+            final int remaining = syncManager.getPendingConflictCount();
+            runOnMainThread(() -> {
+                if (loaded == null || loaded.isEmpty()) {
+                    Log.d(TAG, "No pending conflicts left");
+                    if (mListener != null) {
+                        mListener.onAllConflictsResolved();
+                    }
+                    dismissAllowingStateLoss();
+                    return;
+                }
+                mPosition = shownPosition;
+                mCount = remaining;
+                showConflict(loaded.get(0));
+            });
+        });
+    }
+
+    private void showConflict(Conflict conflict) {
+        mConflict = conflict;
+        mTvPage.setText(getString(R.string.conflict_page, mPosition + 1, mCount));
+        // Set content previews (first 100 chars)
+        mTvLocalContent.setText(truncateContent(conflict.getLocalTitle(),
+                conflict.getLocalNote().getContent()));
+        mTvCloudContent.setText(truncateContent(conflict.getCloudTitle(),
+                conflict.getCloudNote().getContent()));
+        showDiff(conflict.getLocalNote().getContent(), conflict.getCloudNote().getContent());
+        setButtonsEnabled(true);
+    }
+
+    /**
+     * 在后台比较两个版本的正文，完成后逐帧显示差异块
+     */
+    private void showDiff(String local, String cloud) {
+        int generation = ++mDiffGeneration;
+        mTvDiff.setText("", TextView.BufferType.EDITABLE);
+        mTvDiffStatus.setVisibility(View.VISIBLE);
+        mTvDiffStatus.setText(R.string.conflict_diff_computing);
+        runInBackground(() -> {
+            TextDiff.Result result = TextDiff.diff(local, cloud, TextDiff.DEFAULT_BUDGET_MS);
+            Log.d(TAG, "Diff computed: " + result.hunks.size() + " hunks in "
+                    + result.elapsedNanos / 1000000 + "ms, complete=" + result.complete);
+            runOnMainThread(() -> {
+                if (generation != mDiffGeneration) {
+                    return;
+                }
+                if (result.hunks.isEmpty()) {
+                    mTvDiffStatus.setText(R.string.conflict_diff_identical);
+                    return;
+                }
+                if (result.complete) {
+                    mTvDiffStatus.setVisibility(View.GONE);
+                } else {
+                    mTvDiffStatus.setText(R.string.conflict_diff_partial);
+                }
+                renderDiff(result.hunks, 0, 0, generation);
+            });
+        });
+    }
+
+    /**
+     * 从第 hunkIndex 块的第 lineIndex 行开始追加不超过一帧的行，其余的留到下一帧
+     */
+    private void renderDiff(List<TextDiff.Hunk> hunks, int hunkIndex, int lineIndex, int generation) {
+        if (!isAdded() || generation != mDiffGeneration) {
+            return;
+        }
+        int removedLine = requireContext().getColor(R.color.diff_removed_line);
+        int removedWord = requireContext().getColor(R.color.diff_removed_word);
+        int addedLine = requireContext().getColor(R.color.diff_added_line);
+        int addedWord = requireContext().getColor(R.color.diff_added_word);
+
+        SpannableStringBuilder chunk = new SpannableStringBuilder();
+        int budget = DIFF_LINES_PER_FRAME;
+        while (hunkIndex < hunks.size() && budget > 0) {
+            TextDiff.Hunk hunk = hunks.get(hunkIndex);
+            if (lineIndex == 0) {
+                if (hunkIndex > 0 || mTvDiff.length() > 0) {
+                    chunk.append('\n');
+                }
+                int start = chunk.length();
+                chunk.append(getString(R.string.conflict_diff_hunk,
+                        hunk.localStart + 1, hunk.cloudStart + 1));
+                chunk.setSpan(new StyleSpan(Typeface.BOLD), start, chunk.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            while (lineIndex < hunk.lines.size() && budget > 0) {
+                appendLine(chunk, hunk.lines.get(lineIndex), removedLine, removedWord, addedLine, addedWord);
+                lineIndex++;
+                budget--;
+            }
+            if (lineIndex == hunk.lines.size()) {
+                hunkIndex++;
+                lineIndex = 0;
+            }
+        }
+        mTvDiff.append(chunk);
+
+        if (hunkIndex < hunks.size()) {
+            int nextHunk = hunkIndex;
+            int nextLine = lineIndex;
+            mTvDiff.post(() -> renderDiff(hunks, nextHunk, nextLine, generation));
+        }
+    }
+
+    private void appendLine(SpannableStringBuilder sb, TextDiff.Line line, int removedLine,
+            int removedWord, int addedLine, int addedWord) {
+        sb.append('\n');
+        int start = sb.length();
+        String prefix;
+        int lineColor;
+        int wordColor;
+        if (line.type == TextDiff.Line.REMOVED) {
+            prefix = "- ";
+            lineColor = removedLine;
+            wordColor = removedWord;
+        } else if (line.type == TextDiff.Line.ADDED) {
+            prefix = "+ ";
+            lineColor = addedLine;
+            wordColor = addedWord;
+        } else {
+            sb.append("  ").append(line.text);
+            return;
+        }
+        sb.append(prefix).append(line.text);
+        sb.setSpan(new BackgroundColorSpan(lineColor), start, sb.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if (line.changes != null) {
+            int textStart = start + prefix.length();
+            for (int i = 0; i + 1 < line.changes.length; i += 2) {
+                sb.setSpan(new BackgroundColorSpan(wordColor), textStart + line.changes[i],
+                        textStart + line.changes[i + 1], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    private void setButtonsEnabled(boolean enabled) {
+        mBtnUseLocal.setEnabled(enabled);
+        mBtnUseCloud.setEnabled(enabled);
+        mBtnPrev.setEnabled(enabled && mPosition > 0);
+        mBtnNext.setEnabled(enabled && mPosition < mCount - 1);
+    }
+
+    /**
+     * 解决当前冲突，完成后在同一位置显示下一条
+     */
+    private void resolve(Conflict.Resolution resolution, String mergedTitle, String mergedContent) {
+        if (mConflict == null) {
+            return;
+        }
+        setButtonsEnabled(false);
+        long noteId = mConflict.getLocalNote().getNoteId();
+        SyncManager.getInstance().resolveConflict(noteId, resolution, mergedTitle, mergedContent,
+                new SyncManager.SyncCallback() {
+                    @Override
+                    public void onSuccess() {
+                        runOnMainThread(() -> loadPage(mPosition));
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        runOnMainThread(() -> {
+                            Toast.makeText(requireContext(), String.valueOf(error),
+                                    Toast.LENGTH_SHORT).show();
+                            setButtonsEnabled(true);
+                        });
+                    }
+                });
+    }
+
+    /**
+     * 当前冲突双方的标题与内容，供合并编辑使用
+     */
+    private Bundle currentArgs() {
+        if (mConflict == null) {
+            return null;
+        }
+        Bundle args = new Bundle();
+        args.putString(ARG_LOCAL_TITLE, mConflict.getLocalTitle());
+        args.putString(ARG_LOCAL_CONTENT, mConflict.getLocalNote().getContent());
+        args.putString(ARG_CLOUD_TITLE, mConflict.getCloudTitle());
+        args.putString(ARG_CLOUD_CONTENT, mConflict.getCloudNote().getContent());
+        return args;
+    }
+
     private String truncateContent(String title, String content) {
         String fullText = title + "\n" + content;
         if (fullText.length() > 100) {
@@ -191,10 +462,7 @@ public class ConflictResolutionDialog extends DialogFragment {
             String finalTitle = etTitle.getText().toString().trim();
             String finalContent = etContent.getText().toString().trim();
 
-            if (mListener != null) {
-                mListener.onMerge(finalTitle, finalContent);
-            }
-            dismiss();
+            resolve(Conflict.Resolution.MERGE, finalTitle, finalContent);
         });
 
         builder.setNegativeButton("取消", (dialog, which) -> dialog.dismiss());
@@ -57,12 +57,17 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 
 import net.micode.notes.R;
+import net.micode.notes.data.NoteBodyStore;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.model.NoteCommand;
+import net.micode.notes.model.TextEditLog;
 import net.micode.notes.model.UndoRedoManager;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
+import net.micode.notes.sync.AttachmentSyncer;
+import net.micode.notes.sync.SyncManager;
+import net.micode.notes.sync.SyncScheduler;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ImageExportHelper;
@@ -175,6 +180,9 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
     private NoteEditBinding binding;
 
     private UndoRedoManager mUndoRedoManager;
+
+    // 正文编辑流，开启文本合并时保存后交给同步以文本操作推送
+    private final TextEditLog mTextEditLog = new TextEditLog();
     private boolean mInUndoRedo = false;
 
     private NoteColorAdapter mColorAdapter;
@@ -286,6 +294,7 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
                     finish();
                     return false;
                 }
+                onNoteOpened(noteId);
             }
             getWindow().setSoftInputMode(
                     WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
@@ -387,6 +396,7 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
             public void afterTextChanged(Editable s) {
             }
         });
+        mNoteEditor.addTextChangedListener(mTextEditLog);
         
         // Title TextWatcher
         mNoteHeaderHolder.etTitle.addTextChangedListener(new TextWatcher() {
@@ -503,6 +513,10 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
      * </p>
      */
     private void initNoteScreen() {
+        // 正文下载完成前只显示预览，不允许编辑
+        boolean editable = mWorkingNote.isBodyLoaded();
+        mNoteEditor.setEnabled(editable);
+        mNoteHeaderHolder.etTitle.setEnabled(editable);
         mNoteEditor.setTextAppearance(this, TextAppearanceResources
                 .getTexAppearanceResource(mFontSizeId));
         // Apply custom font
@@ -510,12 +524,16 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
 
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mWorkingNote.getContent());
+            mTextEditLog.start(mWorkingNote.getContent(), false);
         } else {
             String content = mWorkingNote.getContent();
             if (content.contains("<") && content.contains(">")) {
                 mNoteEditor.setText(RichTextHelper.fromHtml(content, this));
+                fetchMissingAttachments(content);
+                mTextEditLog.start(content, false);
             } else {
                 mNoteEditor.setText(getHighlightQueryResult(content, mUserQuery));
+                mTextEditLog.start(content, true);
             }
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
@@ -1168,9 +1186,10 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
             case 0: // Text
                 BackupUtils backupUtils = BackupUtils.getInstance(this);
                 int state = backupUtils.exportNoteToText(noteId, title);
-                if (state == BackupUtils.STATE_SUCCESS) {
+                if (state == BackupUtils.STATE_SUCCESS || state == BackupUtils.STATE_BODIES_MISSING) {
                     File file = new File(backupUtils.getExportedTextFileDir(), backupUtils.getExportedTextFileName());
-                    showToast("已导出至下载目录: " + file.getName());
+                    showToast(state == BackupUtils.STATE_SUCCESS ? "已导出至下载目录: " + file.getName()
+                            : getString(R.string.export_bodies_missing));
                     if (share) shareFile(file, "text/plain");
                 } else {
                     showToast("导出文本失败");
@@ -1530,6 +1549,7 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
      */
     public void onCheckListModeChanged(int oldMode, int newMode) {
         mUndoRedoManager.clear();
+        mTextEditLog.stop();
         invalidateOptionsMenu();
         if (newMode == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mNoteEditor.getText().toString());
@@ -1603,6 +1623,10 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
              */
             setResult(RESULT_OK);
 
+            SyncManager.getInstance().recordTextEdits(mWorkingNote,
+                    mTextEditLog.getBase(), mTextEditLog.getEdits());
+            mTextEditLog.rebase(mWorkingNote.getContent());
+
             // 触发同步（如果用户已登录）
             triggerBackgroundSync();
         }
@@ -1611,21 +1635,14 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
 
     /**
      * 触发后台同步（如果用户已登录）
+     * <p>
+     * 交给调度器防抖：连续保存只会在最后一次保存几秒后同步一次。
+     * </p>
      */
     private void triggerBackgroundSync() {
         net.micode.notes.auth.UserAuthManager authManager = net.micode.notes.auth.UserAuthManager.getInstance(this);
         if (authManager.isLoggedIn()) {
-            net.micode.notes.sync.SyncManager.getInstance().syncNotes(new net.micode.notes.sync.SyncManager.SyncCallback() {
-                @Override
-                public void onSuccess() {
-                    Log.d("NoteEditActivity", "Background sync completed after save");
-                }
-
-                @Override
-                public void onError(String error) {
-                    Log.e("NoteEditActivity", "Background sync failed after save: " + error);
-                }
-            });
+            SyncScheduler.getInstance(this).onLocalEdit();
         }
     }
 
@@ -1801,26 +1818,17 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
                 java.io.InputStream is = getContentResolver().openInputStream(uri);
                 if (is == null) return;
 
-                // Create images directory if not exists
-                java.io.File imagesDir = new java.io.File(getFilesDir(), "images");
-                if (!imagesDir.exists()) {
-                    imagesDir.mkdirs();
-                }
-
-                // Create a unique file name
-                String fileName = "img_" + System.currentTimeMillis() + ".jpg";
-                java.io.File destFile = new java.io.File(imagesDir, fileName);
-
-                java.io.FileOutputStream fos = new java.io.FileOutputStream(destFile);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
+                // 按内容哈希保存到附件目录，同一图片只存一份，并可同步到其他设备
+                net.micode.notes.data.AttachmentStore store =
+                        new net.micode.notes.data.AttachmentStore(this);
+                String hash;
+                try {
+                    hash = store.importStream(is);
+                } finally {
+                    is.close();
                 }
-                fos.close();
-                is.close();
 
-                final String filePath = "file://" + destFile.getAbsolutePath();
+                final String filePath = store.localUrl(hash);
                 runOnUiThread(() -> {
                     RichTextHelper.insertImage(mNoteEditor, filePath);
                 });
@@ -1834,6 +1842,67 @@ public class NoteEditActivity extends BaseActivity implements OnClickListener,
         }).start();
     }
 
+    /**
+     * 打开已有笔记：记录访问时间；正文尚未下载（只同步了元数据）时在后台下载并重新加载
+     */
+    private void onNoteOpened(final long noteId) {
+        final boolean bodyLoaded = mWorkingNote.isBodyLoaded();
+        if (!bodyLoaded) {
+            showToast(R.string.note_body_loading);
+        }
+        final Context appContext = getApplicationContext();
+        new Thread(() -> {
+            new NoteBodyStore(appContext).markAccessed(noteId);
+            if (bodyLoaded) {
+                return;
+            }
+            // 在后台线程加载时 WorkingNote 会按需下载正文
+            final WorkingNote reloaded = WorkingNote.load(appContext, noteId);
+            runOnUiThread(() -> {
+                if (isFinishing()) {
+                    return;
+                }
+                if (reloaded == null || !reloaded.isBodyLoaded()) {
+                    showToast(R.string.note_body_load_failed);
+                    finish();
+                    return;
+                }
+                mWorkingNote = reloaded;
+                mWorkingNote.setOnSettingStatusChangedListener(this);
+                initNoteScreen();
+            });
+        }).start();
+    }
+
+    /**
+     * 按需下载笔记引用的、本地缺失的附件（来自其他设备的图片），下载后重新渲染
+     */
+    private void fetchMissingAttachments(final String content) {
+        final AttachmentSyncer syncer = AttachmentSyncer.forCurrentUser(this);
+        if (syncer == null || syncer.findMissingLocally(content).isEmpty()) {
+            return;
+        }
+        final String shownText = mNoteEditor.getText().toString();
+        new Thread(() -> {
+            try {
+                if (syncer.fetchMissingBlobs(content) > 0) {
+                    runOnUiThread(() -> {
+                        // 用户尚未修改时才重新渲染，避免覆盖正在编辑的文本
+                        if (!isFinishing() && shownText.equals(mNoteEditor.getText().toString())
+                                && mWorkingNote.getCheckListMode() != TextNote.MODE_CHECK_LIST) {
+                            int selection = mNoteEditor.getSelectionStart();
+                            mNoteEditor.setText(RichTextHelper.fromHtml(content, this));
+                            mNoteEditor.setSelection(Math.min(Math.max(selection, 0),
+                                    mNoteEditor.getText().length()));
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to fetch attachments", e);
+            }
+        }).start();
+    }
+
     private void saveWallpaperToPrivateStorage(android.net.Uri uri) {
         new Thread(() -> {
             try {
@@ -497,9 +497,10 @@ public class NotesListActivity extends BaseActivity implements SidebarFragment.O
         if (format == 0) { // Text (Combined)
             BackupUtils backupUtils = BackupUtils.getInstance(this);
             int state = backupUtils.exportNotesToText(selectedIds);
-            if (state == BackupUtils.STATE_SUCCESS) {
+            if (state == BackupUtils.STATE_SUCCESS || state == BackupUtils.STATE_BODIES_MISSING) {
                 File file = new File(backupUtils.getExportedTextFileDir(), backupUtils.getExportedTextFileName());
-                Toast.makeText(this, "已导出至下载目录: " + file.getName(), Toast.LENGTH_SHORT).show();
+                Toast.makeText(this, state == BackupUtils.STATE_SUCCESS ? "已导出至下载目录: " + file.getName()
+                        : getString(R.string.export_bodies_missing), Toast.LENGTH_SHORT).show();
                 if (share) shareFile(file, "text/plain");
             } else {
                 Toast.makeText(this, "导出失败", Toast.LENGTH_SHORT).show();
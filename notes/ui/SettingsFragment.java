@@ -106,6 +106,9 @@ public class SettingsFragment extends PreferenceFragmentCompat {
             case net.micode.notes.tool.BackupUtils.STATE_SUCCESS:
                 message = getString(R.string.success_sdcard_export) + ": " + backupUtils.getExportedTextFileDir() + backupUtils.getExportedTextFileName();
                 break;
+            case net.micode.notes.tool.BackupUtils.STATE_BODIES_MISSING:
+                message = getString(R.string.export_bodies_missing) + ": " + backupUtils.getExportedTextFileDir() + backupUtils.getExportedTextFileName();
+                break;
             case net.micode.notes.tool.BackupUtils.STATE_SD_CARD_UNMOUONTED:
                 message = getString(R.string.error_sdcard_unmounted);
                 break;
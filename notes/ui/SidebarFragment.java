@@ -45,6 +45,7 @@ import net.micode.notes.R;
 import net.micode.notes.auth.UserAuthManager;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.NotesRepository;
+import net.micode.notes.sync.LiveSyncChannel;
 import net.micode.notes.sync.SyncManager;
 import net.micode.notes.viewmodel.FolderListViewModel;
 
@@ -339,6 +340,7 @@ public class SidebarFragment extends Fragment {
 
         // 重置同步状态，清除上次同步时间
         SyncManager.getInstance().resetSyncState();
+        LiveSyncChannel.getInstance().refresh();
 
         updateUserState();
 
@@ -16,6 +16,7 @@
 
 package net.micode.notes.ui;
 
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.View;
@@ -30,32 +31,44 @@ import com.google.android.material.switchmaterial.SwitchMaterial;
 
 import net.micode.notes.R;
 import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.NotesRepository;
+import net.micode.notes.data.SyncStatsStore;
+import net.micode.notes.sync.LiveSyncChannel;
 import net.micode.notes.sync.SyncManager;
+import net.micode.notes.sync.SyncMetrics;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
  * 同步设置界面
  * <p>
- * 显示云同步设置，包括登录状态、同步开关、同步按钮和进度显示。
+ * 显示云同步设置，包括登录状态、同步开关、同步按钮和进度显示，
+ * 以及最近一次同步的性能统计（可导出最近的同步记录）。
  * </p>
  */
 public class SyncActivity extends BaseActivity {
 
     private static final String PREFS_SYNC = "sync_settings";
     private static final String KEY_AUTO_SYNC = "auto_sync";
-    private static final String KEY_LAST_SYNC = "last_sync_time";
+    private static final String TAG_CONFLICTS = "conflicts";
 
     private TextView mTvDeviceId;
     private TextView mTvLastSyncTime;
     private TextView mTvSyncStatus;
     private SwitchMaterial mSwitchAutoSync;
+    private SwitchMaterial mSwitchMetadataOnly;
+    private SwitchMaterial mSwitchLiveSync;
+    private SwitchMaterial mSwitchTextMerge;
     private ProgressBar mProgressSync;
     private MaterialButton mBtnSyncNow;
+    private TextView mTvSyncStats;
+    private MaterialButton mBtnExportStats;
 
     private SharedPreferences mPrefs;
+    private NotesRepository mRepository;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -63,6 +76,7 @@ public class SyncActivity extends BaseActivity {
         setContentView(R.layout.activity_sync);
 
         mPrefs = getSharedPreferences(PREFS_SYNC, MODE_PRIVATE);
+        mRepository = new NotesRepository(this);
 
         initViews();
         loadSettings();
@@ -73,20 +87,38 @@ public class SyncActivity extends BaseActivity {
         mTvLastSyncTime = findViewById(R.id.tv_last_sync_time);
         mTvSyncStatus = findViewById(R.id.tv_sync_status);
         mSwitchAutoSync = findViewById(R.id.switch_auto_sync);
+        mSwitchMetadataOnly = findViewById(R.id.switch_metadata_only);
+        mSwitchLiveSync = findViewById(R.id.switch_live_sync);
+        mSwitchTextMerge = findViewById(R.id.switch_text_merge);
         mProgressSync = findViewById(R.id.progress_sync);
         mBtnSyncNow = findViewById(R.id.btn_sync_now);
+        mTvSyncStats = findViewById(R.id.tv_sync_stats);
+        mBtnExportStats = findViewById(R.id.btn_export_stats);
 
         mSwitchAutoSync.setOnCheckedChangeListener((buttonView, isChecked) -> {
             mPrefs.edit().putBoolean(KEY_AUTO_SYNC, isChecked).apply();
         });
+        mSwitchMetadataOnly.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SyncManager.getInstance().setMetadataOnlySync(isChecked);
+        });
+        mSwitchLiveSync.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            LiveSyncChannel.getInstance().setEnabled(isChecked);
+        });
+        mSwitchTextMerge.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SyncManager.getInstance().setTextMergeEnabled(isChecked);
+        });
 
         mBtnSyncNow.setOnClickListener(v -> startSync());
+        mBtnExportStats.setOnClickListener(v -> exportStats());
     }
 
     private void loadSettings() {
         // Load auto sync setting
         boolean autoSync = mPrefs.getBoolean(KEY_AUTO_SYNC, false);
         mSwitchAutoSync.setChecked(autoSync);
+        mSwitchMetadataOnly.setChecked(SyncManager.getInstance().isMetadataOnlySync());
+        mSwitchLiveSync.setChecked(LiveSyncChannel.getInstance().isEnabled());
+        mSwitchTextMerge.setChecked(SyncManager.getInstance().isTextMergeEnabled());
 
         // Load user info
         UserAuthManager authManager = UserAuthManager.getInstance(this);
@@ -99,12 +131,8 @@ public class SyncActivity extends BaseActivity {
             mBtnSyncNow.setEnabled(false);
         }
 
-        // Load last sync time
-        long lastSync = mPrefs.getLong(KEY_LAST_SYNC, 0);
-        if (lastSync > 0) {
-            String timeStr = formatTime(lastSync);
-            mTvLastSyncTime.setText(timeStr);
-        }
+        // Load last sync time and stats
+        loadLatestStats();
 
         // Set initial status
         mTvSyncStatus.setText(R.string.sync_status_idle);
@@ -120,16 +148,19 @@ public class SyncActivity extends BaseActivity {
         SyncManager.getInstance().syncNotes(new SyncManager.SyncCallback() {
             @Override
             public void onSuccess() {
+                int conflicts = SyncManager.getInstance().getPendingConflictCount();
                 runOnUiThread(() -> {
                     mTvSyncStatus.setText(R.string.sync_status_success);
                     mProgressSync.setVisibility(View.INVISIBLE);
                     mBtnSyncNow.setEnabled(true);
-
-                    long currentTime = System.currentTimeMillis();
-                    mPrefs.edit().putLong(KEY_LAST_SYNC, currentTime).apply();
-                    mTvLastSyncTime.setText(formatTime(currentTime));
+                    showMetrics(SyncManager.getInstance().getLastSyncMetrics());
 
                     Toast.makeText(SyncActivity.this, R.string.sync_toast_success, Toast.LENGTH_SHORT).show();
+                    if (conflicts > 0 && !isFinishing()
+                            && getSupportFragmentManager().findFragmentByTag(TAG_CONFLICTS) == null) {
+                        ConflictResolutionDialog.newInstance()
+                                .show(getSupportFragmentManager(), TAG_CONFLICTS);
+                    }
                 });
             }
 
@@ -139,6 +170,7 @@ public class SyncActivity extends BaseActivity {
                     mTvSyncStatus.setText(R.string.sync_status_failed);
                     mProgressSync.setVisibility(View.INVISIBLE);
                     mBtnSyncNow.setEnabled(true);
+                    showMetrics(SyncManager.getInstance().getLastSyncMetrics());
 
                     String message = getString(R.string.sync_toast_failed, error);
                     Toast.makeText(SyncActivity.this, message, Toast.LENGTH_LONG).show();
@@ -147,6 +179,81 @@ public class SyncActivity extends BaseActivity {
         });
     }
 
+    /**
+     * 从统计表读取最近的同步记录：统计显示最近一次，同步时间显示最近一次成功的
+     */
+    private void loadLatestStats() {
+        mRepository.getRecentSyncStats(SyncStatsStore.MAX_ROWS,
+                new NotesRepository.Callback<List<SyncMetrics>>() {
+            @Override
+            public void onSuccess(List<SyncMetrics> result) {
+                runOnUiThread(() -> {
+                    for (SyncMetrics metrics : result) {
+                        if (metrics.isSuccess()) {
+                            mTvLastSyncTime.setText(formatTime(metrics.getFinishedAt()));
+                            break;
+                        }
+                    }
+                    showMetrics(result.isEmpty() ? null : result.get(0));
+                });
+            }
+
+            @Override
+            public void onError(Exception error) {
+                runOnUiThread(() -> showMetrics(null));
+            }
+        });
+    }
+
+    /**
+     * 显示一次同步的统计；失败的同步加上失败标注，且不更新最近同步时间
+     */
+    private void showMetrics(SyncMetrics metrics) {
+        if (metrics == null) {
+            mTvSyncStats.setText(R.string.sync_stats_empty);
+            return;
+        }
+        if (metrics.isSuccess()) {
+            mTvLastSyncTime.setText(formatTime(metrics.getFinishedAt()));
+            mTvSyncStats.setText(metrics.toSummary());
+        } else {
+            mTvSyncStats.setText(getString(R.string.sync_stats_failed,
+                    formatTime(metrics.getFinishedAt()), metrics.toSummary()));
+        }
+    }
+
+    /**
+     * 以 CSV 文本分享最近的同步记录
+     */
+    private void exportStats() {
+        mRepository.getRecentSyncStats(SyncStatsStore.MAX_ROWS,
+                new NotesRepository.Callback<List<SyncMetrics>>() {
+            @Override
+            public void onSuccess(List<SyncMetrics> result) {
+                runOnUiThread(() -> {
+                    if (result.isEmpty()) {
+                        Toast.makeText(SyncActivity.this, R.string.sync_stats_empty,
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.sync_stats_title));
+                    intent.putExtra(Intent.EXTRA_TEXT, SyncMetrics.formatReport(result));
+                    intent.setType("text/plain");
+                    startActivity(Intent.createChooser(intent,
+                            getString(R.string.sync_stats_export)));
+                });
+            }
+
+            @Override
+            public void onError(Exception error) {
+                runOnUiThread(() -> Toast.makeText(SyncActivity.this,
+                        getString(R.string.sync_toast_failed, error.getMessage()),
+                        Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
     private String formatTime(long timeMillis) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
         return sdf.format(new Date(timeMillis));
@@ -26,6 +26,7 @@ import androidx.lifecycle.MutableLiveData;
 
 import net.micode.notes.auth.AnonymousAuthManager;
 import net.micode.notes.auth.UserAuthManager;
+import net.micode.notes.data.NoteOwnershipStore;
 import net.micode.notes.data.NotesRepository;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.sync.SyncManager;
@@ -169,8 +170,12 @@ public class LoginViewModel extends AndroidViewModel {
     private void migrateAnonymousDataAndSync(String newUserId) {
         mSyncStatus.postValue("正在接管设备上的笔记...");
 
+        // 笔记很多时分块接管，显示进度
+        NoteOwnershipStore.ProgressListener progress = (done, total) ->
+                mSyncStatus.postValue("正在接管设备上的笔记 (" + done + "/" + total + ")...");
+
         // 新用户接管设备上所有笔记
-        mNotesRepository.takeoverAllNotes(newUserId, new NotesRepository.Callback<Integer>() {
+        mNotesRepository.takeoverAllNotes(newUserId, progress, new NotesRepository.Callback<Integer>() {
             @Override
             public void onSuccess(Integer count) {
                 Log.d(TAG, "Takeover completed: " + count + " notes now belong to " + newUserId);
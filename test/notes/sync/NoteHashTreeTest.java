@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link NoteHashTree} 对账能找出预置的差异
+ * <p>
+ * {@link #reconcile} 按客户端（SyncManager）与本地云端替身服务器的协议逐层比较：
+ * 云端决定桶是否以笔记列表返回，客户端比较子桶的数量与摘要，只深入不一致的子桶。
+ * </p>
+ */
+public class NoteHashTreeTest {
+
+    private static final int NOTE_COUNT = 1000;
+
+    /**
+     * 一次对账的结果
+     */
+    private static class Drift {
+        /** 云端内容与本地不同或本地缺失的笔记 */
+        final List<String> differing = new ArrayList<>();
+        /** 只在本地存在的笔记 */
+        final List<String> missingOnCloud = new ArrayList<>();
+        /** 逐条比较过的云端笔记数量 */
+        int compared;
+        /** 到达的最大前缀长度 */
+        int maxDepth;
+    }
+
+    @Test
+    public void identicalTreesHaveNoDrift() {
+        Drift drift = reconcile(populated(new NoteHashTree()), populated(new NoteHashTree()));
+        assertTrue(drift.differing.isEmpty());
+        assertTrue(drift.missingOnCloud.isEmpty());
+        assertEquals(0, drift.compared);
+    }
+
+    @Test
+    public void changedHashInOneBucketIsFound() {
+        NoteHashTree local = populated(new NoteHashTree());
+        NoteHashTree cloud = populated(new NoteHashTree());
+        cloud.put("note-123", hashOf(123) + 1);
+
+        Drift drift = reconcile(local, cloud);
+        assertEquals(Collections.singletonList("note-123"), drift.differing);
+        assertTrue(drift.missingOnCloud.isEmpty());
+        // 只深入包含差异的桶
+        assertTrue(drift.compared <= NoteHashTree.LEAF_SIZE);
+    }
+
+    @Test
+    public void noteOnOnlyOneSideIsFound() {
+        NoteHashTree local = populated(new NoteHashTree());
+        NoteHashTree cloud = populated(new NoteHashTree());
+        cloud.put("cloud-only", 1L);
+        local.put("local-only", 2L);
+
+        Drift drift = reconcile(local, cloud);
+        assertEquals(Collections.singletonList("cloud-only"), drift.differing);
+        assertEquals(Collections.singletonList("local-only"), drift.missingOnCloud);
+    }
+
+    @Test
+    public void bucketSplitsPastLeafSize() {
+        NoteHashTree tree = new NoteHashTree();
+        for (int i = 0; i < NoteHashTree.LEAF_SIZE; i++) {
+            tree.put("note-" + i, hashOf(i));
+        }
+        assertTrue(tree.isLeafBucket(""));
+        tree.put("note-" + NoteHashTree.LEAF_SIZE, hashOf(NoteHashTree.LEAF_SIZE));
+        assertFalse(tree.isLeafBucket(""));
+
+        int children = 0;
+        for (int i = 0; i < NoteHashTree.FANOUT; i++) {
+            children += tree.count(NoteHashTree.childPrefix("", i));
+        }
+        assertEquals(tree.size(), children);
+
+        NoteHashTree local = populated(new NoteHashTree());
+        NoteHashTree cloud = populated(new NoteHashTree());
+        cloud.put("note-7", hashOf(7) + 1);
+        Drift drift = reconcile(local, cloud);
+        assertEquals(Collections.singletonList("note-7"), drift.differing);
+        assertTrue(drift.maxDepth >= 2);
+    }
+
+    @Test
+    public void maxDepthCutsOffSplitting() {
+        int leafSize = 1;
+        int maxDepth = 2;
+        NoteHashTree local = populated(new NoteHashTree(leafSize, maxDepth));
+        NoteHashTree cloud = populated(new NoteHashTree(leafSize, maxDepth));
+
+        // 选一个与其他笔记同在最深一层桶中的笔记，截止后整桶逐条比较
+        String changed = null;
+        for (int i = 0; i < NOTE_COUNT && changed == null; i++) {
+            String prefix = NoteHashTree.bucketKey("note-" + i).substring(0, maxDepth);
+            if (cloud.count(prefix) > leafSize) {
+                changed = "note-" + i;
+                cloud.put(changed, hashOf(i) + 1);
+            }
+        }
+        String deepest = NoteHashTree.bucketKey(changed).substring(0, maxDepth);
+        assertTrue(cloud.isLeafBucket(deepest));
+        assertFalse(cloud.isLeafBucket(deepest.substring(0, maxDepth - 1)));
+
+        Drift drift = reconcile(local, cloud);
+        assertEquals(Collections.singletonList(changed), drift.differing);
+        assertEquals(maxDepth, drift.maxDepth);
+        assertEquals(cloud.count(deepest), drift.compared);
+    }
+
+    @Test
+    public void digestDoesNotDependOnInsertionOrder() {
+        NoteHashTree forward = new NoteHashTree();
+        NoteHashTree backward = new NoteHashTree();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            forward.put("note-" + i, hashOf(i));
+            backward.put("note-" + (NOTE_COUNT - 1 - i), hashOf(NOTE_COUNT - 1 - i));
+        }
+        assertEquals(forward.digest(""), backward.digest(""));
+    }
+
+    private static NoteHashTree populated(NoteHashTree tree) {
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            tree.put("note-" + i, hashOf(i));
+        }
+        return tree;
+    }
+
+    private static long hashOf(int i) {
+        return NoteHashTree.contentHashOfBody("body-" + i, "0");
+    }
+
+    /**
+     * 从根开始逐层比较两棵树
+     */
+    private static Drift reconcile(NoteHashTree local, NoteHashTree cloud) {
+        Drift drift = new Drift();
+        Deque<String> pending = new ArrayDeque<>();
+        if (local.count("") != cloud.count("") || local.digest("") != cloud.digest("")) {
+            pending.add("");
+        }
+        while (!pending.isEmpty()) {
+            String prefix = pending.poll();
+            drift.maxDepth = Math.max(drift.maxDepth, prefix.length());
+            if (cloud.isLeafBucket(prefix)) {
+                Map<String, Long> localNotes = new HashMap<>(local.notesIn(prefix));
+                for (Map.Entry<String, Long> entry : cloud.notesIn(prefix).entrySet()) {
+                    drift.compared++;
+                    Long localHash = localNotes.remove(entry.getKey());
+                    if (localHash == null || !localHash.equals(entry.getValue())) {
+                        drift.differing.add(entry.getKey());
+                    }
+                }
+                drift.missingOnCloud.addAll(localNotes.keySet());
+                continue;
+            }
+            for (int i = 0; i < NoteHashTree.FANOUT; i++) {
+                String child = NoteHashTree.childPrefix(prefix, i);
+                if (local.count(child) != cloud.count(child) || local.digest(child) != cloud.digest(child)) {
+                    pending.add(child);
+                }
+            }
+        }
+        return drift;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link SyncSchedulePolicy} 在假时钟下的调度决策
+ */
+public class SyncSchedulePolicyTest {
+
+    private static class FakeClock implements SyncSchedulePolicy.Clock {
+        long now = 1_000_000L;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private FakeClock mClock;
+    private SyncSchedulePolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mPolicy = new SyncSchedulePolicy(mClock);
+    }
+
+    @Test
+    public void editSyncsAfterDebounce() {
+        assertEquals(SyncSchedulePolicy.DEBOUNCE_MS, mPolicy.onLocalEdit());
+        mClock.now += 1000;
+        assertEquals(SyncSchedulePolicy.DEBOUNCE_MS, mPolicy.onLocalEdit());
+    }
+
+    @Test
+    public void continuousEditingWaitsAtMostMaxDebounce() {
+        mPolicy.onLocalEdit();
+        mClock.now += SyncSchedulePolicy.MAX_DEBOUNCE_MS - 2000;
+        assertEquals(2000, mPolicy.onLocalEdit());
+        mClock.now += 2000;
+        assertEquals(0, mPolicy.onLocalEdit());
+    }
+
+    @Test
+    public void successRestartsDebounce() {
+        mPolicy.onLocalEdit();
+        mClock.now += SyncSchedulePolicy.MAX_DEBOUNCE_MS;
+        mPolicy.onSyncCompleted(true, 0);
+        assertEquals(SyncSchedulePolicy.DEBOUNCE_MS, mPolicy.onLocalEdit());
+    }
+
+    @Test
+    public void editAfterFailureWaitsForBackoff() {
+        mPolicy.onLocalEdit();
+        mClock.now += SyncSchedulePolicy.MAX_DEBOUNCE_MS;
+        long backoff = mPolicy.onSyncCompleted(false, 0);
+        assertEquals(SyncSchedulePolicy.FAILURE_BASE_MS, backoff);
+
+        mClock.now += 1000;
+        assertEquals(backoff - 1000, mPolicy.onLocalEdit());
+    }
+
+    @Test
+    public void editAfterBackoffDebouncesAgain() {
+        mPolicy.onLocalEdit();
+        mClock.now += SyncSchedulePolicy.MAX_DEBOUNCE_MS;
+        long backoff = mPolicy.onSyncCompleted(false, 0);
+
+        mClock.now += backoff;
+        assertEquals(SyncSchedulePolicy.DEBOUNCE_MS, mPolicy.onLocalEdit());
+    }
+
+    @Test
+    public void failureBackoffGrowsExponentiallyAndIsCapped() {
+        assertEquals(SyncSchedulePolicy.FAILURE_BASE_MS, mPolicy.onSyncCompleted(false, 0));
+        assertEquals(2 * SyncSchedulePolicy.FAILURE_BASE_MS, mPolicy.onSyncCompleted(false, 0));
+        assertEquals(4 * SyncSchedulePolicy.FAILURE_BASE_MS, mPolicy.onSyncCompleted(false, 0));
+        for (int i = 0; i < 20; i++) {
+            mPolicy.onSyncCompleted(false, 0);
+        }
+        assertEquals(SyncSchedulePolicy.FAILURE_MAX_MS, mPolicy.onSyncCompleted(false, 0));
+    }
+
+    @Test
+    public void successClearsBackoff() {
+        mPolicy.onSyncCompleted(false, 0);
+        mPolicy.onSyncCompleted(false, 0);
+        mPolicy.onSyncCompleted(true, 0);
+
+        assertEquals(0, mPolicy.getConsecutiveFailures());
+        assertEquals(SyncSchedulePolicy.DEBOUNCE_MS, mPolicy.onLocalEdit());
+        assertEquals(SyncSchedulePolicy.FAILURE_BASE_MS, mPolicy.onSyncCompleted(false, 0));
+    }
+
+    @Test
+    public void quietCloudDoublesIntervalUpToMax() {
+        assertEquals(2 * SyncSchedulePolicy.DEFAULT_INTERVAL_MS, mPolicy.onSyncCompleted(true, 0));
+        for (int i = 0; i < 10; i++) {
+            mPolicy.onSyncCompleted(true, 0);
+        }
+        assertEquals(SyncSchedulePolicy.MAX_INTERVAL_MS, mPolicy.getIntervalMs());
+    }
+
+    @Test
+    public void remoteChangesHalveIntervalAndBusyCloudTightensToMin() {
+        assertEquals(SyncSchedulePolicy.DEFAULT_INTERVAL_MS / 2, mPolicy.onSyncCompleted(true, 1));
+        mClock.now += 60 * 1000L;
+        mPolicy.onSyncCompleted(true, 1);
+        mClock.now += 60 * 1000L;
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, mPolicy.onSyncCompleted(true, 1));
+    }
+
+    @Test
+    public void restoredIntervalIsClamped() {
+        mPolicy.setIntervalMs(1);
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, mPolicy.getIntervalMs());
+        mPolicy.setIntervalMs(Long.MAX_VALUE);
+        assertEquals(SyncSchedulePolicy.MAX_INTERVAL_MS, mPolicy.getIntervalMs());
+    }
+}
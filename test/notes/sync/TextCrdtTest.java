@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.sync;
+
+import static org.junit.Assert.assertEquals;
+
+import net.micode.notes.model.TextEditLog;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link TextCrdt} 的收敛性、状态与批次编码，以及 {@link TextEditLog} 的编辑合并
+ * <p>
+ * 随机用例模拟服务端：各站点把本地编辑的批次追加到同一个日志，再按日志顺序拉取，
+ * 日志中每个批次只引用它之前的批次已有的字符，即按因果顺序应用。
+ * </p>
+ */
+public class TextCrdtTest {
+
+    private static final String BASE = "hello world";
+
+    @Test
+    public void concurrentInsertsAtSamePositionConverge() throws Exception {
+        TextCrdt a = TextCrdt.fromBase(BASE, "a");
+        TextCrdt b = TextCrdt.fromBase(BASE, "b");
+        JSONArray fromA = TextCrdt.encode(a.edit(5, 0, " big"));
+        JSONArray fromB = TextCrdt.encode(b.edit(5, 0, " small"));
+
+        a.applyBatch(fromB);
+        b.applyBatch(fromA);
+        assertEquals(a.getText(), b.getText());
+        assertEquals(BASE.length() + 10, a.getText().length());
+    }
+
+    @Test
+    public void insertAfterConcurrentlyDeletedCharacterIsKept() throws Exception {
+        TextCrdt a = TextCrdt.fromBase(BASE, "a");
+        TextCrdt b = TextCrdt.fromBase(BASE, "b");
+        JSONArray fromA = TextCrdt.encode(a.edit(0, 5, ""));
+        JSONArray fromB = TextCrdt.encode(b.edit(3, 0, "p"));
+
+        a.applyBatch(fromB);
+        b.applyBatch(fromA);
+        assertEquals("p world", a.getText());
+        assertEquals("p world", b.getText());
+    }
+
+    @Test
+    public void randomEditsConvergeUnderCausalOrder() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            TextCrdt[] sites = {
+                    TextCrdt.fromBase(BASE, "a"),
+                    TextCrdt.fromBase(BASE, "b"),
+                    TextCrdt.fromBase(BASE, "c"),
+            };
+            int[] pulled = new int[sites.length];
+            List<JSONArray> log = new ArrayList<>();
+
+            for (int step = 0; step < 200; step++) {
+                int site = random.nextInt(sites.length);
+                if (random.nextInt(3) == 0) {
+                    pull(sites[site], log, pulled, site);
+                } else {
+                    log.add(TextCrdt.encode(randomEdit(sites[site], random)));
+                }
+            }
+            for (int site = 0; site < sites.length; site++) {
+                pull(sites[site], log, pulled, site);
+            }
+
+            TextCrdt replay = TextCrdt.fromBase(BASE, "replay");
+            for (JSONArray batch : log) {
+                replay.applyBatch(batch);
+            }
+            for (TextCrdt crdt : sites) {
+                assertEquals("round " + round, replay.getText(), crdt.getText());
+            }
+        }
+    }
+
+    @Test
+    public void stateRoundTripKeepsTextTombstonesAndClock() throws Exception {
+        TextCrdt original = TextCrdt.fromBase(BASE, "a");
+        Random random = new Random(7);
+        for (int i = 0; i < 30; i++) {
+            randomEdit(original, random);
+        }
+        JSONArray state = original.toState();
+
+        TextCrdt restored = TextCrdt.fromState(state, "a");
+        assertEquals(original.getText(), restored.getText());
+        assertEquals(state.toString(), restored.toState().toString());
+
+        // 恢复后的时钟不小于已有的ID，新操作不会与旧字符重复
+        original.applyBatch(TextCrdt.encode(restored.edit(0, 0, "new ")));
+        assertEquals(restored.getText(), original.getText());
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() throws Exception {
+        TextCrdt crdt = TextCrdt.fromBase(BASE, "a");
+        List<TextCrdt.Op> ops = new ArrayList<>();
+        ops.addAll(crdt.edit(6, 5, "there"));
+        ops.addAll(crdt.edit(0, 1, "J"));
+        ops.addAll(crdt.edit(2, 0, "ll"));
+
+        List<TextCrdt.Op> decoded = TextCrdt.decode(TextCrdt.encode(ops));
+        assertEquals(keys(ops).size(), decoded.size());
+        assertEquals(new HashSet<>(keys(ops)), new HashSet<>(keys(decoded)));
+
+        TextCrdt replay = TextCrdt.fromBase(BASE, "b");
+        replay.applyBatch(TextCrdt.encode(ops));
+        assertEquals(crdt.getText(), replay.getText());
+    }
+
+    @Test
+    public void withoutRemovesAcknowledgedOperations() throws Exception {
+        TextCrdt crdt = TextCrdt.fromBase(BASE, "a");
+        List<TextCrdt.Op> sent = crdt.edit(0, 5, "howdy");
+        List<TextCrdt.Op> later = crdt.edit(crdt.getText().length(), 0, "!");
+
+        JSONArray pending = TextCrdt.concat(TextCrdt.encode(sent), later);
+        assertEquals(TextCrdt.encode(later).toString(),
+                TextCrdt.without(pending, TextCrdt.encode(sent)).toString());
+        assertEquals(0, TextCrdt.without(pending, pending).length());
+    }
+
+    @Test
+    public void typingIsCoalescedIntoOneEdit() {
+        TextEditLog log = new TextEditLog();
+        log.start(BASE, true);
+        String text = BASE;
+        for (char c : " again".toCharArray()) {
+            text = type(log, text, text.length(), 0, String.valueOf(c));
+        }
+
+        assertEquals(1, log.getEdits().size());
+        TextEditLog.Edit edit = log.getEdits().get(0);
+        assertEquals(BASE.length(), edit.start);
+        assertEquals(0, edit.deleteCount);
+        assertEquals(" again", edit.inserted);
+    }
+
+    @Test
+    public void backspaceIsCoalescedIntoOneEdit() {
+        TextEditLog log = new TextEditLog();
+        log.start(BASE, true);
+        String text = BASE;
+        for (int i = 0; i < 5; i++) {
+            text = type(log, text, text.length() - 1, 1, "");
+        }
+
+        assertEquals(1, log.getEdits().size());
+        TextEditLog.Edit edit = log.getEdits().get(0);
+        assertEquals(BASE.length() - 5, edit.start);
+        assertEquals(5, edit.deleteCount);
+        assertEquals("", edit.inserted);
+    }
+
+    @Test
+    public void recordedEditsReproduceEditorText() {
+        TextEditLog log = new TextEditLog();
+        log.start(BASE, true);
+        String text = BASE;
+        text = type(log, text, 0, 5, "Hello");
+        text = type(log, text, 6, 5, "worlds");
+        text = type(log, text, text.length(), 0, "!");
+
+        TextCrdt crdt = TextCrdt.fromBase(log.getBase(), "a");
+        for (TextEditLog.Edit edit : log.getEdits()) {
+            crdt.edit(edit.start, edit.deleteCount, edit.inserted);
+        }
+        assertEquals(text, crdt.getText());
+    }
+
+    /**
+     * 把 text 中 [start, start + before) 替换为 inserted，按编辑器的顺序通知记录器
+     *
+     * @return 替换后的文本
+     */
+    private static String type(TextEditLog log, String text, int start, int before, String inserted) {
+        log.beforeTextChanged(text, start, before, inserted.length());
+        String changed = text.substring(0, start) + inserted + text.substring(start + before);
+        log.onTextChanged(changed, start, before, inserted.length());
+        return changed;
+    }
+
+    private static List<TextCrdt.Op> randomEdit(TextCrdt crdt, Random random) {
+        int length = crdt.getText().length();
+        int start = random.nextInt(length + 1);
+        int deleteCount = random.nextInt(Math.min(3, length - start) + 1);
+        StringBuilder inserted = new StringBuilder();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            inserted.append((char) ('a' + random.nextInt(3)));
+        }
+        return crdt.edit(start, deleteCount, inserted.toString());
+    }
+
+    /**
+     * 站点按日志顺序应用尚未拉取的批次，包括自己的（应用已有的操作没有效果）
+     */
+    private static void pull(TextCrdt crdt, List<JSONArray> log, int[] pulled, int site)
+            throws Exception {
+        for (; pulled[site] < log.size(); pulled[site]++) {
+            crdt.applyBatch(log.get(pulled[site]));
+        }
+    }
+
+    private static List<String> keys(List<TextCrdt.Op> ops) {
+        List<String> keys = new ArrayList<>(ops.size());
+        for (TextCrdt.Op op : ops) {
+            keys.add(op.key() + (op.insert ? op.ref + ":" + op.value : ""));
+        }
+        return keys;
+    }
+}